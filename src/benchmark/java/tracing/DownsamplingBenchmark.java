@@ -0,0 +1,81 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package tracing;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times {@link PathAndFillManager#downsampleAll(double)} on synthetic
+ * reconstructions. Downsampling modifies the paths, so a fresh
+ * reconstruction is generated for each invocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DownsamplingBenchmark {
+
+	static final int WIDTH = 512;
+	static final int HEIGHT = 512;
+	static final int DEPTH = 64;
+
+	@Param({ "1000", "10000" })
+	int numberOfPaths;
+
+	@Param({ "1000" })
+	int pointsPerPath;
+
+	@Param({ "2" })
+	double maximumDeviation;
+
+	PathAndFillManager manager;
+
+	@Setup(Level.Invocation)
+	public void setUp() {
+		manager = SyntheticReconstructions.create(WIDTH, HEIGHT, DEPTH, numberOfPaths, pointsPerPath, 11);
+	}
+
+	@Benchmark
+	public PathAndFillManager downsampleAll() {
+		manager.downsampleAll(maximumDeviation);
+		return manager;
+	}
+}
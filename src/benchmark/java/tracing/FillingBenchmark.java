@@ -0,0 +1,95 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package tracing;
+
+import ij.ImagePlus;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times a complete {@link FillerThread} run seeded from the paths of a
+ * synthetic branching tree, with the sequential search and with
+ * {@link ParallelFillerThread}. The filler explores every reachable voxel,
+ * so this is dominated by the size of the volume.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FillingBenchmark {
+
+	@Param({ "64", "128" })
+	int size;
+
+	@Param({ "4" })
+	int levels;
+
+	@Param({ "false", "true" })
+	boolean parallel;
+
+	ImagePlus image;
+	Set<Path> sourcePaths;
+
+	@Setup
+	public void setUp() {
+		final List<double[][]> tree = SyntheticVolumes.branchingTree(size, size, size / 2, levels, 7);
+		image = SyntheticVolumes.render(size, size, size / 2, tree, 2, 10, 7);
+		/*
+		 * Only the trunk is used as a source, so that the fill has to spread
+		 * along the branches.
+		 */
+		sourcePaths = Collections.singleton(SyntheticVolumes.pathAlong(tree.get(0)));
+	}
+
+	@Benchmark
+	public FillerThread fillFromTrunk() {
+		final FillerThread filler = parallel ? new ParallelFillerThread(image, 0, 255, false, // startPaused
+				true, // reciprocal
+				0.03, // initialThreshold
+				0) // reportEveryMilliseconds
+				: new FillerThread(image, 0, 255, false, true, 0.03, 0);
+		filler.setSourcePaths(sourcePaths);
+		filler.run();
+		return filler;
+	}
+}
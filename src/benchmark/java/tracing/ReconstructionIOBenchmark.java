@@ -0,0 +1,138 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package tracing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times writing and reading synthetic reconstructions in the traces (XML)
+ * format, and importing them from SWC (with and without compacting the
+ * imported paths, whose memory use is printed at setup).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReconstructionIOBenchmark {
+
+	static final int WIDTH = 512;
+	static final int HEIGHT = 512;
+	static final int DEPTH = 64;
+
+	@Param({ "100", "1000" })
+	int numberOfPaths;
+
+	@Param({ "200" })
+	int pointsPerPath;
+
+	@Param({ "false", "true" })
+	boolean compress;
+
+	PathAndFillManager manager;
+	String swc;
+	File written;
+	File toLoad;
+
+	@Setup
+	public void setUp() throws IOException {
+		manager = SyntheticReconstructions.create(WIDTH, HEIGHT, DEPTH, numberOfPaths, pointsPerPath, 11);
+		swc = SyntheticReconstructions.swc(WIDTH, HEIGHT, DEPTH, numberOfPaths, pointsPerPath, 11);
+		written = File.createTempFile("benchmark-write", ".traces");
+		toLoad = File.createTempFile("benchmark-load", ".traces");
+		manager.writeXML(toLoad.getAbsolutePath(), compress);
+		final PathAndFillManager plain = importSWC();
+		final PathAndFillManager compacted = importSWCCompacted();
+		System.out.println("Point storage after SWC import: " + plain.getPointStorageBytes() + " bytes, "
+				+ compacted.getPointStorageBytes() + " bytes compacted");
+	}
+
+	@TearDown
+	public void tearDown() {
+		written.delete();
+		toLoad.delete();
+	}
+
+	@Benchmark
+	public File writeXML() throws IOException {
+		manager.writeXML(written.getAbsolutePath(), compress);
+		return written;
+	}
+
+	@Benchmark
+	public PathAndFillManager loadXML() throws IOException {
+		final PathAndFillManager loaded = new PathAndFillManager();
+		InputStream is = new BufferedInputStream(new FileInputStream(toLoad));
+		try {
+			if (compress)
+				is = new GZIPInputStream(is);
+			if (!loaded.load(is, null))
+				throw new RuntimeException("Failed to load " + toLoad);
+		} finally {
+			is.close();
+		}
+		return loaded;
+	}
+
+	@Benchmark
+	public PathAndFillManager importSWC() throws IOException {
+		final PathAndFillManager imported = new PathAndFillManager(WIDTH, HEIGHT, DEPTH, 1, 1, 1, "pixel");
+		if (!imported.importSWC(new BufferedReader(new StringReader(swc)), false))
+			throw new RuntimeException("Failed to import the synthetic SWC data");
+		return imported;
+	}
+
+	@Benchmark
+	public PathAndFillManager importSWCCompacted() throws IOException {
+		final PathAndFillManager imported = new PathAndFillManager(WIDTH, HEIGHT, DEPTH, 1, 1, 1, "pixel");
+		imported.setCompactPathsOnImport(true);
+		if (!imported.importSWC(new BufferedReader(new StringReader(swc)), false))
+			throw new RuntimeException("Failed to import the synthetic SWC data");
+		return imported;
+	}
+}
@@ -0,0 +1,143 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package tracing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic reconstructions: sets of random-walk paths where every
+ * path but the first branches off a point of an earlier one. They can be
+ * produced either as a {@link PathAndFillManager} or as the text of an SWC
+ * file, so that the XML and SWC readers and writers can be benchmarked on
+ * reconstructions of any size.
+ */
+public class SyntheticReconstructions {
+
+	/**
+	 * Returns the point lists of numberOfPaths random walks, each with
+	 * pointsPerPath points, confined to a volume of the given size. The first
+	 * point of every walk after the first is a point of an earlier walk, whose
+	 * index is stored in parents.
+	 */
+	static List<double[][]> randomWalks(final int width, final int height, final int depth,
+			final int numberOfPaths, final int pointsPerPath, final long seed, final int[] parents,
+			final int[] parentPoints) {
+
+		final Random random = new Random(seed);
+		final List<double[][]> walks = new ArrayList<>();
+		for (int p = 0; p < numberOfPaths; ++p) {
+			final double[][] points = new double[pointsPerPath][];
+			if (p == 0) {
+				points[0] = new double[] { width / 2.0, height / 2.0, depth / 2.0 };
+				parents[p] = -1;
+				parentPoints[p] = -1;
+			} else {
+				parents[p] = random.nextInt(p);
+				parentPoints[p] = random.nextInt(pointsPerPath);
+				points[0] = walks.get(parents[p])[parentPoints[p]].clone();
+			}
+			for (int i = 1; i < pointsPerPath; ++i) {
+				final double[] last = points[i - 1];
+				points[i] = new double[] { SyntheticVolumes.clamp(last[0] + random.nextGaussian(), 0, width - 1),
+						SyntheticVolumes.clamp(last[1] + random.nextGaussian(), 0, height - 1),
+						SyntheticVolumes.clamp(last[2] + 0.5 * random.nextGaussian(), 0, depth - 1) };
+			}
+			walks.add(points);
+		}
+		return walks;
+	}
+
+	/**
+	 * Returns a PathAndFillManager for a volume of the given size, with a 1x1x1
+	 * calibration, containing numberOfPaths joined paths.
+	 */
+	public static PathAndFillManager create(final int width, final int height, final int depth,
+			final int numberOfPaths, final int pointsPerPath, final long seed) {
+
+		final int[] parents = new int[numberOfPaths];
+		final int[] parentPoints = new int[numberOfPaths];
+		final List<double[][]> walks = randomWalks(width, height, depth, numberOfPaths, pointsPerPath, seed, parents,
+				parentPoints);
+
+		final PathAndFillManager manager = new PathAndFillManager(width, height, depth, 1, 1, 1, "pixel");
+		manager.spacing_units = "pixel";
+		final List<Path> paths = new ArrayList<>();
+		for (int p = 0; p < numberOfPaths; ++p) {
+			final Path path = new Path(1, 1, 1, "pixel", pointsPerPath);
+			for (final double[] point : walks.get(p))
+				path.addPointDouble(point[0], point[1], point[2]);
+			if (parents[p] >= 0) {
+				final Path parent = paths.get(parents[p]);
+				path.setStartJoin(parent, parent.getPointInImage(parentPoints[p]));
+			}
+			paths.add(path);
+			manager.addPath(path);
+		}
+		return manager;
+	}
+
+	/**
+	 * Returns the text of an SWC file describing the same kind of
+	 * reconstruction as {@link #create}, in world co-ordinates.
+	 */
+	public static String swc(final int width, final int height, final int depth, final int numberOfPaths,
+			final int pointsPerPath, final long seed) {
+
+		final int[] parents = new int[numberOfPaths];
+		final int[] parentPoints = new int[numberOfPaths];
+		final List<double[][]> walks = randomWalks(width, height, depth, numberOfPaths, pointsPerPath, seed, parents,
+				parentPoints);
+
+		/*
+		 * The first point of a branch coincides with its parent point, so it
+		 * is not written; SWC ids are 1-based and assigned in order.
+		 */
+		final int[][] ids = new int[numberOfPaths][pointsPerPath];
+		final StringBuilder sb = new StringBuilder();
+		sb.append("# Synthetic reconstruction: ").append(numberOfPaths).append(" paths of ").append(pointsPerPath)
+				.append(" points\n");
+		int nextID = 1;
+		for (int p = 0; p < numberOfPaths; ++p) {
+			final double[][] points = walks.get(p);
+			for (int i = 0; i < pointsPerPath; ++i) {
+				if (i == 0 && parents[p] >= 0) {
+					ids[p][0] = ids[parents[p]][parentPoints[p]];
+					continue;
+				}
+				final int parentID = (i == 0) ? -1 : ids[p][i - 1];
+				final int type = (parentID == -1) ? Path.SWC_SOMA : Path.SWC_DENDRITE;
+				ids[p][i] = nextID;
+				sb.append(nextID).append(' ').append(type).append(' ').append(points[i][0]).append(' ')
+						.append(points[i][1]).append(' ').append(points[i][2]).append(" 1.0 ").append(parentID)
+						.append('\n');
+				++nextID;
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,220 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package tracing;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic 8-bit volumes containing bright tubes on a noisy dark
+ * background, so that the benchmarks do not depend on sample data that has
+ * to be downloaded. The same seed always produces the same volume.
+ */
+public class SyntheticVolumes {
+
+	/* The background level around which noise is added: */
+	static final int BACKGROUND = 20;
+
+	/* The peak intensity at the centre line of a tube: */
+	static final int FOREGROUND = 200;
+
+	/**
+	 * Returns the centre line of a single tube that wanders from one corner of
+	 * a volume of the given size to the opposite one. The points are in voxel
+	 * co-ordinates and each consecutive pair is one straight segment.
+	 */
+	public static double[][] wanderingTube(final int width, final int height, final int depth, final int segments,
+			final long seed) {
+
+		final Random random = new Random(seed);
+		final double[][] points = new double[segments + 1][];
+		final double margin = 4;
+		for (int i = 0; i <= segments; ++i) {
+			final double t = i / (double) segments;
+			final double jitter = (i == 0 || i == segments) ? 0 : 0.15;
+			points[i] = new double[] {
+					clamp(margin + t * (width - 1 - 2 * margin) + jitter * width * (random.nextDouble() - 0.5), margin,
+							width - 1 - margin),
+					clamp(margin + t * (height - 1 - 2 * margin) + jitter * height * (random.nextDouble() - 0.5), margin,
+							height - 1 - margin),
+					clamp(depth / 2.0 + (depth - 2 * margin) * 0.4 * Math.sin(Math.PI * 2 * t), 0, depth - 1) };
+		}
+		return points;
+	}
+
+	/**
+	 * Returns the segments of a randomly branching tree rooted near the centre
+	 * of one face of the volume. Each element is a two-point polyline; a tree
+	 * with n levels has 2^n - 1 segments.
+	 */
+	public static List<double[][]> branchingTree(final int width, final int height, final int depth,
+			final int levels, final long seed) {
+
+		final Random random = new Random(seed);
+		final List<double[][]> result = new ArrayList<>();
+		final double[] root = { width / 2.0, 4, depth / 2.0 };
+		addBranches(result, random, root, Math.PI / 2, 0, height / 3.0, levels, width, height, depth);
+		return result;
+	}
+
+	private static void addBranches(final List<double[][]> result, final Random random, final double[] start,
+			final double angleXY, final double angleZ, final double length, final int levelsLeft, final int width,
+			final int height, final int depth) {
+
+		if (levelsLeft <= 0)
+			return;
+
+		final double[] end = { clamp(start[0] + length * Math.cos(angleXY) * Math.cos(angleZ), 0, width - 1),
+				clamp(start[1] + length * Math.sin(angleXY) * Math.cos(angleZ), 0, height - 1),
+				clamp(start[2] + length * Math.sin(angleZ), 0, depth - 1) };
+		result.add(new double[][] { start, end });
+
+		for (int b = -1; b <= 1; b += 2) {
+			final double spread = 0.3 + 0.4 * random.nextDouble();
+			final double tilt = 0.4 * (random.nextDouble() - 0.5);
+			addBranches(result, random, end, angleXY + b * spread, angleZ + tilt, length * 0.7, levelsLeft - 1, width,
+					height, depth);
+		}
+	}
+
+	/**
+	 * Renders the given polylines as tubes with a Gaussian cross-section of
+	 * the given radius (in voxels), and adds Gaussian noise with the given
+	 * standard deviation. The image has a 1x1x1 calibration.
+	 */
+	public static ImagePlus render(final int width, final int height, final int depth,
+			final List<double[][]> polylines, final double radius, final double noise, final long seed) {
+
+		final float[][] intensities = new float[depth][width * height];
+		final double reach = 3 * radius;
+		final double twoSigmaSquared = 2 * radius * radius;
+
+		for (final double[][] line : polylines) {
+			for (int i = 0; i < line.length - 1; ++i) {
+				final double[] a = line[i];
+				final double[] b = line[i + 1];
+				final int x_min = Math.max(0, (int) Math.floor(Math.min(a[0], b[0]) - reach));
+				final int x_max = Math.min(width - 1, (int) Math.ceil(Math.max(a[0], b[0]) + reach));
+				final int y_min = Math.max(0, (int) Math.floor(Math.min(a[1], b[1]) - reach));
+				final int y_max = Math.min(height - 1, (int) Math.ceil(Math.max(a[1], b[1]) + reach));
+				final int z_min = Math.max(0, (int) Math.floor(Math.min(a[2], b[2]) - reach));
+				final int z_max = Math.min(depth - 1, (int) Math.ceil(Math.max(a[2], b[2]) + reach));
+				for (int z = z_min; z <= z_max; ++z) {
+					final float[] slice = intensities[z];
+					for (int y = y_min; y <= y_max; ++y)
+						for (int x = x_min; x <= x_max; ++x) {
+							final double d2 = distanceSquaredToSegment(x, y, z, a, b);
+							if (d2 > reach * reach)
+								continue;
+							final float value = (float) (FOREGROUND * Math.exp(-d2 / twoSigmaSquared));
+							final int index = y * width + x;
+							if (value > slice[index])
+								slice[index] = value;
+						}
+				}
+			}
+		}
+
+		final Random random = new Random(seed);
+		final ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < depth; ++z) {
+			final float[] slice = intensities[z];
+			final byte[] pixels = new byte[width * height];
+			for (int i = 0; i < pixels.length; ++i) {
+				final double v = BACKGROUND + slice[i] + noise * random.nextGaussian();
+				pixels[i] = (byte) Math.max(0, Math.min(255, (int) Math.round(v)));
+			}
+			stack.addSlice(null, pixels);
+		}
+
+		final ImagePlus imagePlus = new ImagePlus("synthetic", stack);
+		final Calibration calibration = imagePlus.getCalibration();
+		calibration.pixelWidth = 1;
+		calibration.pixelHeight = 1;
+		calibration.pixelDepth = 1;
+		calibration.setUnit("pixel");
+		return imagePlus;
+	}
+
+	/**
+	 * Convenience method that renders a single polyline.
+	 */
+	public static ImagePlus render(final int width, final int height, final int depth, final double[][] polyline,
+			final double radius, final double noise, final long seed) {
+		final List<double[][]> polylines = new ArrayList<>();
+		polylines.add(polyline);
+		return render(width, height, depth, polylines, radius, noise, seed);
+	}
+
+	/**
+	 * Returns a path through the voxel centres along the given polyline, with
+	 * one point per voxel step, for use as a fill source or for fitting.
+	 */
+	public static Path pathAlong(final double[][] polyline) {
+		final Path path = new Path(1, 1, 1, "pixel");
+		for (int i = 0; i < polyline.length - 1; ++i) {
+			final double[] a = polyline[i];
+			final double[] b = polyline[i + 1];
+			final double length = Math.sqrt(distanceSquared(a[0], a[1], a[2], b));
+			final int steps = Math.max(1, (int) Math.ceil(length));
+			for (int s = (i == 0) ? 0 : 1; s <= steps; ++s) {
+				final double t = s / (double) steps;
+				path.addPointDouble(Math.round(a[0] + t * (b[0] - a[0])), Math.round(a[1] + t * (b[1] - a[1])),
+						Math.round(a[2] + t * (b[2] - a[2])));
+			}
+		}
+		return path;
+	}
+
+	static double distanceSquaredToSegment(final double x, final double y, final double z, final double[] a,
+			final double[] b) {
+		final double dx = b[0] - a[0];
+		final double dy = b[1] - a[1];
+		final double dz = b[2] - a[2];
+		final double lengthSquared = dx * dx + dy * dy + dz * dz;
+		double t = 0;
+		if (lengthSquared > 0)
+			t = clamp(((x - a[0]) * dx + (y - a[1]) * dy + (z - a[2]) * dz) / lengthSquared, 0, 1);
+		final double[] closest = { a[0] + t * dx, a[1] + t * dy, a[2] + t * dz };
+		return distanceSquared(x, y, z, closest);
+	}
+
+	static double distanceSquared(final double x, final double y, final double z, final double[] p) {
+		final double dx = x - p[0];
+		final double dy = y - p[1];
+		final double dz = z - p[2];
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	static double clamp(final double v, final double min, final double max) {
+		return Math.max(min, Math.min(max, v));
+	}
+}
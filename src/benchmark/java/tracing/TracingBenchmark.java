@@ -0,0 +1,89 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package tracing;
+
+import ij.ImagePlus;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times a single A* search with {@link TracerThread} between the two ends of
+ * a synthetic tube, without Hessian-based preprocessing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TracingBenchmark {
+
+	@Param({ "64", "128" })
+	int size;
+
+	@Param({ "10" })
+	double noise;
+
+	ImagePlus image;
+	int[] start;
+	int[] goal;
+
+	@Setup
+	public void setUp() {
+		final double[][] tube = SyntheticVolumes.wanderingTube(size, size, size / 2, 8, 42);
+		image = SyntheticVolumes.render(size, size, size / 2, tube, 2, noise, 42);
+		start = voxel(tube[0]);
+		goal = voxel(tube[tube.length - 1]);
+	}
+
+	static int[] voxel(final double[] point) {
+		return new int[] { (int) Math.round(point[0]), (int) Math.round(point[1]), (int) Math.round(point[2]) };
+	}
+
+	@Benchmark
+	public Path traceAlongTube() {
+		final TracerThread tracer = new TracerThread(image, 0, 255, -1, // timeoutSeconds
+				0, // reportEveryMilliseconds
+				start[0], start[1], start[2], goal[0], goal[1], goal[2], true, // reciprocal
+				false, // singleSlice
+				null, 1, // multiplier
+				null, false);
+		tracer.run();
+		return tracer.getResult();
+	}
+}
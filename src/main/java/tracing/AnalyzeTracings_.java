@@ -30,17 +30,18 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import amira.AmiraParameters;
-import ij.ImagePlus;
-import ij.ImageStack;
 import ij.plugin.PlugIn;
-import landmarks.Bookstein_From_Landmarks;
-import util.BatchOpener;
 import util.FileAndChannel;
-import vib.oldregistration.RegistrationAlgorithm;
 
 class PointInPath {
 
@@ -129,91 +130,171 @@ class PointInPath {
 
 public class AnalyzeTracings_ implements PlugIn {
 
-	static public Connectivity buildGraph(final String imageFileName, final ArrayList<Path> allPaths) {
+	/*
+	 * Endpoints hashed by the cell of a grid they fall in. The cells are as
+	 * large as the distance within which points are considered to be the
+	 * same, so only the neighbouring cells need to be searched.
+	 */
 
-		final Connectivity result = new Connectivity();
+	static class EndpointGrid {
+
+		final int within;
+		final HashMap<Long, ArrayList<GraphNode>> cells = new HashMap<>();
+
+		EndpointGrid(final int within) {
+			this.within = within;
+		}
+
+		static long cellKey(final long cx, final long cy, final long cz) {
+			return ((cz & 0x1FFFFF) << 42) | ((cy & 0x1FFFFF) << 21) | (cx & 0x1FFFFF);
+		}
+
+		int cell(final double v) {
+			return (int) Math.floor(v / within);
+		}
+
+		void add(final GraphNode g) {
+			final long k = cellKey(cell(g.x), cell(g.y), cell(g.z));
+			ArrayList<GraphNode> inCell = cells.get(k);
+			if (inCell == null) {
+				inCell = new ArrayList<>();
+				cells.put(k, inCell);
+			}
+			inCell.add(g);
+		}
+
+		/*
+		 * Returns the endpoint with the lowest ID that is within range of the
+		 * point and in the same material, ignoring the IDs excludeA and
+		 * excludeB. That's the one that a search through all the endpoints in
+		 * the order they were created would find first.
+		 */
+
+		GraphNode firstNear(final double x, final double y, final double z, final String materialName,
+				final int excludeA, final int excludeB) {
+			GraphNode best = null;
+			final int cx = cell(x), cy = cell(y), cz = cell(z);
+			for (int dz = -1; dz <= 1; ++dz)
+				for (int dy = -1; dy <= 1; ++dy)
+					for (int dx = -1; dx <= 1; ++dx) {
+						final ArrayList<GraphNode> inCell = cells.get(cellKey(cx + dx, cy + dy, cz + dz));
+						if (inCell == null)
+							continue;
+						for (final GraphNode q : inCell) {
+							if (best != null && q.id >= best.id)
+								continue;
+							if (q.id == excludeA || q.id == excludeB)
+								continue;
+							final double xdiff = q.x - x;
+							final double ydiff = q.y - y;
+							final double zdiff = q.z - z;
+							if (xdiff * xdiff + ydiff * ydiff + zdiff * zdiff > within * within)
+								continue;
+							if (materialName.equals(q.material_name))
+								best = q;
+						}
+					}
+			return best;
+		}
+	}
+
+	/*
+	 * For each endpoint that lies on this path (apart from the ones it starts
+	 * and ends at), attach it to the point on the path nearest to it.
+	 */
 
-		final int x, y;
-		int z;
+	static void findNodesOnPath(final List<PointInPath> inThisPath, final EndpointGrid grid) {
 
-		final FileAndChannel fc = new FileAndChannel(imageFileName, 0);
+		final int start_id = inThisPath.get(0).node.id;
+		final int end_id = inThisPath.get(inThisPath.size() - 1).node.id;
+
+		SNT.log("Path from ID " + start_id + " to " + end_id);
+
+		final TreeMap<Integer, GraphNode> nearNodes = new TreeMap<>();
+		final HashMap<Integer, Double> nearestDistanceSq = new HashMap<>();
+		final HashMap<Integer, PointInPath> nearestPointInPath = new HashMap<>();
+
+		for (final PointInPath pi : inThisPath) {
+
+			final GraphNode q = grid.firstNear(pi.getX(), pi.getY(), pi.getZ(), pi.getNeuropilRegion(), start_id,
+					end_id);
+			if (q == null)
+				continue;
+
+			// Then we assume they're the same, and set that information.
+
+			final double xdiff = q.x - pi.getX();
+			final double ydiff = q.y - pi.getY();
+			final double zdiff = q.z - pi.getZ();
+			final double distancesq = xdiff * xdiff + ydiff * ydiff + zdiff * zdiff;
+			SNT.log("  on path between " + start_id + " and " + end_id + "  lies the node " + q.id
+					+ " (distancesq " + distancesq);
+
+			final Double nearest = nearestDistanceSq.get(q.id);
+			if (nearest == null || distancesq < nearest) {
+				nearNodes.put(q.id, q);
+				nearestDistanceSq.put(q.id, distancesq);
+				nearestPointInPath.put(q.id, pi);
+			}
+		}
+
+		for (final GraphNode g : nearNodes.values()) {
+			final PointInPath pi = nearestPointInPath.get(g.id);
+			pi.node = g;
+			SNT.log("--- nearest point to node " + g.id + " (distancesq: " + nearestDistanceSq.get(g.id)
+					+ ") was point " + pi);
+		}
+	}
+
+	static public Connectivity buildGraph(final String imageFileName, final ArrayList<Path> allPaths) {
+
+		final Connectivity result = new Connectivity();
 
 		final String standardBrainFileName = "/media/WD USB 2/standard-brain/data/vib-drosophila/CantonM43c.grey";
 		final String standardBrainLabelsFileName = "/media/WD USB 2/standard-brain/data/vib-drosophila/CantonM43c.labels";
-		final FileAndChannel standardBrainFC = new FileAndChannel(standardBrainFileName, 0);
 
-		final Bookstein_From_Landmarks matcher = new Bookstein_From_Landmarks();
-		matcher.loadImages(standardBrainFC, fc);
-		matcher.generateTransformation();
+		final RegistrationContext registration = RegistrationContext.get(standardBrainFileName,
+				standardBrainLabelsFileName, imageFileName);
+		final RegistrationContext.LabelVolume labels = registration.getLabels();
+		SNT.log("   labels were: " + standardBrainLabelsFileName);
 
-		ImagePlus labels;
-		{
-			final ImagePlus[] tmp = BatchOpener.open(standardBrainLabelsFileName);
-			labels = tmp[0];
-		}
-		SNT.log("   labels were: " + labels);
-		final ImageStack labelStack = labels.getStack();
-		final int templateWidth = labelStack.getWidth();
-		final int templateHeight = labelStack.getHeight();
-		final int templateDepth = labelStack.getSize();
-		final byte[][] label_data = new byte[templateDepth][];
-		for (z = 0; z < templateDepth; ++z)
-			label_data[z] = (byte[]) labelStack.getPixels(z + 1);
-
-		final AmiraParameters parameters = new AmiraParameters(labels);
-		final int materials = parameters.getMaterialCount();
+		final int materials = labels.materials;
 		result.materialNames = new String[256];
 		result.materialNameToIndex = new Hashtable<>();
 		for (int i = 0; i < materials; ++i) {
-			result.materialNames[i] = parameters.getMaterialName(i);
+			result.materialNames[i] = labels.materialNames[i];
 			result.materialNameToIndex.put(result.materialNames[i], new Integer(i));
 			SNT.log("Material: " + i + " is " + result.materialNames[i]);
 		}
 
-		result.redValues = new int[materials];
-		result.greenValues = new int[materials];
-		result.blueValues = new int[materials];
-
-		for (int i = 0; i < materials; i++) {
-
-			final double[] c = parameters.getMaterialColor(i);
-
-			result.redValues[i] = (int) (255 * c[0]);
-			result.greenValues[i] = (int) (255 * c[1]);
-			result.blueValues[i] = (int) (255 * c[2]);
-		}
+		result.redValues = labels.redValues.clone();
+		result.greenValues = labels.greenValues.clone();
+		result.blueValues = labels.blueValues.clone();
 
 		// First transform all the points into transformedPoints:
 
 		final ArrayList<PointInPath> transformedPoints = new ArrayList<>();
 
-		final double[] transformedPoint = new double[3];
-
 		final ArrayList<GraphNode> endPoints = new ArrayList<>();
 		final ArrayList<GraphNode> allNodes = new ArrayList<>();
 
-		final RegistrationAlgorithm.ImagePoint imagePoint = new RegistrationAlgorithm.ImagePoint();
+		final int[][] pointsInTemplate = registration.transformPaths(allPaths);
 
 		final int paths = allPaths.size();
 		// SNT.log("Paths to draw: "+paths);
 		for (int i = 0; i < paths; ++i) {
 			final Path path = allPaths.get(i);
+			final int[] inTemplate = pointsInTemplate[i];
 
 			for (int k = 0; k < path.size(); ++k) {
 
-				final int x_in_domain = path.getXUnscaled(k);
-				final int y_in_domain = path.getYUnscaled(k);
-				final int z_in_domain = path.getZUnscaled(k);
-
-				matcher.transformDomainToTemplate(x_in_domain, y_in_domain, z_in_domain, imagePoint);
-
-				final int x_in_template = imagePoint.x;
-				final int y_in_template = imagePoint.y;
-				final int z_in_template = imagePoint.z;
+				final int x_in_template = inTemplate[3 * k];
+				final int y_in_template = inTemplate[3 * k + 1];
+				final int z_in_template = inTemplate[3 * k + 2];
 
-				final int label_value = label_data[z_in_template][y_in_template * templateWidth + x_in_template] & 0xFF;
+				final int label_value = labels.get(x_in_template, y_in_template, z_in_template);
 
-				if (label_value >= materials) {
+				if (label_value < 0 || label_value >= materials) {
 					SNT.error("A label value of " + label_value + " was found, which is not a valid material (max "
 							+ (materials - 1) + ")");
 					return null;
@@ -230,10 +311,6 @@ public class AnalyzeTracings_ implements PlugIn {
 				if (k == (path.size() - 1))
 					p.setEnd(true);
 
-				// SNT.log( p.getPathID() + "|" + i + " - " +
-				// p.getNeuropilRegion() + ": at (" + x_in_template + "," +
-				// y_in_template + "," + z_in_template + ")" );
-
 				transformedPoints.add(p);
 			}
 		}
@@ -246,7 +323,10 @@ public class AnalyzeTracings_ implements PlugIn {
 
 		int e = 0;
 
-		// This is n squared, so All Really Bad.
+		// Endpoints are looked up in a grid of cells, rather than compared
+		// against every endpoint found so far:
+
+		final EndpointGrid grid = new EndpointGrid(limit);
 
 		SNT.log("Finding which endpoints are really the same.");
 
@@ -255,26 +335,15 @@ public class AnalyzeTracings_ implements PlugIn {
 			final PointInPath p = transformedPoints.get(i);
 			if (p.start() || p.end()) {
 
-				boolean already_recorded = false;
-
-				for (int j = 0; j < endPoints.size(); ++j) {
-					final GraphNode q = endPoints.get(j);
-					if (p.nearTo(limit, q.x, q.y, q.z)) {
-						// SNT.log( "Two near points" );
-						// SNT.log( "materials: " +
-						// p.getNeuropilRegion() + " and " + q.material_name );
-						if (p.getNeuropilRegion().equals(q.material_name)) {
-							// SNT.log( " same material name" );
-							// Then we assume they're the same, but set that
-							// information.
-							p.node = q;
-							already_recorded = true;
-							break;
-						}
-					}
-				}
+				final GraphNode q = grid.firstNear(p.getX(), p.getY(), p.getZ(), p.getNeuropilRegion(), -1, -1);
 
-				if (!already_recorded) {
+				if (q != null) {
+
+					// Then we assume they're the same, but set that
+					// information.
+					p.node = q;
+
+				} else {
 
 					// Create the new node.
 
@@ -292,6 +361,7 @@ public class AnalyzeTracings_ implements PlugIn {
 
 					endPoints.add(g);
 					allNodes.add(g);
+					grid.add(g);
 
 					++e;
 				}
@@ -302,79 +372,40 @@ public class AnalyzeTracings_ implements PlugIn {
 
 		SNT.log("Done finding which endpoints are really the same.");
 
-		// Now we're going to go through all the points, path by path.
+		// Now we're going to go through all the points, path by path. The
+		// paths don't share any points, so they can be analyzed in parallel:
 
-		ArrayList<PointInPath> inThisPath = null;
+		final ArrayList<int[]> pathRanges = new ArrayList<>();
+		int pathStart = -1;
 		for (int i = 0; i < transformedPoints.size(); ++i) {
 			final PointInPath p = transformedPoints.get(i);
-			if (p.start()) {
-				// SNT.log( "Found start point: " + p );
-				// Set up a new path to add to, and add this point.
-				inThisPath = new ArrayList<>();
-				inThisPath.add(p);
-			} else if (p.end()) {
-				// SNT.log( "Found end point: " + p );
-				inThisPath.add(p);
-				{
-					// Now analyze that path.
-					final int start_id = inThisPath.get(0).node.id;
-					final int end_id = inThisPath.get(inThisPath.size() - 1).node.id;
-
-					SNT.log("Path from ID " + start_id + " to " + end_id);
-
-					final double nearestDistanceSq[] = new double[endPoints.size()];
-					for (int n = 0; n < nearestDistanceSq.length; ++n)
-						nearestDistanceSq[n] = -1;
-					final PointInPath nearestPointInPath[] = new PointInPath[endPoints.size()];
-
-					for (int pinpath = 0; pinpath < inThisPath.size(); ++pinpath) {
-
-						final PointInPath pi = inThisPath.get(pinpath);
-						for (int j = 0; j < endPoints.size(); ++j) {
-							final GraphNode q = endPoints.get(j);
-							if (pi.nearTo(limit, q.x, q.y, q.z)) {
-								// SNT.log( " point in path is near
-								// to node ID " + q.id );
-								if (pi.getNeuropilRegion().equals(q.material_name) && (q.id != start_id)
-										&& (q.id != end_id)) {
-
-									// Then we assume they're the same, and set
-									// that information.
-
-									final double xdiff = q.x - pi.getX();
-									final double ydiff = q.y - pi.getY();
-									final double zdiff = q.z - pi.getZ();
-									final double distancesq = xdiff * xdiff + ydiff * ydiff + zdiff * zdiff;
-									SNT.log("  on path between " + start_id + " and " + end_id + "  lies the node "
-											+ q.id + " (distancesq " + distancesq);
-
-									if ((nearestDistanceSq[j] < 0) || (distancesq < nearestDistanceSq[j])) {
-										nearestDistanceSq[j] = distancesq;
-										nearestPointInPath[j] = pi;
-									}
-
-									break;
-								}
-							}
-						}
-					}
+			if (p.start())
+				pathStart = i;
+			else if (p.end())
+				pathRanges.add(new int[] { pathStart, i });
+		}
 
-					for (int n = 0; n < nearestDistanceSq.length; ++n) {
-						final double ds = nearestDistanceSq[n];
-						if (ds >= 0) {
-							final GraphNode g = endPoints.get(n);
-							final PointInPath pi = nearestPointInPath[n];
-							pi.node = g;
-							SNT.log("--- nearest point to node " + n + " (distancesq: " + ds + ") was point " + pi);
-						}
-					}
+		final ExecutorService es = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		final ArrayList<Future<?>> futures = new ArrayList<>();
+		for (final int[] range : pathRanges) {
+			futures.add(es.submit(new Runnable() {
 
+				@Override
+				public void run() {
+					findNodesOnPath(transformedPoints.subList(range[0], range[1] + 1), grid);
 				}
-				inThisPath = null;
-			} else {
-				// SNT.log( "Found intermediate point: " + p );
-				inThisPath.add(p);
-			}
+			}));
+		}
+		try {
+			for (final Future<?> f : futures)
+				f.get();
+		} catch (final InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while analyzing paths", ie);
+		} catch (final ExecutionException ee) {
+			throw new RuntimeException("Analyzing paths failed", ee.getCause());
+		} finally {
+			es.shutdownNow();
 		}
 
 		SNT.log("Number of end points is: " + endPoints.size());
@@ -443,19 +474,16 @@ public class AnalyzeTracings_ implements PlugIn {
 
 				// Check that no endpoint is actually really close to this
 				// point:
-				for (int j = 0; j < endPoints.size(); ++j) {
-					final GraphNode g = endPoints.get(j);
-					if (g.nearTo(limit, (int) p_x, (int) p_y, (int) p_z)
-							&& (g.material_name.equals(p.getNeuropilRegion())) && (g.id != lastNode.id)) {
-						pathEnded = true;
-						change_into_material_not_registered = false;
-						SNT.log("A: distance " + distance + " from " + lastNode.id + " to " + g.id);
-						distances[lastNode.id][g.id] = distance;
-						distances[g.id][lastNode.id] = distance;
-						lastNode = g;
-						distance = 0;
-						break;
-					}
+				final GraphNode g = grid.firstNear((int) p_x, (int) p_y, (int) p_z, p.getNeuropilRegion(),
+						lastNode.id, -1);
+				if (g != null) {
+					pathEnded = true;
+					change_into_material_not_registered = false;
+					SNT.log("A: distance " + distance + " from " + lastNode.id + " to " + g.id);
+					distances[lastNode.id][g.id] = distance;
+					distances[g.id][lastNode.id] = distance;
+					lastNode = g;
+					distance = 0;
 				}
 
 			} else {
@@ -25,14 +25,20 @@
 package tracing;
 
 public class AutoPoint {
-	public short x;
-	public short y;
-	public short z;
+
+	/*
+	 * These were shorts, which wrapped for images larger than 32767 voxels
+	 * on a side; with the object header's alignment, ints take no more
+	 * memory per point.
+	 */
+	public int x;
+	public int y;
+	public int z;
 
 	public AutoPoint(final int x, final int y, final int z) {
-		this.x = (short) x;
-		this.y = (short) y;
-		this.z = (short) z;
+		this.x = x;
+		this.y = y;
+		this.z = z;
 	}
 
 	@Override
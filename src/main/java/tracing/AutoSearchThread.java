@@ -92,7 +92,7 @@ public class AutoSearchThread extends SearchThread {
 		if (tubeValues[n.z][n.y * width + n.x] > tubenessThreshold) {
 			final AutoPoint p = new AutoPoint(n.x, n.y, n.z);
 			destinations.add(p);
-		} else if (null != previousPathGraph.get(n.x, n.y, n.z)) {
+		} else if (previousPathGraph.contains(n.x, n.y, n.z)) {
 			final AutoPoint p = new AutoPoint(n.x, n.y, n.z);
 			destinations.add(p);
 		}
@@ -25,14 +25,29 @@
 package tracing;
 
 import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import features.TubenessProcessor;
 import ij.IJ;
@@ -143,7 +158,6 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 
 		System.out.println("  [Recreating Priority Queue]");
 		mostTubelikePoints = new PriorityQueue<>(512, new TubenessComparator(width, height, depth, tubeValues));
-		System.gc();
 
 		for (int z = 0; z < depth; ++z) {
 			for (int y = 0; y < height; ++y) {
@@ -177,6 +191,8 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 		final String tubesFileName = beforeExtension + ".tubes.tif";
 		final String thresholdsFileName = beforeExtension + ".thresholds";
 		final String outputFileName = beforeExtension + ".traces.obj";
+		final String binaryOutputFileName = beforeExtension + ".traces.bin";
+		final String checkpointFileName = beforeExtension + ".traces.checkpoint";
 		ImagePlus tubenessImage = null;
 		final File tubesFile = new File(originalFileInfo.directory, tubesFileName);
 		if (tubesFile.exists()) {
@@ -262,152 +278,213 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 
 		done = new HashSet<>();
 
-		recreatePriorityQueue(false);
+		final SinglePathsGraph completePaths = new SinglePathsGraph(width, height, depth,
+				Math.abs(calibration.pixelWidth), Math.abs(calibration.pixelHeight), Math.abs(calibration.pixelDepth));
 
-		System.out.println("Initial points: " + mostTubelikePoints.size());
+		// If an earlier run was interrupted, carry on from where it left off:
+		final File checkpointFile = new File(originalFileInfo.directory, checkpointFileName);
+		if (checkpointFile.exists()) {
+			if (loadCheckpoint(checkpointFile, completePaths))
+				System.out.println("Resumed from checkpoint, " + done.size() + " points already done");
+			else
+				System.out.println("Ignoring checkpoint file " + checkpointFile.getAbsolutePath());
+		}
 
-		if (false)
-			return;
+		recreatePriorityQueue(true);
 
-		final SinglePathsGraph completePaths = new SinglePathsGraph(width, height, depth,
-				Math.abs(calibration.pixelWidth), Math.abs(calibration.pixelHeight), Math.abs(calibration.pixelDepth));
+		System.out.println("Initial points: " + mostTubelikePoints.size());
 
-		final int maxLoops = -1;
+		/*
+		 * Several searches run at once, each on a seed whose block (and the
+		 * blocks around it) no other running search has claimed, so that
+		 * concurrent searches mostly explore disjoint parts of the image. The
+		 * searches only read the shared graph; their results are merged here
+		 * on the dispatching thread, which is also the only one to touch the
+		 * priority queue and the set of done points. Seeds that are made
+		 * redundant by a merged result are skipped when they are polled,
+		 * rather than by rescanning the whole volume.
+		 */
+
+		final int nThreads = Math.max(1, threads);
+		final ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		final ExecutorCompletionService<SeedResult> completion = new ExecutorCompletionService<>(executor);
+		final ArrayList<AutoPoint> deferred = new ArrayList<>();
+		final int maxDeferred = 4096 * nThreads;
+		busyRegions = new HashSet<>();
+
+		int running = 0;
 		int loopsDone = 0;
+		boolean outOfTime = false;
+		long lastCheckpoint = System.currentTimeMillis();
 
-		while (mostTubelikePoints.size() > 0) {
+		try {
+			while (true) {
 
-			final long currentTime = System.currentTimeMillis();
-			final long secondsSinceStart = (currentTime - totalTimeStarted) / 1000;
-			if (secondsSinceStart > totalTimeLimitSeconds)
-				break;
+				final long currentTime = System.currentTimeMillis();
+				if (totalTimeLimitSeconds >= 0 && (currentTime - totalTimeStarted) / 1000 > totalTimeLimitSeconds)
+					outOfTime = true;
 
-			if (maxLoops >= 0 && loopsDone >= maxLoops)
-				break;
+				while (!outOfTime && running < nThreads && deferred.size() < maxDeferred
+						&& mostTubelikePoints.size() > 0) {
 
-			// Now get the most tubelike point:
-			final AutoPoint startPoint = mostTubelikePoints.poll();
+					// Now get the most tubelike point:
+					final AutoPoint startPoint = mostTubelikePoints.poll();
 
-			if (done.contains(startPoint)) {
-				continue;
-			}
+					if (done.contains(startPoint))
+						continue;
 
-			System.out.println("=== Done size is: " + done.size());
-			System.out.println("=== Priority queue now has: " + mostTubelikePoints.size());
-			System.out.println("=== Loops done: " + loopsDone);
+					if (!claimRegions(startPoint)) {
+						deferred.add(startPoint);
+						continue;
+					}
 
-			System.out.println("  Got point " + startPoint + " with tubeness: "
-					+ tubeValues[startPoint.z][startPoint.y * width + startPoint.x]);
+					System.out.println("  Got point " + startPoint + " with tubeness: "
+							+ tubeValues[startPoint.z][startPoint.y * width + startPoint.x]);
 
-			// Move to that slice, just for presentation purposes:
-			if (liveDisplay)
-				image.setSlice(startPoint.z + 1);
+					// Move to that slice, just for presentation purposes:
+					if (liveDisplay)
+						image.setSlice(startPoint.z + 1);
 
-			ast = new AutoSearchThread(image, /* original image */
-					tubeValues, /* the "tubeness" filtered image */
-					startPoint, /* the point to start the search from */
-					tubenessThreshold, completePaths);
+					completion.submit(new SeedSearch(image, startPoint, completePaths));
+					++running;
+				}
 
-			threadTimeStarted = currentTime;
+				if (running == 0)
+					break;
 
-			ast.setDrawingColors(Color.BLUE, Color.CYAN);
-			ast.setDrawingThreshold(-1);
+				final SeedResult result = completion.take().get();
+				--running;
+				++loopsDone;
 
-			ast.addProgressListener(this);
+				releaseRegions(result.startPoint);
+				mergeResult(result, completePaths);
 
-			if (liveDisplay)
-				canvas.addSearchThread(ast);
+				for (final AutoPoint p : deferred)
+					if (!done.contains(p))
+						mostTubelikePoints.add(p);
+				deferred.clear();
 
-			ast.start();
+				System.out.println("=== Done size is: " + done.size());
+				System.out.println("=== Priority queue now has: " + mostTubelikePoints.size());
+				System.out.println("=== Loops done: " + loopsDone);
 
-			try {
-				ast.join();
-			} catch (final InterruptedException e) {
+				if (checkpointIntervalSeconds >= 0
+						&& (System.currentTimeMillis() - lastCheckpoint) / 1000 >= checkpointIntervalSeconds) {
+					writeCheckpoint(checkpointFile, completePaths);
+					lastCheckpoint = System.currentTimeMillis();
+				}
 			}
+		} catch (final InterruptedException e) {
+			outOfTime = true;
+		} catch (final ExecutionException e) {
+			executor.shutdownNow();
+			writeCheckpoint(checkpointFile, completePaths);
+			throw new RuntimeException("Automatic tracing failed: " + e.getCause(), e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
 
-			if (liveDisplay)
-				canvas.removeSearchThread(ast);
+		// Keep the checkpoint around only if there's more work to do:
+		if (outOfTime)
+			writeCheckpoint(checkpointFile, completePaths);
+		else if (checkpointFile.exists() && !checkpointFile.delete())
+			System.out.println("Failed to delete checkpoint file " + checkpointFile.getAbsolutePath());
 
-			// Now start the pruning:
+		final File outputFile = new File(originalFileInfo.directory, outputFileName);
 
-			final ArrayList<AutoPoint> destinations = ast.getDestinations();
-			System.out.println("  === Destinations: " + destinations.size());
-			if (verbose)
-				System.out.print("  === Destinations: " + destinations.size() + " ");
-			if (verbose)
-				System.out.flush();
+		try {
+			completePaths.writeWavefrontObj(outputFile.getAbsolutePath());
+		} catch (final IOException e) {
+			IJ.error("Writing the Wavefront OBJ file '" + outputFile.getAbsolutePath() + "' failed");
+			return;
+		}
+
+		final File binaryOutputFile = new File(originalFileInfo.directory, binaryOutputFileName);
+
+		try {
+			completePaths.writeBinary(binaryOutputFile.getAbsolutePath());
+		} catch (final IOException e) {
+			IJ.error("Writing the binary traces file '" + binaryOutputFile.getAbsolutePath() + "' failed");
+			return;
+		}
+	}
 
-			for (final AutoPoint d : destinations) {
+	/* The result of a single search, pruned but not yet merged: */
 
-				if (verbose)
-					System.out.print("    ");
+	static class SeedResult {
+		AutoPoint startPoint;
+		ArrayList<AutoPoint[]> segments = new ArrayList<>();
+		ArrayList<AutoPoint> reached = new ArrayList<>();
+	}
 
-				final Path path = ast.getPathBack(d.x, d.y, d.z);
+	class SeedSearch implements Callable<SeedResult> {
 
-				final float[] rollingTubeness = new float[rollingLength];
-				int nextRollingAt = 0;
-				int slotsFilled = 0;
+		ImagePlus image;
+		AutoPoint startPoint;
+		SinglePathsGraph completePaths;
 
-				int lastIndex = path.size() - 1;
+		SeedSearch(final ImagePlus image, final AutoPoint startPoint, final SinglePathsGraph completePaths) {
+			this.image = image;
+			this.startPoint = startPoint;
+			this.completePaths = completePaths;
+		}
 
-				if (minimumPointsOnPath >= 0 && path.size() < minimumPointsOnPath) {
+		@Override
+		public SeedResult call() {
+			final AutoSearchThread ast = new AutoSearchThread(image, /* original image */
+					tubeValues, /* the "tubeness" filtered image */
+					startPoint, /* the point to start the search from */
+					tubenessThreshold, completePaths);
 
-					lastIndex = -1;
+			searchesStarted.put(ast, System.currentTimeMillis());
 
-				} else {
+			ast.setDrawingColors(Color.BLUE, Color.CYAN);
+			ast.setDrawingThreshold(-1);
 
-					for (int i = 0; i < path.size(); ++i) {
+			ast.addProgressListener(Auto_Tracer.this);
 
-						if (verbose)
-							System.out.print(".");
-						if (verbose)
-							System.out.flush();
+			if (liveDisplay)
+				canvas.addSearchThread(ast);
 
-						final int pax = path.getXUnscaled(i);
-						final int pay = path.getYUnscaled(i);
-						final int paz = path.getZUnscaled(i);
+			// We're already on a worker thread, so run the search here:
+			try {
+				ast.run();
+			} finally {
+				if (liveDisplay)
+					canvas.removeSearchThread(ast);
+				searchesStarted.remove(ast);
+			}
 
-						final float tubenessThere = tubeValues[paz][pay * width + pax];
+			return prune(ast, startPoint);
+		}
+	}
 
-						rollingTubeness[nextRollingAt] = tubenessThere;
+	SeedResult prune(final AutoSearchThread ast, final AutoPoint startPoint) {
 
-						if (slotsFilled < nextRollingAt + 1)
-							slotsFilled = nextRollingAt + 1;
+		final SeedResult result = new SeedResult();
+		result.startPoint = startPoint;
 
-						// Now calculate the mean...
+		final ArrayList<AutoPoint> destinations = ast.getDestinations();
+		if (verbose)
+			System.out.println("  === Destinations: " + destinations.size());
 
-						float mean = 0;
-						for (int s = 0; s < slotsFilled; ++s) {
-							mean += rollingTubeness[s];
-						}
-						mean /= slotsFilled;
+		for (final AutoPoint d : destinations) {
 
-						if (mean < minimumRollingMean) {
-							lastIndex = (i + 1) - slotsFilled;
-							break;
-						}
+			final Path path = ast.getPathBack(d.x, d.y, d.z);
 
-						if (nextRollingAt == rollingLength - 1)
-							nextRollingAt = 0;
-						else
-							++nextRollingAt;
-					}
-				}
+			final float[] rollingTubeness = new float[rollingLength];
+			int nextRollingAt = 0;
+			int slotsFilled = 0;
 
-				AutoPoint current = null;
-				AutoPoint last = null;
+			int lastIndex = path.size() - 1;
 
-				final HashSet<AutoPoint> destinationsToPrune = new HashSet<>();
+			if (minimumPointsOnPath >= 0 && path.size() < minimumPointsOnPath) {
 
-				for (int i = 0; i <= lastIndex; ++i) {
+				lastIndex = -1;
 
-					if (verbose)
-						System.out.print("#");
-					if (verbose)
-						System.out.flush();
+			} else {
 
-					// If the tubeness is above threshold, add this to the list
-					// to prune:
+				for (int i = 0; i < path.size(); ++i) {
 
 					final int pax = path.getXUnscaled(i);
 					final int pay = path.getYUnscaled(i);
@@ -415,74 +492,181 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 
 					final float tubenessThere = tubeValues[paz][pay * width + pax];
 
-					current = new AutoPoint(pax, pay, paz);
+					rollingTubeness[nextRollingAt] = tubenessThere;
 
-					if (tubenessThere > tubenessThreshold) {
-						destinationsToPrune.add(current);
-					}
+					if (slotsFilled < nextRollingAt + 1)
+						slotsFilled = nextRollingAt + 1;
+
+					// Now calculate the mean...
 
-					// And add it to the full graph:
+					float mean = 0;
+					for (int s = 0; s < slotsFilled; ++s) {
+						mean += rollingTubeness[s];
+					}
+					mean /= slotsFilled;
 
-					completePaths.addPoint(current, last);
+					if (mean < minimumRollingMean) {
+						lastIndex = (i + 1) - slotsFilled;
+						break;
+					}
 
-					last = current;
+					if (nextRollingAt == rollingLength - 1)
+						nextRollingAt = 0;
+					else
+						++nextRollingAt;
 				}
+			}
 
-				// Now remove all the destinations
-				// genuinely found in this search:
+			if (lastIndex < 0)
+				continue;
 
-				for (final AutoPoint toRemove : destinationsToPrune) {
+			final AutoPoint[] segment = new AutoPoint[lastIndex + 1];
 
-					if (verbose)
-						System.out.flush();
+			for (int i = 0; i <= lastIndex; ++i) {
 
-					done.add(toRemove);
-				}
+				final int pax = path.getXUnscaled(i);
+				final int pay = path.getYUnscaled(i);
+				final int paz = path.getZUnscaled(i);
+
+				segment[i] = new AutoPoint(pax, pay, paz);
+
+				// If the tubeness is above threshold, it no longer
+				// needs to be used as a seed:
 
-				if (verbose)
-					System.out.println("");
+				if (tubeValues[paz][pay * width + pax] > tubenessThreshold)
+					result.reached.add(segment[i]);
 			}
 
-			ast = null;
+			result.segments.add(segment);
+		}
 
-			System.gc();
+		return result;
+	}
 
-			/*
-			 * Check the memory usage, and recreate the PriorityQueue if it's
-			 * going too high (and every 50 loops in any case). It's not clear
-			 * how trustworthy these memory statistics are, unfortunately.
-			 */
-
-			final long freeMem = Runtime.getRuntime().freeMemory();
-			final long totMem = Runtime.getRuntime().totalMemory();
-			final int percentUsed = (int) (((totMem - freeMem) * 100) / totMem);
-
-			System.out.println("=== Memory usage: " + percentUsed + "%");
-			if ((percentUsed > 95) || ((loopsDone % 50) == 49)) {
-				recreatePriorityQueue(true);
-				if (mostTubelikePoints.size() == 0)
-					break;
+	void mergeResult(final SeedResult result, final SinglePathsGraph completePaths) {
+		for (final AutoPoint[] segment : result.segments) {
+			AutoPoint last = null;
+			for (final AutoPoint current : segment) {
+				completePaths.addPoint(current, last);
+				last = current;
 			}
-
-			++loopsDone;
 		}
+		done.addAll(result.reached);
+		// Make sure the seed itself is never searched from again:
+		done.add(result.startPoint);
+	}
 
-		final File outputFile = new File(originalFileInfo.directory, outputFileName);
+	/*
+	 * Each running search claims the block its seed is in, plus the
+	 * neighbouring blocks, since a search will typically wander out of its
+	 * own block.
+	 */
 
-		try {
-			completePaths.writeWavefrontObj(outputFile.getAbsolutePath());
+	HashSet<Integer> busyRegions;
+
+	int regionKey(final int bx, final int by, final int bz) {
+		final int nbx = (width + regionSize - 1) / regionSize;
+		final int nby = (height + regionSize - 1) / regionSize;
+		return bx + by * nbx + bz * nbx * nby;
+	}
+
+	boolean claimRegions(final AutoPoint p) {
+		final ArrayList<Integer> keys = regionsAround(p);
+		for (final Integer k : keys)
+			if (busyRegions.contains(k))
+				return false;
+		busyRegions.addAll(keys);
+		return true;
+	}
+
+	void releaseRegions(final AutoPoint p) {
+		busyRegions.removeAll(regionsAround(p));
+	}
+
+	ArrayList<Integer> regionsAround(final AutoPoint p) {
+		final int nbx = (width + regionSize - 1) / regionSize;
+		final int nby = (height + regionSize - 1) / regionSize;
+		final int nbz = (depth + regionSize - 1) / regionSize;
+		final int bx = p.x / regionSize, by = p.y / regionSize, bz = p.z / regionSize;
+		final ArrayList<Integer> keys = new ArrayList<>(27);
+		for (int z = Math.max(0, bz - 1); z <= Math.min(nbz - 1, bz + 1); ++z)
+			for (int y = Math.max(0, by - 1); y <= Math.min(nby - 1, by + 1); ++y)
+				for (int x = Math.max(0, bx - 1); x <= Math.min(nbx - 1, bx + 1); ++x)
+					keys.add(regionKey(x, y, z));
+		return keys;
+	}
+
+	/*
+	 * The checkpoint records the points that no longer need to be used as
+	 * seeds and the graph found so far, so that an interrupted run can be
+	 * resumed. It's only valid for the same thresholds and image dimensions.
+	 *
+	 * Version 2 stores coordinates and voxel indices as ints and longs; the
+	 * unversioned files before it used shorts, so images wider than 32767
+	 * voxels couldn't be resumed. Those are ignored rather than misread.
+	 */
+
+	static final int CHECKPOINT_MAGIC = 0x534e5441; // "SNTA"
+	static final int CHECKPOINT_VERSION = 2;
+
+	void writeCheckpoint(final File checkpointFile, final SinglePathsGraph completePaths) {
+		final File tmpFile = new File(checkpointFile.getAbsolutePath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmpFile))))) {
+			out.writeInt(CHECKPOINT_MAGIC);
+			out.writeInt(CHECKPOINT_VERSION);
+			out.writeInt(width);
+			out.writeInt(height);
+			out.writeInt(depth);
+			out.writeFloat(tubenessThreshold);
+			out.writeFloat(minimumRollingMean);
+			out.writeInt(done.size());
+			for (final AutoPoint p : done) {
+				out.writeInt(p.x);
+				out.writeInt(p.y);
+				out.writeInt(p.z);
+			}
+			completePaths.writeState(out);
 		} catch (final IOException e) {
-			IJ.error("Writing the Wavefront OBJ file '" + outputFile.getAbsolutePath() + "' failed");
+			System.out.println("Failed to write checkpoint " + tmpFile.getAbsolutePath() + ": " + e);
 			return;
 		}
+		if ((checkpointFile.exists() && !checkpointFile.delete()) || !tmpFile.renameTo(checkpointFile))
+			System.out.println("Failed to replace checkpoint " + checkpointFile.getAbsolutePath());
 	}
 
-	AutoSearchThread ast;
+	boolean loadCheckpoint(final File checkpointFile, final SinglePathsGraph completePaths) {
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new GZIPInputStream(new FileInputStream(checkpointFile))))) {
+			if (in.readInt() != CHECKPOINT_MAGIC || in.readInt() != CHECKPOINT_VERSION || in.readInt() != width
+					|| in.readInt() != height || in.readInt() != depth || in.readFloat() != tubenessThreshold
+					|| in.readFloat() != minimumRollingMean)
+				return false;
+			final int nDone = in.readInt();
+			for (int i = 0; i < nDone; ++i)
+				done.add(new AutoPoint(in.readInt(), in.readInt(), in.readInt()));
+			completePaths.readState(in);
+		} catch (final IOException e) {
+			System.out.println("Failed to read checkpoint " + checkpointFile.getAbsolutePath() + ": " + e);
+			done.clear();
+			completePaths.clear();
+			return false;
+		}
+		return true;
+	}
 
-	long totalTimeLimitSeconds = 1 * 60;
+	final Map<SearchInterface, Long> searchesStarted = new ConcurrentHashMap<>();
+
+	// A negative value means that there's no limit on the total time:
+	long totalTimeLimitSeconds = -1;
 	long totalTimeStarted;
 
-	long threadTimeStarted;
+	// How many searches to run at once, and the side of the blocks they claim:
+	int threads = Runtime.getRuntime().availableProcessors();
+	int regionSize = 32;
+
+	// How often to write a checkpoint (-1 means never):
+	long checkpointIntervalSeconds = 60;
 
 	int maxNodes = 22000; // Takes about 10 seconds to do this on a 1.8GHz Duron
 	int maxSeconds = 120;
@@ -582,6 +766,14 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 			if (lower.length() > 0
 					&& (lower.equals("no") || lower.equals("f") || lower.equals("false") || lower.equals("n")))
 				liveDisplay = false;
+			try {
+				threads = Integer.parseInt(Macro.getValue(macroOptions, "threads", "" + threads));
+				totalTimeLimitSeconds = Long.parseLong(
+						Macro.getValue(macroOptions, "time_limit", "" + totalTimeLimitSeconds));
+			} catch (final NumberFormatException e) {
+				IJ.error("The 'threads' and 'time_limit' options must be integers.");
+				return;
+			}
 		}
 
 		single_pane = true;
@@ -606,12 +798,15 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 			repaintAllPanes();
 		// Also check whether we're over the requested number
 		// of iterations or time:
+		final Long started = searchesStarted.get(source);
+		if (started == null)
+			return;
 		final long currentTime = System.currentTimeMillis();
-		final long timeSinceStarted = currentTime - threadTimeStarted;
+		final long timeSinceStarted = currentTime - started;
 		if ((inOpen + inClosed) > maxNodes || (timeSinceStarted / 1000) > maxSeconds) {
 			if (verbose)
 				System.out.println("### Requesting stop...");
-			ast.requestStop();
+			source.requestStop();
 		}
 	}
 
@@ -622,8 +817,9 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 
 	@Override
 	public void finished(final SearchInterface source, final boolean success) {
+		final Long started = searchesStarted.get(source);
 		final long currentTime = System.currentTimeMillis();
-		final long secondsSinceThreadStarted = (currentTime - threadTimeStarted) / 1000;
+		final long secondsSinceThreadStarted = (started == null) ? 0 : (currentTime - started) / 1000;
 
 		// FIXME: a quick hack to make this compile again, since we're not using
 		// it much:
@@ -0,0 +1,438 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package tracing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import features.ComputeCurvatures;
+import features.GaussianGenerationCallback;
+import ij.ImagePlus;
+
+/**
+ * Traces paths through an image without any user interface, e.g. from a
+ * script running on a machine with no display. Each {@link Request} is a list
+ * of waypoints that are joined by A* searches ({@link TracerThread}), run on a
+ * fixed-size pool of threads; the resulting paths, and optionally their fills,
+ * are added to a {@link PathAndFillManager} that can then be saved with
+ * {@link PathAndFillManager#writeXML(String, boolean)}.
+ *
+ * The start and end of a path may be joined onto an existing path, or onto
+ * the result of an earlier request in the same batch, as with Shift+Alt-click
+ * in the interactive tracer.
+ */
+public class BatchTracer {
+
+	/**
+	 * A path to trace: the waypoints are in calibrated (world) co-ordinates
+	 * and consecutive waypoints are joined by a search.
+	 */
+	public static class Request {
+
+		final List<PointInImage> waypoints;
+		String name;
+
+		Path startJoinPath;
+		Request startJoinRequest;
+		PointInImage startJoinPoint;
+
+		Path endJoinPath;
+		Request endJoinRequest;
+		PointInImage endJoinPoint;
+
+		double fillThreshold = -1;
+
+		public Request(final List<PointInImage> waypoints) {
+			this.waypoints = new ArrayList<>(waypoints);
+		}
+
+		public Request(final PointInImage start, final PointInImage end) {
+			this.waypoints = new ArrayList<>();
+			waypoints.add(start);
+			waypoints.add(end);
+		}
+
+		public void setName(final String name) {
+			this.name = name;
+		}
+
+		/*
+		 * For the joins, the point given is moved to the nearest point on the
+		 * path it joins, and replaces the first (or last) waypoint.
+		 */
+
+		public void joinStartTo(final Path path, final PointInImage point) {
+			startJoinPath = path;
+			startJoinRequest = null;
+			startJoinPoint = point;
+		}
+
+		/**
+		 * Joins the start of this path to the result of another request,
+		 * which must come earlier in the same batch.
+		 */
+		public void joinStartTo(final Request request, final PointInImage point) {
+			startJoinPath = null;
+			startJoinRequest = request;
+			startJoinPoint = point;
+		}
+
+		public void joinEndTo(final Path path, final PointInImage point) {
+			endJoinPath = path;
+			endJoinRequest = null;
+			endJoinPoint = point;
+		}
+
+		public void joinEndTo(final Request request, final PointInImage point) {
+			endJoinPath = null;
+			endJoinRequest = request;
+			endJoinPoint = point;
+		}
+
+		/**
+		 * If threshold is not negative, the traced path is also filled out to
+		 * that threshold and the fill is added to the manager.
+		 */
+		public void setFillThreshold(final double threshold) {
+			this.fillThreshold = threshold;
+		}
+	}
+
+	/**
+	 * The outcome of one request. If the tracing failed, path is null and
+	 * exitReason says why (one of the SearchThread constants) unless the
+	 * request was invalid, in which case it is -1 and message explains.
+	 */
+	public static class Result {
+
+		public final Request request;
+		public final Path path;
+		public final int exitReason;
+		public final String message;
+
+		Result(final Request request, final Path path, final int exitReason, final String message) {
+			this.request = request;
+			this.path = path;
+			this.exitReason = exitReason;
+			this.message = message;
+		}
+
+		public boolean succeeded() {
+			return path != null;
+		}
+
+		@Override
+		public String toString() {
+			if (path != null)
+				return "Traced " + path.getName() + " (" + path.size() + " points)";
+			return "Failed: " + ((exitReason >= 0) ? SearchThread.exitReasonStrings[exitReason] : message);
+		}
+	}
+
+	final ImagePlus image;
+	final PathAndFillManager pathAndFillManager;
+	final int threads;
+
+	final int width, height, depth;
+	final double x_spacing, y_spacing, z_spacing;
+	float stackMin, stackMax;
+
+	int timeoutSeconds = 0;
+	ComputeCurvatures hessian;
+	double multiplier = 4;
+	float[][] tubeness;
+
+	/**
+	 * Creates a tracer whose results are added to a new PathAndFillManager
+	 * for the image, using one thread per processor.
+	 */
+	public BatchTracer(final ImagePlus image) {
+		this(image, new PathAndFillManager(image), Runtime.getRuntime().availableProcessors());
+	}
+
+	public BatchTracer(final ImagePlus image, final PathAndFillManager pathAndFillManager, final int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("At least one thread is required");
+		this.image = image;
+		this.pathAndFillManager = pathAndFillManager;
+		this.threads = threads;
+		width = image.getWidth();
+		height = image.getHeight();
+		depth = image.getStackSize();
+		x_spacing = image.getCalibration().pixelWidth;
+		y_spacing = image.getCalibration().pixelHeight;
+		z_spacing = image.getCalibration().pixelDepth;
+
+		switch (image.getType()) {
+		case ImagePlus.GRAY8:
+		case ImagePlus.COLOR_256:
+		case ImagePlus.GRAY16:
+		case ImagePlus.GRAY32:
+			break;
+		default:
+			throw new IllegalArgumentException("Only 8-bit, 16-bit and 32-bit images can be traced");
+		}
+		setNormalisationPercentiles(0, 100);
+	}
+
+	/**
+	 * Sets the intensity range used by the searches of 16 and 32-bit images
+	 * to the given percentiles of the image's (cached) histogram; 0 and 100
+	 * give the minimum and maximum, which is the default. 8-bit images are
+	 * never rescaled.
+	 */
+	public void setNormalisationPercentiles(final double lowPercent, final double highPercent) {
+		final float[] range = VoxelStatistics.getNormalisationRange(image, lowPercent, highPercent);
+		stackMin = range[0];
+		stackMax = range[1];
+	}
+
+	public PathAndFillManager getPathAndFillManager() {
+		return pathAndFillManager;
+	}
+
+	/** Each search gives up after this many seconds; 0 means never. */
+	public void setTimeoutSeconds(final int timeoutSeconds) {
+		this.timeoutSeconds = timeoutSeconds;
+	}
+
+	/**
+	 * Makes the searches prefer tubular structures of the given scale, as
+	 * with "Use Hessian-based analysis" in the interactive tracer. The
+	 * Gaussian is computed here, before returning.
+	 */
+	public void enableHessian(final double sigma, final double multiplier) {
+		final boolean[] succeeded = { true };
+		final ComputeCurvatures curvatures = new ComputeCurvatures(image, sigma, new GaussianGenerationCallback() {
+			@Override
+			public void proportionDone(final double proportion) {
+				if (proportion < 0)
+					succeeded[0] = false;
+			}
+		}, true);
+		curvatures.run();
+		if (!succeeded[0])
+			throw new RuntimeException("Failed to compute the Gaussian with sigma " + sigma);
+		this.hessian = curvatures;
+		this.multiplier = multiplier;
+	}
+
+	/**
+	 * Uses precomputed tubeness values (one array per slice) instead of
+	 * computing the Hessian.
+	 */
+	public void setTubeness(final float[][] tubeness, final double multiplier) {
+		this.tubeness = tubeness;
+		this.multiplier = multiplier;
+	}
+
+	public void disableHessian() {
+		hessian = null;
+		tubeness = null;
+	}
+
+	/**
+	 * Traces a single path through the given waypoints on the calling thread.
+	 */
+	public Result trace(final PointInImage... waypoints) {
+		final List<PointInImage> points = new ArrayList<>();
+		Collections.addAll(points, waypoints);
+		return traceAll(Collections.singletonList(new Request(points))).get(0);
+	}
+
+	/**
+	 * Traces all the requests on the thread pool, waiting until they have
+	 * all finished. The results are in the same order as the requests, and
+	 * successful paths are added to the PathAndFillManager as they complete.
+	 */
+	public List<Result> traceAll(final List<Request> requests) {
+
+		final Map<Request, Integer> positions = new HashMap<>();
+		for (int i = 0; i < requests.size(); ++i)
+			positions.put(requests.get(i), i);
+
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			/*
+			 * A request that joins onto another one waits for that result in
+			 * its task. The pool takes tasks in order and the other request
+			 * must come earlier, so it is always already running or done and
+			 * this can't deadlock.
+			 */
+			final List<Future<Result>> futures = new ArrayList<>();
+			for (int i = 0; i < requests.size(); ++i) {
+				final Request request = requests.get(i);
+				final Future<Result> startJoin = earlierFuture(futures, positions, request.startJoinRequest, i);
+				final Future<Result> endJoin = earlierFuture(futures, positions, request.endJoinRequest, i);
+				futures.add(pool.submit(new Callable<Result>() {
+					@Override
+					public Result call() throws Exception {
+						final Path startJoinPath = (startJoin == null) ? request.startJoinPath
+								: startJoin.get().path;
+						final Path endJoinPath = (endJoin == null) ? request.endJoinPath : endJoin.get().path;
+						if ((request.startJoinRequest != null && startJoinPath == null)
+								|| (request.endJoinRequest != null && endJoinPath == null))
+							return new Result(request, null, -1, "The path to join onto could not be traced");
+						return traceRequest(request, startJoinPath, endJoinPath);
+					}
+				}));
+			}
+
+			final List<Result> results = new ArrayList<>();
+			for (int i = 0; i < futures.size(); ++i) {
+				try {
+					results.add(futures.get(i).get());
+				} catch (final ExecutionException e) {
+					SNT.log("Tracing request " + i + " failed: " + e.getCause());
+					results.add(new Result(requests.get(i), null, -1, String.valueOf(e.getCause())));
+				}
+			}
+			return results;
+
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while tracing", e);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static Future<Result> earlierFuture(final List<Future<Result>> futures,
+			final Map<Request, Integer> positions, final Request other, final int position) {
+		if (other == null)
+			return null;
+		final Integer otherPosition = positions.get(other);
+		if (otherPosition == null || otherPosition >= position)
+			throw new IllegalArgumentException(
+					"Request " + position + " joins onto a request that does not come before it in the batch");
+		return futures.get(otherPosition);
+	}
+
+	Result traceRequest(final Request request, final Path startJoinPath, final Path endJoinPath) {
+
+		final List<PointInImage> waypoints = new ArrayList<>(request.waypoints);
+		if (waypoints.size() < 2)
+			return new Result(request, null, -1, "At least two waypoints are needed");
+
+		PointInImage startJoinPoint = null;
+		if (startJoinPath != null) {
+			startJoinPoint = nearestPointOn(startJoinPath, request.startJoinPoint);
+			waypoints.set(0, startJoinPoint);
+		}
+		PointInImage endJoinPoint = null;
+		if (endJoinPath != null) {
+			endJoinPoint = nearestPointOn(endJoinPath, request.endJoinPoint);
+			waypoints.set(waypoints.size() - 1, endJoinPoint);
+		}
+
+		final Path path = new Path(x_spacing, y_spacing, z_spacing, image.getCalibration().getUnit());
+		for (int i = 0; i < waypoints.size() - 1; ++i) {
+			final int[] start = toVoxel(waypoints.get(i));
+			final int[] goal = toVoxel(waypoints.get(i + 1));
+			final TracerThread tracer = new TracerThread(image, stackMin, stackMax, timeoutSeconds, 0, // reportEveryMilliseconds
+					start[0], start[1], start[2], goal[0], goal[1], goal[2], true, // reciprocal
+					depth == 1, // singleSlice
+					hessian, multiplier, tubeness, hessian != null || tubeness != null);
+			tracer.run();
+			final Path segment = tracer.getResult();
+			if (segment == null)
+				return new Result(request, null, tracer.getExitReason(), null);
+			path.add(segment);
+		}
+
+		/*
+		 * Joining modifies the other path too, so this and adding the path
+		 * must not happen concurrently with other requests:
+		 */
+		synchronized (pathAndFillManager) {
+			if (request.name != null)
+				path.setName(request.name);
+			if (startJoinPath != null)
+				path.setStartJoin(startJoinPath, startJoinPoint);
+			if (endJoinPath != null)
+				path.setEndJoin(endJoinPath, endJoinPoint);
+			pathAndFillManager.addPath(path);
+		}
+
+		if (request.fillThreshold >= 0)
+			fill(Collections.singleton(path), request.fillThreshold);
+
+		return new Result(request, path, SearchThread.SUCCESS, null);
+	}
+
+	/**
+	 * Fills out from the given paths to the given threshold on the calling
+	 * thread, adds the fill to the PathAndFillManager and returns it.
+	 */
+	public Fill fill(final Set<Path> paths, final double threshold) {
+		final FillerThread filler = new FillerThread(image, stackMin, stackMax, false, // startPaused
+				true, // reciprocal
+				threshold, 0); // reportEveryMilliseconds
+		filler.setSourcePaths(paths);
+		filler.run();
+		final Fill fill = filler.getFill();
+		synchronized (pathAndFillManager) {
+			pathAndFillManager.addFill(fill);
+		}
+		return fill;
+	}
+
+	int[] toVoxel(final PointInImage p) {
+		return new int[] { clamp((int) Math.round(p.x / x_spacing), width),
+				clamp((int) Math.round(p.y / y_spacing), height), clamp((int) Math.round(p.z / z_spacing), depth) };
+	}
+
+	static int clamp(final int v, final int size) {
+		return Math.max(0, Math.min(size - 1, v));
+	}
+
+	static PointInImage nearestPointOn(final Path path, final PointInImage near) {
+		if (path.size() == 0)
+			throw new IllegalArgumentException("Cannot join onto an empty path");
+		PointInImage best = path.getPointInImage(0);
+		double bestDistanceSquared = Double.MAX_VALUE;
+		if (near != null)
+			for (int i = 0; i < path.size(); ++i) {
+				final PointInImage p = path.getPointInImage(i);
+				final double d = p.distanceSquaredTo(near.x, near.y, near.z);
+				if (d < bestDistanceSquared) {
+					bestDistanceSquared = d;
+					best = p;
+				}
+			}
+		best.onPath = path;
+		return best;
+	}
+}
@@ -0,0 +1,81 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package tracing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/*
+ * The int counterpart of BigLongArray.
+ *
+ * This class is not thread-safe.
+ */
+
+class BigIntArray {
+
+	static final int CHUNK_BITS = 26;
+
+	private final IntBuffer[] chunks;
+	private final int chunkBits;
+	private final long chunkMask;
+	private final long length;
+
+	BigIntArray(final long length, final boolean offHeap) {
+		this(length, offHeap, CHUNK_BITS);
+	}
+
+	/* The chunk size can be set here so that chunking can be tested: */
+
+	BigIntArray(final long length, final boolean offHeap, final int chunkBits) {
+		if (length < 0)
+			throw new IllegalArgumentException("Negative array length: " + length);
+		final long chunkSize = 1L << chunkBits;
+		final long nChunks = (length + chunkSize - 1) >>> chunkBits;
+		if (nChunks > Integer.MAX_VALUE)
+			throw new RuntimeException("Too many elements for an array: " + length);
+		this.chunkBits = chunkBits;
+		this.chunkMask = chunkSize - 1;
+		this.length = length;
+		chunks = new IntBuffer[(int) nChunks];
+		for (int c = 0; c < chunks.length; ++c) {
+			final int n = (int) Math.min(chunkSize, length - ((long) c << chunkBits));
+			chunks[c] = offHeap ? ByteBuffer.allocateDirect(n * 4).order(ByteOrder.nativeOrder()).asIntBuffer()
+					: IntBuffer.allocate(n);
+		}
+	}
+
+	long length() {
+		return length;
+	}
+
+	int get(final long i) {
+		return chunks[(int) (i >>> chunkBits)].get((int) (i & chunkMask));
+	}
+
+	void set(final long i, final int value) {
+		chunks[(int) (i >>> chunkBits)].put((int) (i & chunkMask), value);
+	}
+}
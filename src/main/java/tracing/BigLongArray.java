@@ -0,0 +1,97 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package tracing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/*
+ * A fixed-length array of longs, either on the Java heap or in direct
+ * buffers outside it. A single direct buffer can't be larger than 2GB, so
+ * long arrays are split into chunks of 2^CHUNK_BITS elements, and can have
+ * more than Integer.MAX_VALUE elements.
+ *
+ * This class is not thread-safe.
+ */
+
+class BigLongArray {
+
+	static final int CHUNK_BITS = 26;
+
+	private final LongBuffer[] chunks;
+	private final int chunkBits;
+	private final long chunkMask;
+	private final long length;
+
+	BigLongArray(final long length, final boolean offHeap) {
+		this(length, offHeap, CHUNK_BITS);
+	}
+
+	/* The chunk size can be set here so that chunking can be tested: */
+
+	BigLongArray(final long length, final boolean offHeap, final int chunkBits) {
+		if (length < 0)
+			throw new IllegalArgumentException("Negative array length: " + length);
+		final long chunkSize = 1L << chunkBits;
+		final long nChunks = (length + chunkSize - 1) >>> chunkBits;
+		if (nChunks > Integer.MAX_VALUE)
+			throw new RuntimeException("Too many elements for an array: " + length);
+		this.chunkBits = chunkBits;
+		this.chunkMask = chunkSize - 1;
+		this.length = length;
+		chunks = new LongBuffer[(int) nChunks];
+		for (int c = 0; c < chunks.length; ++c) {
+			final int n = (int) Math.min(chunkSize, length - ((long) c << chunkBits));
+			chunks[c] = offHeap ? ByteBuffer.allocateDirect(n * 8).order(ByteOrder.nativeOrder()).asLongBuffer()
+					: LongBuffer.allocate(n);
+		}
+	}
+
+	long length() {
+		return length;
+	}
+
+	long get(final long i) {
+		return chunks[(int) (i >>> chunkBits)].get((int) (i & chunkMask));
+	}
+
+	void set(final long i, final long value) {
+		chunks[(int) (i >>> chunkBits)].put((int) (i & chunkMask), value);
+	}
+
+	void fill(final long value) {
+		for (final LongBuffer chunk : chunks)
+			for (int i = 0; i < chunk.capacity(); ++i)
+				chunk.put(i, value);
+	}
+
+	/* Copies the first n elements of source to the start of this array: */
+
+	void copyFrom(final BigLongArray source, final long n) {
+		for (long i = 0; i < n; ++i)
+			set(i, source.get(i));
+	}
+}
@@ -0,0 +1,62 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package tracing;
+
+import ij.IJ;
+import ij.io.OpenDialog;
+import ij.plugin.PlugIn;
+
+/*
+ * Converts a .traces.obj file written by the automatic tracer to the binary
+ * .traces.bin format, which loads much faster (see SinglePathsGraph).
+ */
+
+public class Convert_Auto_Traces implements PlugIn {
+
+	@Override
+	public void run(final String ignored) {
+
+		final OpenDialog od = new OpenDialog("Select traces.obj file...", null, null);
+
+		final String fileName = od.getFileName();
+		final String directory = od.getDirectory();
+
+		if (fileName == null)
+			return;
+
+		final String binaryFileName = (fileName.endsWith(".obj") ? fileName.substring(0, fileName.length() - 4)
+				: fileName) + ".bin";
+
+		IJ.showStatus("Converting " + fileName + " to " + binaryFileName);
+
+		if (!SinglePathsGraph.convertObjToBinary(directory + fileName, directory + binaryFileName)) {
+			IJ.error("Converting " + directory + fileName + " failed");
+			return;
+		}
+
+		IJ.showStatus("Wrote " + directory + binaryFileName);
+	}
+
+}
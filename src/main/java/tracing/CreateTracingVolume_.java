@@ -25,16 +25,16 @@
 package tracing;
 
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import amira.AmiraParameters;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.plugin.PlugIn;
 import ij.process.ColorProcessor;
-import landmarks.Bookstein_From_Landmarks;
-import util.BatchOpener;
-import util.FileAndChannel;
-import vib.oldregistration.RegistrationAlgorithm;
 
 public class CreateTracingVolume_ implements PlugIn {
 
@@ -67,11 +67,8 @@ public class CreateTracingVolume_ implements PlugIn {
 		final String standardBrainFileName = "/media/WD USB 2/standard-brain/data/vib-drosophila/CantonM43c.grey";
 		final String standardBrainLabelsFileName = "/media/WD USB 2/standard-brain/data/vib-drosophila/CantonM43c.labels";
 
-		final FileAndChannel standardBrainFC = new FileAndChannel(standardBrainFileName, 0);
-
 		final String realImageFileName = "/media/WD USB 2/corpus/central-complex/c061AK.lsm";
 
-		final FileAndChannel realImageFC = new FileAndChannel(realImageFileName, 0);
 		final String tracesFileName = realImageFileName + ".traces";
 
 		// ------------------------------------------------------------------------
@@ -81,308 +78,110 @@ public class CreateTracingVolume_ implements PlugIn {
 		// FIXME: this will get too many paths:
 		final ArrayList<Path> allPaths = manager.getAllPaths();
 
-		final Bookstein_From_Landmarks matcher = new Bookstein_From_Landmarks();
-		matcher.loadImages(standardBrainFC, realImageFC);
-		matcher.generateTransformation();
-
-		final ImagePlus standardBrain = matcher.getTemplate();
+		final RegistrationContext registration = RegistrationContext.get(standardBrainFileName,
+				standardBrainLabelsFileName, realImageFileName);
 
 		final double scaleStandard = 1;
 
-		final int newWidth = (int) (standardBrain.getWidth() * scaleStandard);
-		final int newHeight = (int) (standardBrain.getHeight() * scaleStandard);
-		final int newDepth = (int) (standardBrain.getStackSize() * scaleStandard);
+		final int newWidth = (int) (registration.getTemplateWidth() * scaleStandard);
+		final int newHeight = (int) (registration.getTemplateHeight() * scaleStandard);
+		final int newDepth = (int) (registration.getTemplateDepth() * scaleStandard);
 
-		ImagePlus labels;
-		{
-			final ImagePlus[] tmp = BatchOpener.open(standardBrainLabelsFileName);
-			labels = tmp[0];
-		}
+		final RegistrationContext.LabelVolume labels = registration.getLabels();
 		if (verbose)
-			SNT.log("   labels were: " + labels);
-
-		// need to get the AmiraParameters object for that image...
-
-		final AmiraParameters parameters = new AmiraParameters(labels);
-
-		final int materials = parameters.getMaterialCount();
-
-		final int redValues[] = new int[materials];
-		final int greenValues[] = new int[materials];
-		final int blueValues[] = new int[materials];
-
-		for (int i = 0; i < materials; i++) {
+			SNT.log("   labels were: " + standardBrainLabelsFileName);
 
-			final double[] c = parameters.getMaterialColor(i);
+		final int materials = labels.materials;
 
-			redValues[i] = (int) (255 * c[0]);
-			greenValues[i] = (int) (255 * c[1]);
-			blueValues[i] = (int) (255 * c[2]);
-		}
-
-		final ImageStack labelStack = labels.getStack();
-
-		final int templateWidth = labelStack.getWidth();
-		final int templateDepth = labelStack.getSize();
+		final int redValues[] = labels.redValues;
+		final int greenValues[] = labels.greenValues;
+		final int blueValues[] = labels.blueValues;
 
 		if (verbose)
 			SNT.log("About to create stack of size: " + newWidth + "," + newHeight + "," + newDepth);
 
-		final ImageStack newStack = new ImageStack(newWidth, newHeight);
-
-		int x, y, z;
-
-		final byte[][] label_data = new byte[templateDepth][];
-		for (z = 0; z < templateDepth; ++z)
-			label_data[z] = (byte[]) labelStack.getPixels(z + 1);
-
-		final byte[][] redPixels = new byte[newDepth][];
-		final byte[][] greenPixels = new byte[newDepth][];
-		final byte[][] bluePixels = new byte[newDepth][];
-
-		for (z = 0; z < newDepth; ++z) {
-
-			if (verbose)
-				SNT.log("Creating slice: " + z);
-
-			redPixels[z] = new byte[newWidth * newHeight];
-			greenPixels[z] = new byte[newWidth * newHeight];
-			bluePixels[z] = new byte[newWidth * newHeight];
-
-			for (y = 0; y < newHeight; ++y) {
-				for (x = 0; x < newWidth; ++x) {
-
-					final int label_value = label_data[(int) (z / scaleStandard)][(int) (y / scaleStandard)
-							* templateWidth + (int) (x / scaleStandard)] & 0xFF;
+		/*
+		 * Each slice is filled in directly as the packed RGB pixels of a
+		 * ColorProcessor (rather than as separate red, green and blue planes
+		 * which are then copied), with the slices spread over the available
+		 * processors.
+		 */
 
-					if (label_value >= materials) {
-						SNT.error("A label value of " + label_value + " was found, which is not a valid material (max "
-								+ (materials - 1) + ")");
-						return;
+		final int[][] pixels = new int[newDepth][];
+		final int[] colours = new int[materials];
+		for (int i = 0; i < materials; ++i)
+			colours[i] = 0xff000000 | (redValues[i] << 16) | (greenValues[i] << 8) | blueValues[i];
+
+		final ExecutorService es = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+
+			final ArrayList<Future<Boolean>> sliceResults = new ArrayList<>();
+			for (int slice = 0; slice < newDepth; ++slice) {
+				final int z = slice;
+				sliceResults.add(es.submit(new Callable<Boolean>() {
+
+					@Override
+					public Boolean call() {
+						if (verbose)
+							SNT.log("Creating slice: " + z);
+						final int[] slicePixels = new int[newWidth * newHeight];
+						for (int y = 0; y < newHeight; ++y) {
+							for (int x = 0; x < newWidth; ++x) {
+								final int label_value = labels.get((int) (x / scaleStandard),
+										(int) (y / scaleStandard), (int) (z / scaleStandard));
+								if (label_value < 0 || label_value >= materials) {
+									SNT.error("A label value of " + label_value
+											+ " was found, which is not a valid material (max " + (materials - 1)
+											+ ")");
+									return false;
+								}
+								slicePixels[y * newWidth + x] = colours[label_value];
+							}
+						}
+						pixels[z] = slicePixels;
+						return true;
 					}
-
-					redPixels[z][y * newWidth + x] = (byte) (redValues[label_value] / 1);
-					greenPixels[z][y * newWidth + x] = (byte) (greenValues[label_value] / 1);
-					bluePixels[z][y * newWidth + x] = (byte) (blueValues[label_value] / 1);
-
-				}
+				}));
 			}
-		}
-
-		final RegistrationAlgorithm.ImagePoint imagePoint = new RegistrationAlgorithm.ImagePoint();
-
-		if (allPaths != null) {
-			// if (verbose) SNT.log("Have some allPaths paths to
-			// draw.");
-			final int paths = allPaths.size();
-			// if (verbose) SNT.log("Paths to draw: "+paths);
-			for (int i = 0; i < paths; ++i) {
-
-				final Path p = allPaths.get(i);
+			if (!allSucceeded(sliceResults))
+				return;
 
-				int last_x_in_template = -1;
-				int last_y_in_template = -1;
-				int last_z_in_template = -1;
+			// Now draw the paths over that, again in parallel. (Where paths
+			// cross, they only ever write the same value.)
 
-				for (int k = 0; k < p.size(); ++k) {
+			if (allPaths != null) {
 
-					final int x_in_domain = p.getXUnscaled(k);
-					final int y_in_domain = p.getYUnscaled(k);
-					final int z_in_domain = p.getZUnscaled(k);
+				final int[][] pointsInTemplate = registration.transformPaths(allPaths);
 
-					matcher.transformDomainToTemplate(x_in_domain, y_in_domain, z_in_domain, imagePoint);
-
-					final int x_in_template = imagePoint.x;
-					final int y_in_template = imagePoint.y;
-					final int z_in_template = imagePoint.z;
-
-					if ((last_x_in_template >= 0) && (last_y_in_template >= 0) && (last_z_in_template >= 0)) {
-
-						final int xdiff = Math.abs(x_in_template - last_x_in_template);
-						final int ydiff = Math.abs(y_in_template - last_y_in_template);
-						final int zdiff = Math.abs(z_in_template - last_z_in_template);
-
-						if (xdiff > 5 || ydiff > 5 || zdiff > 5) {
-							if (verbose)
-								SNT.log("too long in path: " + i + ", at point " + k);
-						}
-
-						final int xdiff_s = x_in_template - last_x_in_template;
-						final int ydiff_s = y_in_template - last_y_in_template;
-						final int zdiff_s = z_in_template - last_z_in_template;
-
-						// Draw a line from last_ to current...
-
-						// Shoddy algorithm for the moment.
-
-						// In order of size, must be one of these options:
-						//
-						// zdiff >= ydiff >= xdiff
-						// zdiff >= xdiff >= ydiff
-						// ydiff >= xdiff >= zdiff
-						// ydiff >= zdiff >= xdiff
-						// xdiff >= ydiff >= zdiff
-						// xdiff >= zdiff >= ydiff
-
-						// For the moment i'm collapsing these into 3 cases
-						// (zdiff, ydiff or xdiff largest)
-
-						// Each of these cases:
-
-						// if (verbose) SNT.log( "x from: " +
-						// last_x_in_template + " to " + x_in_template );
-						// if (verbose) SNT.log( "y from: " +
-						// last_y_in_template + " to " + y_in_template );
-						// if (verbose) SNT.log( "z from: " +
-						// last_z_in_template + " to " + z_in_template );
-
-						long line_x, line_y, line_z;
-
-						if ((zdiff >= ydiff) && (zdiff >= xdiff)) {
-
-							if (zdiff == 0) {
-								final int in_plane = y_in_template * newWidth + x_in_template;
-								redPixels[z_in_template][in_plane] = (byte) 255;
-								greenPixels[z_in_template][in_plane] = (byte) 255;
-								bluePixels[z_in_template][in_plane] = (byte) 255;
-							} else {
-								int z_step;
-								if (last_z_in_template <= z_in_template) {
-									z_step = 1;
-								} else {
-									z_step = -1;
-								}
-								line_z = last_z_in_template;
-								do {
-									// So the vector from the start point
-									// (last_(xyz)) to the end point is
-									final double proportion_along = Math.abs(line_z - last_z_in_template)
-											/ (double) zdiff;
-									// if (verbose) SNT.log(
-									// proportion_along + " of xdiff_s " +
-									// xdiff_s );
-									// if (verbose) SNT.log(
-									// proportion_along + " of ydiff_s " +
-									// ydiff_s );
-									final double y_delta = proportion_along * ydiff_s;
-									final double x_delta = proportion_along * xdiff_s;
-									line_y = Math.round(y_delta + last_y_in_template);
-									line_x = Math.round(x_delta + last_x_in_template);
-									// if (verbose) SNT.log( "x is:
-									// "+line_x+" (width: "+newWidth+")");
-									// if (verbose) SNT.log( "y is:
-									// "+line_y+" (height: "+newHeight+")");
-									final int in_plane = (int) (line_y * newWidth + line_x);
-									redPixels[(int) line_z][in_plane] = (byte) 255;
-									greenPixels[(int) line_z][in_plane] = (byte) 255;
-									bluePixels[(int) line_z][in_plane] = (byte) 255;
-									line_z += z_step;
-								} while (line_z != z_in_template);
-							}
-
-						} else if ((ydiff >= zdiff) && (ydiff >= xdiff)) {
-
-							if (ydiff == 0) {
-								final int in_plane = y_in_template * newWidth + x_in_template;
-								redPixels[z_in_template][in_plane] = (byte) 255;
-								greenPixels[z_in_template][in_plane] = (byte) 255;
-								bluePixels[z_in_template][in_plane] = (byte) 255;
-							} else {
-								int y_step;
-								if (last_y_in_template <= y_in_template) {
-									y_step = 1;
-								} else {
-									y_step = -1;
-								}
-								line_y = last_y_in_template;
-								do {
-									// So the vector from the start point
-									// (last_(xyz)) to the end point is
-									final double proportion_along = Math.abs(line_y - last_y_in_template)
-											/ (double) ydiff;
-									// if (verbose) SNT.log(
-									// proportion_along + " of xdiff_s " +
-									// xdiff_s );
-									// if (verbose) SNT.log(
-									// proportion_along + " of zdiff_s " +
-									// zdiff_s );
-									final double z_delta = proportion_along * zdiff_s;
-									final double x_delta = proportion_along * xdiff_s;
-									line_z = Math.round(z_delta + last_z_in_template);
-									line_x = Math.round(x_delta + last_x_in_template);
-									// if (verbose) SNT.log( "x is:
-									// "+line_x+" (width: "+newWidth+")");
-									// if (verbose) SNT.log( "z is:
-									// "+line_z+" (height: "+newHeight+")");
-									final int in_plane = (int) (line_y * newWidth + line_x);
-									redPixels[(int) line_z][in_plane] = (byte) 255;
-									greenPixels[(int) line_z][in_plane] = (byte) 255;
-									bluePixels[(int) line_z][in_plane] = (byte) 255;
-									line_y += y_step;
-								} while (line_y != y_in_template);
-							}
-
-						} else if ((xdiff >= ydiff) && (xdiff >= zdiff)) {
-
-							if (xdiff == 0) {
-								final int in_plane = y_in_template * newWidth + x_in_template;
-								redPixels[z_in_template][in_plane] = (byte) 255;
-								greenPixels[z_in_template][in_plane] = (byte) 255;
-								bluePixels[z_in_template][in_plane] = (byte) 255;
-							} else {
-								int x_step;
-								if (last_x_in_template <= x_in_template) {
-									x_step = 1;
-								} else {
-									x_step = -1;
-								}
-								line_x = last_x_in_template;
-								do {
-									// So the vector from the start point
-									// (last_(xyz)) to the end point is
-									final double proportion_along = Math.abs(line_x - last_x_in_template)
-											/ (double) xdiff;
-									// if (verbose) SNT.log(
-									// proportion_along + " of ydiff_s " +
-									// ydiff_s );
-									// if (verbose) SNT.log(
-									// proportion_along + " of zdiff_s " +
-									// zdiff_s );
-									final double z_delta = proportion_along * zdiff_s;
-									final double y_delta = proportion_along * ydiff_s;
-									line_z = Math.round(z_delta + last_z_in_template);
-									line_y = Math.round(y_delta + last_y_in_template);
-									// if (verbose) SNT.log( "z is:
-									// "+line_z+" (depth: "+newDepth+")");
-									// if (verbose) SNT.log( "y is:
-									// "+line_y+" (height: "+newHeight+")");
-									final int in_plane = (int) (line_y * newWidth + line_x);
-									redPixels[(int) line_z][in_plane] = (byte) 255;
-									greenPixels[(int) line_z][in_plane] = (byte) 255;
-									bluePixels[(int) line_z][in_plane] = (byte) 255;
-									line_x += x_step;
-								} while (line_x != x_in_template);
+				final ArrayList<Future<Boolean>> pathResults = new ArrayList<>();
+				for (int i = 0; i < allPaths.size(); ++i) {
+					final int pathIndex = i;
+					pathResults.add(es.submit(new Callable<Boolean>() {
 
+						@Override
+						public Boolean call() {
+							final int[] inTemplate = pointsInTemplate[pathIndex];
+							for (int k = 1; k < inTemplate.length / 3; ++k) {
+								drawSegment(pixels, newWidth, newHeight, inTemplate, 3 * (k - 1), 3 * k);
+								if (verbose && isLongSegment(inTemplate, 3 * (k - 1), 3 * k))
+									SNT.log("too long in path: " + pathIndex + ", at point " + k);
 							}
+							return true;
 						}
-					}
-
-					last_x_in_template = x_in_template;
-					last_y_in_template = y_in_template;
-					last_z_in_template = z_in_template;
+					}));
 				}
+				if (!allSucceeded(pathResults))
+					return;
 			}
-		}
 
-		for (z = 0; z < newDepth; ++z) {
-
-			// if (verbose) SNT.log("Actually adding slice: "+z);
-
-			final ColorProcessor cp = new ColorProcessor(newWidth, newHeight);
-			cp.setRGB(redPixels[z], greenPixels[z], bluePixels[z]);
-			newStack.addSlice(null, cp);
+		} finally {
+			es.shutdownNow();
 		}
 
+		final ImageStack newStack = new ImageStack(newWidth, newHeight);
+		for (int z = 0; z < newDepth; ++z)
+			newStack.addSlice(null, new ColorProcessor(newWidth, newHeight, pixels[z]));
+
 		final ImagePlus impNew = new ImagePlus("tracings stack", newStack);
 
 		impNew.show();
@@ -394,4 +193,73 @@ public class CreateTracingVolume_ implements PlugIn {
 
 	}
 
+	static boolean allSucceeded(final ArrayList<Future<Boolean>> results) {
+		try {
+			for (final Future<Boolean> f : results)
+				if (!f.get())
+					return false;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (final ExecutionException e) {
+			throw new RuntimeException("Creating the tracing volume failed", e.getCause());
+		}
+		return true;
+	}
+
+	static boolean isLongSegment(final int[] points, final int from, final int to) {
+		for (int d = 0; d < 3; ++d)
+			if (Math.abs(points[to + d] - points[from + d]) > 5)
+				return true;
+		return false;
+	}
+
+	/*
+	 * Draw a line in white from the point at index from to the one at index
+	 * to (each an x, y, z triple in points). This steps one voxel at a time
+	 * along whichever axis has the largest difference (preferring z, then
+	 * y, then x), rounding the other coordinates, and stops just before the
+	 * end point, which is drawn as the start of the next segment.
+	 */
+
+	static void drawSegment(final int[][] pixels, final int width, final int height, final int[] points,
+			final int from, final int to) {
+
+		final int[] diff = new int[3];
+		for (int d = 0; d < 3; ++d)
+			diff[d] = points[to + d] - points[from + d];
+
+		final int xdiff = Math.abs(diff[0]), ydiff = Math.abs(diff[1]), zdiff = Math.abs(diff[2]);
+		final int axis;
+		if ((zdiff >= ydiff) && (zdiff >= xdiff))
+			axis = 2;
+		else if ((ydiff >= zdiff) && (ydiff >= xdiff))
+			axis = 1;
+		else
+			axis = 0;
+
+		final int steps = Math.abs(diff[axis]);
+		if (steps == 0) {
+			setWhite(pixels, width, height, points[to], points[to + 1], points[to + 2]);
+			return;
+		}
+
+		final int step = diff[axis] > 0 ? 1 : -1;
+		final long[] line = new long[3];
+		for (int s = 0; s < steps; ++s) {
+			final double proportion_along = s / (double) steps;
+			for (int d = 0; d < 3; ++d)
+				line[d] = (d == axis) ? points[from + d] + s * step
+						: Math.round(proportion_along * diff[d] + points[from + d]);
+			setWhite(pixels, width, height, (int) line[0], (int) line[1], (int) line[2]);
+		}
+	}
+
+	static void setWhite(final int[][] pixels, final int width, final int height, final int x, final int y,
+			final int z) {
+		if (x < 0 || y < 0 || z < 0 || x >= width || y >= height || z >= pixels.length)
+			return;
+		pixels[z][y * width + x] = 0xffffffff;
+	}
+
 }
@@ -0,0 +1,122 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package tracing;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of the distances of the nodes of a fill, so that the number of
+ * voxels (and so the volume) within any threshold can be found without
+ * looking at the nodes again. The bins are logarithmic, BINS_PER_DECADE to
+ * each power of ten from 10^MIN_LOG to 10^MAX_LOG, and each includes its
+ * upper edge, so the count within a threshold is exact at the bin edges and
+ * interpolated between them. There are separate bins for distances up to
+ * 10^MIN_LOG (including the 0 of the source paths themselves) and for
+ * distances beyond 10^MAX_LOG; all of either is counted for any threshold
+ * that falls in it.
+ *
+ * Adding distances is thread-safe; counts read while distances are being
+ * added reflect some, but maybe not all, of the concurrent additions.
+ */
+public class DistanceHistogram {
+
+	static final int MIN_LOG = -6;
+	static final int MAX_LOG = 6;
+	static final int BINS_PER_DECADE = 100;
+
+	private static final int LOG_BINS = (MAX_LOG - MIN_LOG) * BINS_PER_DECADE;
+
+	/*
+	 * Bin 0 is for anything up to 10^MIN_LOG, the last for anything over
+	 * 10^MAX_LOG:
+	 */
+	private final AtomicLongArray bins = new AtomicLongArray(LOG_BINS + 2);
+
+	/*
+	 * Positions this close to a whole number are taken to be on that bin
+	 * edge, as log10 of an edge isn't always exact:
+	 */
+	private static final double EDGE_TOLERANCE = 1e-9;
+
+	static int binOf(final double distance) {
+		if (distance <= 0)
+			return 0;
+		final double position = (Math.log10(distance) - MIN_LOG) * BINS_PER_DECADE - EDGE_TOLERANCE;
+		if (position <= 0)
+			return 0;
+		if (position > LOG_BINS)
+			return LOG_BINS + 1;
+		return (int) Math.ceil(position);
+	}
+
+	/* The lower (exclusive) edge of a logarithmic bin: */
+	static double binStart(final int bin) {
+		return Math.pow(10, MIN_LOG + (bin - 1) / (double) BINS_PER_DECADE);
+	}
+
+	public void add(final double distance) {
+		bins.incrementAndGet(binOf(distance));
+	}
+
+	public void remove(final double distance) {
+		bins.decrementAndGet(binOf(distance));
+	}
+
+	public long getTotal() {
+		long total = 0;
+		for (int i = 0; i < bins.length(); ++i)
+			total += bins.get(i);
+		return total;
+	}
+
+	/**
+	 * Returns the (approximate) number of distances that are at most the
+	 * given threshold.
+	 */
+	public long countAtOrBelow(final double threshold) {
+		if (threshold < 0)
+			return 0;
+		final int last = binOf(threshold);
+		long count = 0;
+		for (int i = 0; i < last; ++i)
+			count += bins.get(i);
+		final long inLast = bins.get(last);
+		if (last == 0 || last == LOG_BINS + 1) {
+			count += inLast;
+		} else if (inLast > 0) {
+			/* Assume the distances are spread evenly across the bin: */
+			final double start = Math.log10(binStart(last)), end = Math.log10(binStart(last + 1));
+			final double fraction = (Math.log10(threshold) - start) / (end - start);
+			count += Math.round(inLast * Math.max(0, Math.min(1, fraction)));
+		}
+		return count;
+	}
+
+	public double volumeAtOrBelow(final double threshold, final double x_spacing, final double y_spacing,
+			final double z_spacing) {
+		return countAtOrBelow(threshold) * x_spacing * y_spacing * z_spacing;
+	}
+}
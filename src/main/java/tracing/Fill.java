@@ -59,6 +59,62 @@ public class Fill {
 		n.previous = previous;
 		n.open = open;
 		nodeList.add(n);
+		sparse = null;
+		sortedDistances = null;
+	}
+
+	/*
+	 * The distances of all the nodes in ascending order, built when first
+	 * needed, so that the number of nodes within any threshold is a binary
+	 * search: the volume is reported for every fill on each export, and
+	 * again whenever the threshold changes.
+	 */
+	private double[] sortedDistances;
+
+	/** Returns the number of nodes (i.e. voxels) within the threshold. */
+	public synchronized long getVoxelCount() {
+		if (sortedDistances == null) {
+			sortedDistances = new double[nodeList.size()];
+			for (int i = 0; i < sortedDistances.length; ++i)
+				sortedDistances[i] = nodeList.get(i).distance;
+			Arrays.sort(sortedDistances);
+		}
+		int low = 0, high = sortedDistances.length;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (sortedDistances[middle] <= distanceThreshold)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/*
+	 * The sub-threshold voxels, built when first needed; the measurements
+	 * of the fill other than its volume are made from this:
+	 */
+	private SparseFill sparse;
+
+	/**
+	 * Returns the nodes within the threshold as runs along each row, which
+	 * is how the bounding box and other measurements are computed.
+	 */
+	public synchronized SparseFill getSparseFill() {
+		if (sparse == null) {
+			int width = 1, height = 1, depth = 1;
+			for (final Node n : nodeList) {
+				width = Math.max(width, n.x + 1);
+				height = Math.max(height, n.y + 1);
+				depth = Math.max(depth, n.z + 1);
+			}
+			final SparseFill.Builder builder = new SparseFill.Builder(width, height, depth);
+			for (final Node n : nodeList)
+				if (n.distance <= distanceThreshold)
+					builder.add(n.x, n.y, n.z, (float) n.distance);
+			sparse = builder.build();
+		}
+		return sparse;
 	}
 
 	Set<Path> sourcePaths;
@@ -96,6 +152,8 @@ public class Fill {
 	}
 
 	public void setThreshold(final double threshold) {
+		if (threshold != distanceThreshold)
+			sparse = null;
 		this.distanceThreshold = threshold;
 	}
 
@@ -133,12 +191,15 @@ public class Fill {
 	 */
 
 	public double getVolume() {
-		int subThresholdNodes = 0;
-		for (final Node n : nodeList) {
-			if (n.distance <= distanceThreshold)
-				++subThresholdNodes;
-		}
-		return subThresholdNodes * x_spacing * y_spacing * z_spacing;
+		return getVoxelCount() * x_spacing * y_spacing * z_spacing;
+	}
+
+	/**
+	 * Returns { minX, minY, minZ, maxX, maxY, maxZ } of the nodes within the
+	 * threshold, in voxels and inclusive, or null if there are none.
+	 */
+	public int[] getBoundingBox() {
+		return getSparseFill().getBoundingBox();
 	}
 
 	// FIXME: the next two should just be one method, really:
@@ -49,6 +49,8 @@ import javax.swing.JScrollPane;
 import javax.swing.JTextField;
 import javax.swing.SwingConstants;
 import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 import ij.IJ;
 import ij.io.SaveDialog;
@@ -82,6 +84,10 @@ public class FillWindow extends JFrame
 	protected JLabel maxThreshold;
 	protected JButton setThreshold;
 	protected JButton setMaxThreshold;
+	protected JLabel fillVolume;
+
+	/* Updated by the filler; see distanceHistogramUpdated(): */
+	protected volatile DistanceHistogram distanceHistogram;
 
 	protected JButton view3D;
 	protected JCheckBox maskNotReal;
@@ -250,6 +256,33 @@ public class FillWindow extends JFrame
 			fillingOptionsPanel.add(setMaxThreshold, cf);
 			cf.gridy++;
 
+			/*
+			 * The volume within the threshold being typed is shown as it
+			 * changes, before it is set:
+			 */
+			fillVolume = new JLabel("(Volume not yet determined)", SwingConstants.LEFT);
+			cf.gridx = 0;
+			cf.gridwidth = 3;
+			cf.fill = GridBagConstraints.REMAINDER;
+			fillingOptionsPanel.add(fillVolume, cf);
+			cf.gridy++;
+			thresholdField.getDocument().addDocumentListener(new DocumentListener() {
+				@Override
+				public void insertUpdate(final DocumentEvent e) {
+					updateFillVolume();
+				}
+
+				@Override
+				public void removeUpdate(final DocumentEvent e) {
+					updateFillVolume();
+				}
+
+				@Override
+				public void changedUpdate(final DocumentEvent e) {
+					updateFillVolume();
+				}
+			});
+
 			transparent = new JCheckBox("Transparent fill display (slow!)");
 			transparent.addItemListener(this);
 			cf.anchor = GridBagConstraints.LINE_START;
@@ -455,6 +488,37 @@ public class FillWindow extends JFrame
 		});
 	}
 
+	@Override
+	public void distanceHistogramUpdated(final FillerThread source, final DistanceHistogram histogram) {
+		distanceHistogram = histogram;
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				updateFillVolume();
+			}
+		});
+	}
+
+	/* Shows the volume within the threshold in the text field: */
+	protected void updateFillVolume() {
+		assert SwingUtilities.isEventDispatchThread();
+		final DistanceHistogram histogram = distanceHistogram;
+		double t;
+		try {
+			t = Double.parseDouble(thresholdField.getText());
+		} catch (final NumberFormatException nfe) {
+			t = -1;
+		}
+		if (histogram == null || t < 0) {
+			fillVolume.setText("(Volume not yet determined)");
+			return;
+		}
+		final long voxels = histogram.countAtOrBelow(t);
+		final double volume = voxels * plugin.x_spacing * plugin.y_spacing * plugin.z_spacing;
+		fillVolume.setText("Volume: " + df4.format(volume) + " " + plugin.spacing_units + "^3 (" + voxels
+				+ " voxels)");
+	}
+
 	@Override
 	public void pointsInSearch(final SearchInterface source, final int inOpen, final int inClosed) {
 		// Do nothing...
@@ -28,4 +28,13 @@ public interface FillerProgressCallback extends SearchProgressCallback {
 
 	public void maximumDistanceCompletelyExplored(SearchThread source, float f);
 
+	/*
+	 * Called periodically with the histogram of the current distances of
+	 * all the nodes the filler has reached; this is the same object each
+	 * time, and keeps being updated by the filler. Does nothing unless
+	 * overridden.
+	 */
+	default void distanceHistogramUpdated(FillerThread source, DistanceHistogram histogram) {
+	}
+
 }
@@ -32,9 +32,6 @@ import java.util.Set;
 
 import ij.ImagePlus;
 import ij.ImageStack;
-import ij.process.ByteProcessor;
-import ij.process.FloatProcessor;
-import ij.process.ShortProcessor;
 
 public class FillerThread extends SearchThread {
 
@@ -82,7 +79,7 @@ public class FillerThread extends SearchThread {
 
 		int i = 0;
 
-		for (final SearchNode current : closed_from_start) {
+		for (final SearchNode current : closedNodes()) {
 			/* if( current.g <= threshold ) { */
 			h.put(current, new Integer(i));
 			a.add(current);
@@ -95,7 +92,7 @@ public class FillerThread extends SearchThread {
 		if (verbose)
 			SNT.log("openAtOrAbove is: " + openAtOrAbove);
 
-		for (final SearchNode current : open_from_start) {
+		for (final SearchNode current : openNodes()) {
 			/* if( current.g <= threshold ) { */
 			h.put(current, new Integer(i));
 			a.add(current);
@@ -136,6 +133,19 @@ public class FillerThread extends SearchThread {
 		return fill;
 	}
 
+	/*
+	 * The nodes whose distance is final, and those that have been reached
+	 * but may yet be improved; getFill() saves them in this order. Engines
+	 * that don't keep the nodes in the priority queues override these.
+	 */
+	Iterable<SearchNode> closedNodes() {
+		return closed_from_start;
+	}
+
+	Iterable<SearchNode> openNodes() {
+		return open_from_start;
+	}
+
 	Set<Path> sourcePaths;
 
 	public static FillerThread fromFill(final ImagePlus imagePlus, final float stackMin, final float stackMax,
@@ -226,88 +236,95 @@ public class FillerThread extends SearchThread {
 	}
 
 	public ImagePlus fillAsImagePlus(final boolean realData) {
+		return fillAsImagePlus(realData, false);
+	}
 
-		final byte[][] new_slice_data_b = new byte[depth][];
-		final short[][] new_slice_data_s = new short[depth][];
-		final float[][] new_slice_data_f = new float[depth][];
+	/**
+	 * Returns the voxels within the threshold as an image: either a mask, or
+	 * if realData is true the values of the original image. If virtual is
+	 * true each slice is only rendered when it's displayed.
+	 */
+	public ImagePlus fillAsImagePlus(final boolean realData, final boolean virtual) {
 
+		final ImageStack stack = getSparseFill().toStack(width, height, imageType, realData ? voxels : null,
+				virtual);
+
+		final ImagePlus imp = new ImagePlus("filled neuron", stack);
+
+		imp.setCalibration(imagePlus.getCalibration());
+
+		return imp;
+	}
+
+	/**
+	 * Returns the voxels currently within the threshold, with their
+	 * distances, as runs along each row. Only the slices the search has
+	 * reached are looked at.
+	 */
+	public SparseFill getSparseFill() {
+		final SparseFill.Builder builder = new SparseFill.Builder(width, height, depth);
+		final float t = threshold;
 		for (int z = 0; z < depth; ++z) {
-			switch (imageType) {
-			case ImagePlus.GRAY8:
-			case ImagePlus.COLOR_256:
-				new_slice_data_b[z] = new byte[width * height];
-				break;
-			case ImagePlus.GRAY16:
-				new_slice_data_s[z] = new short[width * height];
-				break;
-			case ImagePlus.GRAY32:
-				new_slice_data_f[z] = new float[width * height];
-				break;
+			final SearchNode[] nodes_this_slice = nodes_as_image_from_start[z];
+			if (nodes_this_slice == null)
+				continue;
+			for (int i = 0; i < nodes_this_slice.length; ++i) {
+				final SearchNode s = nodes_this_slice[i];
+				if ((s != null) && (s.g <= t))
+					builder.add(i % width, i / width, z, s.g);
 			}
 		}
+		return builder.build();
+	}
 
-		final ImageStack stack = new ImageStack(width, height);
+	/*
+	 * The current distances of all the nodes reached, open or closed, so
+	 * that the volume within a threshold is that of the voxels getFill() and
+	 * getSparseFill() would give. Up to the distance completely explored,
+	 * all of those nodes are closed.
+	 */
+	final DistanceHistogram distanceHistogram = new DistanceHistogram();
 
-		for (int z = 0; z < depth; ++z) {
-			final SearchNode[] nodes_this_slice = nodes_as_image_from_start[z];
-			if (nodes_this_slice != null)
-				for (int y = 0; y < height; ++y) {
-					for (int x = 0; x < width; ++x) {
-						final SearchNode s = nodes_as_image_from_start[z][y * width + x];
-						if ((s != null) && (s.g <= threshold)) {
-							switch (imageType) {
-							case ImagePlus.GRAY8:
-							case ImagePlus.COLOR_256:
-								new_slice_data_b[z][y * width + x] = realData ? slices_data_b[z][y * width + x]
-										: (byte) 255;
-								break;
-							case ImagePlus.GRAY16:
-								new_slice_data_s[z][y * width + x] = realData ? slices_data_s[z][y * width + x] : 255;
-								break;
-							case ImagePlus.GRAY32:
-								new_slice_data_f[z][y * width + x] = realData ? slices_data_f[z][y * width + x] : 255;
-								break;
-							default:
-								break;
-							}
-						}
-					}
-				}
+	public DistanceHistogram getDistanceHistogram() {
+		return distanceHistogram;
+	}
 
-			switch (imageType) {
-			case ImagePlus.GRAY8:
-			case ImagePlus.COLOR_256:
-				final ByteProcessor bp = new ByteProcessor(width, height);
-				bp.setPixels(new_slice_data_b[z]);
-				stack.addSlice(null, bp);
-				break;
-			case ImagePlus.GRAY16:
-				final ShortProcessor sp = new ShortProcessor(width, height);
-				sp.setPixels(new_slice_data_s[z]);
-				stack.addSlice(null, sp);
-				break;
-			case ImagePlus.GRAY32:
-				final FloatProcessor fp = new FloatProcessor(width, height);
-				fp.setPixels(new_slice_data_f[z]);
-				stack.addSlice(null, fp);
-				break;
-			default:
-				break;
-			}
+	@Override
+	public void addNode(final SearchNode n, final boolean fromStart) {
+		super.addNode(n, fromStart);
+		// Duplicates are ignored, so only count n if it was really added:
+		if (fromStart && nodes_as_image_from_start[n.z][n.y * width + n.x] == n)
+			distanceHistogram.add(n.g);
+	}
 
-		}
+	@Override
+	protected void addingNode(final SearchNode n) {
+		distanceHistogram.add(n.g);
+	}
 
-		final ImagePlus imp = new ImagePlus("filled neuron", stack);
+	@Override
+	protected void improvingNode(final SearchNode n, final float previousG) {
+		distanceHistogram.remove(previousG);
+		distanceHistogram.add(n.g);
+	}
 
-		imp.setCalibration(imagePlus.getCalibration());
+	void reportDistanceHistogram() {
+		for (final SearchProgressCallback progress : progressListeners)
+			if (progress instanceof FillerProgressCallback)
+				((FillerProgressCallback) progress).distanceHistogramUpdated(this, distanceHistogram);
+	}
 
-		return imp;
+	@Override
+	public void reportFinished(final boolean success) {
+		reportDistanceHistogram();
+		super.reportFinished(success);
 	}
 
 	@Override
 	protected void reportPointsInSearch() {
 
 		super.reportPointsInSearch();
+		reportDistanceHistogram();
 
 		// Find the minimum distance in the open list.
 		final SearchNode p = open_from_start.peek();
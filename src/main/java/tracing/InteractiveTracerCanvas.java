@@ -98,6 +98,12 @@ public class InteractiveTracerCanvas extends TracerCanvas {
 		tracerPlugin.setSlicesAllPanes(p[0], p[1], p[2]);
 	}
 
+	public void queueWaypointAtMousePointer(final boolean join) {
+		final double[] p = new double[3];
+		tracerPlugin.findPointInStackPrecise(last_x_in_pane_precise, last_y_in_pane_precise, plane, p);
+		tracerPlugin.queueWaypoint(p[0], p[1], p[2], join);
+	}
+
 	public void startShollAnalysis() {
 		if (pathAndFillManager.anySelected()) {
 			final double[] p = new double[3];
@@ -171,22 +177,54 @@ public class InteractiveTracerCanvas extends TracerCanvas {
 
 		final boolean mac = IJ.isMacintosh();
 
-		boolean shift_key_down = (e.getModifiersEx() & InputEvent.SHIFT_DOWN_MASK) != 0;
+		final boolean shift_key_down = (e.getModifiersEx() & InputEvent.SHIFT_DOWN_MASK) != 0;
 		final boolean joiner_modifier_down = mac ? ((e.getModifiersEx() & InputEvent.ALT_DOWN_MASK) != 0)
 				: ((e.getModifiersEx() & InputEvent.CTRL_DOWN_MASK) != 0);
 
-		if (tracerPlugin.snapCursor && plane == ThreePanes.XY_PLANE && !joiner_modifier_down && !shift_key_down) {
-			final double[] p = new double[3];
-			tracerPlugin.findSnappingPointInXYview(last_x_in_pane_precise, last_y_in_pane_precise, p);
-			last_x_in_pane_precise = p[0];
-			last_y_in_pane_precise = p[1];
-			shift_key_down = true;
-		}
-
 		super.mouseMoved(e);
 
-		tracerPlugin.mouseMovedTo(last_x_in_pane_precise, last_y_in_pane_precise, plane, shift_key_down,
-				joiner_modifier_down);
+		/*
+		 * Snapping and the other lookups are done in the background; if the
+		 * cursor is snapped, snappedTo() is called once that's known:
+		 */
+		final MouseMovePipeline.Move move = new MouseMovePipeline.Move();
+		move.canvas = this;
+		move.x_in_pane = last_x_in_pane_precise;
+		move.y_in_pane = last_y_in_pane_precise;
+		move.plane = plane;
+		move.shift_key_down = shift_key_down;
+		move.join_modifier_down = joiner_modifier_down;
+		move.snap = tracerPlugin.snapCursor && plane == ThreePanes.XY_PLANE && !joiner_modifier_down
+				&& !shift_key_down;
+		tracerPlugin.postMouseMove(move);
+	}
+
+	void snappedTo(final double x_in_pane, final double y_in_pane) {
+		last_x_in_pane_precise = x_in_pane;
+		last_y_in_pane_precise = y_in_pane;
+	}
+
+	/* Generous enough for the crosshairs at any magnification: */
+	static final int CROSSHAIR_REPAINT_MARGIN = 24;
+
+	/*
+	 * Repaints only the parts of this pane around the crosshairs at two
+	 * points, given in image co-ordinates.
+	 */
+	void repaintCrosshairs(final double[] from, final double[] to) {
+		final int x1 = myScreenXD(paneX(from)), y1 = myScreenYD(paneY(from));
+		final int x2 = myScreenXD(paneX(to)), y2 = myScreenYD(paneY(to));
+		final int margin = CROSSHAIR_REPAINT_MARGIN + (int) Math.ceil(getMagnification());
+		repaint(Math.min(x1, x2) - margin, Math.min(y1, y2) - margin, Math.abs(x2 - x1) + 2 * margin,
+				Math.abs(y2 - y1) + 2 * margin);
+	}
+
+	private double paneX(final double[] p) {
+		return (plane == ThreePanes.ZY_PLANE) ? p[2] : p[0];
+	}
+
+	private double paneY(final double[] p) {
+		return (plane == ThreePanes.XZ_PLANE) ? p[2] : p[1];
 	}
 
 	double last_x_in_pane_precise = Double.MIN_VALUE;
@@ -211,6 +249,8 @@ public class InteractiveTracerCanvas extends TracerCanvas {
 		if (!tracerPlugin.isReady())
 			return;
 
+		tracerPlugin.mouseMoves.flush();
+
 		final int currentState = tracerPlugin.resultsDialog.getState();
 
 		if (currentState == NeuriteTracerResultsDialog.LOADING || currentState == NeuriteTracerResultsDialog.SAVING
@@ -308,6 +348,9 @@ public class InteractiveTracerCanvas extends TracerCanvas {
 			}
 		}
 
+		for (final PointInImage waypoint : tracerPlugin.getQueuedWaypoints())
+			drawSquare(g, waypoint, Color.CYAN, (waypoint.onPath == null) ? null : Color.GREEN, spotDiameter);
+
 		final Path currentPathFromTracer = tracerPlugin.getCurrentPath();
 
 		if (currentPathFromTracer != null) {
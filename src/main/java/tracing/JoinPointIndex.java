@@ -0,0 +1,181 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package tracing;
+
+import java.util.List;
+
+/**
+ * An immutable copy of the points of some paths (e.g. the selected ones),
+ * bucketed in a uniform grid of cubic cells, so that the point nearest to
+ * the cursor can be found by looking at the cells around it rather than at
+ * every point. Being a copy, it can be queried from any thread while the
+ * paths themselves are edited; it should be rebuilt when they change.
+ */
+class JoinPointIndex {
+
+	/*
+	 * The points, cell by cell: those of cell c are cellStart[c] up to
+	 * cellStart[c+1]. For each, order has its position in the list given,
+	 * to break ties as a scan of that list would.
+	 */
+	private final PointInImage[] points;
+	private final int[] order;
+	private final int[] cellStart;
+
+	private final double minX, minY, minZ, cellSize;
+	private final int cellsX, cellsY, cellsZ;
+
+	/**
+	 * @param pointsInOrder the points in world co-ordinates; of several
+	 *          equally near points, the first in this list is returned
+	 */
+	JoinPointIndex(final List<PointInImage> pointsInOrder) {
+		final int n = pointsInOrder.size();
+		double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE, z0 = Double.MAX_VALUE;
+		double x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE, z1 = -Double.MAX_VALUE;
+		for (final PointInImage p : pointsInOrder) {
+			x0 = Math.min(x0, p.x);
+			y0 = Math.min(y0, p.y);
+			z0 = Math.min(z0, p.z);
+			x1 = Math.max(x1, p.x);
+			y1 = Math.max(y1, p.y);
+			z1 = Math.max(z1, p.z);
+		}
+		minX = n == 0 ? 0 : x0;
+		minY = n == 0 ? 0 : y0;
+		minZ = n == 0 ? 0 : z0;
+
+		/*
+		 * About cbrt(n) cells along the longest side, so that there are at
+		 * most about n cells in all:
+		 */
+		final double extent = n == 0 ? 0 : Math.max(x1 - x0, Math.max(y1 - y0, z1 - z0));
+		final int cellsAlongLongest = Math.max(1, (int) Math.ceil(Math.cbrt(n)));
+		cellSize = extent > 0 ? extent / cellsAlongLongest : 1;
+		cellsX = n == 0 ? 1 : cellOf(x1 - x0, Integer.MAX_VALUE) + 1;
+		cellsY = n == 0 ? 1 : cellOf(y1 - y0, Integer.MAX_VALUE) + 1;
+		cellsZ = n == 0 ? 1 : cellOf(z1 - z0, Integer.MAX_VALUE) + 1;
+
+		final int[] cellOfPoint = new int[n];
+		cellStart = new int[cellsX * cellsY * cellsZ + 1];
+		for (int i = 0; i < n; ++i) {
+			final PointInImage p = pointsInOrder.get(i);
+			cellOfPoint[i] = cellIndex(cellOf(p.x - minX, cellsX), cellOf(p.y - minY, cellsY),
+					cellOf(p.z - minZ, cellsZ));
+			++cellStart[cellOfPoint[i] + 1];
+		}
+		for (int c = 0; c < cellStart.length - 1; ++c)
+			cellStart[c + 1] += cellStart[c];
+		points = new PointInImage[n];
+		order = new int[n];
+		final int[] next = new int[cellStart.length - 1];
+		System.arraycopy(cellStart, 0, next, 0, next.length);
+		for (int i = 0; i < n; ++i) {
+			final int slot = next[cellOfPoint[i]]++;
+			points[slot] = pointsInOrder.get(i);
+			order[slot] = i;
+		}
+	}
+
+	private int cellOf(final double offset, final int cells) {
+		final int c = (int) Math.floor(offset / cellSize);
+		return Math.max(0, Math.min(cells - 1, c));
+	}
+
+	private int cellIndex(final int cx, final int cy, final int cz) {
+		return (cz * cellsY + cy) * cellsX + cx;
+	}
+
+	public int size() {
+		return points.length;
+	}
+
+	/**
+	 * Returns (a copy of) the point nearest to the given point in world
+	 * co-ordinates, or null if there are no points.
+	 */
+	public PointInImage nearestTo(final double x, final double y, final double z) {
+		if (points.length == 0)
+			return null;
+		final int cx = cellOf(x - minX, cellsX), cy = cellOf(y - minY, cellsY), cz = cellOf(z - minZ, cellsZ);
+		final int[] best = { -1 };
+		final double[] bestDistanceSquared = { Double.MAX_VALUE };
+		for (int r = 0;; ++r) {
+
+			/* Look at the cells r cells away (in the maximum norm): */
+			for (int k = Math.max(0, cz - r); k <= Math.min(cellsZ - 1, cz + r); ++k)
+				for (int j = Math.max(0, cy - r); j <= Math.min(cellsY - 1, cy + r); ++j) {
+					if (Math.abs(k - cz) == r || Math.abs(j - cy) == r) {
+						for (int i = Math.max(0, cx - r); i <= Math.min(cellsX - 1, cx + r); ++i)
+							searchCell(cellIndex(i, j, k), x, y, z, best, bestDistanceSquared);
+					} else {
+						if (cx - r >= 0)
+							searchCell(cellIndex(cx - r, j, k), x, y, z, best, bestDistanceSquared);
+						if (cx + r < cellsX)
+							searchCell(cellIndex(cx + r, j, k), x, y, z, best, bestDistanceSquared);
+					}
+				}
+
+			/*
+			 * Any point not yet looked at lies outside the cells within r,
+			 * so is at least as far away as the nearest face of that box
+			 * that isn't at the edge of the grid:
+			 */
+			double bound = Double.MAX_VALUE;
+			if (cx - r > 0)
+				bound = Math.min(bound, x - (minX + (cx - r) * cellSize));
+			if (cx + r < cellsX - 1)
+				bound = Math.min(bound, minX + (cx + r + 1) * cellSize - x);
+			if (cy - r > 0)
+				bound = Math.min(bound, y - (minY + (cy - r) * cellSize));
+			if (cy + r < cellsY - 1)
+				bound = Math.min(bound, minY + (cy + r + 1) * cellSize - y);
+			if (cz - r > 0)
+				bound = Math.min(bound, z - (minZ + (cz - r) * cellSize));
+			if (cz + r < cellsZ - 1)
+				bound = Math.min(bound, minZ + (cz + r + 1) * cellSize - z);
+			if (bound == Double.MAX_VALUE)
+				break; // every cell has been looked at
+			bound = Math.max(0, bound);
+			if (best[0] >= 0 && bestDistanceSquared[0] < bound * bound)
+				break;
+		}
+		final PointInImage nearest = points[best[0]];
+		final PointInImage result = new PointInImage(nearest.x, nearest.y, nearest.z);
+		result.onPath = nearest.onPath;
+		return result;
+	}
+
+	private void searchCell(final int c, final double x, final double y, final double z, final int[] best,
+			final double[] bestDistanceSquared) {
+		for (int s = cellStart[c]; s < cellStart[c + 1]; ++s) {
+			final double d = points[s].distanceSquaredTo(x, y, z);
+			if (d < bestDistanceSquared[0] || (d == bestDistanceSquared[0] && order[s] < order[best[0]])) {
+				best[0] = s;
+				bestDistanceSquared[0] = d;
+			}
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package tracing;
+
+/*
+ * A map from non-negative long keys to int values using open addressing with
+ * linear probing, so that no boxed Longs or entry objects are created.
+ * The tables can optionally be allocated outside the Java heap (see
+ * BigLongArray), which is useful for the very large graphs produced by the
+ * automatic tracer.
+ *
+ * The capacity of the tables is limited to MAXIMUM_CAPACITY slots, so at
+ * most MAXIMUM_SIZE entries can be added; adding more throws a
+ * RuntimeException rather than overflowing.
+ *
+ * This class is not thread-safe.
+ */
+
+class LongIntOpenHashMap {
+
+	static final int EMPTY = -1;
+
+	static final int MAXIMUM_CAPACITY = 1 << 30;
+	static final int MAXIMUM_SIZE = MAXIMUM_CAPACITY / 4 * 3;
+
+	private final boolean offHeap;
+	private BigLongArray keys;
+	private BigIntArray values;
+	private int mask;
+	private int size;
+
+	LongIntOpenHashMap(final int expectedSize, final boolean offHeap) {
+		this.offHeap = offHeap;
+		allocate(capacityFor(expectedSize));
+	}
+
+	/* The smallest power of two that holds expectedSize entries: */
+
+	static int capacityFor(final long expectedSize) {
+		if (expectedSize > MAXIMUM_SIZE)
+			throw tooManyEntries(expectedSize);
+		int capacity = 16;
+		while (capacity * 3L / 4 < expectedSize)
+			capacity <<= 1;
+		return capacity;
+	}
+
+	static RuntimeException tooManyEntries(final long n) {
+		return new RuntimeException("Too many entries for an open addressing table: " + n + " (the maximum is "
+				+ MAXIMUM_SIZE + ")");
+	}
+
+	static int slot(final long key, final int mask) {
+		final long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	private void allocate(final int capacity) {
+		keys = new BigLongArray(capacity, offHeap);
+		values = new BigIntArray(capacity, offHeap);
+		keys.fill(EMPTY);
+		mask = capacity - 1;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/* Returns the value for key, or EMPTY if there isn't one. */
+
+	int get(final long key) {
+		for (int i = slot(key, mask);; i = (i + 1) & mask) {
+			final long k = keys.get(i);
+			if (k == key)
+				return values.get(i);
+			if (k == EMPTY)
+				return EMPTY;
+		}
+	}
+
+	boolean containsKey(final long key) {
+		return get(key) != EMPTY;
+	}
+
+	/*
+	 * Adds key with value if the key isn't already present. Returns the
+	 * existing value, or EMPTY if the new value was added.
+	 */
+
+	int putIfAbsent(final long key, final int value) {
+		if (key < 0)
+			throw new IllegalArgumentException("Keys must be non-negative: " + key);
+		for (int i = slot(key, mask);; i = (i + 1) & mask) {
+			final long k = keys.get(i);
+			if (k == key)
+				return values.get(i);
+			if (k == EMPTY) {
+				if (size == MAXIMUM_SIZE)
+					throw tooManyEntries(size + 1L);
+				keys.set(i, key);
+				values.set(i, value);
+				if (++size > (mask + 1) * 3L / 4)
+					rehash(capacityFor(size));
+				return EMPTY;
+			}
+		}
+	}
+
+	private void rehash(final int newCapacity) {
+		final BigLongArray oldKeys = keys;
+		final BigIntArray oldValues = values;
+		allocate(newCapacity);
+		for (long i = 0; i < oldKeys.length(); ++i) {
+			final long k = oldKeys.get(i);
+			if (k == EMPTY)
+				continue;
+			int j = slot(k, mask);
+			while (keys.get(j) != EMPTY)
+				j = (j + 1) & mask;
+			keys.set(j, k);
+			values.set(j, oldValues.get(i));
+		}
+	}
+
+	void clear() {
+		allocate(16);
+		size = 0;
+	}
+}
@@ -0,0 +1,125 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package tracing;
+
+/*
+ * A set of non-negative longs using open addressing with linear probing (see
+ * LongIntOpenHashMap, whose size limits also apply here). The table can
+ * optionally be allocated off-heap.
+ *
+ * This class is not thread-safe.
+ */
+
+class LongOpenHashSet {
+
+	static final long EMPTY = -1;
+
+	interface Visitor {
+		void visit(long value);
+	}
+
+	private final boolean offHeap;
+	private BigLongArray table;
+	private int mask;
+	private int size;
+
+	LongOpenHashSet(final int expectedSize, final boolean offHeap) {
+		this.offHeap = offHeap;
+		allocate(LongIntOpenHashMap.capacityFor(expectedSize));
+	}
+
+	static int slot(final long value, final int mask) {
+		final long h = value * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	private void allocate(final int capacity) {
+		table = new BigLongArray(capacity, offHeap);
+		table.fill(EMPTY);
+		mask = capacity - 1;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean contains(final long value) {
+		for (int i = slot(value, mask);; i = (i + 1) & mask) {
+			final long v = table.get(i);
+			if (v == value)
+				return true;
+			if (v == EMPTY)
+				return false;
+		}
+	}
+
+	/* Returns true if the value wasn't already in the set. */
+
+	boolean add(final long value) {
+		if (value < 0)
+			throw new IllegalArgumentException("Values must be non-negative: " + value);
+		for (int i = slot(value, mask);; i = (i + 1) & mask) {
+			final long v = table.get(i);
+			if (v == value)
+				return false;
+			if (v == EMPTY) {
+				if (size == LongIntOpenHashMap.MAXIMUM_SIZE)
+					throw LongIntOpenHashMap.tooManyEntries(size + 1L);
+				table.set(i, value);
+				if (++size > (mask + 1) * 3L / 4)
+					rehash(LongIntOpenHashMap.capacityFor(size));
+				return true;
+			}
+		}
+	}
+
+	private void rehash(final int newCapacity) {
+		final BigLongArray old = table;
+		allocate(newCapacity);
+		for (long i = 0; i < old.length(); ++i) {
+			final long v = old.get(i);
+			if (v == EMPTY)
+				continue;
+			int j = slot(v, mask);
+			while (table.get(j) != EMPTY)
+				j = (j + 1) & mask;
+			table.set(j, v);
+		}
+	}
+
+	void forEach(final Visitor visitor) {
+		final int capacity = mask + 1;
+		for (int i = 0; i < capacity; ++i) {
+			final long v = table.get(i);
+			if (v != EMPTY)
+				visitor.visit(v);
+		}
+	}
+
+	void clear() {
+		allocate(16);
+		size = 0;
+	}
+}
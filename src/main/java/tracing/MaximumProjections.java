@@ -0,0 +1,500 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package tracing;
+
+import java.awt.image.ColorModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.SwingUtilities;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import stacks.ThreePanes;
+
+/**
+ * The maximum intensity projections of an image along each of the three
+ * axes, together with the first and last positions along the axis at which
+ * each maximum occurs. These are computed in a single parallel pass over the
+ * slices and cached per image stack, so that the MIP overlays, "click at
+ * maximum" and cursor snapping don't need to scan the voxels again. As in
+ * ImageJ's own projections, 16-bit values are treated as unsigned.
+ *
+ * The projections are laid out as the panes are: the XY projection is width
+ * x height, the XZ projection (along y) is width x depth and the ZY
+ * projection (along x) is depth x height.
+ */
+public class MaximumProjections {
+
+	private static final Map<ImageStack, MaximumProjections> cache = new WeakHashMap<>();
+
+	/*
+	 * Edits to an image set its changes flag before it is redrawn, so
+	 * projections of an image that is updated while marked as changed are
+	 * dropped, to be recomputed the next time they're asked for:
+	 */
+	private static ImageListener editListener;
+
+	/* Computes projections asked for by computeInBackground(): */
+	private static ExecutorService backgroundPool;
+	private static final Map<ImageStack, List<Runnable>> pending = new WeakHashMap<>();
+
+	/**
+	 * Returns the (cached) projections of the image, computing them first if
+	 * necessary. That reads the whole stack, so on the event dispatch thread
+	 * use {@link #getIfCached(ImagePlus)} and
+	 * {@link #computeInBackground(ImagePlus)} instead.
+	 */
+	public static MaximumProjections get(final ImagePlus imagePlus) {
+		final MaximumProjections cached = getIfCached(imagePlus);
+		if (cached != null)
+			return cached;
+		final MaximumProjections result = new MaximumProjections(imagePlus);
+		result.compute(Runtime.getRuntime().availableProcessors());
+		synchronized (cache) {
+			cache.put(imagePlus.getStack(), result);
+			if (editListener == null) {
+				editListener = new ImageListener() {
+					@Override
+					public void imageOpened(final ImagePlus imp) {
+					}
+
+					@Override
+					public void imageClosed(final ImagePlus imp) {
+						invalidate(imp);
+					}
+
+					@Override
+					public void imageUpdated(final ImagePlus imp) {
+						if (imp.changes)
+							invalidate(imp);
+					}
+				};
+				ImagePlus.addImageListener(editListener);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the projections of the image if they have already been
+	 * computed, or null otherwise. This never starts the computation, so it
+	 * is suitable for calling on every mouse movement.
+	 */
+	public static MaximumProjections getIfCached(final ImagePlus imagePlus) {
+		synchronized (cache) {
+			return cache.get(imagePlus.getStack());
+		}
+	}
+
+	/**
+	 * Starts computing the projections of the image on a background thread,
+	 * unless they are already cached or being computed.
+	 */
+	public static void computeInBackground(final ImagePlus imagePlus) {
+		computeInBackground(imagePlus, null);
+	}
+
+	/**
+	 * As {@link #computeInBackground(ImagePlus)}, then runs whenDone (if not
+	 * null) on the event dispatch thread once the projections are available
+	 * or computing them has failed; it should check
+	 * {@link #getIfCached(ImagePlus)} rather than assume they are there.
+	 */
+	public static void computeInBackground(final ImagePlus imagePlus, final Runnable whenDone) {
+		final ImageStack stack = imagePlus.getStack();
+		synchronized (cache) {
+			if (cache.containsKey(stack)) {
+				if (whenDone != null)
+					SwingUtilities.invokeLater(whenDone);
+				return;
+			}
+			final List<Runnable> waiting = pending.get(stack);
+			if (waiting != null) {
+				if (whenDone != null)
+					waiting.add(whenDone);
+				return;
+			}
+			final List<Runnable> callbacks = new ArrayList<>();
+			if (whenDone != null)
+				callbacks.add(whenDone);
+			pending.put(stack, callbacks);
+			if (backgroundPool == null)
+				backgroundPool = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable r) {
+						final Thread t = new Thread(r, "SNT maximum projections");
+						t.setDaemon(true);
+						t.setPriority(Thread.MIN_PRIORITY);
+						return t;
+					}
+				});
+		}
+		backgroundPool.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					get(imagePlus);
+				} catch (final RuntimeException e) {
+					SNT.log("Failed to compute the maximum projections: " + e);
+				} finally {
+					final List<Runnable> callbacks;
+					synchronized (cache) {
+						callbacks = pending.remove(stack);
+					}
+					if (callbacks != null)
+						for (final Runnable callback : callbacks)
+							SwingUtilities.invokeLater(callback);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Finds the brightest of the given voxels as "click at maximum" does
+	 * when the projections aren't available: if several share the maximum
+	 * value, the middle one is returned.
+	 */
+	public static int[] maximumOf(final VoxelSource voxels, final int[][] points) {
+		ArrayList<int[]> pointsAtMaximum = new ArrayList<>();
+		float currentMaximum = -Float.MAX_VALUE;
+		for (final int[] p : points) {
+			final float v = voxels.getUnsignedValue(p[0], p[1], p[2]);
+			if (v > currentMaximum) {
+				pointsAtMaximum = new ArrayList<>();
+				pointsAtMaximum.add(p);
+				currentMaximum = v;
+			} else if (v == currentMaximum) {
+				pointsAtMaximum.add(p);
+			}
+		}
+		return pointsAtMaximum.get(pointsAtMaximum.size() / 2);
+	}
+
+	/** Forgets the projections of an image, e.g. after it has been edited. */
+	public static void invalidate(final ImagePlus imagePlus) {
+		synchronized (cache) {
+			cache.remove(imagePlus.getStack());
+		}
+	}
+
+	final VoxelSource voxels;
+	final int width, height, depth;
+	final int imageType;
+	final ColorModel colorModel;
+
+	/* The first and last positions of each maximum along the axis: */
+	float[] xyMaximum;
+	int[] xyArgmaxZ, xyLastArgmaxZ;
+	float[] xzMaximum;
+	int[] xzArgmaxY, xzLastArgmaxY;
+	float[] zyMaximum;
+	int[] zyArgmaxX, zyLastArgmaxX;
+
+	MaximumProjections(final ImagePlus imagePlus) {
+		voxels = VoxelSource.get(imagePlus);
+		width = imagePlus.getWidth();
+		height = imagePlus.getHeight();
+		depth = imagePlus.getStackSize();
+		imageType = imagePlus.getType();
+		colorModel = imagePlus.getProcessor().getColorModel();
+	}
+
+	/* The XY projection of one range of slices, to be merged: */
+	static class PartialXY {
+		float[] maximum;
+		int[] argmax;
+		int[] lastArgmax;
+	}
+
+	void compute(final int threads) {
+
+		final int n = width * height;
+		xzMaximum = new float[width * depth];
+		xzArgmaxY = new int[width * depth];
+		xzLastArgmaxY = new int[width * depth];
+		zyMaximum = new float[depth * height];
+		zyArgmaxX = new int[depth * height];
+		zyLastArgmaxX = new int[depth * height];
+
+		/*
+		 * The XZ and ZY projections of each slice are independent; only
+		 * the XY projection has to be combined across slices. Each task
+		 * takes a contiguous range of slices so that the first and last
+		 * positions of ties can be merged in order:
+		 */
+		final int nTasks = Math.max(1, Math.min(threads, depth));
+		final ExecutorService pool = Executors.newFixedThreadPool(nTasks);
+		try {
+			final List<Future<PartialXY>> futures = new ArrayList<>();
+			for (int t = 0; t < nTasks; ++t) {
+				final int zStart = (int) ((long) depth * t / nTasks);
+				final int zEnd = (int) ((long) depth * (t + 1) / nTasks);
+				futures.add(pool.submit(new Callable<PartialXY>() {
+					@Override
+					public PartialXY call() {
+						final PartialXY partial = new PartialXY();
+						partial.maximum = new float[n];
+						partial.argmax = new int[n];
+						partial.lastArgmax = new int[n];
+						Arrays.fill(partial.maximum, -Float.MAX_VALUE);
+						final float[] values = new float[n];
+						for (int z = zStart; z < zEnd; ++z) {
+							sliceValues(z, values);
+							projectSlice(z, values, partial);
+						}
+						return partial;
+					}
+				}));
+			}
+			xyMaximum = null;
+			for (final Future<PartialXY> future : futures) {
+				final PartialXY partial = future.get();
+				if (xyMaximum == null) {
+					xyMaximum = partial.maximum;
+					xyArgmaxZ = partial.argmax;
+					xyLastArgmaxZ = partial.lastArgmax;
+					continue;
+				}
+				for (int i = 0; i < n; ++i)
+					if (partial.maximum[i] > xyMaximum[i]) {
+						xyMaximum[i] = partial.maximum[i];
+						xyArgmaxZ[i] = partial.argmax[i];
+						xyLastArgmaxZ[i] = partial.lastArgmax[i];
+					} else if (partial.maximum[i] == xyMaximum[i]) {
+						xyLastArgmaxZ[i] = partial.lastArgmax[i];
+					}
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while computing maximum projections", e);
+		} catch (final ExecutionException e) {
+			throw new RuntimeException("Failed to compute maximum projections", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	void sliceValues(final int z, final float[] values) {
+		final Object pixels = voxels.getPixels(z);
+		switch (imageType) {
+		case ImagePlus.GRAY16: {
+			final short[] s = (short[]) pixels;
+			for (int i = 0; i < values.length; ++i)
+				values[i] = s[i] & 0xFFFF;
+			break;
+		}
+		case ImagePlus.GRAY32:
+			System.arraycopy(pixels, 0, values, 0, values.length);
+			break;
+		default: {
+			final byte[] b = (byte[]) pixels;
+			for (int i = 0; i < values.length; ++i)
+				values[i] = b[i] & 0xFF;
+			break;
+		}
+		}
+	}
+
+	void projectSlice(final int z, final float[] values, final PartialXY partial) {
+		final float[] xyMax = partial.maximum;
+		final int[] xyArg = partial.argmax;
+		final int[] xyLastArg = partial.lastArgmax;
+		for (int y = 0; y < height; ++y) {
+			float rowMaximum = -Float.MAX_VALUE;
+			int rowArgmax = 0, rowLastArgmax = 0;
+			for (int x = 0; x < width; ++x) {
+				final int i = y * width + x;
+				final float v = values[i];
+				if (v > xyMax[i]) {
+					xyMax[i] = v;
+					xyArg[i] = xyLastArg[i] = z;
+				} else if (v == xyMax[i]) {
+					xyLastArg[i] = z;
+				}
+				final int xz = z * width + x;
+				if (y == 0 || v > xzMaximum[xz]) {
+					xzMaximum[xz] = v;
+					xzArgmaxY[xz] = xzLastArgmaxY[xz] = y;
+				} else if (v == xzMaximum[xz]) {
+					xzLastArgmaxY[xz] = y;
+				}
+				if (x == 0 || v > rowMaximum) {
+					rowMaximum = v;
+					rowArgmax = rowLastArgmax = x;
+				} else if (v == rowMaximum) {
+					rowLastArgmax = x;
+				}
+			}
+			zyMaximum[y * depth + z] = rowMaximum;
+			zyArgmaxX[y * depth + z] = rowArgmax;
+			zyLastArgmaxX[y * depth + z] = rowLastArgmax;
+		}
+	}
+
+	public float getXYMaximum(final int x, final int y) {
+		return xyMaximum[y * width + x];
+	}
+
+	/** Returns the first z at which the XY maximum at (x, y) occurs. */
+	public int getXYArgmaxZ(final int x, final int y) {
+		return xyArgmaxZ[y * width + x];
+	}
+
+	/** Returns the last z at which the XY maximum at (x, y) occurs. */
+	public int getXYLastArgmaxZ(final int x, final int y) {
+		return xyLastArgmaxZ[y * width + x];
+	}
+
+	/**
+	 * Returns the image co-ordinates { x, y, z } of the brightest voxel on
+	 * the line through the stack at the given position in a pane, i.e. the
+	 * point "click at maximum" should use. If the maximum occurs more than
+	 * once, the middle one of the tied voxels is used, as in
+	 * {@link #maximumOf(VoxelSource, int[][])}.
+	 */
+	public int[] maximumAlongLine(final int x_in_pane, final int y_in_pane, final int plane) {
+		switch (plane) {
+		case ThreePanes.XY_PLANE: {
+			final int x = clamp(x_in_pane, width), y = clamp(y_in_pane, height);
+			final int i = y * width + x;
+			final int first = xyArgmaxZ[i], last = xyLastArgmaxZ[i];
+			if (first == last)
+				return new int[] { x, y, first };
+			final float[] column = new float[last - first + 1];
+			for (int z = first; z <= last; ++z)
+				column[z - first] = voxels.getUnsignedValue(x, y, z);
+			return new int[] { x, y, first + middleOfTies(column, xyMaximum[i]) };
+		}
+		case ThreePanes.XZ_PLANE: {
+			final int x = clamp(x_in_pane, width), z = clamp(y_in_pane, depth);
+			final int i = z * width + x;
+			final int first = xzArgmaxY[i], last = xzLastArgmaxY[i];
+			if (first == last)
+				return new int[] { x, first, z };
+			final float[] column = new float[last - first + 1];
+			for (int y = first; y <= last; ++y)
+				column[y - first] = voxels.getUnsignedValue(x, y, z);
+			return new int[] { x, first + middleOfTies(column, xzMaximum[i]), z };
+		}
+		case ThreePanes.ZY_PLANE: {
+			final int z = clamp(x_in_pane, depth), y = clamp(y_in_pane, height);
+			final int i = y * depth + z;
+			final int first = zyArgmaxX[i], last = zyLastArgmaxX[i];
+			if (first == last)
+				return new int[] { first, y, z };
+			final float[] column = new float[last - first + 1];
+			for (int x = first; x <= last; ++x)
+				column[x - first] = voxels.getUnsignedValue(x, y, z);
+			return new int[] { first + middleOfTies(column, zyMaximum[i]), y, z };
+		}
+		default:
+			throw new IllegalArgumentException("Unknown plane: " + plane);
+		}
+	}
+
+	/*
+	 * The tied maxima needn't be contiguous (two separate saturated
+	 * structures on the same line, say), so only the first and last of them
+	 * are kept and the voxels in between are re-read when asked for. As
+	 * "click at maximum" always has, this picks the tied voxel at index
+	 * count / 2 and returns its offset in the column:
+	 */
+	static int middleOfTies(final float[] column, final float maximum) {
+		int count = 0;
+		for (final float v : column)
+			if (v == maximum)
+				++count;
+		int tie = count / 2;
+		for (int i = 0; i < column.length; ++i) {
+			if (column[i] == maximum && tie-- == 0)
+				return i;
+		}
+		throw new IllegalStateException("No voxel on the line has the maximum value " + maximum);
+	}
+
+	static int clamp(final int v, final int size) {
+		return Math.max(0, Math.min(size - 1, v));
+	}
+
+	/**
+	 * Returns the projection for a pane as a processor of the same type as
+	 * the image, e.g. for use as an overlay.
+	 */
+	public ImageProcessor getProjection(final int plane) {
+		float[] values;
+		int w, h;
+		switch (plane) {
+		case ThreePanes.XY_PLANE:
+			values = xyMaximum;
+			w = width;
+			h = height;
+			break;
+		case ThreePanes.XZ_PLANE:
+			values = xzMaximum;
+			w = width;
+			h = depth;
+			break;
+		case ThreePanes.ZY_PLANE:
+			values = zyMaximum;
+			w = depth;
+			h = height;
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown plane: " + plane);
+		}
+		switch (imageType) {
+		case ImagePlus.GRAY16: {
+			final short[] pixels = new short[values.length];
+			for (int i = 0; i < pixels.length; ++i)
+				pixels[i] = (short) values[i];
+			return new ShortProcessor(w, h, pixels, colorModel);
+		}
+		case ImagePlus.GRAY32:
+			return new FloatProcessor(w, h, values.clone(), colorModel);
+		default: {
+			final byte[] pixels = new byte[values.length];
+			for (int i = 0; i < pixels.length; ++i)
+				pixels[i] = (byte) values[i];
+			return new ByteProcessor(w, h, pixels, colorModel);
+		}
+		}
+	}
+}
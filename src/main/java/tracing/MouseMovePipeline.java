@@ -0,0 +1,164 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package tracing;
+
+import java.awt.EventQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Handles mouse movements over the tracing canvases without blocking the
+ * event dispatch thread. Each movement is posted here; the lookups it needs
+ * (snapping to the brightest nearby voxel, the nearest join point on the
+ * selected paths, the distance in the current fill) are done on a single
+ * background thread, and the results are then applied to the display on the
+ * event dispatch thread.
+ *
+ * Movements are coalesced at both stages: if the mouse moves again before
+ * the previous movement has been looked up, only the most recent one is
+ * computed, and if several results are waiting to be displayed only the
+ * most recent one is shown. So however slow the lookups are, the display
+ * never falls more than one movement behind the pointer.
+ */
+class MouseMovePipeline {
+
+	/** A mouse movement, and what was found out about it. */
+	static class Move {
+
+		/* Filled in from the mouse event: */
+		InteractiveTracerCanvas canvas;
+		double x_in_pane, y_in_pane;
+		int plane;
+		boolean shift_key_down;
+		boolean join_modifier_down;
+		boolean snap;
+		long sequence;
+
+		/* Filled in by SimpleNeuriteTracer.computeMouseMove(): */
+		double x, y, z;
+		int ix, iy, iz;
+		boolean snapped;
+		String statusMessage;
+		boolean haveDistance;
+		float distance;
+	}
+
+	private final SimpleNeuriteTracer plugin;
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicReference<Move> pending = new AtomicReference<>();
+	private final AtomicReference<Move> computed = new AtomicReference<>();
+
+	/* Only accessed on the event dispatch thread: */
+	private long lastApplied;
+
+	private final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable r) {
+			final Thread t = new Thread(r, "SNT mouse move lookups");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final Runnable computeLatest = new Runnable() {
+		@Override
+		public void run() {
+			final Move move = pending.getAndSet(null);
+			if (move == null)
+				return;
+			try {
+				plugin.computeMouseMove(move);
+			} catch (final RuntimeException e) {
+				/*
+				 * A movement that can't be looked up (e.g. while the image
+				 * is being replaced) is simply not shown:
+				 */
+				SNT.log("Ignoring mouse movement: " + e);
+				return;
+			}
+			publish(move);
+		}
+	};
+
+	private final Runnable applyLatest = new Runnable() {
+		@Override
+		public void run() {
+			final Move move = computed.getAndSet(null);
+			if (move == null || move.sequence <= lastApplied)
+				return;
+			lastApplied = move.sequence;
+			if (move.snapped)
+				move.canvas.snappedTo(move.x_in_pane, move.y_in_pane);
+			plugin.applyMouseMove(move);
+		}
+	};
+
+	MouseMovePipeline(final SimpleNeuriteTracer plugin) {
+		this.plugin = plugin;
+	}
+
+	/**
+	 * Queues a movement to be looked up and displayed, replacing any
+	 * movement that hasn't been looked up yet. Should be called on the
+	 * event dispatch thread.
+	 */
+	void post(final Move move) {
+		move.sequence = sequence.incrementAndGet();
+		if (pending.getAndSet(move) == null)
+			worker.execute(computeLatest);
+	}
+
+	/* Keeps the result of the latest movement, discarding older ones: */
+	private void publish(final Move move) {
+		while (true) {
+			final Move current = computed.get();
+			if (current != null && current.sequence >= move.sequence)
+				return;
+			if (computed.compareAndSet(current, move)) {
+				if (current == null)
+					EventQueue.invokeLater(applyLatest);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Looks up and displays any movement still waiting, right away. This is
+	 * called on the event dispatch thread before handling a click, so that
+	 * the click goes to where the (possibly snapped) cursor was last drawn.
+	 */
+	void flush() {
+		computeLatest.run();
+		applyLatest.run();
+	}
+
+	void dispose() {
+		worker.shutdownNow();
+	}
+}
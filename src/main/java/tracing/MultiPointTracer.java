@@ -0,0 +1,232 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package tracing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Traces a path through a sequence of waypoints by running the searches for
+ * all the segments between consecutive waypoints at the same time, rather
+ * than one per confirmed click. The searches share the image data (and
+ * Hessian, if enabled) of the plugin: ComputeCurvatures only reads its
+ * smoothed image and returns the eigenvalues in the caller's array, so one
+ * instance can serve several searches at once (see SharedHessianTest).
+ * Individual segments can be re-run, e.g. after moving a waypoint, without
+ * repeating the others.
+ *
+ * All methods are synchronized; the plugin is told via
+ * {@link SimpleNeuriteTracer#multiPointUpdated(MultiPointTracer)} whenever a
+ * segment finishes.
+ */
+public class MultiPointTracer implements SearchProgressCallback {
+
+	final SimpleNeuriteTracer plugin;
+
+	/* The points are in world co-ordinates; the first is the start point: */
+	final List<PointInImage> points;
+
+	final TracerThread[] searches;
+	final Path[] segments;
+	final boolean[] failed;
+
+	boolean cancelled = false;
+
+	/*
+	 * The searches are run on a pool with a thread per core rather than a
+	 * thread each, so tracing through many waypoints doesn't oversubscribe
+	 * the machine; segments beyond that wait their turn. The pool is shared
+	 * by all tracers, so re-run segments queue behind any still running.
+	 */
+	private static final ExecutorService searchExecutor = Executors
+			.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread t = new Thread(r, "SNT segment search");
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+
+	public MultiPointTracer(final SimpleNeuriteTracer plugin, final List<PointInImage> points) {
+		if (points.size() < 2)
+			throw new IllegalArgumentException("At least two points are needed");
+		this.plugin = plugin;
+		this.points = new ArrayList<>(points);
+		final int n = points.size() - 1;
+		searches = new TracerThread[n];
+		segments = new Path[n];
+		failed = new boolean[n];
+	}
+
+	public synchronized int numberOfSegments() {
+		return segments.length;
+	}
+
+	public synchronized PointInImage getWaypoint(final int i) {
+		return points.get(i);
+	}
+
+	/** Starts the searches for all segments. */
+	public synchronized void start() {
+		for (int i = 0; i < segments.length; ++i)
+			startSegment(i);
+	}
+
+	/**
+	 * Stops any search for segment i and starts it again. A segment that has
+	 * already been found is discarded.
+	 */
+	public synchronized void retraceSegment(final int i) {
+		if (i < 0 || i >= segments.length)
+			throw new IllegalArgumentException("There is no segment " + i);
+		startSegment(i);
+	}
+
+	/**
+	 * Moves waypoint i (which may not be the start point) and re-runs the
+	 * one or two segments that end at it.
+	 */
+	public synchronized void moveWaypoint(final int i, final PointInImage p) {
+		if (i <= 0 || i >= points.size())
+			throw new IllegalArgumentException("Waypoint " + i + " cannot be moved");
+		points.set(i, p);
+		startSegment(i - 1);
+		if (i < segments.length)
+			startSegment(i);
+	}
+
+	private void startSegment(final int i) {
+		if (cancelled)
+			return;
+		if (searches[i] != null)
+			searches[i].requestStop();
+		segments[i] = null;
+		failed[i] = false;
+		final PointInImage from = points.get(i);
+		final PointInImage to = points.get(i + 1);
+		final TracerThread search = plugin.createTracerThread((int) Math.round(from.x / plugin.x_spacing),
+				(int) Math.round(from.y / plugin.y_spacing), (int) Math.round(from.z / plugin.z_spacing),
+				(int) Math.round(to.x / plugin.x_spacing), (int) Math.round(to.y / plugin.y_spacing),
+				(int) Math.round(to.z / plugin.z_spacing));
+		searches[i] = search;
+		search.addProgressListener(this);
+		search.addProgressListener(plugin);
+		plugin.addThreadToDraw(search);
+		/*
+		 * A search that is replaced or cancelled before its turn comes still
+		 * runs, but stops straight away and reports that it has finished:
+		 */
+		searchExecutor.execute(search);
+	}
+
+	/** Stops all searches; no further updates are sent to the plugin. */
+	public synchronized void cancel() {
+		cancelled = true;
+		for (int i = 0; i < searches.length; ++i)
+			if (searches[i] != null) {
+				searches[i].requestStop();
+				searches[i] = null;
+			}
+	}
+
+	public synchronized boolean isComplete() {
+		for (final Path segment : segments)
+			if (segment == null)
+				return false;
+		return true;
+	}
+
+	public synchronized boolean isSearching() {
+		for (final TracerThread search : searches)
+			if (search != null)
+				return true;
+		return false;
+	}
+
+	/** Returns the indices of the segments whose searches failed. */
+	public synchronized List<Integer> failedSegments() {
+		final List<Integer> result = new ArrayList<>();
+		for (int i = 0; i < failed.length; ++i)
+			if (failed[i])
+				result.add(i);
+		return result;
+	}
+
+	/**
+	 * Returns the path made of the segments that have been found so far
+	 * from the start point onwards, stopping at the first one that hasn't,
+	 * or null if the first segment hasn't been found yet.
+	 */
+	public synchronized Path assemble() {
+		if (segments[0] == null)
+			return null;
+		final Path result = new Path(plugin.x_spacing, plugin.y_spacing, plugin.z_spacing, plugin.spacing_units);
+		for (final Path segment : segments) {
+			if (segment == null)
+				break;
+			result.add(segment);
+		}
+		return result;
+	}
+
+	@Override
+	public void finished(final SearchInterface source, final boolean success) {
+		synchronized (this) {
+			if (cancelled)
+				return;
+			int i = 0;
+			while (i < searches.length && searches[i] != source)
+				++i;
+			/* Ignore searches that have been replaced or stopped: */
+			if (i == searches.length)
+				return;
+			searches[i] = null;
+			if (success)
+				segments[i] = source.getResult();
+			failed[i] = segments[i] == null;
+		}
+		/*
+		 * The plugin's methods are synchronized on the plugin, which may in
+		 * turn call into this object, so call it without holding our lock:
+		 */
+		plugin.multiPointUpdated(this);
+	}
+
+	@Override
+	public void pointsInSearch(final SearchInterface source, final int inOpen, final int inClosed) {
+		// The plugin repaints on its own progress callbacks.
+	}
+
+	@Override
+	public void threadStatus(final SearchInterface source, final int currentStatus) {
+		// Ignore this information.
+	}
+}
@@ -44,9 +44,9 @@ public class NearPoint implements Comparable<NearPoint> {
 			final int indexInPath) {
 		this.path = path;
 		this.indexInPath = indexInPath;
-		this.pathPointX = path.precise_x_positions[indexInPath];
-		this.pathPointY = path.precise_y_positions[indexInPath];
-		this.pathPointZ = path.precise_z_positions[indexInPath];
+		this.pathPointX = path.getPreciseX(indexInPath);
+		this.pathPointY = path.getPreciseY(indexInPath);
+		this.pathPointZ = path.getPreciseZ(indexInPath);
 		this.nearX = nearX;
 		this.nearY = nearY;
 		this.nearZ = nearZ;
@@ -109,13 +109,13 @@ public class NearPoint implements Comparable<NearPoint> {
 				startX = pathPointX;
 				startY = pathPointY;
 				startZ = pathPointZ;
-				endX = path.precise_x_positions[0];
-				endY = path.precise_y_positions[0];
-				endZ = path.precise_z_positions[0];
+				endX = path.getPreciseX(0);
+				endY = path.getPreciseY(0);
+				endZ = path.getPreciseZ(0);
 			} else {
-				startX = path.precise_x_positions[pathSize - 2];
-				startY = path.precise_y_positions[pathSize - 2];
-				startZ = path.precise_z_positions[pathSize - 2];
+				startX = path.getPreciseX(pathSize - 2);
+				startY = path.getPreciseY(pathSize - 2);
+				startZ = path.getPreciseZ(pathSize - 2);
 				endX = pathPointX;
 				endY = pathPointY;
 				endZ = pathPointZ;
@@ -133,12 +133,12 @@ public class NearPoint implements Comparable<NearPoint> {
 			}
 		} else {
 			// There's a point on either size:
-			final double previousX = path.precise_x_positions[indexInPath - 1];
-			final double previousY = path.precise_y_positions[indexInPath - 1];
-			final double previousZ = path.precise_z_positions[indexInPath - 1];
-			final double nextX = path.precise_x_positions[indexInPath + 1];
-			final double nextY = path.precise_y_positions[indexInPath + 1];
-			final double nextZ = path.precise_z_positions[indexInPath + 1];
+			final double previousX = path.getPreciseX(indexInPath - 1);
+			final double previousY = path.getPreciseY(indexInPath - 1);
+			final double previousZ = path.getPreciseZ(indexInPath - 1);
+			final double nextX = path.getPreciseX(indexInPath + 1);
+			final double nextY = path.getPreciseY(indexInPath + 1);
+			final double nextZ = path.getPreciseZ(indexInPath + 1);
 			final IntersectionOnLine intersectionA = distanceToLineSegment(nearX, nearY, nearZ, previousX, previousY,
 					previousZ, pathPointX, pathPointY, pathPointZ);
 			final IntersectionOnLine intersectionB = distanceToLineSegment(nearX, nearY, nearZ, pathPointX, pathPointY,
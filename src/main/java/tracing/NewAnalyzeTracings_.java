@@ -29,10 +29,14 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Hashtable;
-import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import amira.AmiraParameters;
 import ij.ImagePlus;
@@ -40,10 +44,7 @@ import ij.ImageStack;
 import ij.io.FileSaver;
 import ij.plugin.PlugIn;
 import ij.process.ByteProcessor;
-import landmarks.Bookstein_From_Landmarks;
 import util.BatchOpener;
-import util.FileAndChannel;
-import vib.oldregistration.RegistrationAlgorithm;
 
 class ImagesFromLine {
 
@@ -77,6 +78,8 @@ public class NewAnalyzeTracings_ implements PlugIn, TraceLoaderListener {
 		int y = -1;
 		int z = -1;
 		NewGraphNode linkedTo[] = null;
+		// The 0-based vertex index in the traced graph:
+		int index = -1;
 
 		@Override
 		public boolean equals(final Object other) {
@@ -126,25 +129,6 @@ public class NewAnalyzeTracings_ implements PlugIn, TraceLoaderListener {
 		}
 	}
 
-	ArrayList<NewGraphNode> makePath(final NewGraphNode lastNode) {
-
-		// SNT.log( "Trying to return result" );
-
-		final ArrayList<NewGraphNode> resultReversed = new ArrayList<>();
-		NewGraphNode p = lastNode;
-		do {
-			resultReversed.add(p);
-			// SNT.log( "adding "+p.toDotName());
-		} while (null != (p = p.previous));
-
-		final ArrayList<NewGraphNode> realResult = new ArrayList<>();
-
-		for (int i = resultReversed.size() - 1; i >= 0; --i)
-			realResult.add(resultReversed.get(i));
-
-		return realResult;
-	}
-
 	class PathWithLength {
 
 		int startNeuropilRegion;
@@ -164,167 +148,6 @@ public class NewAnalyzeTracings_ implements PlugIn, TraceLoaderListener {
 		}
 	}
 
-	PathWithLength findPath(final NewGraphNode start, final int endMaterial) {
-
-		// SNT.log("Starting path finding:");
-
-		// First reset all the search parameters:
-		{
-			final Collection<NewGraphNode> c = positionToNode.values();
-			for (final NewGraphNode n : c) {
-				n.g = 0;
-				n.h = 0;
-				n.previous = null;
-			}
-		}
-
-		final PriorityQueue<NewGraphNode> closed_from_start = new PriorityQueue<>();
-		final PriorityQueue<NewGraphNode> open_from_start = new PriorityQueue<>();
-
-		final Hashtable<NewGraphNode, NewGraphNode> open_from_start_hash = new Hashtable<>();
-		final Hashtable<NewGraphNode, NewGraphNode> closed_from_start_hash = new Hashtable<>();
-
-		start.g = 0;
-		start.h = 0;
-		start.previous = null;
-
-		// add_node( open_from_start, open_from_start_hash, start );
-		open_from_start.add(start);
-		open_from_start_hash.put(start, start);
-
-		while (open_from_start.size() > 0) {
-
-			// NewGraphNode p = get_highest_priority( open_from_start,
-			// open_from_start_hash );
-
-			// SNT.log("Before poll:
-			// "+open_from_start_hash.size()+"/"+open_from_start.size());
-			final NewGraphNode p = open_from_start.poll();
-			open_from_start_hash.remove(p);
-			// SNT.log("After poll:
-			// "+open_from_start_hash.size()+"/"+open_from_start.size());
-
-			// SNT.log( " Got node "+p.toDotName()+" from the queue"
-			// );
-
-			final int pointMaterial = label_data[p.z][p.y * width + p.x];
-
-			// Has the route from the start found the goal?
-
-			if (pointMaterial == endMaterial) {
-				// SNT.log( "Found the goal! (from start to end)" );
-				final ArrayList<NewGraphNode> path = makePath(p);
-				if (path == null)
-					return null;
-				else {
-					final PathWithLength result = new PathWithLength();
-					result.path = path;
-					result.length = p.g;
-					return result;
-				}
-			}
-
-			// add_node( closed_from_start, closed_from_start_hash, p );
-			closed_from_start.add(p);
-			closed_from_start_hash.put(p, p);
-
-			// Now look at all the neighbours...
-
-			// SNT.log("linkedTo "+p.linkedTo.length+" neigbours");
-			for (int i = 0; i < p.linkedTo.length; ++i) {
-
-				final NewGraphNode neighbour = p.linkedTo[i];
-				final float distance = p.distanceTo(neighbour);
-				if (neighbour.z == 118 || (neighbour.y * width + neighbour.x) == 118)
-					SNT.log("neighbour is: (" + neighbour.x + "," + neighbour.y + "," + neighbour.z + " and width "
-							+ width + " height " + height + " depth " + depth);
-				final int neighbourMaterial = label_data[neighbour.z][neighbour.y * width + neighbour.x];
-
-				// Ignore this neighbour if it's it's not of the exterior or end
-				// material
-
-				if (!(neighbourMaterial == 0 || neighbourMaterial == endMaterial))
-					continue;
-
-				final NewGraphNode newNode = new NewGraphNode();
-				newNode.setFrom(neighbour);
-				newNode.g = p.g + distance;
-				newNode.h = 0;
-				newNode.previous = p;
-
-				final NewGraphNode foundInClosed = closed_from_start_hash.get(neighbour);
-
-				final NewGraphNode foundInOpen = open_from_start_hash.get(neighbour);
-
-				// Is there an exisiting route which is
-				// better? If so, discard this new candidate...
-
-				if ((foundInClosed != null) && (foundInClosed.f() <= newNode.f())) {
-					// SNT.log( " Found in closed, but no better.");
-					continue;
-				}
-
-				if ((foundInOpen != null) && (foundInOpen.f() <= newNode.f())) {
-					// SNT.log( " Found in open, but no better.");
-					continue;
-				}
-
-				if (foundInClosed != null) {
-
-					// SNT.log("Found in closed and better");
-
-					// remove( closed_from_start, closed_from_start_hash,
-					// foundInClosed );
-					closed_from_start.remove(foundInClosed);
-					closed_from_start_hash.remove(foundInClosed);
-
-					foundInClosed.setFrom(newNode);
-
-					// add_node( open_from_start, open_from_start_hash,
-					// foundInClosed );
-					open_from_start.add(foundInClosed);
-					open_from_start_hash.put(foundInClosed, foundInClosed);
-
-					continue;
-				}
-
-				if (foundInOpen != null) {
-
-					// SNT.log("Found in open and better");
-
-					// remove( open_from_start, open_from_start_hash,
-					// foundInOpen );
-					open_from_start.remove(foundInOpen);
-					open_from_start_hash.remove(foundInOpen);
-
-					foundInOpen.setFrom(newNode);
-
-					// add_node( open_from_start, open_from_start_hash,
-					// foundInOpen );
-					open_from_start.add(foundInOpen);
-					open_from_start_hash.put(foundInOpen, foundInOpen);
-
-					continue;
-				}
-
-				// Otherwise we add a new node:
-
-				// SNT.log(" Adding new node to open " +
-				// newNode.toDotName() );
-
-				// add_node( open_from_start, open_from_start_hash, newNode );
-				open_from_start.add(newNode);
-				open_from_start_hash.put(newNode, newNode);
-			}
-		}
-
-		/*
-		 * If we get to here then we haven't found a route to the end point.
-		 */
-
-		return null;
-	}
-
 	public int positionToKey(final int x, final int y, final int z) {
 		return x + y * width + z * width * height;
 	}
@@ -363,7 +186,9 @@ public class NewAnalyzeTracings_ implements PlugIn, TraceLoaderListener {
 			SNT.log("spacing_z: " + spacing_z);
 		}
 
-		verticesInObjOrder.add(new NewGraphNode(x_image, y_image, z_image));
+		final NewGraphNode n = new NewGraphNode(x_image, y_image, z_image);
+		n.index = verticesInObjOrder.size() - 1;
+		verticesInObjOrder.add(n);
 	}
 
 	@Override
@@ -438,38 +263,20 @@ public class NewAnalyzeTracings_ implements PlugIn, TraceLoaderListener {
 
 		final String originalImageFileName = basename + ".lsm";
 
-		final ImagePlus labels = BatchOpener.openFirstChannel(standardBrainLabelsFileName);
+		final RegistrationContext.LabelVolume labels = RegistrationContext.getLabels(standardBrainLabelsFileName);
 
-		final ImageStack labelStack = labels.getStack();
-		final int templateWidth = labelStack.getWidth();
-		final int templateHeight = labelStack.getHeight();
-		final int templateDepth = labelStack.getSize();
-		final byte[][] new_label_data = new byte[templateDepth][];
-		for (int z = 0; z < templateDepth; ++z)
-			new_label_data[z] = (byte[]) labelStack.getPixels(z + 1);
-
-		parameters = new AmiraParameters(labels);
-		materials = parameters.getMaterialCount();
+		materials = labels.materials;
 		materialNames = new String[256];
 		materialNameToIndex = new Hashtable<>();
 		for (int i = 0; i < materials; ++i) {
-			materialNames[i] = parameters.getMaterialName(i);
+			materialNames[i] = labels.materialNames[i];
 			materialNameToIndex.put(materialNames[i], new Integer(i));
 			SNT.log("Material: " + i + " is " + materialNames[i]);
 		}
 
-		redValues = new int[materials];
-		greenValues = new int[materials];
-		blueValues = new int[materials];
-
-		for (int i = 0; i < materials; i++) {
-
-			final double[] c = parameters.getMaterialColor(i);
-
-			redValues[i] = (int) (255 * c[0]);
-			greenValues[i] = (int) (255 * c[1]);
-			blueValues[i] = (int) (255 * c[2]);
-		}
+		redValues = labels.redValues.clone();
+		greenValues = labels.greenValues.clone();
+		blueValues = labels.blueValues.clone();
 
 		byte[][] transformed_label_data = null;
 
@@ -489,51 +296,60 @@ public class NewAnalyzeTracings_ implements PlugIn, TraceLoaderListener {
 				transformed_label_data[z] = (byte[]) tmpStack.getPixels(z + 1);
 			}
 
-			labels.close();
-
 		} else {
 
-			// We have to calculate the registration:
+			// We have to calculate the registration, which we do a slice at
+			// a time in parallel:
 
-			final FileAndChannel fc = new FileAndChannel(originalImageFileName, 0);
-			final FileAndChannel standardBrainFC = new FileAndChannel(standardBrainFileName, 0);
+			final RegistrationContext registration = RegistrationContext.get(standardBrainFileName,
+					standardBrainLabelsFileName, originalImageFileName);
 
-			final Bookstein_From_Landmarks matcher = new Bookstein_From_Landmarks();
-			matcher.loadImages(standardBrainFC, fc);
-			matcher.generateTransformation();
+			final byte[][] label_data_in_domain = new byte[depth][width * height];
+			transformed_label_data = label_data_in_domain;
 
-			transformed_label_data = new byte[depth][width * height];
-			final RegistrationAlgorithm.ImagePoint imagePoint = new RegistrationAlgorithm.ImagePoint();
+			final ExecutorService es = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+			final ArrayList<Future<?>> futures = new ArrayList<>();
 
-			for (int z = 0; z < depth; ++z) {
-				SNT.log("doing slice: " + z);
-				for (int y = 0; y < height; ++y) {
-					for (int x = 0; x < width; ++x) {
-
-						matcher.transformDomainToTemplate(x, y, z, imagePoint);
+			for (int slice = 0; slice < depth; ++slice) {
+				final int z = slice;
+				futures.add(es.submit(new Runnable() {
 
-						final int x_in_template = imagePoint.x;
-						final int y_in_template = imagePoint.y;
-						final int z_in_template = imagePoint.z;
+					@Override
+					public void run() {
+						SNT.log("doing slice: " + z);
+						final int[] inTemplate = new int[3];
+						for (int y = 0; y < height; ++y) {
+							for (int x = 0; x < width; ++x) {
 
-						int label_value = 0;
+								registration.transformDomainToTemplate(x, y, z, inTemplate);
 
-						if (z_in_template >= 0 && z_in_template < templateDepth && y_in_template >= 0
-								&& y_in_template < templateHeight && x_in_template >= 0
-								&& x_in_template < templateWidth) {
-
-							label_value = new_label_data[z_in_template][y_in_template * templateWidth + x_in_template]
-									& 0xFF;
-						}
+								int label_value = labels.get(inTemplate[0], inTemplate[1], inTemplate[2]);
+								if (label_value < 0)
+									label_value = 0;
 
-						transformed_label_data[z][y * width + x] = (byte) label_value;
+								label_data_in_domain[z][y * width + x] = (byte) label_value;
 
-						if (label_value >= materials) {
-							throw new RuntimeException("A label value of " + label_value
-									+ " was found, which is not a valid material (max " + (materials - 1) + ")");
+								if (label_value >= materials) {
+									throw new RuntimeException("A label value of " + label_value
+											+ " was found, which is not a valid material (max " + (materials - 1)
+											+ ")");
+								}
+							}
 						}
 					}
-				}
+				}));
+			}
+
+			try {
+				for (final Future<?> f : futures)
+					f.get();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while transforming labels", e);
+			} catch (final ExecutionException e) {
+				throw new RuntimeException("Transforming labels failed", e.getCause());
+			} finally {
+				es.shutdownNow();
 			}
 
 			final ImageStack stack = new ImageStack(width, height);
@@ -545,18 +361,228 @@ public class NewAnalyzeTracings_ implements PlugIn, TraceLoaderListener {
 			}
 
 			final ImagePlus t = new ImagePlus("transformed labels", stack);
-			t.getProcessor().setColorModel(labels.getProcessor().getColorModel());
+			t.getProcessor().setColorModel(labels.getColorModel());
 			final boolean saved = new FileSaver(t).saveAsTiffStack(registeredLabelFileName);
 			if (!saved) {
 				throw new RuntimeException("Failed to save registered labels to: " + registeredLabelFileName);
 			}
 		}
 
-		labels.close();
-
 		return transformed_label_data;
 	}
 
+	/*
+	 * The traced graph in compressed sparse row form: the neighbours of
+	 * vertex i are adjacency[adjacencyOffsets[i]] up to (but not including)
+	 * adjacency[adjacencyOffsets[i + 1]], with the length of each link in
+	 * adjacencyLengths.
+	 */
+
+	NewGraphNode[] graphNodes;
+	int[] adjacencyOffsets;
+	int[] adjacency;
+	float[] adjacencyLengths;
+
+	void buildAdjacency(final ArrayList<NewGraphNode> vertices) {
+		final int n = vertices.size() - 1;
+		graphNodes = new NewGraphNode[n];
+		adjacencyOffsets = new int[n + 1];
+		for (int i = 0; i < n; ++i) {
+			graphNodes[i] = vertices.get(i + 1);
+			adjacencyOffsets[i + 1] = adjacencyOffsets[i] + graphNodes[i].linkedTo.length;
+		}
+		adjacency = new int[adjacencyOffsets[n]];
+		adjacencyLengths = new float[adjacencyOffsets[n]];
+		for (int i = 0; i < n; ++i) {
+			final NewGraphNode v = graphNodes[i];
+			int e = adjacencyOffsets[i];
+			for (final NewGraphNode w : v.linkedTo) {
+				adjacency[e] = w.index;
+				adjacencyLengths[e] = v.distanceTo(w);
+				++e;
+			}
+		}
+	}
+
+	/*
+	 * For each target material, find the shortest route through the exterior
+	 * from each of the edge points of the neuropil regions in labelIndices
+	 * with a lower material index. The result maps each target material to
+	 * the routes from each region, in the order of labelIndices.
+	 */
+
+	Hashtable<Integer, ArrayList<ArrayList<PathWithLength>>> findRoutes(final ArrayList<Integer> targets,
+			final ArrayList<ArrayList<NewGraphNode>> allEdges) {
+
+		final int n = graphNodes.length;
+		final int[] vertexMaterial = new int[n];
+		for (int i = 0; i < n; ++i) {
+			final NewGraphNode v = graphNodes[i];
+			vertexMaterial[i] = label_data[v.z][v.y * width + v.x];
+		}
+
+		final Hashtable<Integer, ArrayList<ArrayList<PathWithLength>>> result = new Hashtable<>();
+		final AtomicInteger nextTarget = new AtomicInteger(0);
+
+		final int processors = Math.min(targets.size(), Runtime.getRuntime().availableProcessors());
+		final ExecutorService es = Executors.newFixedThreadPool(Math.max(1, processors));
+		final ArrayList<Future<?>> futures = new ArrayList<>();
+
+		for (int w = 0; w < processors; ++w) {
+			futures.add(es.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					// Each worker reuses the same arrays for all its searches:
+					final float[] distance = new float[n];
+					final int[] previous = new int[n];
+					final int[] heap = new int[n];
+					final int[] heapPosition = new int[n];
+
+					int t;
+					while ((t = nextTarget.getAndIncrement()) < targets.size()) {
+						final int endMaterial = targets.get(t);
+						shortestPathsFrom(endMaterial, vertexMaterial, distance, previous, heap, heapPosition);
+
+						final ArrayList<ArrayList<PathWithLength>> routesFromRegions = new ArrayList<>();
+						for (int a = 0; a < labelIndices.length; ++a) {
+							final ArrayList<PathWithLength> routes = new ArrayList<>();
+							if (labelIndices[a] < endMaterial) {
+								for (final NewGraphNode start : allEdges.get(labelIndices[a])) {
+									final PathWithLength route = routeFrom(start.index, distance, previous);
+									if (route == null)
+										continue;
+									route.startNeuropilRegion = labelIndices[a];
+									route.endNeuropilRegion = endMaterial;
+									routes.add(route);
+								}
+							}
+							routesFromRegions.add(routes);
+						}
+						result.put(endMaterial, routesFromRegions);
+					}
+				}
+			}));
+		}
+
+		try {
+			for (final Future<?> f : futures)
+				f.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while finding routes", e);
+		} catch (final ExecutionException e) {
+			throw new RuntimeException("Finding routes failed", e.getCause());
+		} finally {
+			es.shutdownNow();
+		}
+
+		return result;
+	}
+
+	/*
+	 * Dijkstra's algorithm from every vertex of endMaterial at once, only
+	 * moving through vertices in the exterior (material 0). Afterwards,
+	 * distance has the length of the shortest route from each vertex to
+	 * endMaterial and previous the next vertex along that route (or -1).
+	 * The heap is indexed, so that it never holds more than one entry per
+	 * vertex.
+	 */
+
+	void shortestPathsFrom(final int endMaterial, final int[] vertexMaterial, final float[] distance,
+			final int[] previous, final int[] heap, final int[] heapPosition) {
+
+		final int n = graphNodes.length;
+		Arrays.fill(distance, Float.POSITIVE_INFINITY);
+		Arrays.fill(previous, -1);
+		Arrays.fill(heapPosition, -1);
+
+		int heapSize = 0;
+		for (int i = 0; i < n; ++i) {
+			if (vertexMaterial[i] == endMaterial) {
+				distance[i] = 0;
+				heap[heapSize] = i;
+				heapPosition[i] = heapSize;
+				++heapSize;
+			}
+		}
+
+		while (heapSize > 0) {
+
+			final int u = heap[0];
+			heapPosition[u] = -1;
+			--heapSize;
+			if (heapSize > 0) {
+				heap[0] = heap[heapSize];
+				heapPosition[heap[0]] = 0;
+				siftDown(0, heapSize, distance, heap, heapPosition);
+			}
+
+			for (int e = adjacencyOffsets[u]; e < adjacencyOffsets[u + 1]; ++e) {
+				final int v = adjacency[e];
+				if (vertexMaterial[v] != 0)
+					continue;
+				final float d = distance[u] + adjacencyLengths[e];
+				if (d >= distance[v])
+					continue;
+				distance[v] = d;
+				previous[v] = u;
+				int position = heapPosition[v];
+				if (position < 0) {
+					position = heapSize;
+					heap[position] = v;
+					heapPosition[v] = position;
+					++heapSize;
+				}
+				siftUp(position, distance, heap, heapPosition);
+			}
+		}
+	}
+
+	static void siftUp(int position, final float[] distance, final int[] heap, final int[] heapPosition) {
+		final int v = heap[position];
+		while (position > 0) {
+			final int parent = (position - 1) >> 1;
+			if (distance[heap[parent]] <= distance[v])
+				break;
+			heap[position] = heap[parent];
+			heapPosition[heap[position]] = position;
+			position = parent;
+		}
+		heap[position] = v;
+		heapPosition[v] = position;
+	}
+
+	static void siftDown(int position, final int heapSize, final float[] distance, final int[] heap,
+			final int[] heapPosition) {
+		final int v = heap[position];
+		while (true) {
+			int child = 2 * position + 1;
+			if (child >= heapSize)
+				break;
+			if (child + 1 < heapSize && distance[heap[child + 1]] < distance[heap[child]])
+				++child;
+			if (distance[v] <= distance[heap[child]])
+				break;
+			heap[position] = heap[child];
+			heapPosition[heap[position]] = position;
+			position = child;
+		}
+		heap[position] = v;
+		heapPosition[v] = position;
+	}
+
+	PathWithLength routeFrom(final int start, final float[] distance, final int[] previous) {
+		if (distance[start] == Float.POSITIVE_INFINITY)
+			return null;
+		final PathWithLength result = new PathWithLength();
+		result.path = new ArrayList<>();
+		result.length = distance[start];
+		for (int v = start; v >= 0; v = previous[v])
+			result.path.add(graphNodes[v]);
+		return result;
+	}
+
 	public ArrayList<PathWithLength> buildGraph(final File tracesObjFile, final File labelsFile,
 			final File writePathsTo, final File writeDotTo) {
 
@@ -613,6 +639,8 @@ public class NewAnalyzeTracings_ implements PlugIn, TraceLoaderListener {
 			positionToNode.put(k, n);
 		}
 
+		buildAdjacency(verticesInObjOrder);
+
 		verticesInObjOrder = null;
 
 		SNT.log("Added vertices to the hash, now has: " + positionToNode.size() + " entries");
@@ -681,17 +709,22 @@ public class NewAnalyzeTracings_ implements PlugIn, TraceLoaderListener {
 			greenValues = new int[materials];
 			blueValues = new int[materials];
 
+			for (int i = 0; i < materials; i++) {
+				final double[] c = parameters.getMaterialColor(i);
+				redValues[i] = (int) (255 * c[0]);
+				greenValues[i] = (int) (255 * c[1]);
+				blueValues[i] = (int) (255 * c[2]);
+			}
+
 		}
 
+		// (With the registered labels, the materials and their colours come
+		// from the template's labels.)
+
 		final ArrayList<ArrayList<NewGraphNode>> allEdges = new ArrayList<>();
 
-		for (int i = 0; i < materials; i++) {
+		for (int i = 0; i < materials; i++)
 			allEdges.add(new ArrayList<NewGraphNode>());
-			final double[] c = parameters.getMaterialColor(i);
-			redValues[i] = (int) (255 * c[0]);
-			greenValues[i] = (int) (255 * c[1]);
-			blueValues[i] = (int) (255 * c[2]);
-		}
 
 		/* Find all the points on the edge of a neuropil regions: */
 
@@ -739,46 +772,44 @@ public class NewAnalyzeTracings_ implements PlugIn, TraceLoaderListener {
 
 		final ArrayList<PathWithLength> paths = new ArrayList<>();
 
-		// Now start a search from each of these points trying
-		// to find an end point at one of the edge points from
-		// the other neuropil regions:
+		/*
+		 * Rather than a separate search from each of these points to each
+		 * other neuropil region, do a single multi-source search outwards
+		 * from all the traced points in each target region, through the
+		 * exterior. That gives the shortest route from every exterior point
+		 * to the target region at once, which is what each of those separate
+		 * searches was finding. The target regions are searched in parallel.
+		 */
+
+		final ArrayList<Integer> targets = new ArrayList<>();
+		for (int m = 0; m < materials; ++m)
+			if (allEdges.get(m).size() > 0)
+				targets.add(m);
+
+		final Hashtable<Integer, ArrayList<ArrayList<PathWithLength>>> routesToTarget = findRoutes(targets,
+				allEdges);
+
+		// Add the routes in the same order as the separate searches did:
 
 		for (int a = 0; a < labelIndices.length; ++a) {
 
 			final int labelIndex = labelIndices[a];
 			final String labelName = materialNames[labelIndex];
-			SNT.log("Starting searches from " + labelIndex + ", name: " + labelName);
-
-			final ArrayList<NewGraphNode> startPoints = allEdges.get(labelIndex);
 
 			for (int endM = labelIndex + 1; endM < materials; ++endM) {
 
-				final ArrayList<NewGraphNode> potentialEndPoints = allEdges.get(endM);
-				if (potentialEndPoints.size() == 0)
+				final ArrayList<ArrayList<PathWithLength>> routesFromRegions = routesToTarget.get(endM);
+				if (routesFromRegions == null)
 					continue;
 
-				for (final NewGraphNode startPoint : startPoints) {
-
-					SNT.log("  Starting from point " + startPoint + " (" + labelName + " looking for material: "
-							+ materialNames[endM]);
-
-					final PathWithLength route = findPath(startPoint, endM);
-					if (route == null) {
-						// SNT.log("No route found.");
-						continue;
-					}
-
-					route.startNeuropilRegion = labelIndex;
-					route.endNeuropilRegion = endM;
+				final ArrayList<PathWithLength> routes = routesFromRegions.get(a);
+				SNT.log("  Found " + routes.size() + " routes from " + labelName + " to " + materialNames[endM]);
 
+				for (final PathWithLength route : routes) {
 					paths.add(route);
 					final Path newPath = route.toPath();
 					newPath.setName(materialNames[labelIndex] + " to " + materialNames[endM]);
 					manager.addPath(newPath);
-
-					// Add that path to the fill manager as well:
-
-					SNT.log("  Found a route!");
 				}
 			}
 		}
@@ -901,7 +932,10 @@ public class NewAnalyzeTracings_ implements PlugIn, TraceLoaderListener {
 				 * if( ! lsmFile.exists() ) continue;
 				 */
 
-				final File tracesObjFile = new File(baseDirectory, baseName + ".traces.obj");
+				// Prefer the binary version of the traces if there is one:
+				File tracesObjFile = new File(baseDirectory, baseName + ".traces.bin");
+				if (!tracesObjFile.exists())
+					tracesObjFile = new File(baseDirectory, baseName + ".traces.obj");
 				if (!lsmFile.exists())
 					continue;
 
@@ -0,0 +1,207 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package tracing;
+
+import java.awt.image.ColorModel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import stacks.ThreePanes;
+
+/**
+ * A virtual stack of the XZ or ZY planes of an image, for the side panes of
+ * the tracer. Each plane is only computed from the original slices (via
+ * {@link VoxelSource}) when it is displayed. The last few planes are cached,
+ * since the panes mostly move between neighbouring positions. This replaces
+ * the full resliced copies that ThreePanes would otherwise make.
+ *
+ * Every plane needs a row or column of every slice. So that this doesn't
+ * flush the slices a search is using out of the shared cache of a virtual
+ * stack, the slices are read with {@link VoxelSource#peekPixels(int)}; for
+ * a virtual stack, showing a new plane therefore reads every slice that
+ * isn't already cached.
+ *
+ * The planes have the same layout as ThreePanes' own reslicing: in the XZ
+ * pane, slice y is width x depth, and in the ZY pane, slice x is depth x
+ * height.
+ */
+public class OrthogonalViewStack extends VirtualStack {
+
+	static final int CACHED_PLANES = 8;
+
+	final VoxelSource voxels;
+	final int plane;
+	final int imageType;
+	final ColorModel colorModel;
+
+	final int width, height, depth;
+
+	private final Map<Integer, Object> cache = new LinkedHashMap<Integer, Object>(CACHED_PLANES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<Integer, Object> eldest) {
+			return size() > CACHED_PLANES;
+		}
+	};
+
+	/**
+	 * Creates the stack of planes of the given image; plane must be
+	 * ThreePanes.XZ_PLANE or ThreePanes.ZY_PLANE.
+	 */
+	public OrthogonalViewStack(final ImagePlus imagePlus, final int plane) {
+		super((plane == ThreePanes.XZ_PLANE) ? imagePlus.getWidth() : imagePlus.getStackSize(),
+				(plane == ThreePanes.XZ_PLANE) ? imagePlus.getStackSize() : imagePlus.getHeight(),
+				imagePlus.getProcessor().getColorModel(), null);
+		if (plane != ThreePanes.XZ_PLANE && plane != ThreePanes.ZY_PLANE)
+			throw new IllegalArgumentException("Only XZ and ZY planes can be resliced lazily");
+		if (!isSupported(imagePlus))
+			throw new IllegalArgumentException("Only 8-bit, 16-bit and 32-bit images can be resliced lazily");
+		this.voxels = VoxelSource.get(imagePlus);
+		this.plane = plane;
+		this.imageType = imagePlus.getType();
+		this.colorModel = imagePlus.getProcessor().getColorModel();
+		width = imagePlus.getWidth();
+		height = imagePlus.getHeight();
+		depth = imagePlus.getStackSize();
+	}
+
+	public static boolean isSupported(final ImagePlus imagePlus) {
+		switch (imagePlus.getType()) {
+		case ImagePlus.GRAY8:
+		case ImagePlus.COLOR_256:
+		case ImagePlus.GRAY16:
+		case ImagePlus.GRAY32:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	@Override
+	public int getSize() {
+		return (plane == ThreePanes.XZ_PLANE) ? height : width;
+	}
+
+	@Override
+	public String getSliceLabel(final int n) {
+		return ((plane == ThreePanes.XZ_PLANE) ? "y=" : "x=") + (n - 1);
+	}
+
+	@Override
+	public ImageProcessor getProcessor(final int n) {
+		if (n < 1 || n > getSize())
+			throw new IllegalArgumentException("Slice " + n + " out of range 1-" + getSize());
+		Object pixels;
+		synchronized (cache) {
+			pixels = cache.get(n);
+		}
+		if (pixels == null) {
+			pixels = (plane == ThreePanes.XZ_PLANE) ? xzPlane(n - 1) : zyPlane(n - 1);
+			synchronized (cache) {
+				cache.put(n, pixels);
+			}
+		}
+		/*
+		 * The processor gets a copy, so that edits to the displayed plane
+		 * can't corrupt the cache (they aren't written back to the image):
+		 */
+		final int w = getWidth(), h = getHeight();
+		switch (imageType) {
+		case ImagePlus.GRAY16:
+			return new ShortProcessor(w, h, ((short[]) pixels).clone(), colorModel);
+		case ImagePlus.GRAY32:
+			return new FloatProcessor(w, h, ((float[]) pixels).clone(), colorModel);
+		default:
+			return new ByteProcessor(w, h, ((byte[]) pixels).clone(), colorModel);
+		}
+	}
+
+	/* Row y of every slice, one row per z: */
+	Object xzPlane(final int y) {
+		final int offset = y * width;
+		final Object result = newPixels(width * depth);
+		for (int z = 0; z < depth; ++z)
+			System.arraycopy(voxels.peekPixels(z), offset, result, z * width, width);
+		return result;
+	}
+
+	/* Column x of every slice, transposed so that z runs along each row: */
+	Object zyPlane(final int x) {
+		final Object result = newPixels(depth * height);
+		for (int z = 0; z < depth; ++z) {
+			final Object slice = voxels.peekPixels(z);
+			switch (imageType) {
+			case ImagePlus.GRAY16: {
+				final short[] from = (short[]) slice;
+				final short[] to = (short[]) result;
+				for (int y = 0; y < height; ++y)
+					to[y * depth + z] = from[y * width + x];
+				break;
+			}
+			case ImagePlus.GRAY32: {
+				final float[] from = (float[]) slice;
+				final float[] to = (float[]) result;
+				for (int y = 0; y < height; ++y)
+					to[y * depth + z] = from[y * width + x];
+				break;
+			}
+			default: {
+				final byte[] from = (byte[]) slice;
+				final byte[] to = (byte[]) result;
+				for (int y = 0; y < height; ++y)
+					to[y * depth + z] = from[y * width + x];
+				break;
+			}
+			}
+		}
+		return result;
+	}
+
+	Object newPixels(final int n) {
+		switch (imageType) {
+		case ImagePlus.GRAY16:
+			return new short[n];
+		case ImagePlus.GRAY32:
+			return new float[n];
+		default:
+			return new byte[n];
+		}
+	}
+
+	/** Forgets the cached planes, e.g. after the image data has changed. */
+	public void flushCache() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+}
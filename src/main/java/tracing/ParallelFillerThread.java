@@ -0,0 +1,495 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package tracing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+/**
+ * A {@link FillerThread} that computes the same distance map using all the
+ * available cores, by delta-stepping rather than Dijkstra's algorithm.
+ *
+ * Nodes are kept in buckets of width {@link #getDelta()} by their distance
+ * from the source paths. The lowest non-empty bucket is processed in rounds:
+ * in each round every node in it is expanded in parallel, and any neighbour
+ * whose distance falls in the same bucket is expanded in the next round,
+ * until the bucket is empty. The distances of all the nodes in a bucket are
+ * then final, so the fill is completely explored up to the end of that
+ * bucket. The cost of each step is the same as in the sequential search, so
+ * the distances only differ by the rounding of the order in which they are
+ * added up.
+ */
+public class ParallelFillerThread extends FillerThread {
+
+	/* Buckets with fewer nodes than this are expanded on this thread: */
+	static final int MINIMUM_PARALLEL_ROUND = 2048;
+
+	/* The number of voxel locks; see lockFor(): */
+	private static final int LOCK_STRIPES = 4096;
+
+	private final Object[] locks = new Object[LOCK_STRIPES];
+
+	private final int nThreads;
+
+	private float delta;
+
+	/*
+	 * For each voxel, the distance at which its node was last expanded, so
+	 * that nodes that appear more than once in a round are only expanded
+	 * again if they have been improved since:
+	 */
+	private final float[][] expandedAt;
+
+	/* The nodes waiting to be expanded, by bucket: */
+	private final TreeMap<Long, ArrayList<SearchNode>> buckets = new TreeMap<>();
+
+	/* The bucket being processed, and the nodes of it expanded so far: */
+	private ArrayList<SearchNode> frontier = new ArrayList<>();
+	private final ArrayList<SearchNode> expandedInBucket = new ArrayList<>();
+
+	/* The nodes whose distance is final: */
+	private final ArrayList<SearchNode> settled = new ArrayList<>();
+
+	/*
+	 * The number of distinct nodes reached so far. A node can be in the
+	 * buckets more than once (each time its distance is improved), so the
+	 * number of open nodes is this less the settled ones, rather than the
+	 * number of bucket entries:
+	 */
+	private volatile int nodesReached;
+	private volatile float exploredDistance;
+
+	public ParallelFillerThread(final ImagePlus imagePlus, final float stackMin, final float stackMax,
+			final boolean startPaused, final boolean reciprocal, final double initialThreshold,
+			final long reportEveryMilliseconds) {
+		this(imagePlus, stackMin, stackMax, startPaused, reciprocal, initialThreshold, reportEveryMilliseconds,
+				Runtime.getRuntime().availableProcessors());
+	}
+
+	public ParallelFillerThread(final ImagePlus imagePlus, final float stackMin, final float stackMax,
+			final boolean startPaused, final boolean reciprocal, final double initialThreshold,
+			final long reportEveryMilliseconds, final int nThreads) {
+		super(imagePlus, stackMin, stackMax, startPaused, reciprocal, initialThreshold, reportEveryMilliseconds);
+		this.nThreads = Math.max(1, nThreads);
+		for (int i = 0; i < LOCK_STRIPES; ++i)
+			locks[i] = new Object();
+		expandedAt = new float[depth][];
+		/*
+		 * A step through the brightest voxels costs the separation over
+		 * 255, so by default each bucket spans a few tens of such steps:
+		 */
+		final float minimumSeparation = Math.min(Math.abs(x_spacing), Math.min(Math.abs(y_spacing), Math.abs(z_spacing)));
+		delta = 32 * minimumSeparation / 255;
+	}
+
+	/** Returns the width of each bucket, in the units of the distances. */
+	public float getDelta() {
+		return delta;
+	}
+
+	/**
+	 * Sets the width of each bucket. Wider buckets give more parallelism but
+	 * more nodes that are expanded more than once. Must be called before the
+	 * thread is started.
+	 */
+	public void setDelta(final float delta) {
+		if (!(delta > 0))
+			throw new IllegalArgumentException("The bucket width must be positive");
+		this.delta = delta;
+	}
+
+	private long bucketOf(final float g) {
+		return (long) (g / delta);
+	}
+
+	private Object lockFor(final int x, final int y, final int z) {
+		final long index = ((long) z * height + y) * width + x;
+		return locks[(int) (index % LOCK_STRIPES)];
+	}
+
+	/* Allocates the per-slice arrays the first time a slice is reached: */
+	private void ensureSlice(final int z) {
+		synchronized (expandedAt) {
+			if (nodes_as_image_from_start[z] == null)
+				nodes_as_image_from_start[z] = new SearchNode[width * height];
+			if (progress_status[z] == null)
+				progress_status[z] = new byte[width * height];
+			if (expandedAt[z] == null) {
+				final float[] slice = new float[width * height];
+				Arrays.fill(slice, Float.POSITIVE_INFINITY);
+				expandedAt[z] = slice;
+			}
+		}
+	}
+
+	@Override
+	Iterable<SearchNode> closedNodes() {
+		return settled;
+	}
+
+	/* Only meaningful while the thread is paused or finished: */
+	@Override
+	Iterable<SearchNode> openNodes() {
+		final Set<SearchNode> open = Collections.newSetFromMap(new IdentityHashMap<SearchNode, Boolean>());
+		addOpen(frontier, open);
+		addOpen(expandedInBucket, open);
+		for (final ArrayList<SearchNode> bucket : buckets.values())
+			addOpen(bucket, open);
+		return open;
+	}
+
+	private static void addOpen(final List<SearchNode> nodes, final Set<SearchNode> open) {
+		for (final SearchNode n : nodes)
+			if (n.searchStatus == OPEN_FROM_START)
+				open.add(n);
+	}
+
+	@Override
+	public int pointsConsideredInSearch() {
+		return nodesReached;
+	}
+
+	@Override
+	protected void reportPointsInSearch() {
+		for (final SearchProgressCallback progress : progressListeners) {
+			final int closed = settled.size();
+			progress.pointsInSearch(this, nodesReached - closed, closed);
+			if (progress instanceof FillerProgressCallback)
+				((FillerProgressCallback) progress).maximumDistanceCompletelyExplored(this, exploredDistance);
+		}
+		reportDistanceHistogram();
+	}
+
+	/* What the expansion of part of a round produced: */
+	private static class RoundResult {
+		final ArrayList<SearchNode> expanded = new ArrayList<>();
+		final ArrayList<SearchNode> reached = new ArrayList<>();
+		int created;
+	}
+
+	@Override
+	public void run() {
+
+		final ExecutorService pool = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "SNT parallel fill");
+				t.setDaemon(true);
+				t.setPriority(MIN_PRIORITY);
+				return t;
+			}
+		});
+
+		try {
+
+			enterInitialStatus();
+
+			/*
+			 * Take over the nodes added by setSourcePaths() or from a loaded
+			 * fill:
+			 */
+			for (final SearchNode n : closed_from_start) {
+				ensureSlice(n.z);
+				settled.add(n);
+			}
+			closed_from_start.clear();
+			for (final SearchNode n : open_from_start) {
+				ensureSlice(n.z);
+				addToBucket(n);
+			}
+			open_from_start.clear();
+			nodesReached = settled.size() + countBucketed();
+
+			final long started_at = lastReportMilliseconds = System.currentTimeMillis();
+
+			while (!buckets.isEmpty() || !frontier.isEmpty()) {
+
+				final int status = getThreadStatus();
+				if (status == STOPPING) {
+					reportThreadStatus();
+					setExitReason(CANCELLED);
+					reportFinished(false);
+					return;
+				} else if (status == PAUSED) {
+					try {
+						reportThreadStatus();
+						Thread.sleep(4000);
+					} catch (final InterruptedException e) {
+					}
+					continue;
+				}
+
+				final long currentMilliseconds = System.currentTimeMillis();
+				if ((timeoutSeconds > 0) && (currentMilliseconds - started_at > (1000 * timeoutSeconds))) {
+					setExitReason(TIMED_OUT);
+					reportFinished(false);
+					return;
+				}
+				if ((reportEveryMilliseconds > 0)
+						&& (currentMilliseconds - lastReportMilliseconds > reportEveryMilliseconds)) {
+					reportPointsInSearch();
+					lastReportMilliseconds = currentMilliseconds;
+				}
+
+				if (frontier.isEmpty()) {
+					startNextBucket();
+					continue;
+				}
+
+				runRound(pool);
+
+				if (frontier.isEmpty())
+					finishBucket();
+			}
+
+			exploredDistance = Float.MAX_VALUE;
+			reportPointsInSearch();
+			setExitReason(POINTS_EXHAUSTED);
+			reportFinished(false);
+
+		} catch (final OutOfMemoryError oome) {
+			SNT.log("Got an OOME: " + oome);
+			SNT.error("Out of memory while filling");
+			setExitReason(OUT_OF_MEMORY);
+			reportFinished(false);
+		} catch (final RuntimeException e) {
+			IJ.handleException(e);
+			reportFinished(false);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private long currentBucket;
+
+	private void addToBucket(final SearchNode n) {
+		final Long b = bucketOf(n.g);
+		ArrayList<SearchNode> bucket = buckets.get(b);
+		if (bucket == null) {
+			bucket = new ArrayList<>();
+			buckets.put(b, bucket);
+		}
+		bucket.add(n);
+	}
+
+	private int countBucketed() {
+		int n = 0;
+		for (final ArrayList<SearchNode> bucket : buckets.values())
+			n += bucket.size();
+		return n;
+	}
+
+	private void startNextBucket() {
+		final Map.Entry<Long, ArrayList<SearchNode>> first = buckets.pollFirstEntry();
+		currentBucket = first.getKey();
+		frontier = first.getValue();
+	}
+
+	/* Every node expanded in a finished bucket has its final distance: */
+	private void finishBucket() {
+		for (final SearchNode n : expandedInBucket) {
+			if (n.searchStatus != CLOSED_FROM_START) {
+				n.searchStatus = CLOSED_FROM_START;
+				updateProgress(n);
+				closingNode(n);
+				settled.add(n);
+			}
+		}
+		expandedInBucket.clear();
+		exploredDistance = (currentBucket + 1) * delta;
+	}
+
+	/*
+	 * Expands every node in the frontier; the neighbours reached that fall
+	 * in the current bucket become the next frontier, and the others go in
+	 * their buckets.
+	 */
+	private void runRound(final ExecutorService pool) {
+		final ArrayList<SearchNode> nodes = frontier;
+		final List<RoundResult> results = new ArrayList<>();
+		if (nodes.size() < MINIMUM_PARALLEL_ROUND || nThreads == 1) {
+			results.add(expand(nodes, 0, nodes.size()));
+		} else {
+			final List<Future<RoundResult>> futures = new ArrayList<>();
+			final int chunks = nThreads * 4;
+			for (int c = 0; c < chunks; ++c) {
+				final int from = (int) ((long) nodes.size() * c / chunks);
+				final int to = (int) ((long) nodes.size() * (c + 1) / chunks);
+				futures.add(pool.submit(new Callable<RoundResult>() {
+					@Override
+					public RoundResult call() {
+						return expand(nodes, from, to);
+					}
+				}));
+			}
+			for (final Future<RoundResult> future : futures)
+				results.add(getUninterruptibly(future));
+		}
+
+		final ArrayList<SearchNode> next = new ArrayList<>();
+		int created = 0;
+		for (final RoundResult result : results) {
+			created += result.created;
+			expandedInBucket.addAll(result.expanded);
+			for (final SearchNode n : result.reached) {
+				if (bucketOf(n.g) == currentBucket)
+					next.add(n);
+				else
+					addToBucket(n);
+			}
+		}
+		frontier = next;
+		nodesReached += created;
+	}
+
+	/*
+	 * Pausing or continuing interrupts this thread, which mustn't abandon a
+	 * round half way through:
+	 */
+	private static <T> T getUninterruptibly(final Future<T> future) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (final InterruptedException e) {
+					interrupted = true;
+				} catch (final ExecutionException e) {
+					final Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException)
+						throw (RuntimeException) cause;
+					if (cause instanceof Error)
+						throw (Error) cause;
+					throw new RuntimeException(cause);
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	private RoundResult expand(final List<SearchNode> nodes, final int from, final int to) {
+
+		final RoundResult result = new RoundResult();
+
+		for (int i = from; i < to; ++i) {
+
+			final SearchNode p = nodes.get(i);
+			final float p_g;
+			synchronized (lockFor(p.x, p.y, p.z)) {
+				final int index = p.y * width + p.x;
+				/* Skip nodes already expanded with this distance: */
+				if (!(p.g < expandedAt[p.z][index]))
+					continue;
+				p_g = p.g;
+				expandedAt[p.z][index] = p_g;
+			}
+			result.expanded.add(p);
+			voxels.prefetchAround(p.z);
+
+			for (int zdiff = -1; zdiff <= 1; zdiff++) {
+
+				final int new_z = p.z + zdiff;
+				if (new_z < 0 || new_z >= depth)
+					continue;
+
+				SearchNode[] slice = nodes_as_image_from_start[new_z];
+				if (slice == null || progress_status[new_z] == null) {
+					ensureSlice(new_z);
+					slice = nodes_as_image_from_start[new_z];
+				}
+
+				for (int xdiff = -1; xdiff <= 1; xdiff++)
+					for (int ydiff = -1; ydiff <= 1; ydiff++) {
+
+						if ((xdiff == 0) && (ydiff == 0) && (zdiff == 0))
+							continue;
+
+						final int new_x = p.x + xdiff;
+						final int new_y = p.y + ydiff;
+
+						if (new_x < 0 || new_x >= width)
+							continue;
+
+						if (new_y < 0 || new_y >= height)
+							continue;
+
+						final double xdiffsq = (xdiff * x_spacing) * (xdiff * x_spacing);
+						final double ydiffsq = (ydiff * y_spacing) * (ydiff * y_spacing);
+						final double zdiffsq = (zdiff * z_spacing) * (zdiff * z_spacing);
+
+						double cost_moving_to_new_point = costMovingTo(new_x, new_y, new_z);
+						if (cost_moving_to_new_point < minimum_cost_per_unit_distance) {
+							cost_moving_to_new_point = minimum_cost_per_unit_distance;
+						}
+
+						final float g_for_new_point = (float) (p_g
+								+ Math.sqrt(xdiffsq + ydiffsq + zdiffsq) * cost_moving_to_new_point);
+
+						final int new_index = new_y * width + new_x;
+						synchronized (lockFor(new_x, new_y, new_z)) {
+							SearchNode n = slice[new_index];
+							if (n == null) {
+								n = createNewNode(new_x, new_y, new_z, g_for_new_point, 0, p, OPEN_FROM_START);
+								slice[new_index] = n;
+								addingNode(n);
+								++result.created;
+							} else if (n.g > g_for_new_point) {
+								final float previousG = n.g;
+								n.g = g_for_new_point;
+								n.h = 0;
+								n.f = g_for_new_point;
+								n.setPredecessor(p);
+								n.searchStatus = OPEN_FROM_START;
+								improvingNode(n, previousG);
+							} else {
+								continue;
+							}
+							updateProgress(n);
+						}
+						result.reached.add(n);
+					}
+			}
+		}
+		return result;
+	}
+}
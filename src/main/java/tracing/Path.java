@@ -26,8 +26,10 @@ package tracing;
 
 import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.Rectangle;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -180,15 +182,114 @@ public class Path implements Comparable<Path> {
 	 * return thisNode; }
 	 */
 
-	public double getRealLength() {
-		double totalLength = 0;
-		for (int i = 1; i < points; ++i) {
-			final double xdiff = precise_x_positions[i] - precise_x_positions[i - 1];
-			final double ydiff = precise_y_positions[i] - precise_y_positions[i - 1];
-			final double zdiff = precise_z_positions[i] - precise_z_positions[i - 1];
-			totalLength += Math.sqrt(xdiff * xdiff + ydiff * ydiff + zdiff * zdiff);
+	/*
+	 * Cached geometry of the path: its length, the number of points it was
+	 * computed for and the bounding box of the points, as { min_x, min_y,
+	 * min_z, max_x, max_y, max_z } in calibrated units. The same bounding boxes are also kept for
+	 * consecutive chunks of CHUNK_SIZE points, each of which also includes
+	 * the first point of the following chunk so that every line segment of
+	 * the path lies entirely within one chunk's box. This is recomputed
+	 * lazily after invalidateGeometry() has been called, which should happen
+	 * whenever the point coordinates are changed.
+	 */
+	static final int CHUNK_SIZE = 64;
+
+	private static class Geometry {
+		final double length;
+		final int points;
+		final double[] boundingBox;
+		final double[] chunkBoxes;
+
+		Geometry(final double length, final int points, final double[] boundingBox, final double[] chunkBoxes) {
+			this.length = length;
+			this.points = points;
+			this.boundingBox = boundingBox;
+			this.chunkBoxes = chunkBoxes;
 		}
-		return totalLength;
+	}
+
+	private volatile Geometry geometry;
+	private volatile long geometryVersion;
+
+	void invalidateGeometry() {
+		geometry = null;
+		++geometryVersion;
+	}
+
+	/**
+	 * Returns a number that changes every time the coordinates of this path
+	 * are modified, so that callers can tell whether something derived from
+	 * them (a rendering, a mesh, ...) is still up-to-date.
+	 */
+	public long getGeometryVersion() {
+		return geometryVersion;
+	}
+
+	/*
+	 * Returns the cached geometry, recomputing it if necessary. As a safety
+	 * net, the cache is also considered stale if it was computed for a
+	 * different number of points (e.g. if 'points' was altered directly).
+	 */
+	private Geometry geometry() {
+		final Geometry cached = geometry;
+		if (cached != null && cached.points == points)
+			return cached;
+		double length = 0;
+		final double[] box = new double[] { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE,
+				-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+		for (int i = 0; i < points; ++i) {
+			final double x = getPreciseX(i);
+			final double y = getPreciseY(i);
+			final double z = getPreciseZ(i);
+			if (i > 0) {
+				final double xdiff = x - getPreciseX(i - 1);
+				final double ydiff = y - getPreciseY(i - 1);
+				final double zdiff = z - getPreciseZ(i - 1);
+				length += Math.sqrt(xdiff * xdiff + ydiff * ydiff + zdiff * zdiff);
+			}
+			box[0] = Math.min(box[0], x);
+			box[1] = Math.min(box[1], y);
+			box[2] = Math.min(box[2], z);
+			box[3] = Math.max(box[3], x);
+			box[4] = Math.max(box[4], y);
+			box[5] = Math.max(box[5], z);
+		}
+		final int chunks = (points + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		final double[] chunkBoxes = new double[6 * chunks];
+		for (int c = 0; c < chunks; ++c) {
+			final int first = c * CHUNK_SIZE;
+			final int last = Math.min(first + CHUNK_SIZE, points - 1);
+			final int o = 6 * c;
+			chunkBoxes[o] = chunkBoxes[o + 3] = getPreciseX(first);
+			chunkBoxes[o + 1] = chunkBoxes[o + 4] = getPreciseY(first);
+			chunkBoxes[o + 2] = chunkBoxes[o + 5] = getPreciseZ(first);
+			for (int i = first + 1; i <= last; ++i) {
+				chunkBoxes[o] = Math.min(chunkBoxes[o], getPreciseX(i));
+				chunkBoxes[o + 1] = Math.min(chunkBoxes[o + 1], getPreciseY(i));
+				chunkBoxes[o + 2] = Math.min(chunkBoxes[o + 2], getPreciseZ(i));
+				chunkBoxes[o + 3] = Math.max(chunkBoxes[o + 3], getPreciseX(i));
+				chunkBoxes[o + 4] = Math.max(chunkBoxes[o + 4], getPreciseY(i));
+				chunkBoxes[o + 5] = Math.max(chunkBoxes[o + 5], getPreciseZ(i));
+			}
+		}
+		final Geometry result = new Geometry(length, points, box, chunkBoxes);
+		geometry = result;
+		return result;
+	}
+
+	public double getRealLength() {
+		return geometry().length;
+	}
+
+	/**
+	 * Returns the bounding box of the points of this path in calibrated
+	 * units, as { min_x, min_y, min_z, max_x, max_y, max_z }, or null if the
+	 * path has no points.
+	 */
+	public double[] getBoundingBox() {
+		if (points < 1)
+			return null;
+		return geometry().boundingBox.clone();
 	}
 
 	public String getRealLengthString() {
@@ -196,6 +297,7 @@ public class Path implements Comparable<Path> {
 	}
 
 	public void createCircles() {
+		ensureArrays();
 		if (tangents_x != null || tangents_y != null || tangents_z != null || radiuses != null)
 			throw new RuntimeException("BUG: Trying to create circles data arrays when at least one is already there");
 		tangents_x = new double[maxPoints];
@@ -376,9 +478,9 @@ public class Path implements Comparable<Path> {
 			throw new RuntimeException("BUG: getPointDouble was asked for an out-of-range point: " + i);
 		}
 
-		p[0] = precise_x_positions[i];
-		p[1] = precise_y_positions[i];
-		p[2] = precise_z_positions[i];
+		p[0] = getPreciseX(i);
+		p[1] = getPreciseY(i);
+		p[2] = getPreciseZ(i);
 	}
 
 	public PointInImage getPointInImage(final int i) {
@@ -387,8 +489,7 @@ public class Path implements Comparable<Path> {
 			throw new RuntimeException("BUG: getPointInImage was asked for an out-of-range point: " + i);
 		}
 
-		final PointInImage result = new PointInImage(precise_x_positions[i], precise_y_positions[i],
-				precise_z_positions[i]);
+		final PointInImage result = new PointInImage(getPreciseX(i), getPreciseY(i), getPreciseZ(i));
 		result.onPath = this;
 		return result;
 	}
@@ -396,37 +497,37 @@ public class Path implements Comparable<Path> {
 	public int getXUnscaled(final int i) {
 		if ((i < 0) || i >= size())
 			throw new RuntimeException("BUG: getXUnscaled was asked for an out-of-range point: " + i);
-		return (int) Math.round(precise_x_positions[i] / x_spacing);
+		return (int) Math.round(getPreciseX(i) / x_spacing);
 	}
 
 	public int getYUnscaled(final int i) {
 		if ((i < 0) || i >= size())
 			throw new RuntimeException("BUG: getYUnscaled was asked for an out-of-range point: " + i);
-		return (int) Math.round(precise_y_positions[i] / y_spacing);
+		return (int) Math.round(getPreciseY(i) / y_spacing);
 	}
 
 	public int getZUnscaled(final int i) {
 		if ((i < 0) || i >= size())
 			throw new RuntimeException("BUG: getZUnscaled was asked for an out-of-range point: " + i);
-		return (int) Math.round(precise_z_positions[i] / z_spacing);
+		return (int) Math.round(getPreciseZ(i) / z_spacing);
 	}
 
 	public double getXUnscaledDouble(final int i) {
 		if ((i < 0) || i >= size())
 			throw new RuntimeException("BUG: getXUnscaled was asked for an out-of-range point: " + i);
-		return precise_x_positions[i] / x_spacing;
+		return getPreciseX(i) / x_spacing;
 	}
 
 	public double getYUnscaledDouble(final int i) {
 		if ((i < 0) || i >= size())
 			throw new RuntimeException("BUG: getYUnscaled was asked for an out-of-range point: " + i);
-		return precise_y_positions[i] / y_spacing;
+		return getPreciseY(i) / y_spacing;
 	}
 
 	public double getZUnscaledDouble(final int i) {
 		if ((i < 0) || i >= size())
 			throw new RuntimeException("BUG: getZUnscaled was asked for an out-of-range point: " + i);
-		return precise_z_positions[i] / z_spacing;
+		return getPreciseZ(i) / z_spacing;
 	}
 
 	/**
@@ -436,9 +537,9 @@ public class Path implements Comparable<Path> {
 	public double[][] getXYZUnscaled() {
 		final double[][] p = new double[3][size()];
 		for (int i = p[0].length - 1; i > -1; i--) {
-			p[0][i] = precise_x_positions[i] / x_spacing;
-			p[1][i] = precise_y_positions[i] / y_spacing;
-			p[2][i] = precise_z_positions[i] / z_spacing;
+			p[0][i] = getPreciseX(i) / x_spacing;
+			p[1][i] = getPreciseY(i) / y_spacing;
+			p[2][i] = getPreciseZ(i) / z_spacing;
 		}
 		return p;
 	}
@@ -475,12 +576,12 @@ public class Path implements Comparable<Path> {
 		if (points < 1)
 			return null;
 		else
-			return new PointInImage(precise_x_positions[points - 1], precise_y_positions[points - 1],
-					precise_z_positions[points - 1]);
+			return new PointInImage(getPreciseX(points - 1), getPreciseY(points - 1), getPreciseZ(points - 1));
 	}
 
 	void expandTo(final int newMaxPoints) {
 
+		ensureArrays();
 		final double[] new_precise_x_positions = new double[newMaxPoints];
 		final double[] new_precise_y_positions = new double[newMaxPoints];
 		final double[] new_precise_z_positions = new double[newMaxPoints];
@@ -514,6 +615,9 @@ public class Path implements Comparable<Path> {
 			return;
 		}
 
+		ensureArrays();
+		other.ensureArrays();
+
 		// If we're trying to add a path with circles to one
 		// that previously had none, add circles to the
 		// previous one, and carry on:
@@ -567,6 +671,7 @@ public class Path implements Comparable<Path> {
 		}
 
 		points = points + (other.points - toSkip);
+		invalidateGeometry();
 
 		if (hasCircles()) {
 			setGuessedTangents(2);
@@ -587,14 +692,15 @@ public class Path implements Comparable<Path> {
 		final Path c = new Path(x_spacing, y_spacing, z_spacing, spacing_units, points);
 		c.points = points;
 		for (int i = 0; i < points; ++i) {
-			c.precise_x_positions[i] = precise_x_positions[(points - 1) - i];
-			c.precise_y_positions[i] = precise_y_positions[(points - 1) - i];
-			c.precise_z_positions[i] = precise_z_positions[(points - 1) - i];
+			c.precise_x_positions[i] = getPreciseX((points - 1) - i);
+			c.precise_y_positions[i] = getPreciseY((points - 1) - i);
+			c.precise_z_positions[i] = getPreciseZ((points - 1) - i);
 		}
 		return c;
 	}
 
 	void addPointDouble(final double x, final double y, final double z) {
+		ensureArrays();
 		if (points >= maxPoints) {
 			final int newReserved = (int) (maxPoints * 1.2 + 1);
 			expandTo(newReserved);
@@ -602,6 +708,7 @@ public class Path implements Comparable<Path> {
 		precise_x_positions[points] = x;
 		precise_y_positions[points] = y;
 		precise_z_positions[points++] = z;
+		invalidateGeometry();
 	}
 
 	public void drawPathAsPoints(final TracerCanvas canvas, final Graphics g, final java.awt.Color c, final int plane,
@@ -646,8 +753,36 @@ public class Path implements Comparable<Path> {
 		if (!hasCircles())
 			drawDiameter = false;
 
+		/*
+		 * Skip everything that cannot end up on screen: first the whole path,
+		 * then each chunk of points, using the cached bounding boxes. (The
+		 * diameters extend beyond the boxes, so don't cull when drawing them.)
+		 */
+		final Geometry geom = geometry();
+		final boolean cull = !drawDiameter;
+		Rectangle visibleArea = g.getClipBounds();
+		if (visibleArea == null)
+			visibleArea = new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight());
+		visibleArea.grow(spotDiameter + 4, spotDiameter + 4);
+		if (cull && !boxMayBeDrawn(geom.boundingBox, 0, canvas, plane, visibleArea, slice, either_side))
+			return;
+
+		/*
+		 * When zoomed out, many consecutive points end up on the same screen
+		 * pixel; only the first of these needs to be drawn:
+		 */
+		int last_drawn_x = Integer.MIN_VALUE;
+		int last_drawn_y = Integer.MIN_VALUE;
+
 		for (int i = 0; i < points; ++i) {
 
+			if (cull && i % CHUNK_SIZE == 0 && 6 * (i / CHUNK_SIZE) < geom.chunkBoxes.length
+					&& !boxMayBeDrawn(geom.chunkBoxes, 6 * (i / CHUNK_SIZE), canvas, plane, visibleArea, slice,
+							either_side)) {
+				i += CHUNK_SIZE - 1;
+				continue;
+			}
+
 			int x = Integer.MIN_VALUE;
 			int y = Integer.MIN_VALUE;
 			int previous_x_on_screen = Integer.MIN_VALUE;
@@ -663,12 +798,12 @@ public class Path implements Comparable<Path> {
 				x = canvas.myScreenXD(getXUnscaledDouble(i));
 				y = canvas.myScreenYD(getYUnscaledDouble(i));
 				if (notFirstPoint) {
-					previous_x_on_screen = canvas.myScreenXD(precise_x_positions[i - 1] / x_spacing);
-					previous_y_on_screen = canvas.myScreenYD(precise_y_positions[i - 1] / y_spacing);
+					previous_x_on_screen = canvas.myScreenXD(getPreciseX(i - 1) / x_spacing);
+					previous_y_on_screen = canvas.myScreenYD(getPreciseY(i - 1) / y_spacing);
 				}
 				if (notLastPoint) {
-					next_x_on_screen = canvas.myScreenXD(precise_x_positions[i + 1] / x_spacing);
-					next_y_on_screen = canvas.myScreenYD(precise_y_positions[i + 1] / y_spacing);
+					next_x_on_screen = canvas.myScreenXD(getPreciseX(i + 1) / x_spacing);
+					next_y_on_screen = canvas.myScreenYD(getPreciseY(i + 1) / y_spacing);
 				}
 				slice_of_point = getZUnscaled(i);
 				break;
@@ -676,12 +811,12 @@ public class Path implements Comparable<Path> {
 				x = canvas.myScreenXD(getXUnscaledDouble(i));
 				y = canvas.myScreenYD(getZUnscaledDouble(i));
 				if (notFirstPoint) {
-					previous_x_on_screen = canvas.myScreenXD(precise_x_positions[i - 1] / x_spacing);
-					previous_y_on_screen = canvas.myScreenYD(precise_z_positions[i - 1] / z_spacing);
+					previous_x_on_screen = canvas.myScreenXD(getPreciseX(i - 1) / x_spacing);
+					previous_y_on_screen = canvas.myScreenYD(getPreciseZ(i - 1) / z_spacing);
 				}
 				if (notLastPoint) {
-					next_x_on_screen = canvas.myScreenXD(precise_x_positions[i + 1] / x_spacing);
-					next_y_on_screen = canvas.myScreenYD(precise_z_positions[i + 1] / z_spacing);
+					next_x_on_screen = canvas.myScreenXD(getPreciseX(i + 1) / x_spacing);
+					next_y_on_screen = canvas.myScreenYD(getPreciseZ(i + 1) / z_spacing);
 				}
 				slice_of_point = getYUnscaled(i);
 				break;
@@ -689,12 +824,12 @@ public class Path implements Comparable<Path> {
 				x = canvas.myScreenXD(getZUnscaledDouble(i));
 				y = canvas.myScreenYD(getYUnscaledDouble(i));
 				if (notFirstPoint) {
-					previous_x_on_screen = canvas.myScreenXD(precise_z_positions[i - 1] / z_spacing);
-					previous_y_on_screen = canvas.myScreenYD(precise_y_positions[i - 1] / y_spacing);
+					previous_x_on_screen = canvas.myScreenXD(getPreciseZ(i - 1) / z_spacing);
+					previous_y_on_screen = canvas.myScreenYD(getPreciseY(i - 1) / y_spacing);
 				}
 				if (notLastPoint) {
-					next_x_on_screen = canvas.myScreenXD(precise_z_positions[i + 1] / z_spacing);
-					next_y_on_screen = canvas.myScreenYD(precise_y_positions[i + 1] / y_spacing);
+					next_x_on_screen = canvas.myScreenXD(getPreciseZ(i + 1) / z_spacing);
+					next_y_on_screen = canvas.myScreenYD(getPreciseY(i + 1) / y_spacing);
 				}
 				slice_of_point = getXUnscaled(i);
 				break;
@@ -713,9 +848,9 @@ public class Path implements Comparable<Path> {
 				final double n_y = 0;
 				final double n_z = 1;
 
-				final double t_x = tangents_x[i];
-				final double t_y = tangents_y[i];
-				final double t_z = tangents_z[i];
+				final double t_x = getTangentX(i);
+				final double t_y = getTangentY(i);
+				final double t_z = getTangentZ(i);
 
 				final double cross_x = n_y * t_z - n_z * t_y;
 				final double cross_y = n_z * t_x - n_x * t_z;
@@ -726,7 +861,7 @@ public class Path implements Comparable<Path> {
 				final double normalized_cross_y = cross_y / sizeInPlane;
 
 				final double zdiff = Math.abs((slice - slice_of_point) * z_spacing);
-				final double realRadius = radiuses[i];
+				final double realRadius = getRadius(i);
 
 				if (either_side < 0 || zdiff <= realRadius) {
 
@@ -736,11 +871,11 @@ public class Path implements Comparable<Path> {
 					else
 						effective_radius = Math.sqrt(realRadius * realRadius - zdiff * zdiff);
 
-					final double left_x = precise_x_positions[i] + normalized_cross_x * effective_radius;
-					final double left_y = precise_y_positions[i] + normalized_cross_y * effective_radius;
+					final double left_x = getPreciseX(i) + normalized_cross_x * effective_radius;
+					final double left_y = getPreciseY(i) + normalized_cross_y * effective_radius;
 
-					final double right_x = precise_x_positions[i] - normalized_cross_x * effective_radius;
-					final double right_y = precise_y_positions[i] - normalized_cross_y * effective_radius;
+					final double right_x = getPreciseX(i) - normalized_cross_x * effective_radius;
+					final double right_y = getPreciseY(i) - normalized_cross_y * effective_radius;
 
 					final int left_x_on_screen = canvas.myScreenXD(left_x / x_spacing);
 					final int left_y_on_screen = canvas.myScreenYD(left_y / y_spacing);
@@ -748,8 +883,8 @@ public class Path implements Comparable<Path> {
 					final int right_x_on_screen = canvas.myScreenXD(right_x / x_spacing);
 					final int right_y_on_screen = canvas.myScreenYD(right_y / y_spacing);
 
-					final int x_on_screen = canvas.myScreenXD(precise_x_positions[i] / x_spacing);
-					final int y_on_screen = canvas.myScreenYD(precise_y_positions[i] / y_spacing);
+					final int x_on_screen = canvas.myScreenXD(getPreciseX(i) / x_spacing);
+					final int y_on_screen = canvas.myScreenYD(getPreciseY(i) / y_spacing);
 
 					g.drawLine(x_on_screen, y_on_screen, left_x_on_screen, left_y_on_screen);
 					g.drawLine(x_on_screen, y_on_screen, right_x_on_screen, right_y_on_screen);
@@ -759,6 +894,11 @@ public class Path implements Comparable<Path> {
 			if ((either_side >= 0) && (Math.abs(slice_of_point - slice) > either_side))
 				continue;
 
+			if (notFirstPoint && notLastPoint && x == last_drawn_x && y == last_drawn_y)
+				continue;
+			last_drawn_x = x;
+			last_drawn_y = y;
+
 			// If there was a previous point in this path, draw a line from
 			// there to here:
 			if (notFirstPoint) {
@@ -792,6 +932,58 @@ public class Path implements Comparable<Path> {
 
 	}
 
+	/*
+	 * Returns false if nothing within the bounding box starting at
+	 * box[offset] could be drawn in visibleArea (in screen co-ordinates) or,
+	 * if either_side is not negative, within either_side slices of slice.
+	 */
+	private boolean boxMayBeDrawn(final double[] box, final int offset, final TracerCanvas canvas, final int plane,
+			final Rectangle visibleArea, final int slice, final int either_side) {
+		final double min_x = box[offset] / x_spacing, max_x = box[offset + 3] / x_spacing;
+		final double min_y = box[offset + 1] / y_spacing, max_y = box[offset + 4] / y_spacing;
+		final double min_z = box[offset + 2] / z_spacing, max_z = box[offset + 5] / z_spacing;
+		int x1, x2, y1, y2;
+		double s1, s2;
+		switch (plane) {
+		case ThreePanes.XY_PLANE:
+			x1 = canvas.myScreenXD(min_x);
+			x2 = canvas.myScreenXD(max_x);
+			y1 = canvas.myScreenYD(min_y);
+			y2 = canvas.myScreenYD(max_y);
+			s1 = min_z;
+			s2 = max_z;
+			break;
+		case ThreePanes.XZ_PLANE:
+			x1 = canvas.myScreenXD(min_x);
+			x2 = canvas.myScreenXD(max_x);
+			y1 = canvas.myScreenYD(min_z);
+			y2 = canvas.myScreenYD(max_z);
+			s1 = min_y;
+			s2 = max_y;
+			break;
+		case ThreePanes.ZY_PLANE:
+			x1 = canvas.myScreenXD(min_z);
+			x2 = canvas.myScreenXD(max_z);
+			y1 = canvas.myScreenYD(min_y);
+			y2 = canvas.myScreenYD(max_y);
+			s1 = min_x;
+			s2 = max_x;
+			break;
+		default:
+			throw new RuntimeException("BUG: Unknown plane! (" + plane + ")");
+		}
+		if (Math.max(x1, x2) < visibleArea.x || Math.min(x1, x2) > visibleArea.x + visibleArea.width
+				|| Math.max(y1, y2) < visibleArea.y || Math.min(y1, y2) > visibleArea.y + visibleArea.height)
+			return false;
+		if (either_side >= 0) {
+			final long first_slice = Math.round(Math.min(s1, s2));
+			final long last_slice = Math.round(Math.max(s1, s2));
+			if (last_slice < slice - either_side || first_slice > slice + either_side)
+				return false;
+		}
+		return true;
+	}
+
 	private void fillOval(final Graphics g, final Color gColor, final int x, final int y, int dim,
 			final boolean highContrast) {
 		if (highContrast) {
@@ -953,9 +1145,9 @@ public class Path implements Comparable<Path> {
 
 		for (int i = 0; i < size(); ++i) {
 
-			final double diff_x = x - precise_x_positions[i];
-			final double diff_y = y - precise_y_positions[i];
-			final double diff_z = z - precise_z_positions[i];
+			final double diff_x = x - getPreciseX(i);
+			final double diff_y = y - getPreciseY(i);
+			final double diff_z = z - getPreciseZ(i);
 
 			final double thisDistanceSquared = diff_x * diff_x + diff_y * diff_y + diff_z * diff_z;
 
@@ -1101,6 +1293,7 @@ public class Path implements Comparable<Path> {
 	}
 
 	public void setGuessedTangents(final int pointsEitherSide) {
+		ensureArrays();
 		if (tangents_x == null || tangents_y == null || tangents_z == null)
 			throw new RuntimeException("BUG: setGuessedTangents called with one of the tangent arrays null");
 		final double[] tangent = new double[3];
@@ -1121,9 +1314,9 @@ public class Path implements Comparable<Path> {
 		if (max_index >= points)
 			max_index = points - 1;
 
-		result[0] = precise_x_positions[max_index] - precise_x_positions[min_index];
-		result[1] = precise_y_positions[max_index] - precise_y_positions[min_index];
-		result[2] = precise_z_positions[max_index] - precise_z_positions[min_index];
+		result[0] = getPreciseX(max_index) - getPreciseX(min_index);
+		result[1] = getPreciseY(max_index) - getPreciseY(min_index);
+		result[2] = getPreciseZ(max_index) - getPreciseZ(min_index);
 	}
 
 	public float[] squareNormalToVector(final int side, // The number of samples
@@ -1414,9 +1607,9 @@ public class Path implements Comparable<Path> {
 
 			getTangent(i, pointsEitherSide, tangent);
 
-			final double x_world = precise_x_positions[i];
-			final double y_world = precise_y_positions[i];
-			final double z_world = precise_z_positions[i];
+			final double x_world = getPreciseX(i);
+			final double y_world = getPreciseY(i);
+			final double z_world = getPreciseZ(i);
 
 			final double[] x_basis_in_plane = new double[3];
 			final double[] y_basis_in_plane = new double[3];
@@ -1705,9 +1898,9 @@ public class Path implements Comparable<Path> {
 					xs_in_image[i] = getXUnscaled(i);
 					ys_in_image[i] = getYUnscaled(i);
 					zs_in_image[i] = getZUnscaled(i);
-					optimized_x[i] = precise_x_positions[i];
-					optimized_y[i] = precise_y_positions[i];
-					optimized_z[i] = precise_z_positions[i];
+					optimized_x[i] = getPreciseX(i);
+					optimized_y[i] = getPreciseY(i);
+					optimized_z[i] = getPreciseZ(i);
 					rsUnscaled[i] = 1;
 					rs[i] = scaleInNormalPlane;
 					modeRadiusesUnscaled[i] = 1;
@@ -1786,6 +1979,113 @@ public class Path implements Comparable<Path> {
 	double[] precise_y_positions;
 	double[] precise_z_positions;
 
+	/*
+	 * When the path has been compacted, the arrays above are null and its
+	 * points are instead held in a shared arena, at the place recorded in
+	 * arenaSlot. Anything that needs the arrays themselves (i.e. anything
+	 * that modifies the path) must call ensureArrays() first. The readers
+	 * below take one copy of arenaSlot and use only that, since the arena
+	 * replaces it whenever it moves this path's points.
+	 */
+	volatile PathPointArena.Slot arenaSlot;
+
+	/**
+	 * Moves the points of this path (and its radii and tangents, if it has
+	 * fitted circles) into the given arena, releasing its own arrays. The
+	 * coordinates are then held at float precision. The path moves back out
+	 * of the arena as soon as it's modified.
+	 */
+	public synchronized void compactInto(final PathPointArena target) {
+		final PathPointArena.Slot slot = arenaSlot;
+		if (slot != null && slot.arena == target)
+			return;
+		ensureArrays();
+		target.store(this, precise_x_positions, precise_y_positions, precise_z_positions, radiuses, tangents_x,
+				tangents_y, tangents_z, points);
+		precise_x_positions = precise_y_positions = precise_z_positions = null;
+		radiuses = tangents_x = tangents_y = tangents_z = null;
+		maxPoints = points;
+	}
+
+	/** Returns true if the points of this path are held in an arena. */
+	public boolean isCompacted() {
+		return arenaSlot != null;
+	}
+
+	/*
+	 * Copies the points of a compacted path back into arrays of its own
+	 * (sized exactly, since it's probably about to be modified), and frees
+	 * its space in the arena.
+	 */
+	synchronized void ensureArrays() {
+		final PathPointArena.Slot slot = arenaSlot;
+		if (slot == null)
+			return;
+		final double[][] copied = slot.arena.copyOut(this);
+		precise_x_positions = copied[0];
+		precise_y_positions = copied[1];
+		precise_z_positions = copied[2];
+		radiuses = copied[3];
+		tangents_x = copied[4];
+		tangents_y = copied[5];
+		tangents_z = copied[6];
+		maxPoints = points;
+		arenaSlot = null;
+	}
+
+	/** Returns the x coordinate (in calibrated units) of point i. */
+	public double getPreciseX(final int i) {
+		final PathPointArena.Slot s = arenaSlot;
+		return (s == null) ? precise_x_positions[i] : s.xs[s.offset + i];
+	}
+
+	/** Returns the y coordinate (in calibrated units) of point i. */
+	public double getPreciseY(final int i) {
+		final PathPointArena.Slot s = arenaSlot;
+		return (s == null) ? precise_y_positions[i] : s.ys[s.offset + i];
+	}
+
+	/** Returns the z coordinate (in calibrated units) of point i. */
+	public double getPreciseZ(final int i) {
+		final PathPointArena.Slot s = arenaSlot;
+		return (s == null) ? precise_z_positions[i] : s.zs[s.offset + i];
+	}
+
+	/** Returns the fitted radius at point i; see {@link #hasCircles()}. */
+	public double getRadius(final int i) {
+		final PathPointArena.Slot s = arenaSlot;
+		return (s == null) ? radiuses[i] : s.radii[s.offset + i];
+	}
+
+	public double getTangentX(final int i) {
+		final PathPointArena.Slot s = arenaSlot;
+		return (s == null) ? tangents_x[i] : s.tangents_x[s.offset + i];
+	}
+
+	public double getTangentY(final int i) {
+		final PathPointArena.Slot s = arenaSlot;
+		return (s == null) ? tangents_y[i] : s.tangents_y[s.offset + i];
+	}
+
+	public double getTangentZ(final int i) {
+		final PathPointArena.Slot s = arenaSlot;
+		return (s == null) ? tangents_z[i] : s.tangents_z[s.offset + i];
+	}
+
+	/*
+	 * Returns a copy of the coordinates of this path as
+	 * { xs, ys, zs }, each exactly as long as the path:
+	 */
+	double[][] getPrecisePositions() {
+		final double[][] result = new double[3][points];
+		for (int i = 0; i < points; ++i) {
+			result[0][i] = getPreciseX(i);
+			result[1][i] = getPreciseY(i);
+			result[2][i] = getPreciseZ(i);
+		}
+		return result;
+	}
+
 	// http://www.neuronland.org/NLMorphologyConverter/MorphologyFormats/SWC/Spec.html
 	public static final int SWC_UNDEFINED = 0;
 	public static final int SWC_SOMA = 1;
@@ -2019,13 +2319,15 @@ public class Path implements Comparable<Path> {
 	}
 
 	public boolean hasCircles() {
-		return radiuses != null;
+		final PathPointArena.Slot s = arenaSlot;
+		return (s == null) ? radiuses != null : s.radii != null;
 	}
 
 	public void setFittedCircles(final double[] tangents_x, final double[] tangents_y, final double[] tangents_z,
 			final double[] radiuses, final double[] optimized_x, final double[] optimized_y,
 			final double[] optimized_z) {
 
+		ensureArrays();
 		this.tangents_x = tangents_x.clone();
 		this.tangents_y = tangents_y.clone();
 		this.tangents_z = tangents_z.clone();
@@ -2035,6 +2337,7 @@ public class Path implements Comparable<Path> {
 		this.precise_x_positions = optimized_x.clone();
 		this.precise_y_positions = optimized_y.clone();
 		this.precise_z_positions = optimized_z.clone();
+		invalidateGeometry();
 	}
 
 	public String realToString() {
@@ -2135,9 +2438,12 @@ public class Path implements Comparable<Path> {
 		if (!visible) {
 			/*
 			 * It shouldn't be visible - if any of the contents are non-null,
-			 * remove them:
+			 * hide them (rather than removing them, so that showing them again
+			 * is cheap):
 			 */
-			removeIncludingFittedFrom3DViewer(univ);
+			setVisibleIn3DViewer(false);
+			if (fitted != null)
+				fitted.setVisibleIn3DViewer(false);
 			return;
 		}
 
@@ -2161,6 +2467,7 @@ public class Path implements Comparable<Path> {
 			}
 			pathToUse = this;
 		}
+		pathToUse.setVisibleIn3DViewer(true);
 
 		if (verbose) {
 			SNT.log("pathToUse is: " + pathToUse);
@@ -2211,7 +2518,7 @@ public class Path implements Comparable<Path> {
 		if (pathToUse.is3DViewInvalid()) {
 			pathToUse.removeFrom3DViewer(univ);
 			pathToUse.addTo3DViewer(univ, color, colorImage);
-			invalid3DMesh = false;
+			pathToUse.invalid3DMesh = false;
 			return;
 		}
 
@@ -2254,6 +2561,13 @@ public class Path implements Comparable<Path> {
 	 */
 	public static final int noMoreThanOneEvery = 2;
 
+	synchronized void setVisibleIn3DViewer(final boolean visible) {
+		if (content3D != null && content3D.isVisible() != visible)
+			content3D.setVisible(visible);
+		if (content3DExtra != null && content3DExtra.isVisible() != visible)
+			content3DExtra.setVisible(visible);
+	}
+
 	synchronized public void removeFrom3DViewer(final Image3DUniverse univ) {
 		if (content3D != null) {
 			univ.removeContent(nameWhenAddedToViewer);
@@ -2268,8 +2582,8 @@ public class Path implements Comparable<Path> {
 	public java.util.List<Point3f> getPoint3fList() {
 		final ArrayList<Point3f> linePoints = new ArrayList<>();
 		for (int i = 0; i < points; ++i) {
-			linePoints.add(new Point3f((float) precise_x_positions[i], (float) precise_y_positions[i],
-					(float) precise_z_positions[i]));
+			linePoints.add(new Point3f((float) getPreciseX(i), (float) getPreciseY(i),
+					(float) getPreciseZ(i)));
 		}
 		return linePoints;
 	}
@@ -2278,8 +2592,52 @@ public class Path implements Comparable<Path> {
 
 	public void invalidate3DView() {
 		invalid3DMesh = true;
+		cachedTubeMesh = null;
+		cachedDiscsMesh = null;
 	}
 
+	/*
+	 * A triangle mesh generated for this path, and what it was generated for.
+	 * When no colour image is used every vertex has the same colour, so the
+	 * mesh can be reused with any colour; otherwise the per-vertex colours
+	 * are kept too and the mesh is only valid for the same colour.
+	 */
+	private static class Mesh3D {
+		final long geometryVersion;
+		final ImagePlus colorImage;
+		final Color3f color;
+		final List<Point3f> triangles;
+		final List<Color3f> colors;
+
+		Mesh3D(final long geometryVersion, final ImagePlus colorImage, final Color3f color,
+				final List<Point3f> triangles, final List<Color3f> colors) {
+			this.geometryVersion = geometryVersion;
+			this.colorImage = colorImage;
+			this.color = (colorImage == null) ? null : new Color3f(color);
+			this.triangles = triangles;
+			this.colors = (colorImage == null) ? null : colors;
+		}
+
+		boolean isValidFor(final long geometryVersion, final Color3f color, final ImagePlus colorImage) {
+			return this.geometryVersion == geometryVersion && this.colorImage == colorImage
+					&& (colorImage == null || this.color.equals(color));
+		}
+
+		List<Color3f> colorsFor(final Color3f color) {
+			if (colors != null)
+				return new ArrayList<>(colors);
+			return new ArrayList<>(Collections.nCopies(triangles.size(), color));
+		}
+	}
+
+	/*
+	 * The meshes last generated for the surface and discs representations of
+	 * this path, so that it can be added to the 3D viewer again (e.g. after
+	 * switching the display mode) without regenerating them.
+	 */
+	private volatile Mesh3D cachedTubeMesh;
+	private volatile Mesh3D cachedDiscsMesh;
+
 	public boolean is3DViewInvalid() {
 		return invalid3DMesh;
 	}
@@ -2301,23 +2659,35 @@ public class Path implements Comparable<Path> {
 		if (!hasCircles())
 			return null;
 
-		final Color3f[] originalColors = Pipe.getPointColors(precise_x_positions, precise_y_positions,
-				precise_z_positions, c, colorImage);
+		final long version = getGeometryVersion();
+		Mesh3D mesh = cachedDiscsMesh;
+		if (mesh == null || !mesh.isValidFor(version, c, colorImage)) {
+			mesh = makeDiscsMesh(version, c, colorImage);
+			cachedDiscsMesh = mesh;
+		}
+		return univ.addTriangleMesh(new ArrayList<>(mesh.triangles), mesh.colorsFor(c),
+				univ.getSafeContentName("Discs for path " + getName()));
+	}
+
+	private Mesh3D makeDiscsMesh(final long version, final Color3f c, final ImagePlus colorImage) {
+		final double[][] positions = getPrecisePositions();
+		final Color3f[] originalColors = Pipe.getPointColors(positions[0], positions[1], positions[2], c,
+				colorImage);
 
 		final List<Color3f> meshColors = new ArrayList<>();
 
 		final int edges = 8;
 		final List<Point3f> allTriangles = new ArrayList<>(edges * points);
 		for (int i = 0; i < points; ++i) {
-			final List<Point3f> discMesh = customnode.MeshMaker.createDisc(precise_x_positions[i],
-					precise_y_positions[i], precise_z_positions[i], tangents_x[i], tangents_y[i], tangents_z[i],
-					radiuses[i], 8);
+			final List<Point3f> discMesh = customnode.MeshMaker.createDisc(getPreciseX(i),
+					getPreciseY(i), getPreciseZ(i), getTangentX(i), getTangentY(i), getTangentZ(i),
+					getRadius(i), 8);
 			final int pointsInDiscMesh = discMesh.size();
 			for (int j = 0; j < pointsInDiscMesh; ++j)
 				meshColors.add(originalColors[i]);
 			allTriangles.addAll(discMesh);
 		}
-		return univ.addTriangleMesh(allTriangles, meshColors, univ.getSafeContentName("Discs for path " + getName()));
+		return new Mesh3D(version, colorImage, c, allTriangles, meshColors);
 	}
 
 	synchronized public void addTo3DViewer(final Image3DUniverse univ, final Color c, final ImagePlus colorImage) {
@@ -2357,6 +2727,39 @@ public class Path implements Comparable<Path> {
 			return;
 		}
 
+		final long version = getGeometryVersion();
+		Mesh3D mesh = cachedTubeMesh;
+		if (mesh == null || !mesh.isValidFor(version, realColor, colorImage)) {
+			mesh = makeTubeMesh(version, colorImage);
+			cachedTubeMesh = mesh;
+		}
+
+		if (mesh == null) {
+			content3D = null;
+			content3DExtra = null;
+			return;
+		}
+
+		nameWhenAddedToViewer = univ.getSafeContentName(getName());
+		// univ.resetView();
+		content3D = univ.addTriangleMesh(new ArrayList<>(mesh.triangles), mesh.colorsFor(realColor),
+				nameWhenAddedToViewer);
+		content3D.setLocked(true);
+		content3DMultiColored = colorImage;
+
+		content3DExtra = null;
+		nameWhenAddedToViewerExtra = null;
+
+		// univ.resetView();
+		return;
+	}
+
+	/*
+	 * Generates the surface mesh for this path with Pipe.makeTube(), or returns
+	 * null if that fails.
+	 */
+	private Mesh3D makeTubeMesh(final long version, final ImagePlus colorImage) {
+
 		int pointsToUse = -1;
 
 		double[] x_points_d = new double[points];
@@ -2369,10 +2772,10 @@ public class Path implements Comparable<Path> {
 			int lastIndexAdded = -noMoreThanOneEvery;
 			for (int i = 0; i < points; ++i) {
 				if ((points <= noMoreThanOneEvery) || (i - lastIndexAdded >= noMoreThanOneEvery)) {
-					x_points_d[added] = precise_x_positions[i];
-					y_points_d[added] = precise_y_positions[i];
-					z_points_d[added] = precise_z_positions[i];
-					radiuses_d[added] = radiuses[i];
+					x_points_d[added] = getPreciseX(i);
+					y_points_d[added] = getPreciseY(i);
+					z_points_d[added] = getPreciseZ(i);
+					radiuses_d[added] = getRadius(i);
 					lastIndexAdded = i;
 					++added;
 				}
@@ -2380,9 +2783,9 @@ public class Path implements Comparable<Path> {
 			pointsToUse = added;
 		} else {
 			for (int i = 0; i < points; ++i) {
-				x_points_d[i] = precise_x_positions[i];
-				y_points_d[i] = precise_y_positions[i];
-				z_points_d[i] = precise_z_positions[i];
+				x_points_d[i] = getPreciseX(i);
+				y_points_d[i] = getPreciseY(i);
+				z_points_d[i] = getPreciseZ(i);
 				radiuses_d[i] = getMinimumSeparation() * 2;
 			}
 			pointsToUse = points;
@@ -2468,11 +2871,8 @@ public class Path implements Comparable<Path> {
 				resample, // do_resample
 				realColor, colorImage, tubeColors);
 
-		if (allPoints == null) {
-			content3D = null;
-			content3DExtra = null;
-			return;
-		}
+		if (allPoints == null)
+			return null;
 
 		// Make tube adds an extra point at the beginning and end:
 
@@ -2480,17 +2880,7 @@ public class Path implements Comparable<Path> {
 		final List<Point3f> triangles = Pipe.generateTriangles(allPoints, 1, // scale
 				tubeColors, vertexColorList);
 
-		nameWhenAddedToViewer = univ.getSafeContentName(getName());
-		// univ.resetView();
-		content3D = univ.addTriangleMesh(triangles, vertexColorList, nameWhenAddedToViewer);
-		content3D.setLocked(true);
-		content3DMultiColored = colorImage;
-
-		content3DExtra = null;
-		nameWhenAddedToViewerExtra = null;
-
-		// univ.resetView();
-		return;
+		return new Mesh3D(version, colorImage, realColor, triangles, vertexColorList);
 	}
 
 	public void setSelected(final boolean newSelectedStatus) {
@@ -2531,12 +2921,12 @@ public class Path implements Comparable<Path> {
 
 		for (int i = 0; i < points - 1; ++i) {
 
-			final double xdiff = precise_x_positions[i + 1] - precise_x_positions[i];
-			final double ydiff = precise_y_positions[i + 1] - precise_y_positions[i];
-			final double zdiff = precise_z_positions[i + 1] - precise_z_positions[i];
+			final double xdiff = getPreciseX(i + 1) - getPreciseX(i);
+			final double ydiff = getPreciseY(i + 1) - getPreciseY(i);
+			final double zdiff = getPreciseZ(i + 1) - getPreciseZ(i);
 			final double h = Math.sqrt(xdiff * xdiff + ydiff * ydiff + zdiff * zdiff);
-			final double r1 = radiuses[i];
-			final double r2 = radiuses[i + 1];
+			final double r1 = getRadius(i);
+			final double r2 = getRadius(i + 1);
 			// See http://en.wikipedia.org/wiki/Frustum
 			final double partVolume = (Math.PI * h * (r1 * r1 + r2 * r2 + r1 * r2)) / 3.0;
 			totalVolume += partVolume;
@@ -2574,9 +2964,9 @@ public class Path implements Comparable<Path> {
 		// previously fitted paths...
 
 		for (int i = 0; i < points; ++i) {
-			final double original_x = precise_x_positions[i];
-			final double original_y = precise_y_positions[i];
-			final double original_z = precise_z_positions[i];
+			final double original_x = getPreciseX(i);
+			final double original_y = getPreciseY(i);
+			final double original_z = getPreciseZ(i);
 			transformation.transformPoint(original_x, original_y, original_z, transformed);
 			final double new_x = transformed[0];
 			final double new_y = transformed[1];
@@ -2636,101 +3026,57 @@ public class Path implements Comparable<Path> {
 		return result;
 	}
 
+	/**
+	 * Simplifies this path with the Ramer-Douglas-Peucker algorithm, so that
+	 * no point that is removed lies further than
+	 * <code>maximumAllowedDeviation</code> from the simplified path (nor, for
+	 * a path with fitted circles, has a radius that differs by more than that
+	 * from the one interpolated there). The points where other paths join
+	 * this one are always kept. The path is modified in place.
+	 */
 	synchronized public void downsample(final double maximumAllowedDeviation) {
+		if (points < 3)
+			return;
 		// We should only downsample between the fixed points, i.e.
 		// where this neuron joins others
 		final Set<Integer> fixedPointSet = findJoinedPointIndices();
 		// Add the start and end points:
 		fixedPointSet.add(0);
 		fixedPointSet.add(points - 1);
-		final Integer[] fixedPoints = fixedPointSet.toArray(new Integer[0]);
-		Arrays.sort(fixedPoints);
-		int lastIndex = -1;
-		int totalDroppedPoints = 0;
-		for (final int fpi : fixedPoints) {
-			if (lastIndex >= 0) {
-				final int start = lastIndex - totalDroppedPoints;
-				final int end = fpi - totalDroppedPoints;
-				// Now downsample between those points:
-				final ArrayList<SimplePoint> forDownsampling = new ArrayList<>();
-				for (int i = start; i <= end; ++i) {
-					forDownsampling.add(
-							new SimplePoint(precise_x_positions[i], precise_y_positions[i], precise_z_positions[i], i));
-				}
-				final ArrayList<SimplePoint> downsampled = PathDownsampler.downsample(forDownsampling,
-						maximumAllowedDeviation);
-
-				// Now update x_points, y_points, z_points:
-				final int pointsDroppedThisTime = forDownsampling.size() - downsampled.size();
-				totalDroppedPoints += pointsDroppedThisTime;
-				final int newLength = points - pointsDroppedThisTime;
-				final double[] new_x_points = new double[maxPoints];
-				final double[] new_y_points = new double[maxPoints];
-				final double[] new_z_points = new double[maxPoints];
-				// First copy the elements before 'start' verbatim:
-				System.arraycopy(precise_x_positions, 0, new_x_points, 0, start);
-				System.arraycopy(precise_y_positions, 0, new_y_points, 0, start);
-				System.arraycopy(precise_z_positions, 0, new_z_points, 0, start);
-				// Now copy in the downsampled points:
-				final int downsampledLength = downsampled.size();
-				for (int i = 0; i < downsampledLength; ++i) {
-					final SimplePoint sp = downsampled.get(i);
-					new_x_points[start + i] = sp.x;
-					new_y_points[start + i] = sp.y;
-					new_z_points[start + i] = sp.z;
-				}
-				System.arraycopy(precise_x_positions, end, new_x_points, (start + downsampledLength) - 1, points - end);
-				System.arraycopy(precise_y_positions, end, new_y_points, (start + downsampledLength) - 1, points - end);
-				System.arraycopy(precise_z_positions, end, new_z_points, (start + downsampledLength) - 1, points - end);
-
-				double[] new_radiuses = null;
-				if (hasCircles()) {
-					new_radiuses = new double[maxPoints];
-					System.arraycopy(radiuses, 0, new_radiuses, 0, start);
-					for (int i = 0; i < downsampledLength; ++i) {
-						final SimplePoint sp = downsampled.get(i);
-						// Find a first and last index in the original radius
-						// array to
-						// take a mean over:
-						int firstRadiusIndex, lastRadiusIndex, n = 0;
-						double total = 0;
-						if (i == 0) {
-							// This is the first point:
-							final SimplePoint spNext = downsampled.get(i + 1);
-							firstRadiusIndex = sp.originalIndex;
-							lastRadiusIndex = (sp.originalIndex + spNext.originalIndex) / 2;
-						} else if (i == downsampledLength - 1) {
-							// The this is the last point:
-							final SimplePoint spPrevious = downsampled.get(i - 1);
-							firstRadiusIndex = (spPrevious.originalIndex + sp.originalIndex) / 2;
-							lastRadiusIndex = sp.originalIndex;
-						} else {
-							final SimplePoint spPrevious = downsampled.get(i - 1);
-							final SimplePoint spNext = downsampled.get(i + 1);
-							firstRadiusIndex = (sp.originalIndex + spPrevious.originalIndex) / 2;
-							lastRadiusIndex = (sp.originalIndex + spNext.originalIndex) / 2;
-						}
-						for (int j = firstRadiusIndex; j <= lastRadiusIndex; ++j) {
-							total += radiuses[j];
-							++n;
-						}
-						new_radiuses[start + i] = total / n;
-					}
-					System.arraycopy(radiuses, end, new_radiuses, (start + downsampledLength) - 1, points - end);
-				}
-
-				// Now update all of those fields:
-				points = newLength;
-				precise_x_positions = new_x_points;
-				precise_y_positions = new_y_points;
-				precise_z_positions = new_z_points;
-				radiuses = new_radiuses;
-				if (hasCircles()) {
-					setGuessedTangents(2);
-				}
+		ensureArrays();
+		final boolean[] retain = new boolean[points];
+		for (final int fpi : fixedPointSet)
+			retain[fpi] = true;
+		final int[] stack = new int[2 * points];
+		final double[] radii = hasCircles() ? radiuses : null;
+		int lastIndex = 0;
+		for (int i = 1; i < points; ++i) {
+			if (retain[i]) {
+				PathDownsampler.markRetained(precise_x_positions, precise_y_positions, precise_z_positions, radii,
+						lastIndex, i, maximumAllowedDeviation, retain, stack);
+				lastIndex = i;
 			}
-			lastIndex = fpi;
 		}
+
+		// Now move the retained points down over the dropped ones:
+		int newLength = 0;
+		for (int i = 0; i < points; ++i) {
+			if (!retain[i])
+				continue;
+			precise_x_positions[newLength] = precise_x_positions[i];
+			precise_y_positions[newLength] = precise_y_positions[i];
+			precise_z_positions[newLength] = precise_z_positions[i];
+			if (radii != null)
+				radii[newLength] = radii[i];
+			++newLength;
+		}
+		if (newLength == points)
+			return;
+		points = newLength;
+		if (hasCircles()) {
+			setGuessedTangents(2);
+		}
+		invalidateGeometry();
 		invalidate3DView();
 	}
 
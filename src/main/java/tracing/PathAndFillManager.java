@@ -24,6 +24,7 @@
 
 package tracing;
 
+import java.awt.Color;
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
@@ -43,6 +44,9 @@ import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -52,6 +56,13 @@ import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
@@ -71,6 +82,7 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.measure.Calibration;
 import ij3d.Content;
+import ij3d.Image3DUniverse;
 import ij3d.UniverseListener;
 import util.Bresenham3D;
 import util.XMLFunctions;
@@ -175,6 +187,15 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 	HashSet<Path> selectedPathsSet;
 
+	/*
+	 * The shared store for the points of compacted paths (see
+	 * compactPaths()), created when first needed:
+	 */
+	PathPointArena pointArena;
+
+	/* Whether importSWC() should compact the paths it creates: */
+	boolean compactPathsOnImport = Boolean.getBoolean("snt.compactPaths");
+
 	public int size() {
 		return allPaths.size();
 	}
@@ -192,6 +213,46 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		return allPaths.get(i);
 	}
 
+	/**
+	 * Moves the points of every path into a single shared, float-precision
+	 * store, which takes much less memory than the arrays each path
+	 * otherwise keeps. This is worthwhile for large reconstructions that
+	 * are mostly being viewed or analysed; any path that is subsequently
+	 * modified moves back out to arrays of its own.
+	 */
+	public synchronized void compactPaths() {
+		if (pointArena == null)
+			pointArena = new PathPointArena();
+		for (final Path p : allPaths) {
+			p.compactInto(pointArena);
+			if (p.fitted != null)
+				p.fitted.compactInto(pointArena);
+		}
+		pointArena.trim();
+	}
+
+	/**
+	 * Sets whether the paths created by {@link #importSWC} are compacted
+	 * once the import is complete; see {@link #compactPaths()}. The default
+	 * is taken from the <code>snt.compactPaths</code> system property.
+	 */
+	public void setCompactPathsOnImport(final boolean compactPathsOnImport) {
+		this.compactPathsOnImport = compactPathsOnImport;
+	}
+
+	/**
+	 * Returns an estimate of the number of bytes used to store the points
+	 * (and any radii and tangents) of all the paths.
+	 */
+	public synchronized long getPointStorageBytes() {
+		long bytes = (pointArena == null) ? 0 : pointArena.getBytes();
+		for (final Path p : allPaths) {
+			if (!p.isCompacted())
+				bytes += 8L * p.maxPoints * (p.hasCircles() ? 7 : 3);
+		}
+		return bytes;
+	}
+
 	public synchronized Path getPathFromName(final String name) {
 		return getPathFromName(name, true);
 	}
@@ -241,6 +302,7 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		selectedPathsSet.clear();
 		for (int i = 0; i < selectedPaths.length; ++i)
 			selectedPathsSet.add(selectedPaths[i]);
+		updateJoinPointIndex();
 		for (final PathAndFillListener pafl : listeners) {
 			if (pafl != sourceOfMessage)
 				// The source of the message already knows the states:
@@ -535,10 +597,10 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 			for (int i = indexToStartAt; i < pathToUse.points; ++i) {
 				double radius = 0;
 				if (realRadius)
-					radius = pathToUse.radiuses[i];
+					radius = pathToUse.getRadius(i);
 				final SWCPoint swcPoint = new SWCPoint(currentPointID, pathToUse.getSWCType(),
-						pathToUse.precise_x_positions[i], pathToUse.precise_y_positions[i],
-						pathToUse.precise_z_positions[i], radius,
+						pathToUse.getPreciseX(i), pathToUse.getPreciseY(i),
+						pathToUse.getPreciseZ(i), radius,
 						firstSWCPoint == null ? nearestParentSWCPointID : currentPointID - 1);
 				swcPoint.fromPath = currentPath;
 				result.add(swcPoint);
@@ -556,10 +618,10 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 				}
 				double radius = 0;
 				if (realRadius)
-					radius = pathToUse.radiuses[i];
+					radius = pathToUse.getRadius(i);
 				final SWCPoint swcPoint = new SWCPoint(currentPointID, pathToUse.getSWCType(),
-						pathToUse.precise_x_positions[i], pathToUse.precise_y_positions[i],
-						pathToUse.precise_z_positions[i], radius, previousPointID);
+						pathToUse.getPreciseX(i), pathToUse.getPreciseY(i),
+						pathToUse.getPreciseZ(i), radius, previousPointID);
 				swcPoint.fromPath = currentPath;
 				result.add(swcPoint);
 				++currentPointID;
@@ -604,6 +666,8 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 	public synchronized void resetListeners(final Path justAdded, final boolean expandAll) {
 
+		updateJoinPointIndex();
+
 		final ArrayList<String> pathListEntries = new ArrayList<>();
 
 		for (final Path p : allPaths) {
@@ -684,8 +748,15 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		 * with the right name via update3DViewerContents:
 		 */
 		if (plugin != null && plugin.use3DViewer) {
-			p.removeFrom3DViewer(plugin.univ);
-			p.addTo3DViewer(plugin.univ, plugin.deselectedColor3f, plugin.colorImage);
+			final Color3f color = plugin.deselectedColor3f;
+			final ImagePlus colorImage = plugin.colorImage;
+			schedule3DUpdate(p, new Runnable() {
+				@Override
+				public void run() {
+					p.removeFrom3DViewer(plugin.univ);
+					p.addTo3DViewer(plugin.univ, color, colorImage);
+				}
+			});
 		}
 		allPaths.add(p);
 		resetListeners(p);
@@ -759,10 +830,9 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		selectedPathsSet.remove(unfittedPathToDelete);
 
 		if (plugin != null && plugin.use3DViewer) {
-			if (fittedPathToDelete != null && fittedPathToDelete.content3D != null)
-				fittedPathToDelete.removeFrom3DViewer(plugin.univ);
-			if (unfittedPathToDelete.content3D != null)
-				unfittedPathToDelete.removeFrom3DViewer(plugin.univ);
+			if (fittedPathToDelete != null)
+				cancel3DUpdateAndRemove(fittedPathToDelete);
+			cancel3DUpdateAndRemove(unfittedPathToDelete);
 		}
 
 		if (updateInterface)
@@ -953,16 +1023,16 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 					final int px = p.getXUnscaled(i);
 					final int py = p.getYUnscaled(i);
 					final int pz = p.getZUnscaled(i);
-					final double pxd = p.precise_x_positions[i];
-					final double pyd = p.precise_y_positions[i];
-					final double pzd = p.precise_z_positions[i];
+					final double pxd = p.getPreciseX(i);
+					final double pyd = p.getPreciseY(i);
+					final double pzd = p.getPreciseZ(i);
 					String attributes = "x=\"" + px + "\" " + "y=\"" + py + "\" z=\"" + pz + "\" " + "xd=\"" + pxd
 							+ "\" yd=\"" + pyd + "\" zd=\"" + pzd + "\"";
 					if (p.hasCircles()) {
-						attributes += " tx=\"" + p.tangents_x[i] + "\"";
-						attributes += " ty=\"" + p.tangents_y[i] + "\"";
-						attributes += " tz=\"" + p.tangents_z[i] + "\"";
-						attributes += " r=\"" + p.radiuses[i] + "\"";
+						attributes += " tx=\"" + p.getTangentX(i) + "\"";
+						attributes += " ty=\"" + p.getTangentY(i) + "\"";
+						attributes += " tz=\"" + p.getTangentZ(i) + "\"";
+						attributes += " r=\"" + p.getRadius(i) + "\"";
 					}
 					pw.println("    <point " + attributes + "/>");
 				}
@@ -1421,12 +1491,19 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 
 	public void addTo3DViewer(final Path p) {
 		if (plugin != null && plugin.use3DViewer && p.fittedVersionOf == null && p.size() > 1) {
-			Path pathToAdd;
+			final Path pathToAdd;
 			if (p.getUseFitted())
 				pathToAdd = p.fitted;
 			else
 				pathToAdd = p;
-			pathToAdd.addTo3DViewer(plugin.univ, plugin.deselectedColor, plugin.colorImage);
+			final Color color = plugin.deselectedColor;
+			final ImagePlus colorImage = plugin.colorImage;
+			schedule3DUpdate(p, new Runnable() {
+				@Override
+				public void run() {
+					pathToAdd.addTo3DViewer(plugin.univ, color, colorImage);
+				}
+			});
 		}
 	}
 
@@ -1605,7 +1682,7 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		maxUsedID = -1;
 		if (plugin != null && plugin.use3DViewer) {
 			for (final Path p : allPaths)
-				p.removeFrom3DViewer(plugin.univ);
+				cancel3DUpdateAndRemove(p);
 		}
 		allPaths.clear();
 		allFills.clear();
@@ -1833,6 +1910,9 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 			p.setStartJoin(previousPath, pointInImage);
 		}
 
+		if (compactPathsOnImport)
+			compactPaths();
+
 		resetListeners(null, true);
 		return true;
 	}
@@ -2040,37 +2120,35 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		}
 	}
 
-	synchronized PointInImage nearestJoinPointOnSelectedPaths(final double x, final double y, final double z) {
-
-		PointInImage result = null;
-
-		double minimumDistanceSquared = Double.MAX_VALUE;
-
-		final int paths = allPaths.size();
-
-		for (int s = 0; s < paths; ++s) {
-
-			final Path p = allPaths.get(s);
+	/*
+	 * A copy of the points of the selected paths, taken whenever the paths
+	 * or the selection change (every change to the paths ends with a call to
+	 * resetListeners()), so that the nearest join point can be looked up
+	 * from any thread, e.g. while the cursor is tracked off the event
+	 * dispatch thread, without scanning the paths as they're being edited:
+	 */
+	private volatile JoinPointIndex joinPointIndex;
 
+	private synchronized void updateJoinPointIndex() {
+		final List<PointInImage> points = new ArrayList<>();
+		for (final Path p : allPaths) {
 			if (!selectedPathsSet.contains(p))
 				continue;
-
-			if (0 == p.size())
-				continue;
-
-			final int i = p.indexNearestTo(x * x_spacing, y * y_spacing, z * z_spacing);
-
-			final PointInImage nearestOnPath = p.getPointInImage(i);
-
-			final double distanceSquared = nearestOnPath.distanceSquaredTo(x * x_spacing, y * y_spacing, z * z_spacing);
-
-			if (distanceSquared < minimumDistanceSquared) {
-				result = nearestOnPath;
-				minimumDistanceSquared = distanceSquared;
-			}
+			for (int i = 0; i < p.size(); ++i)
+				points.add(p.getPointInImage(i));
 		}
+		joinPointIndex = points.isEmpty() ? null : new JoinPointIndex(points);
+	}
 
-		return result;
+	/**
+	 * Returns the point of the selected paths nearest to the given point in
+	 * image co-ordinates, or null if no paths are selected.
+	 */
+	PointInImage nearestJoinPointOnSelectedPaths(final double x, final double y, final double z) {
+		final JoinPointIndex index = joinPointIndex;
+		if (index == null)
+			return null;
+		return index.nearestTo(x * x_spacing, y * y_spacing, z * z_spacing);
 	}
 
 	@Deprecated
@@ -2413,15 +2491,17 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		if (plugin != null && !plugin.use3DViewer)
 			return;
 		final boolean showOnlySelectedPaths = plugin.getShowOnlySelectedPaths();
+		final int paths3DDisplay = plugin.getPaths3DDisplay();
+		final ImagePlus colorImage = plugin.colorImage;
 		// Now iterate over all the paths:
-		for (Path p : allPaths) {
+		for (final Path p : allPaths) {
 
 			if (p.fittedVersionOf != null)
 				continue;
 
 			final boolean selected = p.getSelected();
 			final boolean customColor = (p.hasCustomColor && plugin.displayCustomPathColors);
-			Color3f color3f;
+			final Color3f color3f;
 			if (customColor)
 				color3f = new Color3f(p.getColor());
 			else if (selected)
@@ -2429,21 +2509,93 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 			else
 				color3f = plugin.deselectedColor3f;
 
-			p.updateContent3D(plugin.univ, // The appropriate 3D universe
-					(selected || !showOnlySelectedPaths), // Visible at all?
-					plugin.getPaths3DDisplay(), // How to display?
-					color3f, plugin.colorImage); // Colour?
-
-			// If path is being rendered with its own custom color, highlight it
-			// somehow if is being selected
-			if (p.getUseFitted())
-				p = p.getFitted();
-			if (p.content3D != null)
-				p.content3D.setShaded(!(customColor && selected));
+			schedule3DUpdate(p, new Runnable() {
+				@Override
+				public void run() {
+					p.updateContent3D(plugin.univ, // The appropriate 3D universe
+							(selected || !showOnlySelectedPaths), // Visible at all?
+							paths3DDisplay, // How to display?
+							color3f, colorImage); // Colour?
+
+					// If path is being rendered with its own custom color,
+					// highlight it somehow if is being selected
+					final Path pathInUse = p.getUseFitted() ? p.getFitted() : p;
+					if (pathInUse.content3D != null)
+						pathInUse.content3D.setShaded(!(customColor && selected));
+				}
+			});
 
 		}
 	}
 
+	/*
+	 * Generating the 3D viewer's representation of a path (in particular its
+	 * surface mesh) can take a long time, so it is done on these threads
+	 * rather than on the thread that asked for the update, which is usually
+	 * the event dispatch thread. Only the most recent update requested for
+	 * each path is kept: if another one is requested before the first has
+	 * started, the first is simply dropped. Updates to a single path are
+	 * serialized by synchronizing on that path, as the Path 3D methods do.
+	 * A path and its fitted version share one 3D content, so both are keyed
+	 * (and locked) by the unfitted path; see key3D().
+	 */
+	private static final ExecutorService viewer3DExecutor = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread t = new Thread(r, "SNT 3D viewer update");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private final Map<Path, Runnable> pending3DUpdates = new ConcurrentHashMap<>();
+
+	private static Path key3D(final Path p) {
+		return (p.fittedVersionOf != null) ? p.fittedVersionOf : p;
+	}
+
+	private void schedule3DUpdate(final Path p, final Runnable update) {
+		final Path key = key3D(p);
+		if (pending3DUpdates.put(key, update) != null)
+			return; // A task for this path is queued, and will run this update
+		viewer3DExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (key) {
+					final Runnable latest = pending3DUpdates.remove(key);
+					if (latest == null)
+						return;
+					try {
+						latest.run();
+					} catch (final Throwable t) {
+						SNT.warn("Updating the 3D viewer failed for " + key, t);
+					}
+				}
+			}
+		});
+	}
+
+	/*
+	 * Drops any queued update of the path and removes it from the viewer.
+	 * This is usually called on the event dispatch thread, so rather than
+	 * waiting there for an update that is already running to finish, the
+	 * removal is done on the update threads, once it has.
+	 */
+	private void cancel3DUpdateAndRemove(final Path p) {
+		final Path key = key3D(p);
+		pending3DUpdates.remove(key);
+		final Image3DUniverse univ = plugin.univ;
+		viewer3DExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (key) {
+					p.removeFrom3DViewer(univ);
+				}
+			}
+		});
+	}
+
 	/**
 	 * A base class for all the methods we might want to use to transform paths.
 	 */
@@ -2526,8 +2678,65 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 	}
 
 	public void downsampleAll(final double maximumPermittedDistance) {
-		for (final Path p : allPaths) {
-			p.downsample(maximumPermittedDistance);
+		final ArrayList<Path> paths;
+		synchronized (this) {
+			paths = new ArrayList<>(allPaths);
+		}
+		downsample(paths, maximumPermittedDistance);
+	}
+
+	/**
+	 * Downsamples each of the given paths (see {@link Path#downsample}),
+	 * spreading them over the available processors, and returns once they
+	 * have all been done. (Compacted paths are safe to downsample
+	 * concurrently: each moves out of the shared arena under its lock.) If
+	 * the calling thread is interrupted, the paths not yet started are left
+	 * alone and a RuntimeException saying how many were done is thrown.
+	 */
+	public void downsample(final Collection<Path> paths, final double maximumPermittedDistance) {
+		final int threads = Math.min(paths.size(), Runtime.getRuntime().availableProcessors());
+		if (threads <= 1) {
+			for (final Path p : paths)
+				p.downsample(maximumPermittedDistance);
+			updateJoinPointIndex();
+			return;
+		}
+		/*
+		 * The longest paths go first, so that a long one isn't left running
+		 * on its own at the end:
+		 */
+		final ArrayList<Path> sorted = new ArrayList<>(paths);
+		Collections.sort(sorted, new Comparator<Path>() {
+			@Override
+			public int compare(final Path a, final Path b) {
+				return Integer.compare(b.size(), a.size());
+			}
+		});
+		final AtomicInteger done = new AtomicInteger();
+		final ExecutorService es = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<?>> futures = new ArrayList<>();
+			for (final Path p : sorted) {
+				futures.add(es.submit(new Runnable() {
+					@Override
+					public void run() {
+						p.downsample(maximumPermittedDistance);
+						done.incrementAndGet();
+					}
+				}));
+			}
+			for (final Future<?> future : futures)
+				future.get();
+		} catch (final InterruptedException e) {
+			es.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Downsampling was interrupted: only " + done.get() + " of "
+					+ sorted.size() + " paths were downsampled");
+		} catch (final ExecutionException e) {
+			throw new RuntimeException("Downsampling failed: " + e.getCause(), e.getCause());
+		} finally {
+			es.shutdownNow();
+			updateJoinPointIndex();
 		}
 	}
 }
@@ -54,52 +54,91 @@ public class PathDownsampler {
 	public static ArrayList<SimplePoint> downsample(final ArrayList<SimplePoint> points,
 			final double permittedDeviation) {
 		final int n = points.size();
-		final SimplePoint startPoint = points.get(0);
-		final SimplePoint endPoint = points.get(n - 1);
-		double vx = endPoint.x - startPoint.x;
-		double vy = endPoint.y - startPoint.y;
-		double vz = endPoint.z - startPoint.z;
-		final double vSize = Math.sqrt(vx * vx + vy * vy + vz * vz);
-		// Scale v to be a unit vector along the line:
-		vx /= vSize;
-		vy /= vSize;
-		vz /= vSize;
-		// Now find the point between the end points that is the greatest
-		// distance from the line:
-		double maxDistanceSquared = 0;
-		int maxIndex = -1;
-		for (int i = 1; i < n - 1; ++i) {
-			final SimplePoint midPoint = points.get(i);
-			final double dx = midPoint.x - startPoint.x;
-			final double dy = midPoint.y - startPoint.y;
-			final double dz = midPoint.z - startPoint.z;
-			final double projectedLength = dx * vx + dy * vy + dz * vz;
-			final double dLengthSquared = dx * dx + dy * dy + dz * dz;
-			final double distanceSquared = dLengthSquared - projectedLength * projectedLength;
-			if (distanceSquared > maxDistanceSquared) {
-				maxDistanceSquared = distanceSquared;
-				maxIndex = i;
-			}
+		final double[] x = new double[n], y = new double[n], z = new double[n];
+		for (int i = 0; i < n; ++i) {
+			final SimplePoint p = points.get(i);
+			x[i] = p.x;
+			y[i] = p.y;
+			z[i] = p.z;
 		}
-		if (maxDistanceSquared > (permittedDeviation * permittedDeviation)) {
-			// Then divide at that point and recurse:
-			ArrayList<SimplePoint> firstPart = new ArrayList<>();
-			for (int i = 0; i <= maxIndex; ++i)
-				firstPart.add(points.get(i));
-			ArrayList<SimplePoint> secondPart = new ArrayList<>();
-			for (int i = maxIndex; i < n; ++i)
-				secondPart.add(points.get(i));
-			firstPart = downsample(firstPart, permittedDeviation);
-			secondPart = downsample(secondPart, permittedDeviation);
-			firstPart.remove(firstPart.size() - 1);
-			firstPart.addAll(secondPart);
-			return firstPart;
-		} else {
-			// Otherwise just return the first and last points:
-			final ArrayList<SimplePoint> result = new ArrayList<>();
-			result.add(startPoint);
-			result.add(endPoint);
-			return result;
+		final boolean[] retain = new boolean[n];
+		retain[0] = retain[n - 1] = true;
+		markRetained(x, y, z, null, 0, n - 1, permittedDeviation, retain, new int[2 * n]);
+		final ArrayList<SimplePoint> result = new ArrayList<>();
+		for (int i = 0; i < n; ++i)
+			if (retain[i])
+				result.add(points.get(i));
+		return result;
+	}
+
+	/**
+	 * Runs Ramer-Douglas-Peucker over the points from <code>start</code> to
+	 * <code>end</code> (inclusive) of the given coordinate arrays, setting
+	 * <code>retain[i]</code> for each point in between that must be kept so
+	 * that no point that is dropped lies further than
+	 * <code>permittedDeviation</code> from the simplified line. (The end
+	 * points themselves are left for the caller to mark.)
+	 *
+	 * If <code>radii</code> is not null, a point is also kept if its radius
+	 * differs by more than <code>permittedDeviation</code> from the radius
+	 * interpolated along the line at that point, so that the simplified path
+	 * also keeps the shape of the fitted surface.
+	 *
+	 * Rather than recursing on copies of the points, the sub-ranges still to
+	 * be examined are kept as pairs of indices on <code>stack</code>, which
+	 * must have room for at least twice the number of points in the range.
+	 */
+	public static void markRetained(final double[] x, final double[] y, final double[] z, final double[] radii,
+			final int start, final int end, final double permittedDeviation, final boolean[] retain,
+			final int[] stack) {
+		final double permittedSquared = permittedDeviation * permittedDeviation;
+		int top = 0;
+		stack[top++] = start;
+		stack[top++] = end;
+		while (top > 0) {
+			final int to = stack[--top];
+			final int from = stack[--top];
+			if (to - from < 2)
+				continue;
+			double vx = x[to] - x[from];
+			double vy = y[to] - y[from];
+			double vz = z[to] - z[from];
+			final double vSize = Math.sqrt(vx * vx + vy * vy + vz * vz);
+			// Scale v to be a unit vector along the line. (If the end points
+			// coincide, distances are just measured from the first.)
+			if (vSize > 0) {
+				vx /= vSize;
+				vy /= vSize;
+				vz /= vSize;
+			}
+			// Now find the point between the end points that deviates most:
+			double maxDeviationSquared = 0;
+			int maxIndex = -1;
+			for (int i = from + 1; i < to; ++i) {
+				final double dx = x[i] - x[from];
+				final double dy = y[i] - y[from];
+				final double dz = z[i] - z[from];
+				final double projectedLength = dx * vx + dy * vy + dz * vz;
+				final double dLengthSquared = dx * dx + dy * dy + dz * dz;
+				double deviationSquared = dLengthSquared - projectedLength * projectedLength;
+				if (radii != null) {
+					final double t = (vSize > 0) ? Math.max(0, Math.min(1, projectedLength / vSize)) : 0;
+					final double dr = radii[i] - (radii[from] + t * (radii[to] - radii[from]));
+					deviationSquared = Math.max(deviationSquared, dr * dr);
+				}
+				if (deviationSquared > maxDeviationSquared) {
+					maxDeviationSquared = deviationSquared;
+					maxIndex = i;
+				}
+			}
+			if (maxDeviationSquared > permittedSquared) {
+				// Then keep that point, and examine the parts either side:
+				retain[maxIndex] = true;
+				stack[top++] = from;
+				stack[top++] = maxIndex;
+				stack[top++] = maxIndex;
+				stack[top++] = to;
+			}
 		}
 	}
 }
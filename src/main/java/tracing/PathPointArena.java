@@ -0,0 +1,255 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package tracing;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Compact storage for the points of many paths: the coordinates (and, for
+ * paths with fitted circles, the radii and tangents) of every path are held
+ * as floats in one set of shared columns, each path occupying a contiguous
+ * range of them. This avoids the per-path arrays of doubles, and the spare
+ * capacity they're allocated with, which dominate the memory used by very
+ * large reconstructions.
+ *
+ * Paths are moved in with {@link Path#compactInto(PathPointArena)} and move
+ * out again (to their own arrays) as soon as they are modified. The space
+ * they leave behind is reclaimed once it makes up half of the columns.
+ */
+public class PathPointArena {
+
+	/*
+	 * Where the points of one path are held: the columns and the offset
+	 * into them. A path reads its points through the Slot it was last
+	 * given, and these are never modified, so it always sees a consistent
+	 * pair. Whenever the columns are replaced (when they grow, are trimmed
+	 * or repacked) every member path is given a new Slot; the old columns
+	 * are never written to again, so a reader still holding an old Slot
+	 * gets the right values too.
+	 */
+	static final class Slot {
+		final PathPointArena arena;
+		final int offset;
+		final float[] xs, ys, zs;
+		/* These are null if the path has no fitted circles: */
+		final float[] radii, tangents_x, tangents_y, tangents_z;
+
+		Slot(final PathPointArena arena, final int offset, final boolean circles) {
+			this.arena = arena;
+			this.offset = offset;
+			xs = arena.xs;
+			ys = arena.ys;
+			zs = arena.zs;
+			radii = circles ? arena.radii : null;
+			tangents_x = circles ? arena.tangents_x : null;
+			tangents_y = circles ? arena.tangents_y : null;
+			tangents_z = circles ? arena.tangents_z : null;
+		}
+	}
+
+	private float[] xs = new float[0];
+	private float[] ys = new float[0];
+	private float[] zs = new float[0];
+
+	/* Only allocated once a path with fitted circles is stored: */
+	private float[] radii;
+	private float[] tangents_x;
+	private float[] tangents_y;
+	private float[] tangents_z;
+
+	/* The number of slots used, including those of released paths: */
+	private int size;
+	private long releasedPoints;
+
+	private final Set<Path> members = Collections.newSetFromMap(new IdentityHashMap<Path, Boolean>());
+
+	/*
+	 * Copies the first n points of the given arrays in, and gives the path
+	 * its Slot. The circle arrays may be null.
+	 */
+	synchronized void store(final Path path, final double[] x, final double[] y, final double[] z,
+			final double[] radius, final double[] tangent_x, final double[] tangent_y, final double[] tangent_z,
+			final int n) {
+		ensureCapacity(size + n, radius != null);
+		final int offset = size;
+		for (int i = 0; i < n; ++i) {
+			xs[offset + i] = (float) x[i];
+			ys[offset + i] = (float) y[i];
+			zs[offset + i] = (float) z[i];
+		}
+		if (radius != null)
+			for (int i = 0; i < n; ++i) {
+				radii[offset + i] = (float) radius[i];
+				tangents_x[offset + i] = (float) tangent_x[i];
+				tangents_y[offset + i] = (float) tangent_y[i];
+				tangents_z[offset + i] = (float) tangent_z[i];
+			}
+		size += n;
+		members.add(path);
+		path.arenaSlot = new Slot(this, offset, radius != null);
+	}
+
+	/*
+	 * Copies the points of a member path out into new arrays, returned as
+	 * { xs, ys, zs, radii, tangents_x, tangents_y, tangents_z } (the last
+	 * four being null if it has no circles), and frees its space. The path
+	 * must then install the arrays before dropping its Slot.
+	 */
+	synchronized double[][] copyOut(final Path path) {
+		final Slot slot = path.arenaSlot;
+		if (slot == null || slot.arena != this || !members.remove(path))
+			throw new IllegalArgumentException("BUG: " + path + " is not stored in this arena");
+		final int n = path.points;
+		final double[][] result = new double[7][];
+		result[0] = toDoubles(slot.xs, slot.offset, n);
+		result[1] = toDoubles(slot.ys, slot.offset, n);
+		result[2] = toDoubles(slot.zs, slot.offset, n);
+		if (slot.radii != null) {
+			result[3] = toDoubles(slot.radii, slot.offset, n);
+			result[4] = toDoubles(slot.tangents_x, slot.offset, n);
+			result[5] = toDoubles(slot.tangents_y, slot.offset, n);
+			result[6] = toDoubles(slot.tangents_z, slot.offset, n);
+		}
+		releasedPoints += n;
+		if (releasedPoints > size / 2)
+			repack();
+		return result;
+	}
+
+	private static double[] toDoubles(final float[] column, final int offset, final int n) {
+		final double[] result = new double[n];
+		for (int i = 0; i < n; ++i)
+			result[i] = column[offset + i];
+		return result;
+	}
+
+	private void ensureCapacity(final int needed, final boolean circles) {
+		boolean replaced = false;
+		if (needed > xs.length) {
+			final int capacity = Math.max(needed, xs.length + (xs.length >> 1));
+			xs = Arrays.copyOf(xs, capacity);
+			ys = Arrays.copyOf(ys, capacity);
+			zs = Arrays.copyOf(zs, capacity);
+			if (radii != null) {
+				radii = Arrays.copyOf(radii, capacity);
+				tangents_x = Arrays.copyOf(tangents_x, capacity);
+				tangents_y = Arrays.copyOf(tangents_y, capacity);
+				tangents_z = Arrays.copyOf(tangents_z, capacity);
+			}
+			replaced = true;
+		}
+		if (circles && radii == null) {
+			radii = new float[xs.length];
+			tangents_x = new float[xs.length];
+			tangents_y = new float[xs.length];
+			tangents_z = new float[xs.length];
+		}
+		if (replaced)
+			reissueSlots();
+	}
+
+	/* Points every member at the current columns, keeping its offset: */
+	private void reissueSlots() {
+		for (final Path p : members) {
+			final Slot old = p.arenaSlot;
+			p.arenaSlot = new Slot(this, old.offset, old.radii != null);
+		}
+	}
+
+	/* Moves the points of the remaining paths together, in new columns: */
+	private void repack() {
+		int live = 0;
+		boolean circles = false;
+		for (final Path p : members) {
+			live += p.points;
+			circles |= p.arenaSlot.radii != null;
+		}
+		final float[] new_xs = new float[live], new_ys = new float[live], new_zs = new float[live];
+		final float[] new_radii = circles ? new float[live] : null;
+		final float[] new_tx = circles ? new float[live] : null;
+		final float[] new_ty = circles ? new float[live] : null;
+		final float[] new_tz = circles ? new float[live] : null;
+		final int[] offsets = new int[members.size()];
+		int offset = 0, m = 0;
+		for (final Path p : members) {
+			final Slot slot = p.arenaSlot;
+			final int from = slot.offset, n = p.points;
+			System.arraycopy(slot.xs, from, new_xs, offset, n);
+			System.arraycopy(slot.ys, from, new_ys, offset, n);
+			System.arraycopy(slot.zs, from, new_zs, offset, n);
+			if (slot.radii != null) {
+				System.arraycopy(slot.radii, from, new_radii, offset, n);
+				System.arraycopy(slot.tangents_x, from, new_tx, offset, n);
+				System.arraycopy(slot.tangents_y, from, new_ty, offset, n);
+				System.arraycopy(slot.tangents_z, from, new_tz, offset, n);
+			}
+			offsets[m++] = offset;
+			offset += n;
+		}
+		xs = new_xs;
+		ys = new_ys;
+		zs = new_zs;
+		radii = new_radii;
+		tangents_x = new_tx;
+		tangents_y = new_ty;
+		tangents_z = new_tz;
+		size = live;
+		releasedPoints = 0;
+		m = 0;
+		for (final Path p : members)
+			p.arenaSlot = new Slot(this, offsets[m++], p.arenaSlot.radii != null);
+	}
+
+	/** Drops any spare capacity, e.g. once a reconstruction is loaded. */
+	public synchronized void trim() {
+		if (releasedPoints > 0)
+			repack();
+		else if (xs.length > size) {
+			xs = Arrays.copyOf(xs, size);
+			ys = Arrays.copyOf(ys, size);
+			zs = Arrays.copyOf(zs, size);
+			if (radii != null) {
+				radii = Arrays.copyOf(radii, size);
+				tangents_x = Arrays.copyOf(tangents_x, size);
+				tangents_y = Arrays.copyOf(tangents_y, size);
+				tangents_z = Arrays.copyOf(tangents_z, size);
+			}
+			reissueSlots();
+		}
+	}
+
+	public synchronized int getPathCount() {
+		return members.size();
+	}
+
+	/** Returns the number of bytes used by the columns. */
+	public synchronized long getBytes() {
+		return 4L * xs.length * ((radii == null) ? 3 : 7);
+	}
+}
@@ -369,12 +369,18 @@ public class PathWindow extends JFrame implements PathAndFillListener, TreeSelec
 				SNT.error("The maximum permitted distance must be a postive number");
 				return;
 			}
+			final ArrayList<Path> pathsToDownsample = new ArrayList<>();
 			for (final Path p : selectedPaths) {
 				Path pathToUse = p;
 				if (p.getUseFitted()) {
 					pathToUse = p.fitted;
 				}
-				pathToUse.downsample(maximumDeviation);
+				pathsToDownsample.add(pathToUse);
+			}
+			try {
+				pathAndFillManager.downsample(pathsToDownsample, maximumDeviation);
+			} catch (final RuntimeException re) {
+				SNT.error(re.getMessage());
 			}
 			// Make sure that the 3D viewer and the stacks are redrawn:
 			pathAndFillManager.update3DViewerContents();
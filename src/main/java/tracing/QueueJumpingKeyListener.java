@@ -118,6 +118,16 @@ public class QueueJumpingKeyListener implements KeyListener {
 			tracerPlugin.toogleSnapCursor();
 			e.consume();
 
+		} else if (keyChar == 'w' || keyChar == 'W') {
+
+			canvas.queueWaypointAtMousePointer(mac ? alt_down : control_down);
+			e.consume();
+
+		} else if (keyChar == 't' || keyChar == 'T') {
+
+			tracerPlugin.traceQueuedWaypoints();
+			e.consume();
+
 		} else if (keyChar == 'g' || keyChar == 'G') {
 
 			canvas.selectNearestPathToMousePointer(shift_down || control_down);
@@ -0,0 +1,491 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package tracing;
+
+import java.awt.image.IndexColorModel;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import amira.AmiraParameters;
+import ij.ImagePlus;
+import ij.ImageStack;
+import landmarks.Bookstein_From_Landmarks;
+import util.BatchOpener;
+import util.FileAndChannel;
+import vib.oldregistration.RegistrationAlgorithm;
+
+/**
+ * The registration of an image to a labelled template brain, as used by
+ * {@link AnalyzeTracings_}, {@link NewAnalyzeTracings_} and
+ * {@link CreateTracingVolume_}. Fitted transforms and label volumes are
+ * cached, so that batch analyses over many images registered to the same
+ * template only open the labels and fit each transform once.
+ */
+public class RegistrationContext {
+
+	/*
+	 * The default spacing (in voxels of the domain image) of the lookup
+	 * grid. 1 means every point is transformed exactly; a coarser grid has
+	 * to be asked for explicitly.
+	 */
+	public static final int DEFAULT_GRID_SPACING = 1;
+
+	/*
+	 * Each context holds its matcher, and with it the template and domain
+	 * images, so only the few most recently used are kept: a batch analysis
+	 * registers one image after another, and needs each only while it is
+	 * working on it.
+	 */
+	static final int MAX_CACHED_CONTEXTS = 4;
+
+	private static final Map<String, RegistrationContext> contexts = new LinkedHashMap<String, RegistrationContext>(
+			MAX_CACHED_CONTEXTS + 1, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, RegistrationContext> eldest) {
+			return size() > MAX_CACHED_CONTEXTS;
+		}
+	};
+	private static final Map<String, LabelVolume> labelVolumes = new ConcurrentHashMap<>();
+
+	private final Bookstein_From_Landmarks matcher;
+	private final LabelVolume labels;
+	private final int templateWidth, templateHeight, templateDepth;
+	private final int gridSpacing;
+
+	/*
+	 * The transformed positions of the nodes of a regular grid over the
+	 * domain image, filled in lazily: x, y and z of node i are at 3 * i in
+	 * gridPositions, and are only read once gridComputed[i] has been set.
+	 * Points between the nodes are interpolated, which for a smooth
+	 * transform like the thin plate spline is usually within a voxel of the
+	 * exact result.
+	 */
+	private final int gridWidth, gridHeight, gridDepth;
+	private final float[] gridPositions;
+	private final AtomicIntegerArray gridComputed;
+
+	private RegistrationContext(final Bookstein_From_Landmarks matcher, final LabelVolume labels,
+			final int gridSpacing) {
+		this.matcher = matcher;
+		this.labels = labels;
+		this.gridSpacing = gridSpacing;
+		final ImagePlus template = matcher.getTemplate();
+		templateWidth = template.getWidth();
+		templateHeight = template.getHeight();
+		templateDepth = template.getStackSize();
+		if (gridSpacing <= 1) {
+			gridWidth = gridHeight = gridDepth = 0;
+			gridPositions = null;
+			gridComputed = null;
+			return;
+		}
+		/* Enough nodes that every voxel of the domain lies within a cell: */
+		final ImagePlus domain = matcher.getDomain();
+		gridWidth = (domain.getWidth() - 1) / gridSpacing + 2;
+		gridHeight = (domain.getHeight() - 1) / gridSpacing + 2;
+		gridDepth = (domain.getStackSize() - 1) / gridSpacing + 2;
+		final long nodes = (long) gridWidth * gridHeight * gridDepth;
+		if (3 * nodes > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("A grid spacing of " + gridSpacing + " is too fine for a "
+					+ domain.getWidth() + "x" + domain.getHeight() + "x" + domain.getStackSize() + " image");
+		gridPositions = new float[(int) (3 * nodes)];
+		gridComputed = new AtomicIntegerArray((int) nodes);
+	}
+
+	/**
+	 * Returns the (possibly cached) registration of an image to a template
+	 * brain.
+	 *
+	 * @param templateFileName the template (standard brain) image
+	 * @param labelsFileName the labels of the template
+	 * @param imageFileName the image to register
+	 * @param gridSpacing the spacing of the lookup grid used to transform
+	 *          points, or 1 for the exact transform of every point. A grid
+	 *          is much faster when most of the domain is transformed, but
+	 *          interpolated points may be off by a voxel or so
+	 * @return the registration context
+	 */
+	public static RegistrationContext get(final String templateFileName, final String labelsFileName,
+			final String imageFileName, final int gridSpacing) {
+		final String key = templateFileName + "\n" + labelsFileName + "\n" + imageFileName + "\n" + gridSpacing;
+		synchronized (contexts) {
+			RegistrationContext context = contexts.get(key);
+			if (context == null) {
+				final Bookstein_From_Landmarks matcher = new Bookstein_From_Landmarks();
+				matcher.loadImages(new FileAndChannel(templateFileName, 0), new FileAndChannel(imageFileName, 0));
+				matcher.generateTransformation();
+				context = new RegistrationContext(matcher, getLabels(labelsFileName), gridSpacing);
+				contexts.put(key, context);
+			}
+			return context;
+		}
+	}
+
+	/** As above, transforming every point exactly. */
+	public static RegistrationContext get(final String templateFileName, final String labelsFileName,
+			final String imageFileName) {
+		return get(templateFileName, labelsFileName, imageFileName, DEFAULT_GRID_SPACING);
+	}
+
+	/** Forgets all cached transforms and label volumes. */
+	public static void clearCache() {
+		synchronized (contexts) {
+			contexts.clear();
+		}
+		labelVolumes.clear();
+	}
+
+	public LabelVolume getLabels() {
+		return labels;
+	}
+
+	public Bookstein_From_Landmarks getMatcher() {
+		return matcher;
+	}
+
+	public int getTemplateWidth() {
+		return templateWidth;
+	}
+
+	public int getTemplateHeight() {
+		return templateHeight;
+	}
+
+	public int getTemplateDepth() {
+		return templateDepth;
+	}
+
+	/* The transform isn't safe to call from several threads at once: */
+
+	private void transformExactly(final int x, final int y, final int z, final int[] result) {
+		final RegistrationAlgorithm.ImagePoint imagePoint = new RegistrationAlgorithm.ImagePoint();
+		synchronized (matcher) {
+			matcher.transformDomainToTemplate(x, y, z, imagePoint);
+		}
+		result[0] = imagePoint.x;
+		result[1] = imagePoint.y;
+		result[2] = imagePoint.z;
+	}
+
+	/* Returns the offset of a grid node's position in gridPositions: */
+	private int gridNode(final int gx, final int gy, final int gz) {
+		final int i = (gz * gridHeight + gy) * gridWidth + gx;
+		if (gridComputed.get(i) == 0) {
+			/*
+			 * Two threads may both compute a node, but they store the same
+			 * values; setting the flag afterwards publishes them:
+			 */
+			final int[] exact = new int[3];
+			transformExactly(gx * gridSpacing, gy * gridSpacing, gz * gridSpacing, exact);
+			gridPositions[3 * i] = exact[0];
+			gridPositions[3 * i + 1] = exact[1];
+			gridPositions[3 * i + 2] = exact[2];
+			gridComputed.set(i, 1);
+		}
+		return 3 * i;
+	}
+
+	/**
+	 * Transforms a point in the domain image to the template. This is safe to
+	 * call from several threads.
+	 *
+	 * @param result the x, y and z coordinates in the template
+	 */
+	public void transformDomainToTemplate(final int x, final int y, final int z, final int[] result) {
+		if (gridSpacing <= 1) {
+			transformExactly(x, y, z, result);
+			return;
+		}
+		final int gx = Math.floorDiv(x, gridSpacing), gy = Math.floorDiv(y, gridSpacing),
+				gz = Math.floorDiv(z, gridSpacing);
+		if (gx < 0 || gy < 0 || gz < 0 || gx + 1 >= gridWidth || gy + 1 >= gridHeight || gz + 1 >= gridDepth) {
+			// Outside the domain image, so not covered by the grid
+			transformExactly(x, y, z, result);
+			return;
+		}
+		final float fx = (x - gx * gridSpacing) / (float) gridSpacing;
+		final float fy = (y - gy * gridSpacing) / (float) gridSpacing;
+		final float fz = (z - gz * gridSpacing) / (float) gridSpacing;
+		final float[] t = new float[3];
+		for (int corner = 0; corner < 8; ++corner) {
+			final int cx = corner & 1, cy = (corner >> 1) & 1, cz = (corner >> 2) & 1;
+			final float w = (cx == 0 ? 1 - fx : fx) * (cy == 0 ? 1 - fy : fy) * (cz == 0 ? 1 - fz : fz);
+			if (w == 0)
+				continue;
+			final int node = gridNode(gx + cx, gy + cy, gz + cz);
+			t[0] += w * gridPositions[node];
+			t[1] += w * gridPositions[node + 1];
+			t[2] += w * gridPositions[node + 2];
+		}
+		result[0] = Math.round(t[0]);
+		result[1] = Math.round(t[1]);
+		result[2] = Math.round(t[2]);
+	}
+
+	/**
+	 * Transforms every point of every path to the template, with the paths
+	 * spread over the available processors.
+	 *
+	 * @return for each path, the x, y and z template coordinates of each of
+	 *         its points in turn
+	 */
+	public int[][] transformPaths(final ArrayList<Path> paths) {
+		final int[][] result = new int[paths.size()][];
+		final ExecutorService es = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		final ArrayList<Future<?>> futures = new ArrayList<>();
+		for (int i = 0; i < paths.size(); ++i) {
+			final int pathIndex = i;
+			futures.add(es.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					final Path p = paths.get(pathIndex);
+					final int[] transformed = new int[3 * p.size()];
+					final int[] t = new int[3];
+					for (int k = 0; k < p.size(); ++k) {
+						transformDomainToTemplate(p.getXUnscaled(k), p.getYUnscaled(k), p.getZUnscaled(k), t);
+						System.arraycopy(t, 0, transformed, 3 * k, 3);
+					}
+					result[pathIndex] = transformed;
+				}
+			}));
+		}
+		try {
+			for (final Future<?> f : futures)
+				f.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while transforming paths", e);
+		} catch (final ExecutionException e) {
+			throw new RuntimeException("Transforming paths failed", e.getCause());
+		} finally {
+			es.shutdownNow();
+		}
+		return result;
+	}
+
+	// ------------------------------------------------------------------------
+
+	public static LabelVolume getLabels(final String labelsFileName) {
+		LabelVolume volume = labelVolumes.get(labelsFileName);
+		if (volume == null) {
+			synchronized (labelVolumes) {
+				volume = labelVolumes.get(labelsFileName);
+				if (volume == null) {
+					volume = LabelVolume.load(labelsFileName);
+					labelVolumes.put(labelsFileName, volume);
+				}
+			}
+		}
+		return volume;
+	}
+
+	/**
+	 * A labels image with its materials. The label data is kept in a
+	 * memory-mapped file, written the first time the labels are opened, so
+	 * that it's neither parsed again nor kept on the Java heap.
+	 */
+	public static class LabelVolume {
+
+		static final int MAGIC = 0x534e4c32; // "SNL2"
+
+		public int width, height, depth;
+		public int materials;
+		public String[] materialNames;
+		public int[] redValues, greenValues, blueValues;
+
+		ByteBuffer[] slices;
+
+		/** @return the label at a point, or -1 if it's outside the volume */
+		public int get(final int x, final int y, final int z) {
+			if (x < 0 || y < 0 || z < 0 || x >= width || y >= height || z >= depth)
+				return -1;
+			return slices[z].get(y * width + x) & 0xFF;
+		}
+
+		public int getMaterialIndex(final String materialName) {
+			for (int i = 0; i < materials; ++i)
+				if (materialNames[i].equals(materialName))
+					return i;
+			return -1;
+		}
+
+		public IndexColorModel getColorModel() {
+			final byte[] r = new byte[256], g = new byte[256], b = new byte[256];
+			for (int i = 0; i < materials; ++i) {
+				r[i] = (byte) redValues[i];
+				g[i] = (byte) greenValues[i];
+				b[i] = (byte) blueValues[i];
+			}
+			return new IndexColorModel(8, 256, r, g, b);
+		}
+
+		static File cacheFile(final File labelsFile) {
+			return new File(System.getProperty("java.io.tmpdir"),
+					"snt-labels-" + Integer.toHexString(labelsFile.getAbsolutePath().hashCode()) + ".raw");
+		}
+
+		static LabelVolume load(final String labelsFileName) {
+			final File labelsFile = new File(labelsFileName);
+			final File cacheFile = cacheFile(labelsFile);
+			LabelVolume v = null;
+			if (cacheFile.exists() && cacheFile.lastModified() >= labelsFile.lastModified())
+				v = readAndMap(cacheFile, labelsFile);
+			if (v == null) {
+				writeCache(labelsFileName, cacheFile);
+				v = readAndMap(cacheFile, labelsFile);
+				if (v == null)
+					throw new RuntimeException("Failed to map the cached labels in " + cacheFile.getAbsolutePath());
+			}
+			return v;
+		}
+
+		/*
+		 * The cache file has the length of the header, the length of the
+		 * whole file, then the header (the original file name, dimensions
+		 * and materials) and then the raw label data, slice by slice. The
+		 * cache directory is shared, so the file is written under a
+		 * temporary name and moved into place once it's complete: other
+		 * processes never see half a file, and one that was cut short
+		 * anyway (by a full disk, say) doesn't have the length it records.
+		 */
+
+		static void writeCache(final String labelsFileName, final File cacheFile) {
+			final ImagePlus[] tmp = BatchOpener.open(labelsFileName);
+			if (tmp == null || tmp[0] == null)
+				throw new RuntimeException("Couldn't open labels file " + labelsFileName);
+			final ImagePlus labels = tmp[0];
+			final AmiraParameters parameters = new AmiraParameters(labels);
+			final ImageStack stack = labels.getStack();
+			File partFile = null;
+			try {
+				partFile = File.createTempFile(cacheFile.getName() + ".", ".part", cacheFile.getParentFile());
+				writeCache(labelsFileName, parameters, stack, partFile);
+				try {
+					Files.move(partFile.toPath(), cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				} catch (final AtomicMoveNotSupportedException e) {
+					Files.move(partFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			} catch (final IOException e) {
+				throw new RuntimeException("Failed to cache labels in " + cacheFile.getAbsolutePath(), e);
+			} finally {
+				if (partFile != null)
+					partFile.delete();
+				labels.close();
+			}
+		}
+
+		private static void writeCache(final String labelsFileName, final AmiraParameters parameters,
+				final ImageStack stack, final File file) throws IOException {
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+				final ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+				final DataOutputStream header = new DataOutputStream(headerBytes);
+				header.writeInt(MAGIC);
+				header.writeUTF(new File(labelsFileName).getAbsolutePath());
+				header.writeInt(stack.getWidth());
+				header.writeInt(stack.getHeight());
+				header.writeInt(stack.getSize());
+				final int materials = parameters.getMaterialCount();
+				header.writeInt(materials);
+				for (int i = 0; i < materials; ++i) {
+					header.writeUTF(parameters.getMaterialName(i));
+					final double[] c = parameters.getMaterialColor(i);
+					header.writeInt((int) (255 * c[0]));
+					header.writeInt((int) (255 * c[1]));
+					header.writeInt((int) (255 * c[2]));
+				}
+				header.flush();
+				out.writeInt(headerBytes.size());
+				out.writeLong(4 + 8 + headerBytes.size() + (long) stack.getWidth() * stack.getHeight() * stack.getSize());
+				headerBytes.writeTo(out);
+				for (int z = 1; z <= stack.getSize(); ++z)
+					out.write((byte[]) stack.getPixels(z));
+			}
+		}
+
+		static LabelVolume readAndMap(final File cacheFile, final File labelsFile) {
+			final LabelVolume v = new LabelVolume();
+			long dataOffset = 0;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+				dataOffset = 4 + 8 + in.readInt();
+				if (in.readLong() != cacheFile.length() || in.readInt() != MAGIC || !in.readUTF().equals(labelsFile.getAbsolutePath()))
+					return null;
+				v.width = in.readInt();
+				v.height = in.readInt();
+				v.depth = in.readInt();
+				v.materials = in.readInt();
+				v.materialNames = new String[256];
+				v.redValues = new int[v.materials];
+				v.greenValues = new int[v.materials];
+				v.blueValues = new int[v.materials];
+				for (int i = 0; i < v.materials; ++i) {
+					v.materialNames[i] = in.readUTF();
+					v.redValues[i] = in.readInt();
+					v.greenValues[i] = in.readInt();
+					v.blueValues[i] = in.readInt();
+				}
+			} catch (final IOException e) {
+				return null;
+			}
+			final long sliceBytes = (long) v.width * v.height;
+			if (cacheFile.length() != dataOffset + sliceBytes * v.depth)
+				return null;
+			try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "r")) {
+				final FileChannel channel = raf.getChannel();
+				v.slices = new ByteBuffer[v.depth];
+				for (int z = 0; z < v.depth; ++z)
+					v.slices[z] = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + z * sliceBytes, sliceBytes);
+			} catch (final IOException e) {
+				return null;
+			}
+			return v;
+		}
+	}
+}
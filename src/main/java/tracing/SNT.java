@@ -77,6 +77,12 @@ public class SNT {
 		logService.warn("[SNT] " + string);
 	}
 
+	protected static void warn(final String string, final Throwable t) {
+		if (!initialized)
+			initialize();
+		logService.warn("[SNT] " + string, t);
+	}
+
 	protected static void log(final String... strings) {
 		if (strings != null)
 			log(String.join(" ", strings));
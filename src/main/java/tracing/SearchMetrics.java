@@ -0,0 +1,245 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package tracing;
+
+/**
+ * Counters and timings collected by a {@link SearchThread} while it runs, if
+ * metrics collection has been enabled for it. The counters are only updated
+ * by the search thread itself, so they are guaranteed to be consistent once
+ * {@link SearchMetricsListener#searchFinished} has been called; read while
+ * the search is running they are only approximate.
+ *
+ * Measuring the time spent in each step of every expansion would cost more
+ * than the steps themselves, so only one expansion in every
+ * {@link #SAMPLE_INTERVAL} is timed; the timing figures are for those sampled
+ * expansions only.
+ */
+public class SearchMetrics {
+
+	/* This must be a power of two: */
+	public static final int SAMPLE_INTERVAL = 64;
+
+	/*
+	 * A rough estimate of the size of a SearchNode plus its slot in a
+	 * PriorityQueue, with compressed references:
+	 */
+	static final int ESTIMATED_BYTES_PER_NODE = 48;
+
+	/* Bucket i of the histogram counts durations in [2^i, 2^(i+1)) ns: */
+	public static final int HISTOGRAM_BUCKETS = 40;
+
+	long nodesExpanded;
+	long nodesCreated;
+	long nodesImproved;
+	long nodesReopened;
+	long costEvaluations;
+	long heuristicEvaluations;
+	long heapPolls;
+	long heapInsertions;
+	long heapRemovals;
+
+	long peakNodes;
+	long nodeSliceBytes;
+	long peakUsedHeapBytes;
+
+	long sampledExpansions;
+	long sampledExpansionNanos;
+	long sampledCostNanos;
+	long sampledQueueNanos;
+	final long[] expansionHistogram = new long[HISTOGRAM_BUCKETS];
+
+	long startedNanos;
+	long finishedNanos;
+	volatile int exitReason = -1;
+
+	void started() {
+		startedNanos = System.nanoTime();
+		sampleHeap();
+	}
+
+	void finished(final int exitReason) {
+		finishedNanos = System.nanoTime();
+		sampleHeap();
+		this.exitReason = exitReason;
+	}
+
+	void sampleHeap() {
+		final Runtime runtime = Runtime.getRuntime();
+		final long used = runtime.totalMemory() - runtime.freeMemory();
+		if (used > peakUsedHeapBytes)
+			peakUsedHeapBytes = used;
+	}
+
+	void updatePeakNodes(final long nodes) {
+		if (nodes > peakNodes)
+			peakNodes = nodes;
+	}
+
+	void addExpansionSample(final long expansionNanos, final long costNanos, final long queueNanos) {
+		++sampledExpansions;
+		sampledExpansionNanos += expansionNanos;
+		sampledCostNanos += costNanos;
+		sampledQueueNanos += queueNanos;
+		final int bucket = (expansionNanos <= 1) ? 0 : 63 - Long.numberOfLeadingZeros(expansionNanos);
+		++expansionHistogram[Math.min(bucket, HISTOGRAM_BUCKETS - 1)];
+	}
+
+	/** Returns the number of nodes taken off the open list and expanded. */
+	public long getNodesExpanded() {
+		return nodesExpanded;
+	}
+
+	/** Returns the number of nodes created for voxels not seen before. */
+	public long getNodesCreated() {
+		return nodesCreated;
+	}
+
+	/** Returns the number of times a cheaper route to an open node was found. */
+	public long getNodesImproved() {
+		return nodesImproved;
+	}
+
+	/** Returns the number of closed nodes that had to be opened again. */
+	public long getNodesReopened() {
+		return nodesReopened;
+	}
+
+	/** Returns the number of calls to costMovingTo(). */
+	public long getCostEvaluations() {
+		return costEvaluations;
+	}
+
+	/** Returns the number of calls to estimateCostToGoal(). */
+	public long getHeuristicEvaluations() {
+		return heuristicEvaluations;
+	}
+
+	public long getHeapPolls() {
+		return heapPolls;
+	}
+
+	public long getHeapInsertions() {
+		return heapInsertions;
+	}
+
+	public long getHeapRemovals() {
+		return heapRemovals;
+	}
+
+	/** Returns the largest number of open and closed nodes at any one time. */
+	public long getPeakNodes() {
+		return peakNodes;
+	}
+
+	/**
+	 * Returns an estimate of the memory used by the search nodes at their peak,
+	 * including the per-slice lookup arrays.
+	 */
+	public long getEstimatedPeakNodeBytes() {
+		return peakNodes * ESTIMATED_BYTES_PER_NODE + nodeSliceBytes;
+	}
+
+	/**
+	 * Returns the largest amount of used heap seen at the start, at the end or
+	 * at a progress report.
+	 */
+	public long getPeakUsedHeapBytes() {
+		return peakUsedHeapBytes;
+	}
+
+	public long getSampledExpansions() {
+		return sampledExpansions;
+	}
+
+	public long getSampledExpansionNanos() {
+		return sampledExpansionNanos;
+	}
+
+	public long getSampledCostNanos() {
+		return sampledCostNanos;
+	}
+
+	public long getSampledQueueNanos() {
+		return sampledQueueNanos;
+	}
+
+	/**
+	 * Returns a copy of the histogram of sampled expansion times, where bucket
+	 * i counts the expansions that took between 2^i and 2^(i+1) nanoseconds.
+	 */
+	public long[] getExpansionHistogram() {
+		return expansionHistogram.clone();
+	}
+
+	/**
+	 * Returns the wall-clock time of the search in nanoseconds, or the time so
+	 * far if it hasn't finished yet.
+	 */
+	public long getElapsedNanos() {
+		if (startedNanos == 0)
+			return 0;
+		return ((exitReason < 0) ? System.nanoTime() : finishedNanos) - startedNanos;
+	}
+
+	/**
+	 * Returns one of SearchThread.SUCCESS, CANCELLED, etc. or -1 if the search
+	 * hasn't finished.
+	 */
+	public int getExitReason() {
+		return exitReason;
+	}
+
+	public String getExitReasonString() {
+		final int reason = exitReason;
+		if (reason < 0 || reason >= SearchThread.exitReasonStrings.length)
+			return "RUNNING";
+		return SearchThread.exitReasonStrings[reason];
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("Search ").append(getExitReasonString()).append(" after ")
+				.append(String.format("%.1f", getElapsedNanos() / 1e6)).append(" ms\n");
+		sb.append("  expanded: ").append(nodesExpanded).append(", created: ").append(nodesCreated)
+				.append(", improved: ").append(nodesImproved).append(", reopened: ").append(nodesReopened)
+				.append("\n");
+		sb.append("  cost evaluations: ").append(costEvaluations).append(", heuristic evaluations: ")
+				.append(heuristicEvaluations).append("\n");
+		sb.append("  heap polls: ").append(heapPolls).append(", insertions: ").append(heapInsertions)
+				.append(", removals: ").append(heapRemovals).append("\n");
+		sb.append("  peak nodes: ").append(peakNodes).append(" (~")
+				.append(getEstimatedPeakNodeBytes() / (1024 * 1024)).append(" MiB), peak used heap: ")
+				.append(peakUsedHeapBytes / (1024 * 1024)).append(" MiB\n");
+		if (sampledExpansions > 0 && sampledExpansionNanos > 0) {
+			sb.append("  sampled expansions: ").append(sampledExpansions).append(", mean ")
+					.append(sampledExpansionNanos / sampledExpansions).append(" ns, of which cost ")
+					.append(100 * sampledCostNanos / sampledExpansionNanos).append("%, queue ")
+					.append(100 * sampledQueueNanos / sampledExpansionNanos).append("%\n");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,188 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package tracing;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Accumulates the {@link SearchMetrics} of every finished search, and can
+ * publish the totals over JMX, e.g. for inspection with JConsole or VisualVM.
+ * Metrics collection is off unless something asks for it, so call
+ * {@link #install()} to switch it on for all searches; this is done
+ * automatically if Fiji is started with -Dsnt.search.jmx=true.
+ */
+public class SearchStatistics implements SearchMetricsListener, SearchStatisticsMXBean {
+
+	public static final String OBJECT_NAME = "sc.fiji.snt:type=SearchStatistics";
+
+	private static SearchStatistics installed;
+
+	/**
+	 * Collects metrics for all subsequent searches and registers the totals
+	 * with the platform MBean server, returning the shared instance.
+	 */
+	public static synchronized SearchStatistics install() {
+		if (installed != null)
+			return installed;
+		installed = new SearchStatistics();
+		SearchThread.addGlobalMetricsListener(installed);
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name))
+				server.registerMBean(installed, name);
+		} catch (final Exception e) {
+			SNT.log("Could not register the search statistics MBean: " + e);
+		}
+		return installed;
+	}
+
+	/**
+	 * Stops collecting metrics for new searches and unregisters the MBean.
+	 */
+	public static synchronized void uninstall() {
+		if (installed == null)
+			return;
+		SearchThread.removeGlobalMetricsListener(installed);
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+		} catch (final Exception e) {
+			SNT.log("Could not unregister the search statistics MBean: " + e);
+		}
+		installed = null;
+	}
+
+	private long searchesFinished;
+	private final long[] searchesByExitReason = new long[SearchThread.exitReasonStrings.length];
+	private long totalNodesExpanded;
+	private long totalCostEvaluations;
+	private long totalHeapOperations;
+	private long totalElapsedNanos;
+	private long largestPeakNodes;
+	private long largestEstimatedPeakNodeBytes;
+	private String lastSearchSummary = "";
+
+	@Override
+	public synchronized void searchFinished(final SearchThread source, final SearchMetrics metrics) {
+		++searchesFinished;
+		final int reason = metrics.getExitReason();
+		if (reason >= 0 && reason < searchesByExitReason.length)
+			++searchesByExitReason[reason];
+		totalNodesExpanded += metrics.getNodesExpanded();
+		totalCostEvaluations += metrics.getCostEvaluations();
+		totalHeapOperations += metrics.getHeapPolls() + metrics.getHeapInsertions() + metrics.getHeapRemovals();
+		totalElapsedNanos += metrics.getElapsedNanos();
+		largestPeakNodes = Math.max(largestPeakNodes, metrics.getPeakNodes());
+		largestEstimatedPeakNodeBytes = Math.max(largestEstimatedPeakNodeBytes,
+				metrics.getEstimatedPeakNodeBytes());
+		lastSearchSummary = source.getClass().getSimpleName() + ": " + metrics;
+	}
+
+	@Override
+	public synchronized long getSearchesFinished() {
+		return searchesFinished;
+	}
+
+	@Override
+	public synchronized long getSearchesSucceeded() {
+		return searchesByExitReason[SearchThread.SUCCESS];
+	}
+
+	@Override
+	public synchronized long getSearchesCancelled() {
+		return searchesByExitReason[SearchThread.CANCELLED];
+	}
+
+	@Override
+	public synchronized long getSearchesTimedOut() {
+		return searchesByExitReason[SearchThread.TIMED_OUT];
+	}
+
+	@Override
+	public synchronized long getSearchesExhausted() {
+		return searchesByExitReason[SearchThread.POINTS_EXHAUSTED];
+	}
+
+	@Override
+	public synchronized long getSearchesOutOfMemory() {
+		return searchesByExitReason[SearchThread.OUT_OF_MEMORY];
+	}
+
+	@Override
+	public synchronized long getTotalNodesExpanded() {
+		return totalNodesExpanded;
+	}
+
+	@Override
+	public synchronized long getTotalCostEvaluations() {
+		return totalCostEvaluations;
+	}
+
+	@Override
+	public synchronized long getTotalHeapOperations() {
+		return totalHeapOperations;
+	}
+
+	@Override
+	public synchronized long getTotalElapsedMilliseconds() {
+		return totalElapsedNanos / 1000000;
+	}
+
+	@Override
+	public synchronized long getLargestPeakNodes() {
+		return largestPeakNodes;
+	}
+
+	@Override
+	public synchronized long getLargestEstimatedPeakNodeBytes() {
+		return largestEstimatedPeakNodeBytes;
+	}
+
+	@Override
+	public synchronized String getLastSearchSummary() {
+		return lastSearchSummary;
+	}
+
+	@Override
+	public synchronized void reset() {
+		searchesFinished = 0;
+		for (int i = 0; i < searchesByExitReason.length; ++i)
+			searchesByExitReason[i] = 0;
+		totalNodesExpanded = 0;
+		totalCostEvaluations = 0;
+		totalHeapOperations = 0;
+		totalElapsedNanos = 0;
+		largestPeakNodes = 0;
+		largestEstimatedPeakNodeBytes = 0;
+		lastSearchSummary = "";
+	}
+}
@@ -0,0 +1,61 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package tracing;
+
+/**
+ * The management interface of {@link SearchStatistics}.
+ */
+public interface SearchStatisticsMXBean {
+
+	public long getSearchesFinished();
+
+	public long getSearchesSucceeded();
+
+	public long getSearchesCancelled();
+
+	public long getSearchesTimedOut();
+
+	public long getSearchesExhausted();
+
+	public long getSearchesOutOfMemory();
+
+	public long getTotalNodesExpanded();
+
+	public long getTotalCostEvaluations();
+
+	public long getTotalHeapOperations();
+
+	public long getTotalElapsedMilliseconds();
+
+	public long getLargestPeakNodes();
+
+	public long getLargestEstimatedPeakNodeBytes();
+
+	public String getLastSearchSummary();
+
+	public void reset();
+
+}
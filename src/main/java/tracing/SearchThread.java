@@ -26,14 +26,18 @@ package tracing;
 
 import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.CharArrayWriter;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.ImageStack;
 import ij.measure.Calibration;
 import ij.text.TextWindow;
 import stacks.ThreePanes;
@@ -70,18 +74,24 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 		switch (imageType) {
 		case ImagePlus.GRAY8:
 		case ImagePlus.COLOR_256:
-			value_at_new_point = slices_data_b[new_z][new_y * width + new_x] & 0xFF;
+			value_at_new_point = voxels.getBytes(new_z)[new_y * width + new_x] & 0xFF;
 			break;
 		case ImagePlus.GRAY16:
-			value_at_new_point = slices_data_s[new_z][new_y * width + new_x];
+			value_at_new_point = voxels.getShorts(new_z)[new_y * width + new_x];
 			value_at_new_point = 255.0 * (value_at_new_point - stackMin) / (stackMax - stackMin);
 			break;
 		case ImagePlus.GRAY32:
-			value_at_new_point = slices_data_f[new_z][new_y * width + new_x];
+			value_at_new_point = voxels.getFloats(new_z)[new_y * width + new_x];
 			value_at_new_point = 255.0 * (value_at_new_point - stackMin) / (stackMax - stackMin);
 			break;
 		}
 
+		/* With percentile normalisation, values may lie outside the range: */
+		if (value_at_new_point < 0)
+			value_at_new_point = 0;
+		else if (value_at_new_point > 255)
+			value_at_new_point = 255;
+
 		if (value_at_new_point == 0)
 			return 2.0;
 		else
@@ -156,9 +166,11 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 
 	protected double minimum_cost_per_unit_distance;
 
-	byte[][] slices_data_b;
-	short[][] slices_data_s;
-	float[][] slices_data_f;
+	/*
+	 * The image data; for virtual stacks this only holds a bounded number of
+	 * slices in memory at once:
+	 */
+	VoxelSource voxels;
 
 	ImagePlus imagePlus;
 
@@ -195,6 +207,52 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 		progressListeners.add(callback);
 	}
 
+	/*
+	 * Metrics are only collected if there's someone to tell about them, i.e.
+	 * if there are any listeners on this thread or any global ones when run()
+	 * starts. Otherwise metrics stays null and the only cost in the search
+	 * loop is checking that.
+	 */
+
+	private static final List<SearchMetricsListener> globalMetricsListeners = new CopyOnWriteArrayList<>();
+
+	static {
+		if (Boolean.getBoolean("snt.search.jmx"))
+			SearchStatistics.install();
+	}
+
+	/**
+	 * Adds a listener that is told about the metrics of every search started
+	 * from now on.
+	 */
+	public static void addGlobalMetricsListener(final SearchMetricsListener listener) {
+		globalMetricsListeners.add(listener);
+	}
+
+	public static void removeGlobalMetricsListener(final SearchMetricsListener listener) {
+		globalMetricsListeners.remove(listener);
+	}
+
+	private final List<SearchMetricsListener> metricsListeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Adds a listener for the metrics of this search; this must be called
+	 * before the search is started.
+	 */
+	public void addMetricsListener(final SearchMetricsListener listener) {
+		metricsListeners.add(listener);
+	}
+
+	private volatile SearchMetrics metrics;
+
+	/**
+	 * Returns the metrics of this search, or null if none are being
+	 * collected.
+	 */
+	public SearchMetrics getMetrics() {
+		return metrics;
+	}
+
 	/*
 	 * The thread can be in one of these states:
 	 *
@@ -215,6 +273,21 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 		return threadStatus;
 	}
 
+	/*
+	 * The thread executing run(): usually this one, but a search can also be
+	 * run on a pool thread (see MultiPointTracer), and that's the one that
+	 * has to be interrupted to wake it from a pause.
+	 */
+	private volatile Thread runner;
+
+	private void wakeUp() {
+		final Thread t = runner;
+		if (t != null)
+			t.interrupt();
+		else
+			this.interrupt();
+	}
+
 	// Safely stops the thread (for discarding the object.)
 
 	@Override
@@ -227,7 +300,7 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 			if (threadStatus == PAUSED) {
 				if (verbose)
 					SNT.log("was paused so interrupting");
-				this.interrupt();
+				wakeUp();
 				if (verbose)
 					SNT.log("done interrupting");
 			}
@@ -247,16 +320,48 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 	protected void addingNode(final SearchNode n) {
 	}
 
+	/**
+	 * Override this method if you want to find out when a better way of
+	 * reaching a point already discovered is found; n has its new cost:
+	 */
+	protected void improvingNode(final SearchNode n, final float previousG) {
+	}
+
+	/**
+	 * Override this method if you want to find out when the cost of reaching
+	 * a point becomes final, i.e. when its node is closed:
+	 */
+	protected void closingNode(final SearchNode n) {
+	}
+
 	public void reportThreadStatus() {
 		for (final SearchProgressCallback progress : progressListeners)
 			progress.threadStatus(this, threadStatus);
 	}
 
 	public void reportFinished(final boolean success) {
+		final SearchMetrics m = metrics;
+		if (m != null) {
+			m.finished(exitReason);
+			for (final SearchMetricsListener listener : metricsListeners)
+				listener.searchFinished(this, m);
+			for (final SearchMetricsListener listener : globalMetricsListeners)
+				listener.searchFinished(this, m);
+		}
 		for (final SearchProgressCallback progress : progressListeners)
 			progress.finished(this, success);
 	}
 
+	/* Called at the start of run(): */
+	void enterInitialStatus() {
+		synchronized (this) {
+			/* A search may be stopped while it's still waiting to be run: */
+			if (threadStatus != STOPPING)
+				threadStatus = startPaused ? PAUSED : RUNNING;
+			reportThreadStatus();
+		}
+	}
+
 	// Toggles the paused or unpaused status of the thread.
 
 	public void pauseOrUnpause() {
@@ -270,7 +375,7 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 			case PAUSED:
 				if (verbose)
 					SNT.log("paused, going to switch to running - interrupting first");
-				this.interrupt();
+				wakeUp();
 				if (verbose)
 					SNT.log("finished interrupting");
 				threadStatus = RUNNING;
@@ -316,27 +421,7 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 		height = imagePlus.getHeight();
 		depth = imagePlus.getStackSize();
 
-		{
-			final ImageStack s = imagePlus.getStack();
-			switch (imageType) {
-			case ImagePlus.GRAY8:
-			case ImagePlus.COLOR_256:
-				slices_data_b = new byte[depth][];
-				for (int z = 0; z < depth; ++z)
-					slices_data_b[z] = (byte[]) s.getPixels(z + 1);
-				break;
-			case ImagePlus.GRAY16:
-				slices_data_s = new short[depth][];
-				for (int z = 0; z < depth; ++z)
-					slices_data_s[z] = (short[]) s.getPixels(z + 1);
-				break;
-			case ImagePlus.GRAY32:
-				slices_data_f = new float[depth][];
-				for (int z = 0; z < depth; ++z)
-					slices_data_f[z] = (float[]) s.getPixels(z + 1);
-				break;
-			}
-		}
+		voxels = VoxelSource.get(imagePlus);
 
 		final Calibration calibration = imagePlus.getCalibration();
 
@@ -366,6 +451,7 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 		nodes_as_image_from_start = new SearchNode[depth][];
 		if (bidirectional)
 			nodes_as_image_from_goal = new SearchNode[depth][];
+		progress_status = new byte[depth][];
 
 		minimum_cost_per_unit_distance = minimumCostPerUnitDistance();
 
@@ -395,6 +481,7 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 	@Override
 	public void run() {
 
+		runner = Thread.currentThread();
 		try {
 
 			if (verbose)
@@ -404,10 +491,15 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 			if (verbose)
 				SNT.log("... was asked to start it in the " + (startPaused ? "paused" : "unpaused") + " state.");
 
-			synchronized (this) {
-				threadStatus = startPaused ? PAUSED : RUNNING;
-				reportThreadStatus();
+			enterInitialStatus();
+
+			final SearchMetrics m = (metricsListeners.isEmpty() && globalMetricsListeners.isEmpty()) ? null
+					: new SearchMetrics();
+			if (m != null) {
+				m.nodeSliceBytes = sliceBytes(nodes_as_image_from_start) + sliceBytes(nodes_as_image_from_goal);
+				m.started();
 			}
+			metrics = m;
 
 			final long started_at = lastReportMilliseconds = System.currentTimeMillis();
 
@@ -468,6 +560,8 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 							printStatus();
 
 						reportPointsInSearch();
+						if (m != null)
+							m.sampleHeap();
 
 						loops_at_last_report = loops;
 					}
@@ -490,9 +584,23 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 				if (open_queue.size() == 0)
 					continue;
 
+				/*
+				 * On sampled expansions we time the whole expansion, the cost
+				 * evaluations and the queue operations:
+				 */
+				final boolean sampling = m != null && (loops & (SearchMetrics.SAMPLE_INTERVAL - 1)) == 0;
+				final long expansionStarted = sampling ? System.nanoTime() : 0;
+				long costNanos = 0;
+				long queueNanos = 0;
+				long t = 0;
+
 				// p = get_highest_priority( open_from_start,
 				// open_from_start_hash );
 				p = open_queue.poll();
+				if (m != null)
+					++m.heapPolls;
+				if (sampling)
+					queueNanos += System.nanoTime() - expansionStarted;
 				if (p == null)
 					continue;
 
@@ -509,9 +617,23 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 					return;
 				}
 
+				voxels.prefetchAround(p.z);
+
 				p.searchStatus = fromStart ? CLOSED_FROM_START : CLOSED_FROM_GOAL;
+				closingNode(p);
+				if (sampling)
+					t = System.nanoTime();
 				closed_queue.add(p);
+				if (m != null) {
+					++m.nodesExpanded;
+					++m.heapInsertions;
+					m.updatePeakNodes(open_from_start.size() + closed_from_start.size()
+							+ (bidirectional ? open_from_goal.size() + closed_from_goal.size() : 0));
+					if (sampling)
+						queueNanos += System.nanoTime() - t;
+				}
 				nodes_as_image_this_search[p.z][p.y * width + p.x] = p;
+				updateProgress(p);
 
 				// Now look at the neighbours of p. We're going to consider
 				// the 26 neighbours in 3D.
@@ -524,6 +646,8 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 
 					if (nodes_as_image_this_search[new_z] == null) {
 						nodes_as_image_this_search[new_z] = new SearchNode[width * height];
+						if (m != null)
+							m.nodeSliceBytes += 4L * width * height;
 					}
 
 					for (int xdiff = -1; xdiff <= 1; xdiff++)
@@ -545,6 +669,9 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 							final double ydiffsq = (ydiff * y_spacing) * (ydiff * y_spacing);
 							final double zdiffsq = (zdiff * z_spacing) * (zdiff * z_spacing);
 
+							if (sampling)
+								t = System.nanoTime();
+
 							final float h_for_new_point = estimateCostToGoal(new_x, new_y, new_z, fromStart);
 
 							double cost_moving_to_new_point = costMovingTo(new_x, new_y, new_z);
@@ -552,6 +679,13 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 								cost_moving_to_new_point = minimum_cost_per_unit_distance;
 							}
 
+							if (m != null) {
+								++m.heuristicEvaluations;
+								++m.costEvaluations;
+								if (sampling)
+									costNanos += System.nanoTime() - t;
+							}
+
 							final float g_for_new_point = (float) (p.g
 									+ Math.sqrt(xdiffsq + ydiffsq + zdiffsq) * cost_moving_to_new_point);
 
@@ -567,9 +701,18 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 							if (alreadyThereInThisSearch == null) {
 
 								newNode.searchStatus = fromStart ? OPEN_FROM_START : OPEN_FROM_GOAL;
+								if (sampling)
+									t = System.nanoTime();
 								open_queue.add(newNode);
+								if (m != null) {
+									++m.nodesCreated;
+									++m.heapInsertions;
+									if (sampling)
+										queueNanos += System.nanoTime() - t;
+								}
 								addingNode(newNode);
 								nodes_as_image_this_search[new_z][new_y * width + new_x] = newNode;
+								updateProgress(newNode);
 
 							} else {
 
@@ -584,20 +727,44 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 									if (alreadyThereInThisSearch.searchStatus == (fromStart ? OPEN_FROM_START
 											: OPEN_FROM_GOAL)) {
 
+										if (sampling)
+											t = System.nanoTime();
 										open_queue.remove(alreadyThereInThisSearch);
+										final float previousG = alreadyThereInThisSearch.g;
 										alreadyThereInThisSearch.setFrom(newNode);
+										improvingNode(alreadyThereInThisSearch, previousG);
 										alreadyThereInThisSearch.searchStatus = fromStart ? OPEN_FROM_START
 												: OPEN_FROM_GOAL;
 										open_queue.add(alreadyThereInThisSearch);
+										if (m != null) {
+											++m.nodesImproved;
+											++m.heapRemovals;
+											++m.heapInsertions;
+											if (sampling)
+												queueNanos += System.nanoTime() - t;
+										}
+										updateProgress(alreadyThereInThisSearch);
 
 									} else if (alreadyThereInThisSearch.searchStatus == (fromStart ? CLOSED_FROM_START
 											: CLOSED_FROM_GOAL)) {
 
+										if (sampling)
+											t = System.nanoTime();
 										closed_queue.remove(alreadyThereInThisSearch);
+										final float previousG = alreadyThereInThisSearch.g;
 										alreadyThereInThisSearch.setFrom(newNode);
+										improvingNode(alreadyThereInThisSearch, previousG);
 										alreadyThereInThisSearch.searchStatus = fromStart ? OPEN_FROM_START
 												: OPEN_FROM_GOAL;
 										open_queue.add(alreadyThereInThisSearch);
+										if (m != null) {
+											++m.nodesReopened;
+											++m.heapRemovals;
+											++m.heapInsertions;
+											if (sampling)
+												queueNanos += System.nanoTime() - t;
+										}
+										updateProgress(alreadyThereInThisSearch);
 									}
 								}
 							}
@@ -640,6 +807,8 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 							}
 						}
 				}
+				if (sampling)
+					m.addExpansionSample(System.nanoTime() - expansionStarted, costNanos, queueNanos);
 				++loops;
 			}
 
@@ -675,11 +844,22 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 				new TextWindow("Exception in SearchThread", s, w, h);
 			else
 				IJ.log(s);
+		} finally {
+			runner = null;
 		}
 		return;
 
 	}
 
+	private static long sliceBytes(final SearchNode[][] nodes_as_image) {
+		long bytes = 0;
+		if (nodes_as_image != null)
+			for (final SearchNode[] slice : nodes_as_image)
+				if (slice != null)
+					bytes += 4L * slice.length;
+		return bytes;
+	}
+
 	/*
 	 * This is the heuristic value for the A* search. There's no defined goal in
 	 * this default superclass implementation, so always return 0 so we end up
@@ -734,73 +914,145 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 		return n;
 	}
 
+	/*
+	 * This is a map of the status of each voxel in the search, which is
+	 * updated by the search itself (see updateProgress()) so that the
+	 * progress can be drawn without looking through the nodes. For each voxel
+	 * the low four bits hold the status of the node from the start and the
+	 * high four bits the status of the node from the goal, or 0 if there is
+	 * no such node. As with nodes_as_image_from_start, a slice is only
+	 * allocated once the search reaches it.
+	 */
+	byte[][] progress_status;
+
+	void updateProgress(final SearchNode n) {
+		byte[] slice = progress_status[n.z];
+		if (slice == null) {
+			slice = new byte[width * height];
+			progress_status[n.z] = slice;
+		}
+		final int i = n.y * width + n.x;
+		if (n.searchStatus == OPEN_FROM_START || n.searchStatus == CLOSED_FROM_START)
+			slice[i] = (byte) ((slice[i] & 0xF0) | n.searchStatus);
+		else if (n.searchStatus == OPEN_FROM_GOAL || n.searchStatus == CLOSED_FROM_GOAL)
+			slice[i] = (byte) ((slice[i] & 0x0F) | (n.searchStatus << 4));
+	}
+
+	/*
+	 * Returns the status of the node at (x,y,z) that should be drawn, i.e.
+	 * that of the node from the start, or failing that the one from the goal,
+	 * whose g is not above the drawing threshold. Returns 0 if there's no
+	 * such node.
+	 */
+	private byte statusToDraw(final int x, final int y, final int z, final float threshold) {
+		final byte[] slice = progress_status[z];
+		if (slice == null)
+			return 0;
+		final int i = y * width + x;
+		final int status = slice[i];
+		if (status == 0)
+			return 0;
+		final byte fromStart = (byte) (status & 0x0F);
+		if (fromStart != 0 && (threshold < 0 || nodeUnderThreshold(nodes_as_image_from_start, x, y, z, threshold)))
+			return fromStart;
+		final byte fromGoal = (byte) ((status >> 4) & 0x0F);
+		if (fromGoal != 0 && (threshold < 0 || nodeUnderThreshold(nodes_as_image_from_goal, x, y, z, threshold)))
+			return fromGoal;
+		return 0;
+	}
+
+	private boolean nodeUnderThreshold(final SearchNode[][] nodes_as_image, final int x, final int y, final int z,
+			final float threshold) {
+		if (nodes_as_image == null || nodes_as_image[z] == null)
+			return false;
+		final SearchNode n = nodes_as_image[z][y * width + x];
+		return n != null && n.g <= threshold;
+	}
+
+	/*
+	 * For each pane, the image that the visible part of the progress is
+	 * rendered into before being drawn; it's the size of the canvas's source
+	 * rectangle, and replaced when that changes size (e.g. on zooming):
+	 */
+	private final BufferedImage[] progressImages = new BufferedImage[3];
+
 	/*
 	 * This draws over the Graphics object the current progress of the search at
 	 * this slice. If openColor or closedColor are null then that means
-	 * "don't bother to draw that list".
+	 * "don't bother to draw that list". Only the part of the slice that's
+	 * visible in the canvas is rendered, and it is drawn as a single image.
 	 */
 
 	@Override
 	public void drawProgressOnSlice(final int plane, final int currentSliceInPlane, final TracerCanvas canvas,
 			final Graphics g) {
 
-		for (int i = 0; i < 2; ++i) {
+		final int openRGB = (openColor == null) ? 0 : openColor.getRGB();
+		final int closedRGB = (closedColor == null) ? 0 : closedColor.getRGB();
+		if (openRGB == 0 && closedRGB == 0)
+			return;
 
-			/*
-			 * The first time through we draw the nodes in the open list, the
-			 * second time through we draw the nodes in the closed list.
-			 */
+		final int planeWidth, planeHeight, pane;
+		switch (plane) {
+		case ThreePanes.XY_PLANE:
+			planeWidth = width;
+			planeHeight = height;
+			pane = 0;
+			break;
+		case ThreePanes.XZ_PLANE:
+			planeWidth = width;
+			planeHeight = depth;
+			pane = 1;
+			break;
+		case ThreePanes.ZY_PLANE:
+			planeWidth = depth;
+			planeHeight = height;
+			pane = 2;
+			break;
+		default:
+			return;
+		}
 
-			final byte start_status = (i == 0) ? OPEN_FROM_START : CLOSED_FROM_START;
-			final byte goal_status = (i == 0) ? OPEN_FROM_GOAL : CLOSED_FROM_GOAL;
-			final Color c = (i == 0) ? openColor : closedColor;
-			if (c == null)
-				continue;
-
-			g.setColor(c);
-
-			int pixel_size = (int) canvas.getMagnification();
-			if (pixel_size < 1)
-				pixel_size = 1;
-
-			if (plane == ThreePanes.XY_PLANE) {
-				final int z = currentSliceInPlane;
-				for (int y = 0; y < height; ++y)
-					for (int x = 0; x < width; ++x) {
-						final SearchNode n = anyNodeUnderThreshold(x, y, z, drawingThreshold);
-						if (n == null)
-							continue;
-						final byte status = n.searchStatus;
-						if (status == start_status || status == goal_status)
-							g.fillRect(canvas.myScreenX(x) - pixel_size / 2, canvas.myScreenY(y) - pixel_size / 2,
-									pixel_size, pixel_size);
-					}
-			} else if (plane == ThreePanes.XZ_PLANE) {
-				final int y = currentSliceInPlane;
-				for (int z = 0; z < depth; ++z)
-					for (int x = 0; x < width; ++x) {
-						final SearchNode n = anyNodeUnderThreshold(x, y, z, drawingThreshold);
-						if (n == null)
-							continue;
-						final byte status = n.searchStatus;
-						if (status == start_status || status == goal_status)
-							g.fillRect(canvas.myScreenX(x) - pixel_size / 2, canvas.myScreenY(z) - pixel_size / 2,
-									pixel_size, pixel_size);
-					}
-			} else if (plane == ThreePanes.ZY_PLANE) {
-				final int x = currentSliceInPlane;
-				for (int y = 0; y < height; ++y)
-					for (int z = 0; z < depth; ++z) {
-						final SearchNode n = anyNodeUnderThreshold(x, y, z, drawingThreshold);
-						if (n == null)
-							continue;
-						final byte status = n.searchStatus;
-						if (status == start_status || status == goal_status)
-							g.fillRect(canvas.myScreenX(z) - pixel_size / 2, canvas.myScreenY(y) - pixel_size / 2,
-									pixel_size, pixel_size);
-					}
+		final Rectangle visible = canvas.getSrcRect().intersection(new Rectangle(0, 0, planeWidth, planeHeight));
+		if (visible.isEmpty())
+			return;
+
+		BufferedImage progressImage = progressImages[pane];
+		if (progressImage == null || progressImage.getWidth() != visible.width
+				|| progressImage.getHeight() != visible.height) {
+			progressImage = new BufferedImage(visible.width, visible.height, BufferedImage.TYPE_INT_ARGB);
+			progressImages[pane] = progressImage;
+		}
+		final int[] progressPixels = ((DataBufferInt) progressImage.getRaster().getDataBuffer()).getData();
+
+		final float threshold = drawingThreshold;
+		for (int py = visible.y; py < visible.y + visible.height; ++py) {
+			for (int px = visible.x; px < visible.x + visible.width; ++px) {
+				final byte status;
+				switch (plane) {
+				case ThreePanes.XY_PLANE:
+					status = statusToDraw(px, py, currentSliceInPlane, threshold);
+					break;
+				case ThreePanes.XZ_PLANE:
+					status = statusToDraw(px, currentSliceInPlane, py, threshold);
+					break;
+				default:
+					status = statusToDraw(currentSliceInPlane, py, px, threshold);
+					break;
+				}
+				int rgb = 0;
+				if (status == OPEN_FROM_START || status == OPEN_FROM_GOAL)
+					rgb = openRGB;
+				else if (status == CLOSED_FROM_START || status == CLOSED_FROM_GOAL)
+					rgb = closedRGB;
+				progressPixels[(py - visible.y) * visible.width + (px - visible.x)] = rgb;
 			}
 		}
+
+		final int x1 = visible.x, y1 = visible.y;
+		final int x2 = x1 + visible.width, y2 = y1 + visible.height;
+		g.drawImage(progressImage, canvas.myScreenX(x1), canvas.myScreenY(y1), canvas.myScreenX(x2),
+				canvas.myScreenY(y2), 0, 0, visible.width, visible.height, null);
 	}
 
 	// Add a node, ignoring requests to add duplicate nodes:
@@ -833,15 +1085,19 @@ public abstract class SearchThread extends Thread implements SearchInterface {
 
 			closed_from_start.add(n);
 			nodes_as_image[n.z][n.y * width + n.x] = n;
+			closingNode(n);
 
 		} else if (n.searchStatus == CLOSED_FROM_GOAL) {
 			assert bidirectional && definedGoal;
 
 			closed_from_goal.add(n);
 			nodes_as_image[n.z][n.y * width + n.x] = n;
+			closingNode(n);
 
 		}
 
+		updateProgress(n);
+
 	}
 
 }
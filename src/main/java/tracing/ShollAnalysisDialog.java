@@ -948,12 +948,12 @@ public class ShollAnalysisDialog extends Dialog implements WindowListener, Actio
 			final double z_start, final List<ShollPoint> shollPointsList) {
 
 		for (int i = 0; i < p.points - 1; ++i) {
-			final double xdiff_first = p.precise_x_positions[i] - x_start;
-			final double ydiff_first = p.precise_y_positions[i] - y_start;
-			final double zdiff_first = p.precise_z_positions[i] - z_start;
-			final double xdiff_second = p.precise_x_positions[i + 1] - x_start;
-			final double ydiff_second = p.precise_y_positions[i + 1] - y_start;
-			final double zdiff_second = p.precise_z_positions[i + 1] - z_start;
+			final double xdiff_first = p.getPreciseX(i) - x_start;
+			final double ydiff_first = p.getPreciseY(i) - y_start;
+			final double zdiff_first = p.getPreciseZ(i) - z_start;
+			final double xdiff_second = p.getPreciseX(i + 1) - x_start;
+			final double ydiff_second = p.getPreciseY(i + 1) - y_start;
+			final double zdiff_second = p.getPreciseZ(i + 1) - z_start;
 			final double distanceSquaredFirst = xdiff_first * xdiff_first + ydiff_first * ydiff_first
 					+ zdiff_first * zdiff_first;
 			final double distanceSquaredSecond = xdiff_second * xdiff_second + ydiff_second * ydiff_second
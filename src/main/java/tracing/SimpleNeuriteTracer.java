@@ -58,8 +58,9 @@ import ij.gui.StackWindow;
 import ij.gui.YesNoCancelDialog;
 import ij.io.FileInfo;
 import ij.io.OpenDialog;
-import ij.plugin.ZProjector;
+import ij.measure.Calibration;
 import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
 import ij.text.TextWindow;
 import ij3d.Content;
 import ij3d.Image3DUniverse;
@@ -159,6 +160,14 @@ public class SimpleNeuriteTracer extends ThreePanes
 			currentSearchThread.requestStop();
 		if (tubularGeodesicsThread != null)
 			tubularGeodesicsThread.requestStop();
+		final MultiPointTracer multiPoint = multiPointTracer;
+		if (multiPoint != null) {
+			multiPoint.cancel();
+			multiPointTracer = null;
+			removeSphere(targetBallName);
+			setTemporaryPathOnCanvases(temporaryPath);
+			resultsDialog.changeState(NeuriteTracerResultsDialog.PARTIAL_PATH);
+		}
 		endJoin = null;
 		endJoinPoint = null;
 		if (cancelFillToo && filler != null)
@@ -551,16 +560,51 @@ public class SimpleNeuriteTracer extends ThreePanes
 
 	public void mouseMovedTo(final double x_in_pane, final double y_in_pane, final int in_plane,
 			final boolean shift_key_down, final boolean join_modifier_down) {
+		final MouseMovePipeline.Move move = new MouseMovePipeline.Move();
+		move.x_in_pane = x_in_pane;
+		move.y_in_pane = y_in_pane;
+		move.plane = in_plane;
+		move.shift_key_down = shift_key_down;
+		move.join_modifier_down = join_modifier_down;
+		computeMouseMove(move);
+		applyMouseMove(move);
+	}
+
+	final MouseMovePipeline mouseMoves = new MouseMovePipeline(this);
+
+	/**
+	 * Like {@link #mouseMovedTo}, but the lookups are done in the background
+	 * and only the latest of several quick movements is displayed.
+	 */
+	void postMouseMove(final MouseMovePipeline.Move move) {
+		mouseMoves.post(move);
+	}
+
+	/*
+	 * Works out everything about a mouse movement that doesn't involve the
+	 * display. This may be called from any thread, so it mustn't change the
+	 * panes, and doesn't lock the filler: a slightly stale distance is fine
+	 * for the status display.
+	 */
+	void computeMouseMove(final MouseMovePipeline.Move move) {
 
 		double x, y, z;
 
 		final double[] pd = new double[3];
-		findPointInStackPrecise(x_in_pane, y_in_pane, in_plane, pd);
+		if (move.snap) {
+			snapInXYview(move.x_in_pane, move.y_in_pane, pd);
+			move.x_in_pane = pd[0];
+			move.y_in_pane = pd[1];
+			move.snapped = true;
+			move.shift_key_down = true;
+		} else {
+			findPointInStackPrecise(move.x_in_pane, move.y_in_pane, move.plane, pd);
+		}
 		x = pd[0];
 		y = pd[1];
 		z = pd[2];
 
-		if (join_modifier_down && pathAndFillManager.anySelected()) {
+		if (move.join_modifier_down && pathAndFillManager.anySelected()) {
 
 			final PointInImage pointInImage = pathAndFillManager.nearestJoinPointOnSelectedPaths(x, y, z);
 			if (pointInImage != null) {
@@ -578,34 +622,66 @@ public class SimpleNeuriteTracer extends ThreePanes
 		final double y_scaled = iy * y_spacing;
 		final double z_scaled = iz * z_spacing;
 
-		if (shift_key_down)
-			setSlicesAllPanes(ix, iy, iz);
+		String statusMessage = "world: (" + x_scaled + "," + y_scaled + "," + z_scaled + ") image: (" + ix + "," + iy
+				+ "," + iz + ")";
+		if (labelData != null) {
 
-		if ((xy_tracer_canvas != null) && ((xz_tracer_canvas != null) || single_pane)
-				&& ((zy_tracer_canvas != null) || single_pane)) {
+			final byte b = labelData[iz][iy * width + ix];
+			final int m = b & 0xFF;
 
-			String statusMessage = "world: (" + x_scaled + "," + y_scaled + "," + z_scaled + ") image: (" + ix + ","
-					+ iy + "," + iz + ")";
-			setCrosshair(x, y, z);
-			if (labelData != null) {
+			final String material = materialList[m];
+			statusMessage += ", material: " + material;
+		}
 
-				final byte b = labelData[iz][iy * width + ix];
-				final int m = b & 0xFF;
+		final FillerThread currentFiller = filler;
+		if (currentFiller != null && ix >= 0 && iy >= 0 && iz >= 0 && ix < width && iy < height && iz < depth) {
+			move.distance = currentFiller.getDistanceAtPoint(ix, iy, iz);
+			move.haveDistance = true;
+		}
 
-				final String material = materialList[m];
-				statusMessage += ", material: " + material;
-			}
-			IJ.showStatus(statusMessage);
+		move.x = x;
+		move.y = y;
+		move.z = z;
+		move.ix = ix;
+		move.iy = iy;
+		move.iz = iz;
+		move.statusMessage = statusMessage;
+	}
 
-			repaintAllPanes(); // Or the crosshair isn't updated....
-		}
+	/* The crosshair position last drawn, in image co-ordinates: */
+	private double[] lastCrosshair;
 
-		if (filler != null) {
-			synchronized (filler) {
-				final float distance = filler.getDistanceAtPoint(ix, iy, iz);
-				resultsDialog.showMouseThreshold(distance);
+	/* Shows the result of computeMouseMove(); must be called on the EDT: */
+	void applyMouseMove(final MouseMovePipeline.Move move) {
+
+		if (move.shift_key_down)
+			setSlicesAllPanes(move.ix, move.iy, move.iz);
+
+		if ((xy_tracer_canvas != null) && ((xz_tracer_canvas != null) || single_pane)
+				&& ((zy_tracer_canvas != null) || single_pane)) {
+
+			setCrosshair(move.x, move.y, move.z);
+			IJ.showStatus(move.statusMessage);
+
+			/*
+			 * If the slices have changed the whole of each pane has to be
+			 * redrawn; otherwise only around the old and new crosshairs:
+			 */
+			final double[] crosshair = { move.x, move.y, move.z };
+			if (move.shift_key_down || lastCrosshair == null) {
+				repaintAllPanes();
+			} else {
+				xy_tracer_canvas.repaintCrosshairs(lastCrosshair, crosshair);
+				if (!single_pane) {
+					xz_tracer_canvas.repaintCrosshairs(lastCrosshair, crosshair);
+					zy_tracer_canvas.repaintCrosshairs(lastCrosshair, crosshair);
+				}
 			}
+			lastCrosshair = crosshair;
 		}
+
+		if (move.haveDistance)
+			resultsDialog.showMouseThreshold(move.distance);
 	}
 
 	volatile boolean lastStartPointSet = false;
@@ -634,11 +710,7 @@ public class SimpleNeuriteTracer extends ThreePanes
 
 		final Path oldTemporaryPath = this.temporaryPath;
 
-		xy_tracer_canvas.setTemporaryPath(path);
-		if (!single_pane) {
-			zy_tracer_canvas.setTemporaryPath(path);
-			xz_tracer_canvas.setTemporaryPath(path);
-		}
+		setTemporaryPathOnCanvases(path);
 
 		temporaryPath = path;
 
@@ -654,6 +726,14 @@ public class SimpleNeuriteTracer extends ThreePanes
 		}
 	}
 
+	void setTemporaryPathOnCanvases(final Path path) {
+		xy_tracer_canvas.setTemporaryPath(path);
+		if (!single_pane) {
+			zy_tracer_canvas.setTemporaryPath(path);
+			xz_tracer_canvas.setTemporaryPath(path);
+		}
+	}
+
 	synchronized public void setCurrentPath(final Path path) {
 
 		final Path oldCurrentPath = this.currentPath;
@@ -811,19 +891,11 @@ public class SimpleNeuriteTracer extends ThreePanes
 
 		} else {
 
-			currentSearchThread = new TracerThread(xy, stackMin, stackMax, 0, // timeout
-																				// in
-																				// seconds
-					1000, // reportEveryMilliseconds
-					last_start_point_x, last_start_point_y, last_start_point_z, x_end, y_end, z_end, true, // reciprocal
-					singleSlice, (hessianEnabled ? hessian : null), resultsDialog.getMultiplier(), tubeness,
-					hessianEnabled);
+			currentSearchThread = createTracerThread(last_start_point_x, last_start_point_y, last_start_point_z, x_end,
+					y_end, z_end);
 
 			addThreadToDraw(currentSearchThread);
 
-			currentSearchThread.setDrawingColors(Color.CYAN, null);
-			currentSearchThread.setDrawingThreshold(-1);
-
 			currentSearchThread.addProgressListener(this);
 
 			currentSearchThread.start();
@@ -833,6 +905,256 @@ public class SimpleNeuriteTracer extends ThreePanes
 		repaintAllPanes();
 	}
 
+	/*
+	 * Creates (but doesn't start) a search between two points in image
+	 * co-ordinates, with the current Hessian settings:
+	 */
+
+	TracerThread createTracerThread(final int start_x, final int start_y, final int start_z, final int goal_x,
+			final int goal_y, final int goal_z) {
+
+		final TracerThread search = new TracerThread(xy, stackMin, stackMax, 0, // timeout
+																				// in
+																				// seconds
+				1000, // reportEveryMilliseconds
+				start_x, start_y, start_z, goal_x, goal_y, goal_z, true, // reciprocal
+				singleSlice, (hessianEnabled ? hessian : null), resultsDialog.getMultiplier(), tubeness,
+				hessianEnabled);
+
+		search.setDrawingColors(Color.CYAN, null);
+		search.setDrawingThreshold(-1);
+
+		return search;
+	}
+
+	/*
+	 * Waypoints queued with queueWaypoint() (in world co-ordinates) for the
+	 * next multi-point trace, and the MultiPointTracer for the one in progress,
+	 * if any. The waypoints stay queued until the path through them has been
+	 * found, so that after a failure they can be moved or traced again.
+	 */
+
+	final List<PointInImage> queuedWaypoints = new ArrayList<>();
+	MultiPointTracer multiPointTracer;
+
+	synchronized public List<PointInImage> getQueuedWaypoints() {
+		return new ArrayList<>(queuedWaypoints);
+	}
+
+	/**
+	 * Adds a waypoint for a multi-point trace from the end of the current
+	 * path; the path is traced through all the queued waypoints at once by
+	 * traceQueuedWaypoints(). If join is true, the waypoint is moved to the
+	 * nearest point on the selected paths and the new path will end by joining
+	 * that path; no further waypoints can then be added.
+	 */
+	synchronized public void queueWaypoint(final double world_x, final double world_y, final double world_z,
+			final boolean join) {
+
+		if (hasFailedSegments()) {
+			moveNearestFailedWaypoint(world_x, world_y, world_z);
+			return;
+		}
+
+		if (!lastStartPointSet) {
+			IJ.showStatus("No initial start point has been set.  Do that with a mouse click first.");
+			return;
+		}
+
+		if (temporaryPath != null || currentSearchThread != null || multiPointTracer != null) {
+			IJ.showStatus("Finish the current search or temporary path before adding waypoints.");
+			return;
+		}
+
+		if (!queuedWaypoints.isEmpty() && queuedWaypoints.get(queuedWaypoints.size() - 1).onPath != null) {
+			IJ.showStatus("The last waypoint joins another path; press 'T' to trace through the waypoints.");
+			return;
+		}
+
+		PointInImage waypoint = null;
+		if (join)
+			waypoint = pathAndFillManager.nearestJoinPointOnSelectedPaths(world_x / x_spacing, world_y / y_spacing,
+					world_z / z_spacing);
+		if (waypoint == null)
+			waypoint = new PointInImage(world_x, world_y, world_z);
+
+		queuedWaypoints.add(waypoint);
+		IJ.showStatus(queuedWaypoints.size() + " waypoint(s) queued; press 'T' to trace through them.");
+		repaintAllPanes();
+	}
+
+	synchronized public void clearQueuedWaypoints() {
+		queuedWaypoints.clear();
+		repaintAllPanes();
+	}
+
+	synchronized public void traceQueuedWaypoints() {
+		if (hasFailedSegments()) {
+			// e.g. after changing the Hessian settings:
+			for (final int i : multiPointTracer.failedSegments())
+				retraceSegment(i);
+			return;
+		}
+		if (queuedWaypoints.isEmpty()) {
+			IJ.showStatus("No waypoints have been queued.  Press 'W' to add one at the mouse pointer.");
+			return;
+		}
+		testPathThrough(new ArrayList<>(queuedWaypoints));
+	}
+
+	/* Whether the multi-point trace in progress has given up on some segments: */
+	private boolean hasFailedSegments() {
+		return multiPointTracer != null && !multiPointTracer.isSearching()
+				&& !multiPointTracer.failedSegments().isEmpty();
+	}
+
+	/*
+	 * Moves whichever waypoint at either end of a failed segment is nearest
+	 * to the given point (in world co-ordinates) there; the start point
+	 * stays where it is.
+	 */
+	private void moveNearestFailedWaypoint(final double world_x, final double world_y, final double world_z) {
+		int nearest = -1;
+		double nearestDistanceSquared = Double.MAX_VALUE;
+		for (final int segment : multiPointTracer.failedSegments()) {
+			for (int i = Math.max(1, segment); i <= segment + 1; ++i) {
+				final PointInImage waypoint = multiPointTracer.getWaypoint(i);
+				final double dx = waypoint.x - world_x, dy = waypoint.y - world_y, dz = waypoint.z - world_z;
+				final double distanceSquared = dx * dx + dy * dy + dz * dz;
+				if (distanceSquared < nearestDistanceSquared) {
+					nearest = i;
+					nearestDistanceSquared = distanceSquared;
+				}
+			}
+		}
+		moveWaypoint(nearest, world_x, world_y, world_z);
+	}
+
+	/**
+	 * Like testPathTo(), but traces through a sequence of waypoints (in
+	 * world co-ordinates) from the current start point, running the searches
+	 * for all the segments concurrently. If the last waypoint is on another
+	 * path (i.e. onPath is set) the new path joins it. Once all the segments
+	 * have been found, the whole path becomes the temporary path to be
+	 * confirmed or rejected as usual.
+	 */
+	synchronized public void testPathThrough(final List<PointInImage> waypoints) {
+
+		if (!lastStartPointSet) {
+			IJ.showStatus("No initial start point has been set.  Do that with a mouse click.");
+			return;
+		}
+
+		if (temporaryPath != null) {
+			IJ.showStatus("There's already a temporary path; Press 'N' to cancel it or 'Y' to keep it.");
+			return;
+		}
+
+		if (currentSearchThread != null || multiPointTracer != null) {
+			IJ.showStatus("A search is already in progress.");
+			return;
+		}
+
+		if (tubularGeodesicsTracingEnabled) {
+			SNT.error("Multi-point tracing is not available with Tubular Geodesics.");
+			return;
+		}
+
+		final List<PointInImage> points = new ArrayList<>();
+		points.add(new PointInImage(last_start_point_x * x_spacing, last_start_point_y * y_spacing,
+				last_start_point_z * z_spacing));
+		points.addAll(waypoints);
+
+		final PointInImage last = points.get(points.size() - 1);
+		if (last.onPath != null) {
+			endJoin = last.onPath;
+			endJoinPoint = last;
+		}
+
+		addSphere(targetBallName, last.x, last.y, last.z, Color.BLUE, x_spacing * ballRadiusMultiplier);
+
+		multiPointTracer = new MultiPointTracer(this, points);
+		multiPointTracer.start();
+		resultsDialog.changeState(NeuriteTracerResultsDialog.SEARCHING);
+	}
+
+	/** Re-runs segment i of the multi-point trace in progress. */
+	synchronized public void retraceSegment(final int i) {
+		if (multiPointTracer == null) {
+			SNT.error("There is no multi-point trace in progress.");
+			return;
+		}
+		multiPointTracer.retraceSegment(i);
+		resultsDialog.changeState(NeuriteTracerResultsDialog.SEARCHING);
+	}
+
+	/**
+	 * Moves waypoint i (counting the start point as 0) of the multi-point
+	 * trace in progress, re-running the segments on either side of it.
+	 */
+	synchronized public void moveWaypoint(final int i, final double world_x, final double world_y,
+			final double world_z) {
+		if (multiPointTracer == null) {
+			SNT.error("There is no multi-point trace in progress.");
+			return;
+		}
+		final PointInImage moved = new PointInImage(world_x, world_y, world_z);
+		multiPointTracer.moveWaypoint(i, moved);
+		if (i - 1 < queuedWaypoints.size())
+			queuedWaypoints.set(i - 1, moved);
+		if (i == multiPointTracer.numberOfSegments()) {
+			// The end point has moved, so it no longer joins another path:
+			endJoin = null;
+			endJoinPoint = null;
+			removeSphere(targetBallName);
+			addSphere(targetBallName, moved.x, moved.y, moved.z, Color.BLUE, x_spacing * ballRadiusMultiplier);
+		}
+		resultsDialog.changeState(NeuriteTracerResultsDialog.SEARCHING);
+		repaintAllPanes();
+	}
+
+	/*
+	 * Called by the MultiPointTracer whenever one of its segments has
+	 * finished. The segments found so far from the start are shown as they
+	 * complete; the path only becomes the temporary path once all of them
+	 * have been found.
+	 */
+
+	synchronized void multiPointUpdated(final MultiPointTracer tracer) {
+
+		if (tracer != multiPointTracer)
+			return;
+
+		if (tracer.isComplete()) {
+			multiPointTracer = null;
+			queuedWaypoints.clear();
+			removeSphere(targetBallName);
+			final Path result = tracer.assemble();
+			if (endJoin != null)
+				result.setEndJoin(endJoin, endJoinPoint);
+			setTemporaryPath(result);
+			resultsDialog.changeState(NeuriteTracerResultsDialog.QUERY_KEEP);
+		} else {
+			setTemporaryPathOnCanvases(tracer.assemble());
+			final List<Integer> failed = tracer.failedSegments();
+			if (!failed.isEmpty() && !tracer.isSearching()) {
+				/*
+				 * Re-running a failed search with the same settings would
+				 * fail the same way, so suggest moving a waypoint first;
+				 * number the segments from 1 here:
+				 */
+				final StringBuilder segments = new StringBuilder();
+				for (final int i : failed)
+					segments.append(segments.length() == 0 ? "" : ", ").append(i + 1);
+				IJ.showStatus("No route was found for segment(s) " + segments
+						+ "; press 'W' to move their nearest waypoint to the mouse pointer, 'T' to retry them,"
+						+ " or Escape to cancel (the waypoints are kept).");
+			}
+		}
+
+		repaintAllPanes();
+	}
+
 	synchronized public void confirmTemporary() {
 
 		if (temporaryPath == null)
@@ -913,6 +1235,7 @@ public class SimpleNeuriteTracer extends ThreePanes
 
 		setCurrentPath(null);
 		setTemporaryPath(null);
+		queuedWaypoints.clear();
 
 		lastStartPointSet = false;
 		setPathUnfinished(false);
@@ -978,7 +1301,7 @@ public class SimpleNeuriteTracer extends ThreePanes
 
 		// FIXME: in some of the states this doesn't make sense; check for them:
 
-		if (currentSearchThread != null)
+		if (currentSearchThread != null || multiPointTracer != null)
 			return;
 
 		if (temporaryPath != null)
@@ -1116,10 +1439,74 @@ public class SimpleNeuriteTracer extends ThreePanes
 	protected String spacing_units = "";
 
 	public void viewFillIn3D(final boolean asMask) {
-		final ImagePlus imagePlus = filler.fillAsImagePlus(asMask);
+		/* A fill of a virtual stack is shown as one too: */
+		final ImagePlus imagePlus = filler.fillAsImagePlus(asMask, xy.getStack().isVirtual());
 		imagePlus.show();
 	}
 
+	/*
+	 * Whether the XZ and ZY panes should be backed by OrthogonalViewStacks,
+	 * which compute each plane when it's displayed, rather than by the full
+	 * resliced copies ThreePanes makes. If null, this is decided from the
+	 * size of the image; -Dsnt.lazyReslice=true|false overrides that.
+	 */
+	protected Boolean lazyReslicing = System.getProperty("snt.lazyReslice") == null ? null
+			: Boolean.getBoolean("snt.lazyReslice");
+
+	public void setLazyReslicing(final Boolean lazy) {
+		this.lazyReslicing = lazy;
+	}
+
+	boolean shouldResliceLazily(final ImagePlus imagePlus) {
+		if (!OrthogonalViewStack.isSupported(imagePlus))
+			return false;
+		if (lazyReslicing != null)
+			return lazyReslicing;
+		/*
+		 * Two more copies of a virtual stack, or of a stack using more than
+		 * a quarter of the heap, are likely not to fit:
+		 */
+		final long bytes = (long) imagePlus.getWidth() * imagePlus.getHeight() * imagePlus.getStackSize()
+				* imagePlus.getBytesPerPixel();
+		return imagePlus.getStack().isVirtual() || bytes > Runtime.getRuntime().maxMemory() / 4;
+	}
+
+	@Override
+	public void initialize(final ImagePlus imagePlus) {
+
+		if (single_pane || !shouldResliceLazily(imagePlus)) {
+			super.initialize(imagePlus);
+			return;
+		}
+
+		/*
+		 * Let ThreePanes set up just the XY pane, then add the side panes
+		 * ourselves:
+		 */
+		single_pane = true;
+		super.initialize(imagePlus);
+		single_pane = false;
+
+		final Calibration calibration = imagePlus.getCalibration();
+
+		xz = new ImagePlus("XZ " + imagePlus.getTitle(), new OrthogonalViewStack(imagePlus, XZ_PLANE));
+		final Calibration xzCalibration = calibration.copy();
+		xzCalibration.pixelHeight = calibration.pixelDepth;
+		xzCalibration.pixelDepth = calibration.pixelHeight;
+		xz.setCalibration(xzCalibration);
+
+		zy = new ImagePlus("ZY " + imagePlus.getTitle(), new OrthogonalViewStack(imagePlus, ZY_PLANE));
+		final Calibration zyCalibration = calibration.copy();
+		zyCalibration.pixelWidth = calibration.pixelDepth;
+		zyCalibration.pixelDepth = calibration.pixelWidth;
+		zy.setCalibration(zyCalibration);
+
+		xz_canvas = createCanvas(xz, XZ_PLANE);
+		zy_canvas = createCanvas(zy, ZY_PLANE);
+		xz_window = new StackWindow(xz, xz_canvas);
+		zy_window = new StackWindow(zy, zy_canvas);
+	}
+
 	public void setPositionAllPanes(final int x, final int y, final int z) {
 
 		xy.setSlice(z + 1);
@@ -1130,9 +1517,8 @@ public class SimpleNeuriteTracer extends ThreePanes
 
 	protected int imageType = -1;
 
-	protected byte[][] slices_data_b;
-	protected short[][] slices_data_s;
-	protected float[][] slices_data_f;
+	/* Used by the cursor snapping and max-point code: */
+	protected VoxelSource voxels;
 
 	protected NeuriteTracerResultsDialog resultsDialog;
 
@@ -1147,6 +1533,20 @@ public class SimpleNeuriteTracer extends ThreePanes
 	volatile protected float stackMax = Float.MIN_VALUE;
 	volatile protected float stackMin = Float.MAX_VALUE;
 
+	/**
+	 * Rescales 16 and 32-bit images for the searches between the given
+	 * percentiles of their intensity distribution, rather than between the
+	 * minimum and maximum, so that a few very bright or dark voxels don't
+	 * compress the useful range. Values outside the range are clamped. This
+	 * uses the cached statistics, so doesn't need another pass over the
+	 * image. Passing 0 and 100 restores the default.
+	 */
+	public void setPercentileNormalisation(final double lowPercent, final double highPercent) {
+		final float[] range = VoxelStatistics.getNormalisationRange(xy, lowPercent, highPercent);
+		stackMin = range[0];
+		stackMax = range[1];
+	}
+
 	public int guessResamplingFactor() {
 		if (width == 0 || height == 0 || depth == 0)
 			throw new RuntimeException("Can't call guessResamplingFactor() before width, height and depth are set...");
@@ -1229,17 +1629,34 @@ public class SimpleNeuriteTracer extends ThreePanes
 
 	// This should only be assigned to when synchronized on this object
 	// (FIXME: check that that is true)
-	FillerThread filler = null;
+	volatile FillerThread filler = null;
+
+	/*
+	 * Whether fills use all the cores (see ParallelFillerThread) rather than
+	 * the sequential search. -Dsnt.fill.parallel=false turns this off.
+	 */
+	protected boolean parallelFilling = Runtime.getRuntime().availableProcessors() > 1
+			&& !"false".equals(System.getProperty("snt.fill.parallel"));
+
+	public void setParallelFilling(final boolean parallel) {
+		this.parallelFilling = parallel;
+	}
 
 	synchronized public void startFillingPaths(final Set<Path> fromPaths) {
 
 		// currentlyFilling = true;
 		resultsDialog.getFillWindow().pauseOrRestartFilling.setText("Pause");
 
-		filler = new FillerThread(xy, stackMin, stackMax, false, // startPaused
-				true, // reciprocal
-				0.03f, // Initial threshold to display
-				5000); // reportEveryMilliseconds
+		if (parallelFilling)
+			filler = new ParallelFillerThread(xy, stackMin, stackMax, false, // startPaused
+					true, // reciprocal
+					0.03f, // Initial threshold to display
+					5000); // reportEveryMilliseconds
+		else
+			filler = new FillerThread(xy, stackMin, stackMax, false, // startPaused
+					true, // reciprocal
+					0.03f, // Initial threshold to display
+					5000); // reportEveryMilliseconds
 
 		addThreadToDraw(filler);
 
@@ -1616,6 +2033,17 @@ public class SimpleNeuriteTracer extends ThreePanes
 
 	public synchronized void findSnappingPointInXYview(final double x_in_pane, final double y_in_pane,
 			final double[] point) {
+		final int current_z = xy.getCurrentSlice() - 1;
+		snapInXYview(x_in_pane, y_in_pane, point);
+		if (current_z != (int) point[2])
+			xy.setSlice((int) point[2] + 1);
+	}
+
+	/*
+	 * Finds the point that findSnappingPointInXYview() snaps to, without
+	 * changing the slice shown, so that it can be called off the EDT.
+	 */
+	void snapInXYview(final double x_in_pane, final double y_in_pane, final double[] point) {
 
 		// if (width == 0 || height == 0 || depth == 0)
 		// throw new RuntimeException(
@@ -1646,27 +2074,34 @@ public class SimpleNeuriteTracer extends ThreePanes
 			stopz = depth;
 		}
 
+		/*
+		 * If the maximum projection is at hand, each column of the window
+		 * whose brightest voxel lies within the z range (and is the only
+		 * voxel in the column with that value) can be resolved with a
+		 * single lookup; only the other columns need to be scanned. Values
+		 * are compared as the projection does, i.e. 16-bit as unsigned.
+		 */
+		final MaximumProjections projections = MaximumProjections.getIfCached(xy);
 		ArrayList<int[]> pointsAtMaximum = new ArrayList<>();
 		float currentMaximum = -Float.MAX_VALUE;
 		for (int x = startx; x < stopx; ++x) {
 			for (int y = starty; y < stopy; ++y) {
-				for (int z = startz; z < stopz; ++z) {
-					float v = -Float.MAX_VALUE;
-					final int xyIndex = y * width + x;
-					switch (imageType) {
-					case ImagePlus.GRAY8:
-					case ImagePlus.COLOR_256:
-						v = 0xFF & slices_data_b[z][xyIndex];
-						break;
-					case ImagePlus.GRAY16:
-						v = slices_data_s[z][xyIndex];
-						break;
-					case ImagePlus.GRAY32:
-						v = slices_data_f[z][xyIndex];
-						break;
-					default:
-						throw new RuntimeException("Unknow image type: " + imageType);
+				if (projections != null) {
+					final int argmaxZ = projections.getXYArgmaxZ(x, y);
+					if (argmaxZ >= startz && argmaxZ < stopz && argmaxZ == projections.getXYLastArgmaxZ(x, y)) {
+						final float v = projections.getXYMaximum(x, y);
+						if (v > currentMaximum) {
+							pointsAtMaximum = new ArrayList<>();
+							pointsAtMaximum.add(new int[] { x, y, argmaxZ });
+							currentMaximum = v;
+						} else if (v == currentMaximum) {
+							pointsAtMaximum.add(new int[] { x, y, argmaxZ });
+						}
+						continue;
 					}
+				}
+				for (int z = startz; z < stopz; ++z) {
+					final float v = voxels.getUnsignedValue(x, y, z);
 					if (v > currentMaximum) {
 						pointsAtMaximum = new ArrayList<>();
 						pointsAtMaximum.add(new int[] { x, y, z });
@@ -1687,48 +2122,27 @@ public class SimpleNeuriteTracer extends ThreePanes
 		// }
 
 		final int[] snapped_p = pointsAtMaximum.get(pointsAtMaximum.size() / 2);
-		if (window_center[2] != snapped_p[2])
-			xy.setSlice(snapped_p[2] + 1);
 		point[0] = snapped_p[0];
 		point[1] = snapped_p[1];
 		point[2] = snapped_p[2];
 	}
 
 	public void clickAtMaxPoint(final int x_in_pane, final int y_in_pane, final int plane) {
-		final int[][] pointsToConsider = findAllPointsAlongLine(x_in_pane, y_in_pane, plane);
-		ArrayList<int[]> pointsAtMaximum = new ArrayList<>();
-		float currentMaximum = -Float.MAX_VALUE;
-		for (int i = 0; i < pointsToConsider.length; ++i) {
-			float v = -Float.MAX_VALUE;
-			final int[] p = pointsToConsider[i];
-			final int xyIndex = p[1] * width + p[0];
-			switch (imageType) {
-			case ImagePlus.GRAY8:
-			case ImagePlus.COLOR_256:
-				v = 0xFF & slices_data_b[p[2]][xyIndex];
-				break;
-			case ImagePlus.GRAY16:
-				v = slices_data_s[p[2]][xyIndex];
-				break;
-			case ImagePlus.GRAY32:
-				v = slices_data_f[p[2]][xyIndex];
-				break;
-			default:
-				throw new RuntimeException("Unknow image type: " + imageType);
-			}
-			if (v > currentMaximum) {
-				pointsAtMaximum = new ArrayList<>();
-				pointsAtMaximum.add(p);
-				currentMaximum = v;
-			} else if (v == currentMaximum) {
-				pointsAtMaximum.add(p);
-			}
-		}
 		/*
-		 * Take the middle of those points, and pretend that was the point that
-		 * was clicked on.
+		 * Once the position of the maximum along every line through the
+		 * stack has been computed and cached this is just a lookup. Until
+		 * then (computing it reads the whole stack, which mustn't hold up
+		 * the event dispatch thread) the line is scanned, and the
+		 * projections are computed in the background for next time:
 		 */
-		final int[] p = pointsAtMaximum.get(pointsAtMaximum.size() / 2);
+		final MaximumProjections projections = MaximumProjections.getIfCached(xy);
+		final int[] p;
+		if (projections != null) {
+			p = projections.maximumAlongLine(x_in_pane, y_in_pane, plane);
+		} else {
+			p = MaximumProjections.maximumOf(voxels, findAllPointsAlongLine(x_in_pane, y_in_pane, plane));
+			MaximumProjections.computeInBackground(xy);
+		}
 
 		clickForTrace(p[0] * x_spacing, p[1] * y_spacing, p[2] * z_spacing, false);
 	}
@@ -1736,29 +2150,56 @@ public class SimpleNeuriteTracer extends ThreePanes
 	public static final int OVERLAY_OPACITY_PERCENT = 20;
 	private static final String OVERLAY_IDENTIFIER = "SNT-MIP-OVERLAY";
 
+	/* Whether the MIP overlays were last asked to be shown: */
+	private volatile boolean mipOverlaysWanted;
+
 	public void showMIPOverlays(final boolean show) {
+		mipOverlaysWanted = show;
+		if (show && depth > 1 && MaximumProjections.getIfCached(xy) == null) {
+			/*
+			 * Computing the projections reads the whole stack, which
+			 * mustn't hold up the event dispatch thread, so the overlays
+			 * are added once they're ready (unless the option has been
+			 * switched off again in the meantime):
+			 */
+			MaximumProjections.computeInBackground(xy, new Runnable() {
+				@Override
+				public void run() {
+					if (mipOverlaysWanted && MaximumProjections.getIfCached(xy) != null)
+						updateMIPOverlays(true);
+				}
+			});
+			return;
+		}
+		updateMIPOverlays(show);
+	}
+
+	private void updateMIPOverlays(final boolean show) {
 		final ArrayList<ImagePlus> allImages = new ArrayList<>();
 		allImages.add(xy);
 		if (!single_pane) {
 			allImages.add(xz);
 			allImages.add(zy);
 		}
+		final MaximumProjections projections = (show && depth > 1) ? MaximumProjections.getIfCached(xy) : null;
+		if (show && depth > 1 && projections == null)
+			return; // dropped by an edit since; showMIPOverlays() will recompute them
 		for (final ImagePlus imagePlus : allImages) {
 			if (imagePlus == null || imagePlus.getImageStackSize() == 1)
 				continue;
 			Overlay overlayList = imagePlus.getOverlay();
 			if (show) {
 
-				// Create a MIP project of the stack:
-				final ZProjector zp = new ZProjector();
-				zp.setImage(imagePlus);
-				zp.setMethod(ZProjector.MAX_METHOD);
-				zp.doProjection();
-				final ImagePlus overlay = zp.getProjection();
+				// Don't add a second copy if the overlay is already shown:
+				removeMIPfromOverlay(overlayList);
+
+				// The MIP of each pane comes from the projections cached
+				// for the whole stack:
+				final ImageProcessor overlay = projections.getProjection(planeOf(imagePlus));
 
 				// Add display it as an overlay.
 				// (This logic is taken from OverlayCommands.)
-				final Roi roi = new ImageRoi(0, 0, overlay.getProcessor());
+				final Roi roi = new ImageRoi(0, 0, overlay);
 				roi.setName(OVERLAY_IDENTIFIER);
 				((ImageRoi) roi).setOpacity(OVERLAY_OPACITY_PERCENT / 100.0);
 				if (overlayList == null)
@@ -1772,6 +2213,14 @@ public class SimpleNeuriteTracer extends ThreePanes
 		}
 	}
 
+	private int planeOf(final ImagePlus imagePlus) {
+		if (imagePlus == xz)
+			return ThreePanes.XZ_PLANE;
+		if (imagePlus == zy)
+			return ThreePanes.ZY_PLANE;
+		return ThreePanes.XY_PLANE;
+	}
+
 	private void removeMIPfromOverlay(final Overlay overlay) {
 		if (overlay != null && overlay.size() > 0) {
 			for (int i = overlay.size() - 1; i >= 0; i--) {
@@ -1820,6 +2269,7 @@ public class SimpleNeuriteTracer extends ThreePanes
 
 	@Override
 	public void closeAndReset() {
+		mouseMoves.dispose();
 		// Dispose xz/zy images unless the user stored some annotations (ROIs)
 		// on the image overlay or modified them somehow. In that case, restore
 		// them to the user
@@ -430,51 +430,23 @@ public class Simple_Neurite_Tracer extends SimpleNeuriteTracer implements PlugIn
 			}
 
 			{
-				final ImageStack s = xy.getStack();
+				voxels = VoxelSource.get(xy);
 				switch (imageType) {
 				case ImagePlus.GRAY8:
 				case ImagePlus.COLOR_256:
-					slices_data_b = new byte[depth][];
-					for (int z = 0; z < depth; ++z)
-						slices_data_b[z] = (byte[]) s.getPixels(z + 1);
 					stackMin = 0;
 					stackMax = 255;
 					break;
 				case ImagePlus.GRAY16:
-					slices_data_s = new short[depth][];
-					for (int z = 0; z < depth; ++z)
-						slices_data_s[z] = (short[]) s.getPixels(z + 1);
-					IJ.showStatus("Finding stack minimum / maximum");
-					for (int z = 0; z < depth; ++z) {
-						for (int y = 0; y < height; ++y)
-							for (int x = 0; x < width; ++x) {
-								final short v = slices_data_s[z][y * width + x];
-								if (v < stackMin)
-									stackMin = v;
-								if (v > stackMax)
-									stackMax = v;
-							}
-						IJ.showProgress(z / (float) depth);
-					}
-					IJ.showProgress(1.0);
-					break;
 				case ImagePlus.GRAY32:
-					slices_data_f = new float[depth][];
-					for (int z = 0; z < depth; ++z)
-						slices_data_f[z] = (float[]) s.getPixels(z + 1);
+					/*
+					 * This is a single parallel pass over the stack, and is
+					 * cached between runs for images opened from a file:
+					 */
 					IJ.showStatus("Finding stack minimum / maximum");
-					for (int z = 0; z < depth; ++z) {
-						for (int y = 0; y < height; ++y)
-							for (int x = 0; x < width; ++x) {
-								final float v = slices_data_f[z][y * width + x];
-								if (v < stackMin)
-									stackMin = v;
-								if (v > stackMax)
-									stackMax = v;
-							}
-						IJ.showProgress(z / (float) depth);
-					}
-					IJ.showProgress(1.0);
+					final VoxelStatistics statistics = VoxelStatistics.get(xy);
+					stackMin = statistics.getMin();
+					stackMax = statistics.getMax();
 					break;
 				}
 			}
@@ -25,14 +25,19 @@
 package tracing;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.util.HashSet;
-import java.util.Hashtable;
-import java.util.Set;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
 import java.util.StringTokenizer;
 import java.util.zip.GZIPOutputStream;
 
@@ -45,55 +50,136 @@ public class SinglePathsGraph {
 
 	public SinglePathsGraph(final int width, final int height, final int depth, final double spacing_x,
 			final double spacing_y, final double spacing_z) {
+		this(width, height, depth, spacing_x, spacing_y, spacing_z, false);
+	}
+
+	/*
+	 * The automatic tracer looks up points from several search threads while
+	 * results are being merged, so all access to the graph is synchronized.
+	 *
+	 * Auto-traced graphs of a whole brain can have hundreds of millions of
+	 * points and links, so nothing here is boxed: each point is stored as
+	 * its voxel index (x + y * width + z * width * height, as a long since
+	 * such images can have more than 2^31 voxels) in an open addressing map
+	 * to the order it was added in, and each directed link as the pair of
+	 * those point indices packed into a long.
+	 */
+
+	public interface PointVisitor {
+		void point(int index, int x, int y, int z);
+	}
+
+	public interface LinkVisitor {
+		void link(int fromIndex, int toIndex);
+	}
+
+	final boolean offHeap;
+
+	// For fast lookup from positions (the value is the point's index):
+	LongIntOpenHashMap fromPosition;
+
+	// The voxel index of each point, in the order they were added:
+	BigLongArray pointKeys;
+
+	LongOpenHashSet directedLinks;
+
+	/*
+	 * With offHeap set, the tables are allocated outside the Java heap, so
+	 * their size isn't limited by the maximum heap size:
+	 */
+
+	public SinglePathsGraph(final int width, final int height, final int depth, final double spacing_x,
+			final double spacing_y, final double spacing_z, final boolean offHeap) {
 		this.width = width;
 		this.height = height;
 		this.depth = depth;
 		this.spacing_x = (float) spacing_x;
 		this.spacing_y = (float) spacing_y;
 		this.spacing_z = (float) spacing_z;
+		this.offHeap = offHeap;
+		clear();
 	}
 
-	// For fast lookup from positions:
-	Hashtable<Integer, AutoPoint> fromPosition = new Hashtable<>();
+	long key(final int x, final int y, final int z) {
+		return x + (long) y * width + (long) z * width * height;
+	}
 
-	public AutoPoint get(final int x, final int y, final int z) {
-		final int k = x + y * width + z * width * height;
-		return fromPosition.get(k);
+	public synchronized boolean contains(final int x, final int y, final int z) {
+		return fromPosition.containsKey(key(x, y, z));
 	}
 
-	public void addPoint(final AutoPoint p, final AutoPoint previous) {
-		final int k = p.x + p.y * width + p.z * width * height;
-		final AutoPoint existingPoint = fromPosition.get(k);
-		if (existingPoint == null) {
-			fromPosition.put(k, p);
-		}
-		if (previous != null) {
-			final int k_previous = previous.x + previous.y * width + previous.z * width * height;
-			addLink(k_previous, k);
-		}
+	public synchronized AutoPoint get(final int x, final int y, final int z) {
+		return contains(x, y, z) ? new AutoPoint(x, y, z) : null;
 	}
 
-	/*
-	 * This all turns out to be very memory hungry, so keep track of the links
-	 * between points here, encoded into a long for each link:
-	 */
+	public synchronized int numberOfPoints() {
+		return fromPosition.size();
+	}
+
+	public synchronized int numberOfLinks() {
+		return directedLinks.size();
+	}
+
+	public synchronized void addPoint(final AutoPoint p, final AutoPoint previous) {
+		final int index = addKey(key(p.x, p.y, p.z));
+		if (previous != null)
+			addLinkBetween(addKey(key(previous.x, previous.y, previous.z)), index);
+	}
+
+	/* Returns the index of the point, adding it if it isn't present: */
+
+	private int addKey(final long k) {
+		final int n = fromPosition.size();
+		final int existing = fromPosition.putIfAbsent(k, n);
+		if (existing != LongIntOpenHashMap.EMPTY)
+			return existing;
+		if (n == pointKeys.length()) {
+			final BigLongArray grown = new BigLongArray(2L * n, offHeap);
+			grown.copyFrom(pointKeys, n);
+			pointKeys = grown;
+		}
+		pointKeys.set(n, k);
+		return n;
+	}
 
-	HashSet<Long> directedLinks = new HashSet<>();
+	private void addLinkBetween(final int fromIndex, final int toIndex) {
+		directedLinks.add(((long) fromIndex << 32) | toIndex);
+	}
 
-	void addLink(final int from_k, final int to_k) {
-		final long toAdd = (from_k << 32) + to_k;
-		directedLinks.add(toAdd);
+	synchronized void addLink(final long from_k, final long to_k) {
+		addLinkBetween(addKey(from_k), addKey(to_k));
 	}
 
 	void addLink(final int from_x, final int from_y, final int from_z, final int to_x, final int to_y, final int to_z) {
-		final int from_k = from_x + from_y * width + from_z * width * height;
-		final int to_k = to_x + to_y * width + to_z * width * height;
-		addLink(from_k, to_k);
+		addLink(key(from_x, from_y, from_z), key(to_x, to_y, to_z));
+	}
+
+	/* Visit each point in the order they were added, without boxing: */
+
+	public synchronized void forEachPoint(final PointVisitor visitor) {
+		final int n = fromPosition.size();
+		for (int i = 0; i < n; ++i) {
+			final long k = pointKeys.get(i);
+			visitor.point(i, (int) (k % width), (int) ((k / width) % height), (int) (k / ((long) width * height)));
+		}
 	}
 
-	void writeWavefrontObj(final String outputFilename) throws IOException {
+	/* Visit each directed link, as the indices of its two points: */
 
-		final PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(outputFilename), "UTF-8"));
+	public synchronized void forEachLink(final LinkVisitor visitor) {
+		directedLinks.forEach(new LongOpenHashSet.Visitor() {
+
+			@Override
+			public void visit(final long l) {
+				visitor.link((int) (l >>> 32), (int) l);
+			}
+		});
+	}
+
+	synchronized void writeWavefrontObj(final String outputFilename) throws IOException {
+
+		final PrintWriter pw = new PrintWriter(new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(outputFilename), "UTF-8"), 1 << 16));
 
 		// It's a bit ugly encoding this data in the comments,
 		// but it's a useful enough stop gap measure:
@@ -104,37 +190,82 @@ public class SinglePathsGraph {
 		pw.println("# spacing_y: " + spacing_y);
 		pw.println("# spacing_z: " + spacing_z);
 
-		/* First build a map from keys to wavefront indices: */
+		/*
+		 * Points are written in the order they were added, so the Wavefront
+		 * index of each is just its index in the graph plus one:
+		 */
 
-		final Hashtable<Integer, Integer> wavefrontToKey = new Hashtable<>();
+		forEachPoint(new PointVisitor() {
 
-		final Set<Integer> keySet = fromPosition.keySet();
+			@Override
+			public void point(final int index, final int x, final int y, final int z) {
+				pw.println("v " + (x * spacing_x) + " " + (y * spacing_y) + " " + (z * spacing_z));
+			}
+		});
 
-		int counter = 1;
-		for (final int k : keySet) {
-			wavefrontToKey.put(k, counter);
-			final int x = k % width;
-			final int y = (k / width) % height;
-			final int z = (k / (width * height)) % depth;
-			pw.println("v " + (x * spacing_x) + " " + (y * spacing_y) + " " + (z * spacing_z));
-			++counter;
-		}
+		forEachLink(new LinkVisitor() {
 
-		for (final long l : directedLinks) {
-			final long from = l >> 32;
-			final long to = l & 0xFFFFFFFF;
-			final int from_k = (int) from;
-			final int to_k = (int) to;
-			final int from_vertex = wavefrontToKey.get(from_k);
-			final int to_vertex = wavefrontToKey.get(to_k);
-			pw.println("l " + from_vertex + " " + to_vertex);
-		}
+			@Override
+			public void link(final int fromIndex, final int toIndex) {
+				pw.println("l " + (fromIndex + 1) + " " + (toIndex + 1));
+			}
+		});
 
 		pw.print("g");
 
 		pw.close();
 	}
 
+	synchronized void clear() {
+		fromPosition = new LongIntOpenHashMap(1024, offHeap);
+		pointKeys = new BigLongArray(1024, offHeap);
+		directedLinks = new LongOpenHashSet(1024, offHeap);
+	}
+
+	/* Write the points and links so that readState can restore them: */
+
+	synchronized void writeState(final DataOutputStream out) throws IOException {
+		final int n = fromPosition.size();
+		out.writeInt(n);
+		for (int i = 0; i < n; ++i)
+			out.writeLong(pointKeys.get(i));
+		out.writeInt(directedLinks.size());
+		final IOException[] failure = new IOException[1];
+		directedLinks.forEach(new LongOpenHashSet.Visitor() {
+
+			@Override
+			public void visit(final long l) {
+				if (failure[0] != null)
+					return;
+				try {
+					out.writeLong(l);
+				} catch (final IOException e) {
+					failure[0] = e;
+				}
+			}
+		});
+		if (failure[0] != null)
+			throw failure[0];
+	}
+
+	synchronized void readState(final DataInputStream in) throws IOException {
+		final int nPoints = in.readInt();
+		if (nPoints < 0)
+			throw new IOException("Invalid number of points: " + nPoints);
+		// The links refer to the points by their index in the stream:
+		final BigIntArray indices = new BigIntArray(nPoints, false);
+		for (int i = 0; i < nPoints; ++i)
+			indices.set(i, addKey(in.readLong()));
+		final int nLinks = in.readInt();
+		for (int i = 0; i < nLinks; ++i) {
+			final long l = in.readLong();
+			final int from = (int) (l >>> 32), to = (int) l;
+			if (from < 0 || from >= nPoints || to < 0 || to >= nPoints)
+				throw new IOException("Link to a point that doesn't exist: " + from + " -> " + to);
+			addLinkBetween(indices.get(from), indices.get(to));
+		}
+	}
+
 	static public int getNonNegativeIntAfterPrefix(final String line, final String prefix) {
 		try {
 			final String s = line.substring(prefix.length());
@@ -155,6 +286,9 @@ public class SinglePathsGraph {
 
 	static boolean loadWithListener(final String inputFilename, final TraceLoaderListener listener) {
 
+		if (isBinaryGraph(inputFilename))
+			return loadBinaryWithListener(inputFilename, listener);
+
 		int width = -1, height = -1, depth = -1;
 		float spacing_x = Float.MIN_VALUE;
 		float spacing_y = Float.MIN_VALUE;
@@ -172,7 +306,7 @@ public class SinglePathsGraph {
 			final String linePrefix = "l ";
 			final String groupPrefix = "g ";
 
-			final int vertexIndex = 1;
+			int vertexIndex = 1;
 
 			final BufferedReader br = new BufferedReader(new FileReader(inputFilename));
 			String lastLine;
@@ -220,7 +354,7 @@ public class SinglePathsGraph {
 					final int y = Math.round(vertex[1] / spacing_y);
 					final int z = Math.round(vertex[2] / spacing_z);
 
-					listener.gotVertex(vertexIndex, vertex[0], vertex[1], vertex[2], x, y, z);
+					listener.gotVertex(vertexIndex++, vertex[0], vertex[1], vertex[2], x, y, z);
 
 				}
 
@@ -249,6 +383,242 @@ public class SinglePathsGraph {
 		return true;
 	}
 
+	/*
+	 * A compact binary alternative to the Wavefront OBJ output, which can be
+	 * memory-mapped and replayed to a TraceLoaderListener without any
+	 * parsing. All values are big-endian:
+	 *
+	 *   int   magic ("SNTG") and format version
+	 *   int   width, height, depth
+	 *   float spacing_x, spacing_y, spacing_z
+	 *   int   number of vertices
+	 *   long  number of links
+	 *   long  the voxel index (x + y * width + z * width * height) of each
+	 *         vertex
+	 *   int   pairs of 0-based vertex indices, one for each directed link
+	 *
+	 * Version 1 files stored the voxel indices as ints, which overflowed for
+	 * images of more than 2^31 voxels; they can still be read.
+	 */
+
+	static final int BINARY_MAGIC = 0x534e5447;
+	static final int BINARY_VERSION = 2;
+	static final int BINARY_HEADER_BYTES = 9 * 4 + 8;
+
+	// Mapped windows are kept well under the 2GB limit of a MappedByteBuffer:
+	static final int MAPPING_WINDOW_BYTES = 1 << 30;
+
+	synchronized void writeBinary(final String outputFilename) throws IOException {
+		final int nPoints = fromPosition.size();
+		final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		try (FileChannel channel = new FileOutputStream(outputFilename).getChannel()) {
+			buffer.putInt(BINARY_MAGIC);
+			buffer.putInt(BINARY_VERSION);
+			buffer.putInt(width);
+			buffer.putInt(height);
+			buffer.putInt(depth);
+			buffer.putFloat(spacing_x);
+			buffer.putFloat(spacing_y);
+			buffer.putFloat(spacing_z);
+			buffer.putInt(nPoints);
+			buffer.putLong(directedLinks.size());
+			for (int i = 0; i < nPoints; ++i) {
+				if (buffer.remaining() < 8)
+					drain(buffer, channel);
+				buffer.putLong(pointKeys.get(i));
+			}
+			final IOException[] failure = new IOException[1];
+			forEachLink(new LinkVisitor() {
+
+				@Override
+				public void link(final int fromIndex, final int toIndex) {
+					if (failure[0] != null)
+						return;
+					try {
+						if (buffer.remaining() < 8)
+							drain(buffer, channel);
+						buffer.putInt(fromIndex);
+						buffer.putInt(toIndex);
+					} catch (final IOException e) {
+						failure[0] = e;
+					}
+				}
+			});
+			if (failure[0] != null)
+				throw failure[0];
+			drain(buffer, channel);
+		}
+	}
+
+	static void drain(final ByteBuffer buffer, final FileChannel channel) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	static boolean isBinaryGraph(final String inputFilename) {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(inputFilename))) {
+			return in.readInt() == BINARY_MAGIC;
+		} catch (final IOException e) {
+			return false;
+		}
+	}
+
+	static boolean loadBinaryWithListener(final String inputFilename, final TraceLoaderListener listener) {
+
+		try (FileChannel channel = new FileInputStream(inputFilename).getChannel()) {
+
+			final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, BINARY_HEADER_BYTES);
+			if (header.getInt() != BINARY_MAGIC)
+				throw new IOException("Not a binary traces file");
+			final int version = header.getInt();
+			if (version != 1 && version != BINARY_VERSION)
+				throw new IOException("Unknown binary traces version: " + version);
+			final int bytesPerKey = (version == 1) ? 4 : 8;
+
+			final int width = header.getInt();
+			final int height = header.getInt();
+			final int depth = header.getInt();
+			final float spacing_x = header.getFloat();
+			final float spacing_y = header.getFloat();
+			final float spacing_z = header.getFloat();
+			final int nPoints = header.getInt();
+			final long nLinks = header.getLong();
+
+			listener.gotWidth(width);
+			listener.gotHeight(height);
+			listener.gotDepth(depth);
+			listener.gotSpacingX(spacing_x);
+			listener.gotSpacingY(spacing_y);
+			listener.gotSpacingZ(spacing_z);
+
+			final long expectedBytes = BINARY_HEADER_BYTES + (long) bytesPerKey * nPoints + 8L * nLinks;
+			if (channel.size() < expectedBytes)
+				throw new IOException("File is truncated: expected " + expectedBytes + " bytes");
+
+			// Replay the vertices (numbered from 1, as in the OBJ files):
+			final int pointsPerWindow = MAPPING_WINDOW_BYTES / bytesPerKey;
+			final long sliceSize = (long) width * height;
+			long offset = BINARY_HEADER_BYTES;
+			for (int start = 0; start < nPoints; start += pointsPerWindow) {
+				final int n = Math.min(pointsPerWindow, nPoints - start);
+				final ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, offset, (long) bytesPerKey * n);
+				final IntBuffer intKeys = (bytesPerKey == 4) ? window.asIntBuffer() : null;
+				final LongBuffer longKeys = (bytesPerKey == 8) ? window.asLongBuffer() : null;
+				for (int i = 0; i < n; ++i) {
+					final long k = (intKeys != null) ? intKeys.get(i) : longKeys.get(i);
+					final int x = (int) (k % width);
+					final int y = (int) ((k / width) % height);
+					final int z = (int) (k / sliceSize);
+					listener.gotVertex(start + i + 1, x * spacing_x, y * spacing_y, z * spacing_z, x, y, z);
+				}
+				offset += (long) bytesPerKey * n;
+			}
+
+			// ... and then the links:
+			final long linksPerWindow = MAPPING_WINDOW_BYTES / 8;
+			for (long start = 0; start < nLinks; start += linksPerWindow) {
+				final int n = (int) Math.min(linksPerWindow, nLinks - start);
+				final IntBuffer pairs = channel.map(FileChannel.MapMode.READ_ONLY, offset, 8L * n).asIntBuffer();
+				for (int i = 0; i < n; ++i)
+					listener.gotLine(pairs.get(2 * i) + 1, pairs.get(2 * i + 1) + 1);
+				offset += 8L * n;
+			}
+
+		} catch (final IOException e) {
+			IJ.error("IOException loading " + inputFilename + ": " + e);
+			return false;
+		}
+
+		return true;
+	}
+
+	/*
+	 * Convert an existing .traces.obj file to the binary format; the vertices
+	 * keep their numbering.
+	 */
+
+	static boolean convertObjToBinary(final String objFilename, final String binaryFilename) {
+
+		final SinglePathsGraph[] graph = new SinglePathsGraph[1];
+
+		final boolean loaded = loadWithListener(objFilename, new TraceLoaderListener() {
+
+			int width = -1, height = -1, depth = -1;
+			float spacing_x = 1, spacing_y = 1, spacing_z = 1;
+
+			@Override
+			public void gotVertex(final int vertexIndex, final float x_scaled, final float y_scaled,
+					final float z_scaled, final int x_image, final int y_image, final int z_image) {
+				if (graph[0] == null) {
+					if (width < 0 || height < 0 || depth < 0)
+						throw new RuntimeException(
+								"Some metadata was missing from the comments before the first vertex.");
+					graph[0] = new SinglePathsGraph(width, height, depth, spacing_x, spacing_y, spacing_z);
+				}
+				final SinglePathsGraph g = graph[0];
+				if (g.addKey(g.key(x_image, y_image, z_image)) != vertexIndex - 1)
+					throw new RuntimeException(
+							"Duplicate or out of order vertex " + vertexIndex + " in " + objFilename);
+			}
+
+			@Override
+			public void gotLine(final int fromVertexIndex, final int toVertexIndex) {
+				final SinglePathsGraph g = graph[0];
+				if (g == null)
+					throw new RuntimeException("Line " + fromVertexIndex + " -> " + toVertexIndex
+							+ " comes before any vertex in " + objFilename);
+				final int n = g.numberOfPoints();
+				if (fromVertexIndex < 1 || fromVertexIndex > n || toVertexIndex < 1 || toVertexIndex > n)
+					throw new RuntimeException("Line " + fromVertexIndex + " -> " + toVertexIndex
+							+ " refers to a vertex that hasn't been defined in " + objFilename);
+				g.addLinkBetween(fromVertexIndex - 1, toVertexIndex - 1);
+			}
+
+			@Override
+			public void gotWidth(final int width) {
+				this.width = width;
+			}
+
+			@Override
+			public void gotHeight(final int height) {
+				this.height = height;
+			}
+
+			@Override
+			public void gotDepth(final int depth) {
+				this.depth = depth;
+			}
+
+			@Override
+			public void gotSpacingX(final float spacing_x) {
+				this.spacing_x = spacing_x;
+			}
+
+			@Override
+			public void gotSpacingY(final float spacing_y) {
+				this.spacing_y = spacing_y;
+			}
+
+			@Override
+			public void gotSpacingZ(final float spacing_z) {
+				this.spacing_z = spacing_z;
+			}
+		});
+
+		if (!loaded || graph[0] == null)
+			return false;
+
+		try {
+			graph[0].writeBinary(binaryFilename);
+		} catch (final IOException e) {
+			IJ.error("IOException writing " + binaryFilename + ": " + e);
+			return false;
+		}
+		return true;
+	}
+
 	void writeXML(final String outputFilename) throws IOException {
 
 		PrintWriter pw = null;
@@ -0,0 +1,358 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package tracing;
+
+import java.util.Arrays;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * A compact, read-only representation of the voxels of a fill: for each
+ * slice, the runs of consecutive filled voxels along each row, with the
+ * distance of every voxel from the source paths. Volume, bounding box and
+ * per-slice area are computed from the runs rather than from the voxels,
+ * and masks can be exported directly, or as a virtual stack that renders
+ * each slice from the runs when it's displayed.
+ *
+ * Use a {@link Builder} to create one.
+ */
+public class SparseFill {
+
+	/* The runs, ordered by z, then y, then x: */
+	final int[] runY;
+	final int[] runX;
+	final int[] runLength;
+
+	/* The runs of slice z are sliceRuns[z] (inclusive) to sliceRuns[z+1]: */
+	final int[] sliceRuns;
+
+	/* The distances of the voxels of run i start at runOffset[i]: */
+	final int[] runOffset;
+	final float[] distances;
+
+	final int width, depth;
+	final long voxelCount;
+	final int minX, minY, minZ, maxX, maxY, maxZ;
+
+	/**
+	 * Collects the voxels of a fill, in any order; each voxel should only
+	 * be added once.
+	 */
+	public static class Builder {
+
+		private final int width, depth;
+
+		/*
+		 * For each slice, the voxels added so far, each packed with the
+		 * index in the slice in the high 32 bits (so that sorting orders
+		 * them along the rows) and the bits of the distance in the low 32
+		 * bits:
+		 */
+		private final long[][] packed;
+		private final int[] counts;
+
+		public Builder(final int width, final int height, final int depth) {
+			if ((long) width * height > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("Slices of " + width + " x " + height + " are too large");
+			this.width = width;
+			this.depth = depth;
+			packed = new long[depth][];
+			counts = new int[depth];
+		}
+
+		public void add(final int x, final int y, final int z, final float distance) {
+			long[] slice = packed[z];
+			if (slice == null) {
+				slice = new long[64];
+				packed[z] = slice;
+			} else if (counts[z] == slice.length) {
+				slice = Arrays.copyOf(slice, slice.length * 2);
+				packed[z] = slice;
+			}
+			slice[counts[z]++] = ((long) (y * width + x) << 32) | (Float.floatToRawIntBits(distance) & 0xFFFFFFFFL);
+		}
+
+		public SparseFill build() {
+			return new SparseFill(this);
+		}
+	}
+
+	SparseFill(final Builder builder) {
+
+		width = builder.width;
+		depth = builder.depth;
+
+		long total = 0;
+		int runs = 0;
+		for (int z = 0; z < depth; ++z) {
+			final long[] slice = builder.packed[z];
+			if (slice == null)
+				continue;
+			final int n = builder.counts[z];
+			Arrays.sort(slice, 0, n);
+			for (int i = 0; i < n; ++i)
+				if (i == 0 || !adjacent(slice[i - 1], slice[i], width))
+					++runs;
+			total += n;
+		}
+		if (total > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many voxels in the fill: " + total);
+
+		runY = new int[runs];
+		runX = new int[runs];
+		runLength = new int[runs];
+		runOffset = new int[runs];
+		sliceRuns = new int[depth + 1];
+		distances = new float[(int) total];
+
+		int r = 0, d = 0;
+		int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE, z0 = Integer.MAX_VALUE;
+		int x1 = -1, y1 = -1, z1 = -1;
+		for (int z = 0; z < depth; ++z) {
+			sliceRuns[z] = r;
+			final long[] slice = builder.packed[z];
+			if (slice == null)
+				continue;
+			final int n = builder.counts[z];
+			if (n > 0) {
+				z0 = Math.min(z0, z);
+				z1 = z;
+			}
+			for (int i = 0; i < n; ++i) {
+				final int index = (int) (slice[i] >>> 32);
+				final int x = index % width, y = index / width;
+				if (i == 0 || !adjacent(slice[i - 1], slice[i], width)) {
+					runY[r] = y;
+					runX[r] = x;
+					runOffset[r] = d;
+					++r;
+					x0 = Math.min(x0, x);
+					y0 = Math.min(y0, y);
+					y1 = Math.max(y1, y);
+				}
+				++runLength[r - 1];
+				x1 = Math.max(x1, x);
+				distances[d++] = Float.intBitsToFloat((int) slice[i]);
+			}
+			/* The packed voxels of each slice aren't needed any more: */
+			builder.packed[z] = null;
+		}
+		sliceRuns[depth] = r;
+
+		voxelCount = total;
+		minX = x0;
+		minY = y0;
+		minZ = z0;
+		maxX = x1;
+		maxY = y1;
+		maxZ = z1;
+	}
+
+	/* Whether two sorted packed voxels are next to each other in a row: */
+	private static boolean adjacent(final long previous, final long next, final int width) {
+		final long index = next >>> 32;
+		return index == (previous >>> 32) + 1 && index % width != 0;
+	}
+
+	public long getVoxelCount() {
+		return voxelCount;
+	}
+
+	public double getVolume(final double x_spacing, final double y_spacing, final double z_spacing) {
+		return voxelCount * x_spacing * y_spacing * z_spacing;
+	}
+
+	public int getRunCount() {
+		return runY.length;
+	}
+
+	/**
+	 * Returns { minX, minY, minZ, maxX, maxY, maxZ } of the filled voxels,
+	 * inclusive, or null if the fill is empty.
+	 */
+	public int[] getBoundingBox() {
+		if (voxelCount == 0)
+			return null;
+		return new int[] { minX, minY, minZ, maxX, maxY, maxZ };
+	}
+
+	/** Returns the number of filled voxels in slice z (0-based). */
+	public int getSliceVoxelCount(final int z) {
+		if (z < 0 || z >= depth)
+			return 0;
+		int count = 0;
+		for (int r = sliceRuns[z]; r < sliceRuns[z + 1]; ++r)
+			count += runLength[r];
+		return count;
+	}
+
+	public double getSliceArea(final int z, final double x_spacing, final double y_spacing) {
+		return getSliceVoxelCount(z) * x_spacing * y_spacing;
+	}
+
+	/* Returns the run containing (x,y,z), or -1: */
+	private int findRun(final int x, final int y, final int z) {
+		if (z < 0 || z >= depth)
+			return -1;
+		int low = sliceRuns[z], high = sliceRuns[z + 1] - 1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			if (runY[mid] < y || (runY[mid] == y && runX[mid] + runLength[mid] <= x))
+				low = mid + 1;
+			else if (runY[mid] > y || runX[mid] > x)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	public boolean contains(final int x, final int y, final int z) {
+		return findRun(x, y, z) >= 0;
+	}
+
+	/**
+	 * Returns the distance of (x,y,z) from the source paths, or -1 if it
+	 * isn't in the fill.
+	 */
+	public float getDistance(final int x, final int y, final int z) {
+		final int r = findRun(x, y, z);
+		return (r < 0) ? -1 : distances[runOffset[r] + x - runX[r]];
+	}
+
+	/**
+	 * Returns slice z (0-based) of the fill as a width x height image of the
+	 * given type. If realData is null the filled voxels are set to 255,
+	 * otherwise they are copied from realData.
+	 */
+	public ImageProcessor getSlice(final int z, final int width, final int height, final int imageType,
+			final VoxelSource realData) {
+		final boolean empty = z < 0 || z >= depth || sliceRuns[z] == sliceRuns[z + 1];
+		final Object source = (realData == null || empty) ? null : realData.getPixels(z);
+		switch (imageType) {
+		case ImagePlus.GRAY16: {
+			final short[] pixels = new short[width * height];
+			if (!empty)
+				for (int r = sliceRuns[z]; r < sliceRuns[z + 1]; ++r) {
+					final int from = runY[r] * width + runX[r];
+					if (source == null)
+						Arrays.fill(pixels, from, from + runLength[r], (short) 255);
+					else
+						System.arraycopy(source, from, pixels, from, runLength[r]);
+				}
+			return new ShortProcessor(width, height, pixels, null);
+		}
+		case ImagePlus.GRAY32: {
+			final float[] pixels = new float[width * height];
+			if (!empty)
+				for (int r = sliceRuns[z]; r < sliceRuns[z + 1]; ++r) {
+					final int from = runY[r] * width + runX[r];
+					if (source == null)
+						Arrays.fill(pixels, from, from + runLength[r], 255f);
+					else
+						System.arraycopy(source, from, pixels, from, runLength[r]);
+				}
+			return new FloatProcessor(width, height, pixels, null);
+		}
+		default: {
+			final byte[] pixels = new byte[width * height];
+			if (!empty)
+				for (int r = sliceRuns[z]; r < sliceRuns[z + 1]; ++r) {
+					final int from = runY[r] * width + runX[r];
+					if (source == null)
+						Arrays.fill(pixels, from, from + runLength[r], (byte) 255);
+					else
+						System.arraycopy(source, from, pixels, from, runLength[r]);
+				}
+			return new ByteProcessor(width, height, pixels, null);
+		}
+		}
+	}
+
+	/**
+	 * Returns the distances of the voxels in slice z (0-based) as a width x
+	 * height image, with -1 for voxels outside the fill.
+	 */
+	public FloatProcessor getDistanceSlice(final int z, final int width, final int height) {
+		final float[] pixels = new float[width * height];
+		Arrays.fill(pixels, -1);
+		if (z >= 0 && z < depth)
+			for (int r = sliceRuns[z]; r < sliceRuns[z + 1]; ++r)
+				System.arraycopy(distances, runOffset[r], pixels, runY[r] * width + runX[r], runLength[r]);
+		return new FloatProcessor(width, height, pixels, null);
+	}
+
+	/**
+	 * Returns the fill as a stack (see {@link #getSlice}); if virtual is
+	 * true, each slice is only rendered when it's needed.
+	 */
+	public ImageStack toStack(final int width, final int height, final int imageType, final VoxelSource realData,
+			final boolean virtual) {
+		if (virtual)
+			return new FillStack(this, width, height, imageType, realData);
+		final ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < depth; ++z)
+			stack.addSlice(null, getSlice(z, width, height, imageType, realData));
+		return stack;
+	}
+
+	/* A virtual stack that renders each slice of a fill from its runs: */
+	static class FillStack extends VirtualStack {
+
+		final SparseFill fill;
+		final int imageType;
+		final VoxelSource realData;
+
+		FillStack(final SparseFill fill, final int width, final int height, final int imageType,
+				final VoxelSource realData) {
+			super(width, height, null, null);
+			this.fill = fill;
+			this.imageType = imageType;
+			this.realData = realData;
+		}
+
+		@Override
+		public int getSize() {
+			return fill.depth;
+		}
+
+		@Override
+		public String getSliceLabel(final int n) {
+			return null;
+		}
+
+		@Override
+		public ImageProcessor getProcessor(final int n) {
+			return fill.getSlice(n - 1, getWidth(), getHeight(), imageType, realData);
+		}
+	}
+}
@@ -24,10 +24,15 @@
 
 package tracing;
 
+import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
 import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import ij.ImagePlus;
 import stacks.PaneOwner;
@@ -69,6 +74,54 @@ public class TracerCanvas extends ThreePanesCanvas {
 	boolean just_near_slices = false;
 	int eitherSide;
 
+	protected void drawPaths(final Graphics g, final int current_z) {
+
+		final SimpleNeuriteTracer plugin = pathAndFillManager.plugin;
+
+		final boolean showOnlySelectedPaths = plugin.getShowOnlySelectedPaths();
+
+		final Color selectedColor = plugin.selectedColor;
+		final Color deselectedColor = plugin.deselectedColor;
+
+		final boolean drawDiametersXY = plugin.getDrawDiametersXY();
+
+		for (int i = 0; i < pathAndFillManager.size(); ++i) {
+
+			final Path p = pathAndFillManager.getPath(i);
+			if (p == null)
+				continue;
+
+			if (p.fittedVersionOf != null)
+				continue;
+
+			Path drawPath = p;
+
+			// If the path suggests using the fitted version, draw that
+			// instead:
+			if (p.useFitted) {
+				drawPath = p.fitted;
+			}
+
+			final boolean isSelected = pathAndFillManager.isSelected(p);
+			if (!isSelected && showOnlySelectedPaths)
+				continue;
+
+			final boolean customColor = (drawPath.hasCustomColor && plugin.displayCustomPathColors);
+			Color color = deselectedColor;
+			if (isSelected && !customColor)
+				color = selectedColor;
+			else if (customColor)
+				color = drawPath.getColor();
+
+			if (just_near_slices) {
+				drawPath.drawPathAsPoints(this, g, color, plane, (isSelected && customColor), drawDiametersXY,
+						current_z, eitherSide);
+			} else {
+				drawPath.drawPathAsPoints(this, g, color, plane, (isSelected && customColor), drawDiametersXY);
+			}
+		}
+	}
+
 	@Override
 	protected void drawOverlay(final Graphics g) {
 
@@ -86,55 +139,106 @@ public class TracerCanvas extends ThreePanesCanvas {
 				st.drawProgressOnSlice(plane, current_z, this, g);
 		}
 
-		final SimpleNeuriteTracer plugin = pathAndFillManager.plugin;
+		if (pathAndFillManager != null)
+			drawPathsLayer(g, current_z);
 
-		final boolean showOnlySelectedPaths = plugin.getShowOnlySelectedPaths();
+		super.drawOverlay(g);
 
-		final Color selectedColor = plugin.selectedColor;
-		final Color deselectedColor = plugin.deselectedColor;
+	}
 
-		final boolean drawDiametersXY = plugin.getDrawDiametersXY();
+	/*
+	 * The paths are rasterised into this layer, which is reused for as long
+	 * as neither the paths, the way they are displayed, nor the view have
+	 * changed. All of those inputs are kept and compared exactly, rather
+	 * than as a hash, so that a collision can never leave a stale layer on
+	 * screen.
+	 */
+	private BufferedImage pathsLayer;
+	private PathsLayerKey pathsLayerKey;
 
-		if (pathAndFillManager != null) {
-			for (int i = 0; i < pathAndFillManager.size(); ++i) {
-
-				final Path p = pathAndFillManager.getPath(i);
-				if (p == null)
-					continue;
-
-				if (p.fittedVersionOf != null)
-					continue;
-
-				Path drawPath = p;
-
-				// If the path suggests using the fitted version, draw that
-				// instead:
-				if (p.useFitted) {
-					drawPath = p.fitted;
-				}
-
-				final boolean isSelected = pathAndFillManager.isSelected(p);
-				if (!isSelected && showOnlySelectedPaths)
-					continue;
-
-				final boolean customColor = (drawPath.hasCustomColor && plugin.displayCustomPathColors);
-				Color color = deselectedColor;
-				if (isSelected && !customColor)
-					color = selectedColor;
-				else if (customColor)
-					color = drawPath.getColor();
-
-				if (just_near_slices) {
-					drawPath.drawPathAsPoints(this, g, color, plane, (isSelected && customColor), drawDiametersXY,
-							current_z, eitherSide);
-				} else {
-					drawPath.drawPathAsPoints(this, g, color, plane, (isSelected && customColor), drawDiametersXY);
-				}
-			}
+	private static final class PathsLayerKey {
+
+		/* The view and display settings, then a few values per path: */
+		final long[] values;
+
+		/* The path drawn for each entry, compared by identity: */
+		final Path[] paths;
+
+		PathsLayerKey(final long[] values, final Path[] paths) {
+			this.values = values;
+			this.paths = paths;
 		}
 
-		super.drawOverlay(g);
+		boolean sameAs(final PathsLayerKey other) {
+			if (other == null || !Arrays.equals(values, other.values) || paths.length != other.paths.length)
+				return false;
+			for (int i = 0; i < paths.length; ++i)
+				if (paths[i] != other.paths[i])
+					return false;
+			return true;
+		}
+	}
+
+	private static final int VIEW_VALUES = 13;
+	private static final int VALUES_PER_PATH = 5;
 
+	private PathsLayerKey pathsLayerKey(final int current_z) {
+		final SimpleNeuriteTracer plugin = pathAndFillManager.plugin;
+		final Rectangle srcRect = getSrcRect();
+		final int n = pathAndFillManager.size();
+		final long[] values = new long[VIEW_VALUES + VALUES_PER_PATH * n];
+		final Path[] paths = new Path[n];
+		int v = 0;
+		values[v++] = plane;
+		values[v++] = srcRect.x;
+		values[v++] = srcRect.y;
+		values[v++] = srcRect.width;
+		values[v++] = srcRect.height;
+		values[v++] = Double.doubleToLongBits(getMagnification());
+		values[v++] = just_near_slices ? 1 : 0;
+		values[v++] = just_near_slices ? current_z : 0;
+		values[v++] = just_near_slices ? eitherSide : 0;
+		values[v++] = (plugin.getShowOnlySelectedPaths() ? 1 : 0) | (plugin.getDrawDiametersXY() ? 2 : 0)
+				| (plugin.displayCustomPathColors ? 4 : 0);
+		values[v++] = plugin.selectedColor.getRGB();
+		values[v++] = plugin.deselectedColor.getRGB();
+		values[v++] = n;
+		int drawn = 0;
+		for (int i = 0; i < n; ++i) {
+			final Path p = pathAndFillManager.getPath(i);
+			if (p == null || p.fittedVersionOf != null)
+				continue;
+			final Path drawPath = p.useFitted ? p.fitted : p;
+			paths[drawn++] = drawPath;
+			values[v++] = drawPath.getGeometryVersion();
+			values[v++] = drawPath.size();
+			values[v++] = pathAndFillManager.isSelected(p) ? 1 : 0;
+			values[v++] = drawPath.hasCustomColor ? 0x100000000L | (drawPath.getColor().getRGB() & 0xFFFFFFFFL) : 0;
+			values[v++] = (p.startJoins == null ? 0 : 1) | (p.endJoins == null ? 0 : 2);
+		}
+		return new PathsLayerKey(Arrays.copyOf(values, v), Arrays.copyOf(paths, drawn));
+	}
+
+	private void drawPathsLayer(final Graphics g, final int current_z) {
+		final int width = getWidth();
+		final int height = getHeight();
+		if (width <= 0 || height <= 0)
+			return;
+		final PathsLayerKey key = pathsLayerKey(current_z);
+		if (pathsLayer == null || pathsLayer.getWidth() != width || pathsLayer.getHeight() != height) {
+			pathsLayer = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		} else if (key.sameAs(pathsLayerKey)) {
+			g.drawImage(pathsLayer, 0, 0, null);
+			return;
+		}
+		final Graphics2D layerGraphics = pathsLayer.createGraphics();
+		layerGraphics.setComposite(AlphaComposite.Clear);
+		layerGraphics.fillRect(0, 0, width, height);
+		layerGraphics.setComposite(AlphaComposite.SrcOver);
+		drawPaths(layerGraphics, current_z);
+		layerGraphics.dispose();
+		pathsLayerKey = key;
+		g.drawImage(pathsLayer, 0, 0, null);
 	}
 
 	/* Keep another Graphics for double-buffering... */
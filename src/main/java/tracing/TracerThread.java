@@ -157,20 +157,26 @@ public class TracerThread extends SearchThread {
 		switch (imageType) {
 		case ImagePlus.GRAY8:
 		case ImagePlus.COLOR_256:
-			value_at_new_point = slices_data_b[new_z][new_y * width + new_x] & 0xFF;
+			value_at_new_point = voxels.getBytes(new_z)[new_y * width + new_x] & 0xFF;
 			break;
 		case ImagePlus.GRAY16: {
-			value_at_new_point = slices_data_s[new_z][new_y * width + new_x];
+			value_at_new_point = voxels.getShorts(new_z)[new_y * width + new_x];
 			value_at_new_point = 255.0 * (value_at_new_point - stackMin) / (stackMax - stackMin);
 			break;
 		}
 		case ImagePlus.GRAY32: {
-			value_at_new_point = slices_data_f[new_z][new_y * width + new_x];
+			value_at_new_point = voxels.getFloats(new_z)[new_y * width + new_x];
 			value_at_new_point = 255.0 * (value_at_new_point - stackMin) / (stackMax - stackMin);
 			break;
 		}
 		}
 
+		/* With percentile normalisation, values may lie outside the range: */
+		if (value_at_new_point < 0)
+			value_at_new_point = 0;
+		else if (value_at_new_point > 255)
+			value_at_new_point = 255;
+
 		double cost;
 
 		if (useHessian) {
@@ -0,0 +1,363 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package tracing;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Gives the searches and the cursor snapping access to the voxels of an
+ * image. For an ordinary stack this just hands out the pixel arrays of each
+ * slice, as before. For a virtual stack, slices are only loaded when they are
+ * first needed and kept in a cache bounded by {@link #getCacheBytes()}; when
+ * the cache is full the least recently used slice is dropped. Searches call
+ * {@link #prefetchAround(int)} as they move through the stack so that the
+ * slices just beyond the search frontier are read in the background.
+ *
+ * Use {@link #get(ImagePlus)} so that all searches on the same image share
+ * one cache. A VoxelSource only holds its stack weakly, and is forgotten
+ * when its image is closed, so the cache doesn't keep images alive.
+ */
+public class VoxelSource {
+
+	/*
+	 * The default cache size can be set with -Dsnt.cache.mb=...; otherwise a
+	 * quarter of the maximum heap is used.
+	 */
+	static long defaultCacheBytes = Long.getLong("snt.cache.mb", Runtime.getRuntime().maxMemory() / (4L << 20))
+			<< 20;
+
+	/* How many slices either side of the frontier to prefetch: */
+	static int prefetchSlices = 2;
+
+	/*
+	 * The values must not refer to their keys strongly, or the stacks could
+	 * never be collected; hence the WeakReference to the stack below.
+	 */
+	private static final Map<ImageStack, VoxelSource> sources = new WeakHashMap<>();
+
+	private static ImageListener closeListener;
+
+	/** Returns the (shared) VoxelSource for the stack of this image. */
+	public static VoxelSource get(final ImagePlus imagePlus) {
+		final ImageStack stack = imagePlus.getStack();
+		synchronized (sources) {
+			VoxelSource source = sources.get(stack);
+			if (source == null) {
+				source = new VoxelSource(stack, imagePlus.getType(), defaultCacheBytes);
+				sources.put(stack, source);
+			}
+			if (closeListener == null) {
+				closeListener = new ImageListener() {
+					@Override
+					public void imageOpened(final ImagePlus imp) {
+					}
+
+					@Override
+					public void imageClosed(final ImagePlus imp) {
+						forget(imp);
+					}
+
+					@Override
+					public void imageUpdated(final ImagePlus imp) {
+					}
+				};
+				ImagePlus.addImageListener(closeListener);
+			}
+			return source;
+		}
+	}
+
+	/**
+	 * Drops the shared VoxelSource (and so any cached slices) of an image,
+	 * e.g. once it has been closed.
+	 */
+	public static void forget(final ImagePlus imagePlus) {
+		synchronized (sources) {
+			sources.remove(imagePlus.getStack());
+		}
+	}
+
+	/** Sets the cache size used for virtual stacks opened from now on. */
+	public static void setDefaultCacheBytes(final long bytes) {
+		defaultCacheBytes = bytes;
+	}
+
+	private static ExecutorService prefetcher;
+
+	private static synchronized ExecutorService getPrefetcher() {
+		if (prefetcher == null)
+			prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread t = new Thread(r, "SNT slice prefetcher");
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+		return prefetcher;
+	}
+
+	private final WeakReference<ImageStack> stackReference;
+	final int imageType;
+	final int width, height, depth;
+	final boolean virtual;
+
+	/*
+	 * The pixel arrays of every slice of an ordinary stack, or of the slices
+	 * of a virtual stack that are currently in memory (null otherwise):
+	 */
+	private final Object[] allSlices;
+	private final AtomicReferenceArray<Object> residentSlices;
+
+	/* For the LRU policy, the value of useCounter when each slice was last used: */
+	private final long[] lastUsed;
+	private long useCounter;
+
+	private final int maxResidentSlices;
+	private int numberOfResidentSlices;
+
+	/* Which slices have a prefetch queued, to avoid queuing them twice: */
+	private final boolean[] prefetchQueued;
+	private volatile int lastPrefetchCentre = -1;
+
+	VoxelSource(final ImageStack stack, final int imageType, final long cacheBytes) {
+		stackReference = new WeakReference<>(stack);
+		this.imageType = imageType;
+		width = stack.getWidth();
+		height = stack.getHeight();
+		depth = stack.getSize();
+		virtual = stack.isVirtual();
+		lastUsed = new long[depth];
+		prefetchQueued = new boolean[depth];
+		if (virtual) {
+			final long sliceBytes = (long) width * height * bytesPerVoxel(imageType);
+			/*
+			 * A search needs the slices either side of the one it's
+			 * expanding, plus room for the prefetched ones:
+			 */
+			final long fit = cacheBytes / Math.max(1, sliceBytes);
+			maxResidentSlices = (int) Math.min(depth, Math.max(3 + 2 * prefetchSlices, fit));
+			allSlices = null;
+			residentSlices = new AtomicReferenceArray<>(depth);
+		} else {
+			maxResidentSlices = depth;
+			allSlices = new Object[depth];
+			for (int z = 0; z < depth; ++z)
+				allSlices[z] = stack.getPixels(z + 1);
+			numberOfResidentSlices = depth;
+			residentSlices = null;
+		}
+	}
+
+	static int bytesPerVoxel(final int imageType) {
+		switch (imageType) {
+		case ImagePlus.GRAY16:
+			return 2;
+		case ImagePlus.GRAY32:
+		case ImagePlus.COLOR_RGB:
+			return 4;
+		default:
+			return 1;
+		}
+	}
+
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	public int getImageType() {
+		return imageType;
+	}
+
+	public long getCacheBytes() {
+		return (long) maxResidentSlices * width * height * bytesPerVoxel(imageType);
+	}
+
+	/**
+	 * Returns the pixel array of slice z (0-based), loading it if necessary.
+	 * The array must not be modified.
+	 */
+	public Object getPixels(final int z) {
+		if (!virtual)
+			return allSlices[z];
+		final Object pixels = residentSlices.get(z);
+		if (pixels != null) {
+			/* A racy update is fine here; it only affects eviction order: */
+			lastUsed[z] = ++useCounter;
+			return pixels;
+		}
+		return load(z);
+	}
+
+	/**
+	 * Returns the pixel array of slice z (0-based) without affecting the
+	 * cache: a cached slice isn't marked as recently used, and a slice that
+	 * isn't cached is read from the stack but not added. This is for passes
+	 * through every slice, such as building the side panes, which would
+	 * otherwise evict the slices that the searches are working on. The cost
+	 * is that uncached slices are read again on every such pass. The array
+	 * must not be modified.
+	 */
+	public Object peekPixels(final int z) {
+		if (!virtual)
+			return allSlices[z];
+		final Object pixels = residentSlices.get(z);
+		if (pixels != null)
+			return pixels;
+		final ImageStack stack = stackReference.get();
+		if (stack == null)
+			throw new IllegalStateException("The stack of this VoxelSource has been discarded");
+		synchronized (stack) {
+			return stack.getProcessor(z + 1).getPixels();
+		}
+	}
+
+	public byte[] getBytes(final int z) {
+		return (byte[]) getPixels(z);
+	}
+
+	public short[] getShorts(final int z) {
+		return (short[]) getPixels(z);
+	}
+
+	public float[] getFloats(final int z) {
+		return (float[]) getPixels(z);
+	}
+
+	/**
+	 * Returns the value at a voxel as a float, with 8-bit values treated as
+	 * unsigned, as the searches do.
+	 */
+	public float getValue(final int x, final int y, final int z) {
+		final int i = y * width + x;
+		switch (imageType) {
+		case ImagePlus.GRAY8:
+		case ImagePlus.COLOR_256:
+			return getBytes(z)[i] & 0xFF;
+		case ImagePlus.GRAY16:
+			return getShorts(z)[i];
+		case ImagePlus.GRAY32:
+			return getFloats(z)[i];
+		default:
+			throw new RuntimeException("Unknow image type: " + imageType);
+		}
+	}
+
+	/**
+	 * Returns the value at a voxel as a float, with 8-bit and 16-bit values
+	 * treated as unsigned, as ImageJ displays and projects them.
+	 */
+	public float getUnsignedValue(final int x, final int y, final int z) {
+		if (imageType == ImagePlus.GRAY16)
+			return getShorts(z)[y * width + x] & 0xFFFF;
+		return getValue(x, y, z);
+	}
+
+	private Object load(final int z) {
+		/*
+		 * ImageJ's virtual stacks aren't guaranteed to be thread-safe, so
+		 * loads are serialized on the stack:
+		 */
+		final ImageStack stack = stackReference.get();
+		if (stack == null)
+			throw new IllegalStateException("The stack of this VoxelSource has been discarded");
+		synchronized (stack) {
+			Object pixels = residentSlices.get(z);
+			if (pixels == null) {
+				pixels = stack.getProcessor(z + 1).getPixels();
+				synchronized (this) {
+					if (numberOfResidentSlices >= maxResidentSlices)
+						evictLeastRecentlyUsed(z);
+					residentSlices.set(z, pixels);
+					++numberOfResidentSlices;
+				}
+			}
+			synchronized (this) {
+				lastUsed[z] = ++useCounter;
+			}
+			return pixels;
+		}
+	}
+
+	private void evictLeastRecentlyUsed(final int loading) {
+		int oldest = -1;
+		for (int z = 0; z < depth; ++z)
+			if (z != loading && residentSlices.get(z) != null && (oldest < 0 || lastUsed[z] < lastUsed[oldest]))
+				oldest = z;
+		if (oldest >= 0) {
+			residentSlices.set(oldest, null);
+			--numberOfResidentSlices;
+		}
+	}
+
+	/**
+	 * Queues the slices around z for loading in the background. This is
+	 * cheap to call repeatedly with the same z, and does nothing for stacks
+	 * that aren't virtual.
+	 */
+	public void prefetchAround(final int z) {
+		if (!virtual || z == lastPrefetchCentre)
+			return;
+		lastPrefetchCentre = z;
+		final int from = Math.max(0, z - prefetchSlices);
+		final int to = Math.min(depth - 1, z + prefetchSlices);
+		for (int i = from; i <= to; ++i) {
+			if (residentSlices.get(i) != null)
+				continue;
+			synchronized (this) {
+				if (prefetchQueued[i])
+					continue;
+				prefetchQueued[i] = true;
+			}
+			final int slice = i;
+			getPrefetcher().execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						load(slice);
+					} catch (final Exception e) {
+						SNT.log("Failed to prefetch slice " + (slice + 1) + ": " + e);
+					} finally {
+						synchronized (VoxelSource.this) {
+							prefetchQueued[slice] = false;
+						}
+					}
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,507 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package tracing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.IJ;
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+
+/**
+ * The minimum, maximum, mean and intensity histogram of a whole image stack,
+ * computed in a single parallel pass over the slices and cached, so that the
+ * tracer, the automatic tracer and the filler don't each scan the image
+ * again. Percentiles are read off the histogram, which makes robust
+ * (percentile-based) normalisation free once the statistics exist.
+ *
+ * 8-bit images get one bin per value. 16-bit images get one bin per value
+ * too (interpreted as signed, as SearchThread reads them). 32-bit images are
+ * binned on the top 16 bits of their ordered IEEE representation, so the bins
+ * are relative: each is about 1% of the magnitude of the values in it.
+ *
+ * Statistics are cached in memory for the image, and for images opened from a
+ * file also on disk in the temporary directory. The disk cache is keyed by the
+ * file's path, length and modification time; images that have been edited
+ * are keyed by their ID and the number of times they've been updated since
+ * they were first marked as changed.
+ */
+public class VoxelStatistics {
+
+	static final int CACHE_VERSION = 1;
+	static final int MAX_CACHED = 16;
+
+	private static final Map<String, VoxelStatistics> cache = new LinkedHashMap<String, VoxelStatistics>(16, 0.75f,
+			true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, VoxelStatistics> eldest) {
+			return size() > MAX_CACHED;
+		}
+	};
+
+	/*
+	 * How many times each image has been updated while marked as changed,
+	 * i.e. a modification stamp for images that no longer match their file;
+	 * counted by editListener, which is registered when first needed:
+	 */
+	private static final Map<ImagePlus, Long> editStamps = new WeakHashMap<>();
+	private static ImageListener editListener;
+
+	static long editStamp(final ImagePlus imagePlus) {
+		synchronized (editStamps) {
+			if (editListener == null) {
+				editListener = new ImageListener() {
+					@Override
+					public void imageOpened(final ImagePlus imp) {
+					}
+
+					@Override
+					public void imageClosed(final ImagePlus imp) {
+						synchronized (editStamps) {
+							editStamps.remove(imp);
+						}
+					}
+
+					@Override
+					public void imageUpdated(final ImagePlus imp) {
+						if (!imp.changes)
+							return;
+						synchronized (editStamps) {
+							final Long stamp = editStamps.get(imp);
+							editStamps.put(imp, stamp == null ? 1 : stamp + 1);
+						}
+					}
+				};
+				ImagePlus.addImageListener(editListener);
+			}
+			final Long stamp = editStamps.get(imagePlus);
+			return stamp == null ? 0 : stamp;
+		}
+	}
+
+	final int imageType;
+	final long count;
+	final float min;
+	final float max;
+	final double mean;
+	final long[] histogram;
+
+	VoxelStatistics(final int imageType, final long count, final float min, final float max, final double mean,
+			final long[] histogram) {
+		this.imageType = imageType;
+		this.count = count;
+		this.min = min;
+		this.max = max;
+		this.mean = mean;
+		this.histogram = histogram;
+	}
+
+	/**
+	 * Returns the statistics of the image, from the cache if possible and
+	 * otherwise by computing them on all processors.
+	 */
+	public static VoxelStatistics get(final ImagePlus imagePlus) {
+		final String key = cacheKey(imagePlus);
+		synchronized (cache) {
+			final VoxelStatistics cached = cache.get(key);
+			if (cached != null)
+				return cached;
+		}
+		final File cacheFile = diskCacheFile(imagePlus, key);
+		VoxelStatistics result = (cacheFile == null) ? null : read(cacheFile, key);
+		if (result == null) {
+			result = compute(VoxelSource.get(imagePlus), Runtime.getRuntime().availableProcessors());
+			if (cacheFile != null)
+				write(cacheFile, key, result);
+		}
+		synchronized (cache) {
+			cache.put(key, result);
+		}
+		return result;
+	}
+
+	/* Forgets the cached statistics, e.g. after the image has been changed: */
+	public static void invalidate(final ImagePlus imagePlus) {
+		final String key = cacheKey(imagePlus);
+		synchronized (cache) {
+			cache.remove(key);
+		}
+		final File cacheFile = diskCacheFile(imagePlus, key);
+		if (cacheFile != null)
+			cacheFile.delete();
+	}
+
+	static File sourceFile(final ImagePlus imagePlus) {
+		final FileInfo fi = imagePlus.getOriginalFileInfo();
+		if (fi == null || fi.directory == null || fi.fileName == null)
+			return null;
+		final File f = new File(fi.directory, fi.fileName);
+		return f.isFile() ? f : null;
+	}
+
+	static String cacheKey(final ImagePlus imagePlus) {
+		final String shape = imagePlus.getWidth() + "x" + imagePlus.getHeight() + "x" + imagePlus.getStackSize() + ":"
+				+ imagePlus.getType();
+		final File f = sourceFile(imagePlus);
+		/*
+		 * An image that's been edited since it was opened can't be matched
+		 * with its file, so is only cached by its (session-unique) ID:
+		 */
+		if (f == null || imagePlus.changes)
+			return "id:" + imagePlus.getID() + ":" + editStamp(imagePlus) + ":" + imagePlus.getTitle() + ":"
+					+ shape;
+		return "file:" + f.getAbsolutePath() + ":" + f.length() + ":" + f.lastModified() + ":" + shape;
+	}
+
+	static File diskCacheFile(final ImagePlus imagePlus, final String key) {
+		if (!key.startsWith("file:"))
+			return null;
+		return new File(System.getProperty("java.io.tmpdir"),
+				"snt-stats-" + Integer.toHexString(key.hashCode()) + ".bin");
+	}
+
+	static VoxelStatistics read(final File file, final String key) {
+		if (!file.isFile())
+			return null;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			/* Different keys may have the same hash, so check the key: */
+			if (in.readInt() != CACHE_VERSION || !key.equals(in.readUTF()))
+				return null;
+			final int imageType = in.readInt();
+			final long count = in.readLong();
+			final float min = in.readFloat();
+			final float max = in.readFloat();
+			final double mean = in.readDouble();
+			final long[] histogram = new long[in.readInt()];
+			for (int i = 0; i < histogram.length; ++i)
+				histogram[i] = in.readLong();
+			return new VoxelStatistics(imageType, count, min, max, mean, histogram);
+		} catch (final IOException e) {
+			SNT.log("Ignoring unreadable statistics cache " + file + ": " + e);
+			return null;
+		} finally {
+			if (in != null)
+				try {
+					in.close();
+				} catch (final IOException e) {
+					// Ignore
+				}
+		}
+	}
+
+	/*
+	 * The temporary directory is shared, so the cache is written under a
+	 * temporary name and then moved into place: a reader never sees a half
+	 * written file, and of two processes writing at once one simply wins.
+	 */
+	static void write(final File file, final String key, final VoxelStatistics statistics) {
+		File partFile = null;
+		try {
+			partFile = File.createTempFile(file.getName() + ".", ".part", file.getParentFile());
+			writeTo(partFile, key, statistics);
+			try {
+				Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (final AtomicMoveNotSupportedException e) {
+				Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (final IOException e) {
+			SNT.log("Could not write statistics cache " + file + ": " + e);
+		} finally {
+			if (partFile != null)
+				partFile.delete();
+		}
+	}
+
+	private static void writeTo(final File file, final String key, final VoxelStatistics statistics)
+			throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(CACHE_VERSION);
+			out.writeUTF(key);
+			out.writeInt(statistics.imageType);
+			out.writeLong(statistics.count);
+			out.writeFloat(statistics.min);
+			out.writeFloat(statistics.max);
+			out.writeDouble(statistics.mean);
+			out.writeInt(statistics.histogram.length);
+			for (final long c : statistics.histogram)
+				out.writeLong(c);
+		}
+	}
+
+	/* The partial results for a range of slices: */
+	static class Partial {
+		long count;
+		float min = Float.MAX_VALUE;
+		float max = -Float.MAX_VALUE;
+		double sum;
+		long[] histogram;
+	}
+
+	static int binsFor(final int imageType) {
+		return (imageType == ImagePlus.GRAY8 || imageType == ImagePlus.COLOR_256) ? 256 : 65536;
+	}
+
+	/* Maps a float to a bin such that the order of the bins is that of the values: */
+	static int floatBin(final float v) {
+		final int bits = Float.floatToIntBits(v);
+		final int ordered = (bits >= 0) ? bits ^ 0x80000000 : ~bits;
+		return ordered >>> 16;
+	}
+
+	/* The smallest value that falls in a float bin: */
+	static float floatBinStart(final int bin) {
+		final int ordered = bin << 16;
+		final int bits = (ordered < 0) ? ordered ^ 0x80000000 : ~ordered;
+		return Float.intBitsToFloat(bits);
+	}
+
+	static void accumulate(final Partial partial, final Object pixels, final int imageType) {
+		final long[] histogram = partial.histogram;
+		float min = partial.min, max = partial.max;
+		double sum = 0;
+		long count = 0;
+		switch (imageType) {
+		case ImagePlus.GRAY8:
+		case ImagePlus.COLOR_256:
+			for (final byte b : (byte[]) pixels) {
+				final int v = b & 0xFF;
+				++histogram[v];
+				sum += v;
+			}
+			count = ((byte[]) pixels).length;
+			break;
+		case ImagePlus.GRAY16:
+			for (final short v : (short[]) pixels) {
+				++histogram[v + 32768];
+				sum += v;
+			}
+			count = ((short[]) pixels).length;
+			break;
+		case ImagePlus.GRAY32:
+			for (final float v : (float[]) pixels) {
+				if (Float.isNaN(v))
+					continue;
+				++histogram[floatBin(v)];
+				if (v < min)
+					min = v;
+				if (v > max)
+					max = v;
+				sum += v;
+				++count;
+			}
+			break;
+		default:
+			throw new RuntimeException("Unknow image type: " + imageType);
+		}
+		partial.min = min;
+		partial.max = max;
+		partial.sum += sum;
+		partial.count += count;
+	}
+
+	static VoxelStatistics compute(final VoxelSource voxels, final int threads) {
+
+		final int imageType = voxels.getImageType();
+		final int depth = voxels.depth;
+		final int bins = binsFor(imageType);
+
+		/*
+		 * Each task takes an interleaved subset of the slices, so that every
+		 * thread moves through the stack in the same order, which suits
+		 * virtual stacks:
+		 */
+		final int nTasks = Math.max(1, Math.min(threads, depth));
+		final ExecutorService pool = Executors.newFixedThreadPool(nTasks);
+		final Partial total = new Partial();
+		total.histogram = new long[bins];
+		try {
+			final List<Future<Partial>> futures = new ArrayList<>();
+			for (int t = 0; t < nTasks; ++t) {
+				final int first = t;
+				futures.add(pool.submit(new Callable<Partial>() {
+					@Override
+					public Partial call() {
+						final Partial partial = new Partial();
+						partial.histogram = new long[bins];
+						for (int z = first; z < depth; z += nTasks) {
+							accumulate(partial, voxels.getPixels(z), imageType);
+							if (first == 0)
+								IJ.showProgress(z / (float) depth);
+						}
+						return partial;
+					}
+				}));
+			}
+			for (final Future<Partial> future : futures) {
+				final Partial partial = future.get();
+				total.count += partial.count;
+				total.sum += partial.sum;
+				total.min = Math.min(total.min, partial.min);
+				total.max = Math.max(total.max, partial.max);
+				for (int i = 0; i < bins; ++i)
+					total.histogram[i] += partial.histogram[i];
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while computing image statistics", e);
+		} catch (final ExecutionException e) {
+			throw new RuntimeException("Failed to compute image statistics", e.getCause());
+		} finally {
+			pool.shutdownNow();
+			IJ.showProgress(1.0);
+		}
+
+		/* For 8 and 16 bit images the extremes are exact from the histogram: */
+		if (imageType != ImagePlus.GRAY32) {
+			int lowest = 0;
+			while (lowest < bins && total.histogram[lowest] == 0)
+				++lowest;
+			int highest = bins - 1;
+			while (highest >= 0 && total.histogram[highest] == 0)
+				--highest;
+			total.min = binStart(imageType, lowest);
+			total.max = binStart(imageType, highest);
+		}
+
+		return new VoxelStatistics(imageType, total.count, total.min, total.max,
+				(total.count == 0) ? 0 : total.sum / total.count, total.histogram);
+	}
+
+	static float binStart(final int imageType, final int bin) {
+		switch (imageType) {
+		case ImagePlus.GRAY16:
+			return bin - 32768;
+		case ImagePlus.GRAY32:
+			return floatBinStart(bin);
+		default:
+			return bin;
+		}
+	}
+
+	public float getMin() {
+		return min;
+	}
+
+	public float getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return mean;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns a copy of the histogram; see the class documentation for how
+	 * values map to bins.
+	 */
+	public long[] getHistogram() {
+		return histogram.clone();
+	}
+
+	/**
+	 * Returns (approximately, for 32-bit images) the value below which the
+	 * given percentage of voxels lie, clamped to the actual minimum and
+	 * maximum.
+	 */
+	public float getPercentile(final double percent) {
+		if (count == 0)
+			return 0;
+		final double wanted = Math.max(0, Math.min(100, percent)) / 100 * count;
+		long seen = 0;
+		int bin = 0;
+		while (bin < histogram.length - 1) {
+			seen += histogram[bin];
+			if (seen >= wanted && seen > 0)
+				break;
+			++bin;
+		}
+		return Math.max(min, Math.min(max, binStart(imageType, bin)));
+	}
+
+	/**
+	 * Returns the { low, high } values to pass to the searches as stackMin and
+	 * stackMax. For 8-bit images this is always { 0, 255 }, since those
+	 * aren't rescaled; otherwise it is the given percentiles, or the full
+	 * range if lowPercent is 0 and highPercent is 100.
+	 */
+	public float[] getNormalisationRange(final double lowPercent, final double highPercent) {
+		if (imageType == ImagePlus.GRAY8 || imageType == ImagePlus.COLOR_256)
+			return new float[] { 0, 255 };
+		if (lowPercent <= 0 && highPercent >= 100)
+			return new float[] { min, max };
+		final float low = getPercentile(lowPercent);
+		float high = getPercentile(highPercent);
+		if (high <= low)
+			high = max;
+		return new float[] { low, high };
+	}
+
+	/**
+	 * As {@link #getNormalisationRange(double, double)}, but without
+	 * computing the statistics of 8-bit images, which are never rescaled.
+	 */
+	public static float[] getNormalisationRange(final ImagePlus imagePlus, final double lowPercent,
+			final double highPercent) {
+		final int type = imagePlus.getType();
+		if (type == ImagePlus.GRAY8 || type == ImagePlus.COLOR_256)
+			return new float[] { 0, 255 };
+		return get(imagePlus).getNormalisationRange(lowPercent, highPercent);
+	}
+
+	@Override
+	public String toString() {
+		return "min=" + min + ", max=" + max + ", mean=" + mean + ", count=" + count;
+	}
+}
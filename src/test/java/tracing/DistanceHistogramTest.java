@@ -0,0 +1,87 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class DistanceHistogramTest {
+
+	@Test
+	public void testCountsAtBinEdges() {
+		final DistanceHistogram histogram = new DistanceHistogram();
+		// One distance on each bin edge from 10^-1 to 10^2, including 1 and 10:
+		final int first = 1 + 5 * DistanceHistogram.BINS_PER_DECADE;
+		final int last = 1 + 8 * DistanceHistogram.BINS_PER_DECADE;
+		for (int bin = first; bin <= last; ++bin)
+			histogram.add(DistanceHistogram.binStart(bin));
+		assertEquals(last - first + 1, histogram.getTotal());
+		for (int bin = first; bin <= last; ++bin)
+			assertEquals("At the edge " + DistanceHistogram.binStart(bin), bin - first + 1,
+					histogram.countAtOrBelow(DistanceHistogram.binStart(bin)));
+		assertEquals(1, histogram.countAtOrBelow(0.1));
+		assertEquals(101, histogram.countAtOrBelow(1));
+		assertEquals(201, histogram.countAtOrBelow(10));
+		assertEquals(0, histogram.countAtOrBelow(DistanceHistogram.binStart(first - 1)));
+	}
+
+	@Test
+	public void testInterpolationWithinABin() {
+		final DistanceHistogram histogram = new DistanceHistogram();
+		final int bin = DistanceHistogram.binOf(5);
+		final double start = DistanceHistogram.binStart(bin), end = DistanceHistogram.binStart(bin + 1);
+		for (int i = 0; i < 100; ++i)
+			histogram.add(end);
+		assertEquals(0, histogram.countAtOrBelow(start));
+		assertEquals(50, histogram.countAtOrBelow(Math.sqrt(start * end)));
+		assertEquals(100, histogram.countAtOrBelow(end));
+	}
+
+	@Test
+	public void testOverflowBins() {
+		final DistanceHistogram histogram = new DistanceHistogram();
+		histogram.add(0); // the source paths themselves
+		histogram.add(1e-9);
+		histogram.add(1e-6); // the upper edge of the first bin
+		histogram.add(2);
+		histogram.add(1e6); // the upper edge of the last logarithmic bin
+		histogram.add(1e7);
+		histogram.add(Double.MAX_VALUE);
+		assertEquals(7, histogram.getTotal());
+		assertEquals(0, histogram.countAtOrBelow(-1));
+		// Everything in the bin below 10^MIN_LOG is counted for any threshold in it:
+		assertEquals(3, histogram.countAtOrBelow(0));
+		assertEquals(3, histogram.countAtOrBelow(1e-6));
+		assertEquals(4, histogram.countAtOrBelow(10));
+		assertEquals(5, histogram.countAtOrBelow(1e6));
+		// ... and the same beyond 10^MAX_LOG:
+		assertEquals(7, histogram.countAtOrBelow(2e6));
+		assertEquals(7, histogram.countAtOrBelow(Double.POSITIVE_INFINITY));
+		histogram.remove(1e7);
+		assertEquals(6, histogram.countAtOrBelow(2e6));
+		assertEquals(5 * 8.0, histogram.volumeAtOrBelow(1e6, 2, 2, 2), 0);
+	}
+}
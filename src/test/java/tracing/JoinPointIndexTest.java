@@ -0,0 +1,125 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class JoinPointIndexTest {
+
+	/* The first of the nearest points, as a scan of the list finds it: */
+	static PointInImage nearestByScan(final List<PointInImage> points, final double x, final double y,
+			final double z) {
+		PointInImage result = null;
+		double minimumDistanceSquared = Double.MAX_VALUE;
+		for (final PointInImage p : points) {
+			final double d = p.distanceSquaredTo(x, y, z);
+			if (d < minimumDistanceSquared) {
+				result = p;
+				minimumDistanceSquared = d;
+			}
+		}
+		return result;
+	}
+
+	static void assertSamePoint(final PointInImage expected, final PointInImage actual) {
+		assertEquals(expected.x, actual.x, 0);
+		assertEquals(expected.y, actual.y, 0);
+		assertEquals(expected.z, actual.z, 0);
+		assertSame(expected.onPath, actual.onPath);
+	}
+
+	static void checkAgainstScan(final List<PointInImage> points, final Random random, final double extent,
+			final boolean flat) {
+		final JoinPointIndex index = new JoinPointIndex(points);
+		assertEquals(points.size(), index.size());
+		for (int q = 0; q < 500; ++q) {
+			/* Some queries are well outside the points: */
+			final double x = (random.nextDouble() * 3 - 1) * extent;
+			final double y = (random.nextDouble() * 3 - 1) * extent;
+			final double z = flat ? 0 : (random.nextDouble() * 3 - 1) * extent;
+			assertSamePoint(nearestByScan(points, x, y, z), index.nearestTo(x, y, z));
+		}
+	}
+
+	@Test
+	public void testRandomPoints() {
+		final Random random = new Random(45);
+		final List<PointInImage> points = new ArrayList<>();
+		for (int i = 0; i < 2000; ++i)
+			points.add(new PointInImage(random.nextDouble() * 100, random.nextDouble() * 50,
+					random.nextDouble() * 20));
+		checkAgainstScan(points, random, 100, false);
+	}
+
+	@Test
+	public void testPointsAlongCurvesInOnePlane() {
+		final Random random = new Random(46);
+		final List<PointInImage> points = new ArrayList<>();
+		for (int i = 0; i < 1000; ++i) {
+			final double t = i / 10.0;
+			points.add(new PointInImage(t, 30 + 20 * Math.sin(t / 7), 0));
+			points.add(new PointInImage(100 - t, t / 3, 0));
+		}
+		checkAgainstScan(points, random, 100, true);
+	}
+
+	@Test
+	public void testTiesGoToTheFirstPoint() {
+		/* Points on a lattice, each twice, in shuffled order: */
+		final List<PointInImage> points = new ArrayList<>();
+		for (int copy = 0; copy < 2; ++copy)
+			for (int x = 0; x < 10; ++x)
+				for (int y = 0; y < 10; ++y)
+					points.add(new PointInImage(x, y, copy));
+		Collections.shuffle(points, new Random(47));
+		final JoinPointIndex index = new JoinPointIndex(points);
+		for (int x = 0; x < 10; ++x)
+			for (int y = 0; y < 10; ++y) {
+				final double qx = x + 0.5, qy = y + 0.5;
+				final PointInImage expected = nearestByScan(points, qx, qy, 0.5);
+				final PointInImage actual = index.nearestTo(qx, qy, 0.5);
+				assertEquals(expected.x, actual.x, 0);
+				assertEquals(expected.y, actual.y, 0);
+				assertEquals(expected.z, actual.z, 0);
+			}
+	}
+
+	@Test
+	public void testSmallIndexes() {
+		assertNull(new JoinPointIndex(new ArrayList<PointInImage>()).nearestTo(1, 2, 3));
+		final List<PointInImage> one = new ArrayList<>();
+		one.add(new PointInImage(5, 5, 5));
+		assertSamePoint(one.get(0), new JoinPointIndex(one).nearestTo(-100, 3, 1e6));
+	}
+}
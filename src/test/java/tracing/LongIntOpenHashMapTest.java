@@ -0,0 +1,103 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongIntOpenHashMapTest {
+
+	@Test
+	public void testPutAndGet() {
+		final LongIntOpenHashMap map = new LongIntOpenHashMap(16, false);
+		assertEquals(LongIntOpenHashMap.EMPTY, map.putIfAbsent(7, 70));
+		assertEquals(LongIntOpenHashMap.EMPTY, map.putIfAbsent(0, 1));
+		assertEquals(70, map.putIfAbsent(7, 71));
+		assertEquals(70, map.get(7));
+		assertEquals(1, map.get(0));
+		assertEquals(LongIntOpenHashMap.EMPTY, map.get(8));
+		assertFalse(map.containsKey(8));
+		assertEquals(2, map.size());
+		map.clear();
+		assertEquals(0, map.size());
+		assertFalse(map.containsKey(7));
+	}
+
+	@Test
+	public void testRehash() {
+		for (final boolean offHeap : new boolean[] { false, true }) {
+			final LongIntOpenHashMap map = new LongIntOpenHashMap(0, offHeap);
+			final int n = 100000;
+			// Keys above 2^31, as for the voxels of very large images:
+			final long offset = 3L << 31;
+			for (int i = 0; i < n; ++i)
+				assertEquals(LongIntOpenHashMap.EMPTY, map.putIfAbsent(offset + 7L * i, i));
+			assertEquals(n, map.size());
+			for (int i = 0; i < n; ++i)
+				assertEquals(i, map.get(offset + 7L * i));
+			assertFalse(map.containsKey(offset + 1));
+		}
+	}
+
+	@Test
+	public void testRandomKeys() {
+		final Random random = new Random(31);
+		final LongIntOpenHashMap map = new LongIntOpenHashMap(4, false);
+		final long[] keys = new long[20000];
+		for (int i = 0; i < keys.length; ++i) {
+			keys[i] = random.nextLong() >>> 1;
+			map.putIfAbsent(keys[i], i);
+		}
+		for (int i = 0; i < keys.length; ++i)
+			assertEquals(i, map.get(keys[i]));
+	}
+
+	@Test
+	public void testCapacityLimits() {
+		assertEquals(16, LongIntOpenHashMap.capacityFor(0));
+		assertEquals(16, LongIntOpenHashMap.capacityFor(12));
+		assertEquals(32, LongIntOpenHashMap.capacityFor(13));
+		assertEquals(LongIntOpenHashMap.MAXIMUM_CAPACITY,
+				LongIntOpenHashMap.capacityFor(LongIntOpenHashMap.MAXIMUM_SIZE));
+		try {
+			LongIntOpenHashMap.capacityFor(LongIntOpenHashMap.MAXIMUM_SIZE + 1L);
+			fail("A table larger than the maximum capacity was allowed");
+		} catch (final RuntimeException e) {
+			assertTrue(e.getMessage().contains("Too many entries"));
+		}
+		try {
+			new LongIntOpenHashMap(16, false).putIfAbsent(-1, 0);
+			fail("A negative key was allowed");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
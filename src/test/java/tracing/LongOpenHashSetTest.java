@@ -0,0 +1,92 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LongOpenHashSetTest {
+
+	@Test
+	public void testAddAndContains() {
+		final LongOpenHashSet set = new LongOpenHashSet(16, false);
+		assertTrue(set.add(5));
+		assertTrue(set.add(Long.MAX_VALUE));
+		assertFalse(set.add(5));
+		assertTrue(set.contains(5));
+		assertTrue(set.contains(Long.MAX_VALUE));
+		assertFalse(set.contains(6));
+		assertEquals(2, set.size());
+	}
+
+	@Test
+	public void testRehash() {
+		for (final boolean offHeap : new boolean[] { false, true }) {
+			final LongOpenHashSet set = new LongOpenHashSet(0, offHeap);
+			final int n = 100000;
+			for (int i = 0; i < n; ++i)
+				assertTrue(set.add(((long) i << 32) | (n - i)));
+			assertEquals(n, set.size());
+			final long[] sum = new long[2];
+			set.forEach(new LongOpenHashSet.Visitor() {
+
+				@Override
+				public void visit(final long value) {
+					++sum[0];
+					sum[1] += value >>> 32;
+				}
+			});
+			assertEquals(n, sum[0]);
+			assertEquals((long) n * (n - 1) / 2, sum[1]);
+		}
+	}
+
+	/* The arrays behind the tables, with chunks small enough to test: */
+
+	@Test
+	public void testChunkedArrays() {
+		for (final boolean offHeap : new boolean[] { false, true }) {
+			final BigLongArray longs = new BigLongArray(100, offHeap, 4);
+			final BigIntArray ints = new BigIntArray(100, offHeap, 4);
+			longs.fill(-1);
+			assertEquals(-1, longs.get(99));
+			for (int i = 0; i < 100; ++i) {
+				longs.set(i, (3L << 40) + i);
+				ints.set(i, -i);
+			}
+			for (int i = 0; i < 100; ++i) {
+				assertEquals((3L << 40) + i, longs.get(i));
+				assertEquals(-i, ints.get(i));
+			}
+			final BigLongArray copy = new BigLongArray(200, offHeap, 4);
+			copy.copyFrom(longs, 100);
+			assertEquals((3L << 40) + 57, copy.get(57));
+			assertEquals(200, copy.length());
+		}
+	}
+}
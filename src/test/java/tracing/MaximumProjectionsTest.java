@@ -0,0 +1,109 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package tracing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import stacks.ThreePanes;
+
+/*
+ * Checks that "click at maximum" picks the same voxel from the cached
+ * projections as from scanning the line, including when the tied maxima
+ * along the line are separated by dimmer voxels.
+ */
+public class MaximumProjectionsTest {
+
+	static final int WIDTH = 5, HEIGHT = 4, DEPTH = 11;
+
+	/* A dim stack with saturated voxels at the given positions: */
+	static ImagePlus stackWithMaxima(final int[][] maxima) {
+		final ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+		for (int z = 0; z < DEPTH; ++z) {
+			final byte[] pixels = new byte[WIDTH * HEIGHT];
+			for (int i = 0; i < pixels.length; ++i)
+				pixels[i] = (byte) (10 + (i + z) % 7);
+			for (final int[] p : maxima)
+				if (p[2] == z)
+					pixels[p[1] * WIDTH + p[0]] = (byte) 255;
+			stack.addSlice(null, new ByteProcessor(WIDTH, HEIGHT, pixels));
+		}
+		return new ImagePlus("ties", stack);
+	}
+
+	static MaximumProjections projectionsOf(final ImagePlus image) {
+		final MaximumProjections projections = new MaximumProjections(image);
+		projections.compute(3);
+		return projections;
+	}
+
+	static int[][] column(final int x, final int y) {
+		final int[][] points = new int[DEPTH][];
+		for (int z = 0; z < DEPTH; ++z)
+			points[z] = new int[] { x, y, z };
+		return points;
+	}
+
+	@Test
+	public void testMiddleOfTies() {
+		assertEquals(0, MaximumProjections.middleOfTies(new float[] { 9 }, 9));
+		assertEquals(1, MaximumProjections.middleOfTies(new float[] { 9, 9 }, 9));
+		assertEquals(10, MaximumProjections.middleOfTies(new float[] { 9, 1, 1, 1, 1, 1, 1, 1, 1, 1, 9 }, 9));
+		assertEquals(3, MaximumProjections.middleOfTies(new float[] { 9, 1, 1, 9, 1, 1, 1, 1, 1, 1, 9 }, 9));
+		assertEquals(2, MaximumProjections.middleOfTies(new float[] { 9, 9, 9, 9 }, 9));
+	}
+
+	@Test
+	public void testNonContiguousTiesInXY() {
+		final int[][] maxima = { { 2, 1, 0 }, { 2, 1, 10 }, { 3, 2, 0 }, { 3, 2, 3 }, { 3, 2, 10 } };
+		final ImagePlus image = stackWithMaxima(maxima);
+		final MaximumProjections projections = projectionsOf(image);
+		final VoxelSource voxels = VoxelSource.get(image);
+
+		for (final int[] xy : new int[][] { { 2, 1 }, { 3, 2 } }) {
+			final int[] p = projections.maximumAlongLine(xy[0], xy[1], ThreePanes.XY_PLANE);
+			assertEquals(255, voxels.getUnsignedValue(p[0], p[1], p[2]), 0);
+			assertArrayEquals(MaximumProjections.maximumOf(voxels, column(xy[0], xy[1])), p);
+		}
+		assertArrayEquals(new int[] { 2, 1, 10 }, projections.maximumAlongLine(2, 1, ThreePanes.XY_PLANE));
+		assertArrayEquals(new int[] { 3, 2, 3 }, projections.maximumAlongLine(3, 2, ThreePanes.XY_PLANE));
+	}
+
+	@Test
+	public void testNonContiguousTiesInSidePanes() {
+		final int[][] maxima = { { 1, 0, 4 }, { 1, 3, 4 }, { 0, 2, 7 }, { 2, 2, 7 }, { 4, 2, 7 } };
+		final ImagePlus image = stackWithMaxima(maxima);
+		final MaximumProjections projections = projectionsOf(image);
+
+		/* In the XZ pane the line runs along y, in the ZY pane along x: */
+		assertArrayEquals(new int[] { 1, 3, 4 }, projections.maximumAlongLine(1, 4, ThreePanes.XZ_PLANE));
+		assertArrayEquals(new int[] { 2, 2, 7 }, projections.maximumAlongLine(7, 2, ThreePanes.ZY_PLANE));
+	}
+}
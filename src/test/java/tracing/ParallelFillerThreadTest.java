@@ -0,0 +1,143 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+
+/*
+ * Checks that the delta-stepping fill finds the same distances as the
+ * sequential Dijkstra fill on a small synthetic stack, to within the
+ * rounding of the order in which the costs are added up.
+ */
+public class ParallelFillerThreadTest {
+
+	static final int WIDTH = 64, HEIGHT = 64, DEPTH = 6;
+
+	static final float TOLERANCE = 1e-4f;
+
+	/* A noisy stack with a bright tube running diagonally through it: */
+	static ImagePlus syntheticStack() {
+		final Random random = new Random(46);
+		final ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+		for (int z = 0; z < DEPTH; ++z) {
+			final byte[] pixels = new byte[WIDTH * HEIGHT];
+			for (int y = 0; y < HEIGHT; ++y)
+				for (int x = 0; x < WIDTH; ++x) {
+					final boolean inTube = Math.abs(x - y) < 3 && Math.abs(z - DEPTH / 2) < 2;
+					final int value = inTube ? 200 + random.nextInt(56) : 1 + random.nextInt(60);
+					pixels[y * WIDTH + x] = (byte) value;
+				}
+			stack.addSlice(null, new ByteProcessor(WIDTH, HEIGHT, pixels));
+		}
+		final ImagePlus image = new ImagePlus("synthetic", stack);
+		image.getCalibration().pixelDepth = 2;
+		return image;
+	}
+
+	static Path pathThrough(final int[][] points) {
+		final Path path = new Path(1, 1, 2, "pixel");
+		for (final int[] p : points)
+			path.addPointDouble(p[0], p[1], 2 * p[2]);
+		return path;
+	}
+
+	/* Counts the largest number of points the fill reported at any time: */
+	static class PointsReported implements FillerProgressCallback {
+
+		int maximum;
+
+		@Override
+		public void pointsInSearch(final SearchInterface source, final int inOpen, final int inClosed) {
+			maximum = Math.max(maximum, inOpen + inClosed);
+		}
+
+		@Override
+		public void finished(final SearchInterface source, final boolean success) {}
+
+		@Override
+		public void threadStatus(final SearchInterface source, final int currentStatus) {}
+
+		@Override
+		public void maximumDistanceCompletelyExplored(final SearchThread source, final float f) {}
+	}
+
+	static void compareFills(final Path source, final ParallelFillerThread parallel) {
+		final ImagePlus image = parallel.imagePlus;
+		final FillerThread sequential = new FillerThread(image, 0, 255, false, true, 0.1, 0);
+		sequential.setSourcePaths(Collections.singleton(source));
+		sequential.run();
+
+		final PointsReported reported = new PointsReported();
+		parallel.addProgressListener(reported);
+		parallel.setSourcePaths(Collections.singleton(source));
+		parallel.run();
+
+		for (int z = 0; z < DEPTH; ++z)
+			for (int y = 0; y < HEIGHT; ++y)
+				for (int x = 0; x < WIDTH; ++x) {
+					final float expected = sequential.getDistanceAtPoint(x, y, z);
+					final float actual = parallel.getDistanceAtPoint(x, y, z);
+					assertTrue("Voxel " + x + "," + y + "," + z + " wasn't reached", expected >= 0 && actual >= 0);
+					assertEquals("Distance at " + x + "," + y + "," + z, expected, actual,
+							TOLERANCE * Math.max(1, expected));
+				}
+
+		// Each voxel should only be counted once, however often it was improved:
+		final int voxels = WIDTH * HEIGHT * DEPTH;
+		assertEquals(voxels, parallel.pointsConsideredInSearch());
+		assertTrue("Reported " + reported.maximum + " points in a stack of " + voxels,
+				reported.maximum <= voxels);
+	}
+
+	@Test
+	public void testSmallRounds() {
+		final Path source = pathThrough(new int[][] { { 10, 10, 3 }, { 11, 11, 3 }, { 12, 12, 3 } });
+		compareFills(source, new ParallelFillerThread(syntheticStack(), 0, 255, false, true, 0.1, 1, 3));
+	}
+
+	@Test
+	public void testParallelRounds() {
+		// Every voxel of the first slice is a source, so the first round is expanded in parallel:
+		final int[][] points = new int[WIDTH * HEIGHT][];
+		for (int y = 0; y < HEIGHT; ++y)
+			for (int x = 0; x < WIDTH; ++x)
+				points[y * WIDTH + x] = new int[] { (y % 2 == 0) ? x : WIDTH - 1 - x, y, 0 };
+		assertTrue(points.length > ParallelFillerThread.MINIMUM_PARALLEL_ROUND);
+		final ParallelFillerThread parallel = new ParallelFillerThread(syntheticStack(), 0, 255, false, true, 0.1, 1, 4);
+		// Wide buckets, so that later rounds are large too:
+		parallel.setDelta(100 * parallel.getDelta());
+		compareFills(pathThrough(points), parallel);
+	}
+}
@@ -0,0 +1,183 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * Checks the iterative Ramer-Douglas-Peucker implementation against the
+ * recursive, list-copying one that it replaced.
+ */
+public class PathDownsamplerTest {
+
+	/* The original recursive implementation, kept here as a reference: */
+	static ArrayList<SimplePoint> recursiveDownsample(final ArrayList<SimplePoint> points,
+			final double permittedDeviation) {
+		final int n = points.size();
+		final SimplePoint startPoint = points.get(0);
+		final SimplePoint endPoint = points.get(n - 1);
+		double vx = endPoint.x - startPoint.x;
+		double vy = endPoint.y - startPoint.y;
+		double vz = endPoint.z - startPoint.z;
+		final double vSize = Math.sqrt(vx * vx + vy * vy + vz * vz);
+		vx /= vSize;
+		vy /= vSize;
+		vz /= vSize;
+		double maxDistanceSquared = 0;
+		int maxIndex = -1;
+		for (int i = 1; i < n - 1; ++i) {
+			final SimplePoint midPoint = points.get(i);
+			final double dx = midPoint.x - startPoint.x;
+			final double dy = midPoint.y - startPoint.y;
+			final double dz = midPoint.z - startPoint.z;
+			final double projectedLength = dx * vx + dy * vy + dz * vz;
+			final double dLengthSquared = dx * dx + dy * dy + dz * dz;
+			final double distanceSquared = dLengthSquared - projectedLength * projectedLength;
+			if (distanceSquared > maxDistanceSquared) {
+				maxDistanceSquared = distanceSquared;
+				maxIndex = i;
+			}
+		}
+		if (maxDistanceSquared > (permittedDeviation * permittedDeviation)) {
+			ArrayList<SimplePoint> firstPart = new ArrayList<>();
+			for (int i = 0; i <= maxIndex; ++i)
+				firstPart.add(points.get(i));
+			ArrayList<SimplePoint> secondPart = new ArrayList<>();
+			for (int i = maxIndex; i < n; ++i)
+				secondPart.add(points.get(i));
+			firstPart = recursiveDownsample(firstPart, permittedDeviation);
+			secondPart = recursiveDownsample(secondPart, permittedDeviation);
+			firstPart.remove(firstPart.size() - 1);
+			firstPart.addAll(secondPart);
+			return firstPart;
+		}
+		final ArrayList<SimplePoint> result = new ArrayList<>();
+		result.add(startPoint);
+		result.add(endPoint);
+		return result;
+	}
+
+	static ArrayList<SimplePoint> randomWalk(final Random random, final int n) {
+		final ArrayList<SimplePoint> points = new ArrayList<>();
+		double x = 0, y = 0, z = 0;
+		for (int i = 0; i < n; ++i) {
+			x += random.nextGaussian();
+			y += random.nextGaussian();
+			z += 0.3 * random.nextGaussian();
+			points.add(new SimplePoint(x, y, z, i));
+		}
+		return points;
+	}
+
+	@Test
+	public void testMatchesRecursiveVersion() {
+		final Random random = new Random(42);
+		for (int trial = 0; trial < 500; ++trial) {
+			final ArrayList<SimplePoint> points = randomWalk(random, 2 + random.nextInt(400));
+			final double deviation = 0.25 + 3 * random.nextDouble();
+			final ArrayList<SimplePoint> expected = recursiveDownsample(points, deviation);
+			final ArrayList<SimplePoint> actual = PathDownsampler.downsample(points, deviation);
+			assertEquals(expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); ++i)
+				assertEquals(expected.get(i).originalIndex, actual.get(i).originalIndex);
+		}
+	}
+
+	@Test
+	public void testMarkRetainedWithinRange() {
+		final Random random = new Random(7);
+		final int n = 300, start = 50, end = 250;
+		final ArrayList<SimplePoint> points = randomWalk(random, n);
+		final double[] x = new double[n], y = new double[n], z = new double[n];
+		for (int i = 0; i < n; ++i) {
+			x[i] = points.get(i).x;
+			y[i] = points.get(i).y;
+			z[i] = points.get(i).z;
+		}
+		final boolean[] retain = new boolean[n];
+		retain[start] = retain[end] = true;
+		PathDownsampler.markRetained(x, y, z, null, start, end, 1.5, retain, new int[2 * n]);
+
+		final ArrayList<SimplePoint> expected = recursiveDownsample(
+				new ArrayList<>(points.subList(start, end + 1)), 1.5);
+		int retained = 0;
+		for (int i = 0; i < n; ++i) {
+			if (i < start || i > end)
+				assertFalse(retain[i]);
+			else if (retain[i])
+				assertEquals(expected.get(retained++).originalIndex, i);
+		}
+		assertEquals(expected.size(), retained);
+	}
+
+	@Test
+	public void testRadiusAware() {
+		// A straight line whose radius rises linearly to a peak in the middle:
+		final int n = 21;
+		final double[] x = new double[n], y = new double[n], z = new double[n], radii = new double[n];
+		for (int i = 0; i < n; ++i) {
+			x[i] = i;
+			radii[i] = 6 - 0.5 * Math.abs(i - 10);
+		}
+		boolean[] retain = new boolean[n];
+		PathDownsampler.markRetained(x, y, z, null, 0, n - 1, 1, retain, new int[2 * n]);
+		for (int i = 1; i < n - 1; ++i)
+			assertFalse(retain[i]);
+
+		retain = new boolean[n];
+		PathDownsampler.markRetained(x, y, z, radii, 0, n - 1, 1, retain, new int[2 * n]);
+		assertTrue(retain[10]);
+		for (int i = 1; i < n - 1; ++i)
+			if (i != 10)
+				assertFalse(retain[i]);
+	}
+
+	@Test
+	public void testCoincidentEndPoints() {
+		// A loop that returns to where it started:
+		final int n = 40;
+		final double[] x = new double[n], y = new double[n], z = new double[n];
+		for (int i = 0; i < n; ++i) {
+			final double angle = 2 * Math.PI * i / (n - 1);
+			x[i] = 10 * Math.cos(angle);
+			y[i] = 10 * Math.sin(angle);
+		}
+		final boolean[] retain = new boolean[n];
+		PathDownsampler.markRetained(x, y, z, null, 0, n - 1, 0.5, retain, new int[2 * n]);
+		int retained = 0;
+		for (int i = 1; i < n - 1; ++i)
+			if (retain[i])
+				++retained;
+		assertTrue(retained > 4);
+	}
+}
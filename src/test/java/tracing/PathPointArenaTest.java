@@ -0,0 +1,189 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/*
+ * Checks that the points of compacted paths read back (at float precision)
+ * as they were stored, including while other paths are moving out of the
+ * arena and it is repacking itself.
+ */
+public class PathPointArenaTest {
+
+	static final int PATHS = 400;
+	static final int POINTS = 60;
+
+	/* The points each path should have, as { xs, ys, zs, radii } lists: */
+	List<List<double[]>> expected;
+
+	private List<Path> makePaths(final long seed) {
+		final Random random = new Random(seed);
+		final List<Path> paths = new ArrayList<>();
+		expected = new ArrayList<>();
+		for (int p = 0; p < PATHS; ++p) {
+			final Path path = new Path(1, 1, 1, "pixel");
+			final List<double[]> points = new ArrayList<>();
+			for (int i = 0; i < POINTS; ++i) {
+				final double[] point = { random.nextDouble() * 1000, random.nextDouble() * 1000,
+						random.nextDouble() * 100, 1 + random.nextDouble() };
+				path.addPointDouble(point[0], point[1], point[2]);
+				points.add(point);
+			}
+			if (p % 3 == 0) {
+				path.createCircles();
+				for (int i = 0; i < POINTS; ++i)
+					path.radiuses[i] = points.get(i)[3];
+			}
+			paths.add(path);
+			expected.add(points);
+		}
+		return paths;
+	}
+
+	/*
+	 * Returns a description of the first point that doesn't match, or null.
+	 * The original points should have been rounded to floats by the arena,
+	 * while any added since should be exact.
+	 */
+	private String mismatch(final Path path, final int index) {
+		final List<double[]> points = expected.get(index);
+		if (path.size() != points.size())
+			return "path " + index + " has " + path.size() + " points, not " + points.size();
+		for (int i = 0; i < points.size(); ++i) {
+			final double[] e = points.get(i);
+			final boolean circles = path.hasCircles();
+			final double[] actual = { path.getPreciseX(i), path.getPreciseY(i), path.getPreciseZ(i),
+					circles ? path.getRadius(i) : 0 };
+			for (int d = 0; d < (circles ? 4 : 3); ++d) {
+				final double wanted = (i < POINTS) ? (float) e[d] : e[d];
+				if (actual[d] != wanted)
+					return "path " + index + ", point " + i + ", value " + d + ": " + actual[d] + " != " + wanted;
+			}
+		}
+		return null;
+	}
+
+	@Test
+	public void testRoundTrip() {
+		final List<Path> paths = makePaths(1);
+		final PathPointArena arena = new PathPointArena();
+		for (final Path p : paths)
+			p.compactInto(arena);
+		arena.trim();
+		assertEquals(PATHS, arena.getPathCount());
+		for (int p = 0; p < PATHS; ++p) {
+			assertTrue(paths.get(p).isCompacted());
+			assertEquals(p % 3 == 0, paths.get(p).hasCircles());
+			assertNull(mismatch(paths.get(p), p));
+		}
+		for (int p = 0; p < PATHS; ++p) {
+			paths.get(p).ensureArrays();
+			assertFalse(paths.get(p).isCompacted());
+			assertNull(mismatch(paths.get(p), p));
+		}
+		assertEquals(0, arena.getPathCount());
+	}
+
+	@Test
+	public void testConcurrentModification() throws Exception {
+		final List<Path> paths = makePaths(2);
+		final PathPointArena arena = new PathPointArena();
+		for (final Path p : paths)
+			p.compactInto(arena);
+		arena.trim();
+
+		final AtomicReference<String> failure = new AtomicReference<>();
+		final AtomicBoolean modifying = new AtomicBoolean(true);
+		final ExecutorService es = Executors.newFixedThreadPool(6);
+		try {
+			/*
+			 * Readers check the odd paths, which stay in the arena, over and
+			 * over while the even ones are moved out (each by a single
+			 * thread), which makes the arena repack:
+			 */
+			final List<Future<?>> readers = new ArrayList<>();
+			for (int r = 0; r < 3; ++r) {
+				readers.add(es.submit(new Runnable() {
+					@Override
+					public void run() {
+						do {
+							for (int p = 1; p < PATHS; p += 2) {
+								final String m = mismatch(paths.get(p), p);
+								if (m != null)
+									failure.compareAndSet(null, m);
+							}
+						} while (modifying.get());
+					}
+				}));
+			}
+			final List<Future<?>> modifiers = new ArrayList<>();
+			for (int t = 0; t < 3; ++t) {
+				final int first = 2 * t;
+				modifiers.add(es.submit(new Runnable() {
+					@Override
+					public void run() {
+						for (int p = first; p < PATHS; p += 6) {
+							final Path path = paths.get(p);
+							path.addPointDouble(p, p + 1, p + 2);
+							expected.get(p).add(new double[] { p, p + 1, p + 2, 0 });
+							if (p % 60 == 0)
+								arena.trim();
+						}
+					}
+				}));
+			}
+			for (final Future<?> f : modifiers)
+				f.get();
+			modifying.set(false);
+			for (final Future<?> f : readers)
+				f.get();
+		} finally {
+			es.shutdownNow();
+		}
+		assertNull(failure.get());
+
+		for (int p = 0; p < PATHS; ++p) {
+			assertEquals(p % 2 == 1, paths.get(p).isCompacted());
+			assertNull(mismatch(paths.get(p), p));
+		}
+		assertEquals(PATHS / 2, arena.getPathCount());
+	}
+}
@@ -0,0 +1,100 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import features.ComputeCurvatures;
+import ij.ImagePlus;
+
+/*
+ * The segment searches of a multi-point trace run concurrently and share
+ * the plugin's ComputeCurvatures, which is only safe because the Hessian
+ * eigenvalues at a point are computed from the (read-only) Gaussian-smoothed
+ * image into the caller's array. This checks that concurrent calls give
+ * exactly the results of sequential ones.
+ */
+public class SharedHessianTest {
+
+	static final int THREADS = 4;
+
+	@Test
+	public void testConcurrentEigenvalues() throws Exception {
+		final ImagePlus image = ParallelFillerThreadTest.syntheticStack();
+		final ComputeCurvatures hessian = new ComputeCurvatures(image, 1.0, null, true);
+		hessian.run();
+
+		final int width = image.getWidth(), height = image.getHeight(), depth = image.getStackSize();
+		final double[] expected = eigenvalues(hessian, width, height, depth);
+
+		final ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		try {
+			final List<Future<double[]>> futures = new ArrayList<>();
+			for (int t = 0; t < THREADS; ++t)
+				futures.add(pool.submit(new Callable<double[]>() {
+					@Override
+					public double[] call() {
+						return eigenvalues(hessian, width, height, depth);
+					}
+				}));
+			for (final Future<double[]> future : futures) {
+				final double[] actual = future.get();
+				assertEquals(expected.length, actual.length);
+				for (int i = 0; i < expected.length; ++i)
+					assertTrue("Eigenvalue " + i + " differs", Double.compare(expected[i], actual[i]) == 0);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/* As TracerThread asks for them, for every voxel in turn: */
+	static double[] eigenvalues(final ComputeCurvatures hessian, final int width, final int height,
+			final int depth) {
+		final double[] result = new double[3 * width * height * depth];
+		final double[] values = new double[3];
+		int i = 0;
+		for (int z = 0; z < depth; ++z)
+			for (int y = 0; y < height; ++y)
+				for (int x = 0; x < width; ++x) {
+					final boolean real = hessian.hessianEigenvaluesAtPoint3D(x, y, z, true, values, false, true, 1f,
+							1f, 2f);
+					result[i++] = real ? values[0] : Double.NaN;
+					result[i++] = real ? values[1] : Double.NaN;
+					result[i++] = real ? values[2] : Double.NaN;
+				}
+		return result;
+	}
+}
@@ -0,0 +1,179 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import org.junit.Test;
+
+public class SinglePathsGraphTest {
+
+	/* An image of 2^33 voxels, whose voxel indices don't fit in an int: */
+
+	static final int WIDTH = 4096, HEIGHT = 4096, DEPTH = 512;
+
+	@Test
+	public void testPointsBeyond2To31Voxels() throws IOException {
+		final SinglePathsGraph graph = new SinglePathsGraph(WIDTH, HEIGHT, DEPTH, 1, 1, 2, true);
+		AutoPoint previous = null;
+		for (int i = 0; i < 10; ++i) {
+			final AutoPoint p = new AutoPoint(WIDTH - 1 - i, HEIGHT - 1, DEPTH - 1 - i);
+			graph.addPoint(p, previous);
+			previous = p;
+		}
+		// Would have aliased the first point, with int voxel indices:
+		graph.addPoint(new AutoPoint(WIDTH - 1, HEIGHT - 1, DEPTH - 1 - 256), null);
+		check(graph);
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			graph.writeState(out);
+		}
+		final SinglePathsGraph restored = new SinglePathsGraph(WIDTH, HEIGHT, DEPTH, 1, 1, 2, false);
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			restored.readState(in);
+		}
+		check(restored);
+	}
+
+	@Test
+	public void testBinaryRoundTrip() throws IOException {
+		final SinglePathsGraph graph = new SinglePathsGraph(WIDTH, HEIGHT, DEPTH, 1, 1, 2, false);
+		graph.addPoint(new AutoPoint(1, 2, DEPTH - 1), null);
+		graph.addPoint(new AutoPoint(3, 4, DEPTH - 2), new AutoPoint(1, 2, DEPTH - 1));
+		final File file = File.createTempFile("graph", ".traces.bin");
+		try {
+			graph.writeBinary(file.getAbsolutePath());
+			final int[] counts = new int[2];
+			assertTrue(SinglePathsGraph.loadBinaryWithListener(file.getAbsolutePath(), new TraceLoaderListener() {
+
+				@Override
+				public void gotVertex(final int vertexIndex, final float x_scaled, final float y_scaled,
+						final float z_scaled, final int x_image, final int y_image, final int z_image) {
+					++counts[0];
+					assertEquals(vertexIndex == 1 ? 1 : 3, x_image);
+					assertEquals(vertexIndex == 1 ? 2 : 4, y_image);
+					assertEquals(vertexIndex == 1 ? DEPTH - 1 : DEPTH - 2, z_image);
+					assertEquals(2f * z_image, z_scaled, 0);
+				}
+
+				@Override
+				public void gotLine(final int fromVertexIndex, final int toVertexIndex) {
+					++counts[1];
+					assertEquals(1, fromVertexIndex);
+					assertEquals(2, toVertexIndex);
+				}
+
+				@Override
+				public void gotWidth(final int width) {
+					assertEquals(WIDTH, width);
+				}
+
+				@Override
+				public void gotHeight(final int height) {
+					assertEquals(HEIGHT, height);
+				}
+
+				@Override
+				public void gotDepth(final int depth) {
+					assertEquals(DEPTH, depth);
+				}
+
+				@Override
+				public void gotSpacingX(final float spacing_x) {}
+
+				@Override
+				public void gotSpacingY(final float spacing_y) {}
+
+				@Override
+				public void gotSpacingZ(final float spacing_z) {}
+			}));
+			assertEquals(2, counts[0]);
+			assertEquals(1, counts[1]);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testLineBeforeVerticesIsReported() throws IOException {
+		final File obj = File.createTempFile("graph", ".traces.obj");
+		final File bin = File.createTempFile("graph", ".traces.bin");
+		try {
+			try (PrintWriter pw = new PrintWriter(obj, "UTF-8")) {
+				pw.println("# width: 10");
+				pw.println("# height: 10");
+				pw.println("# depth: 10");
+				pw.println("l 1 2");
+				pw.println("v 0 0 0");
+			}
+			try {
+				SinglePathsGraph.convertObjToBinary(obj.getAbsolutePath(), bin.getAbsolutePath());
+				fail("A line before any vertex was accepted");
+			} catch (final RuntimeException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("before any vertex"));
+			}
+		} finally {
+			obj.delete();
+			bin.delete();
+		}
+	}
+
+	static void check(final SinglePathsGraph graph) {
+		assertEquals(11, graph.numberOfPoints());
+		assertEquals(9, graph.numberOfLinks());
+		graph.forEachPoint(new SinglePathsGraph.PointVisitor() {
+
+			@Override
+			public void point(final int index, final int x, final int y, final int z) {
+				if (index < 10) {
+					assertEquals(WIDTH - 1 - index, x);
+					assertEquals(DEPTH - 1 - index, z);
+				} else {
+					assertEquals(WIDTH - 1, x);
+					assertEquals(DEPTH - 1 - 256, z);
+				}
+				assertEquals(HEIGHT - 1, y);
+			}
+		});
+		graph.forEachLink(new SinglePathsGraph.LinkVisitor() {
+
+			@Override
+			public void link(final int fromIndex, final int toIndex) {
+				assertEquals(fromIndex + 1, toIndex);
+			}
+		});
+	}
+}
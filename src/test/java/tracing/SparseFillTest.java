@@ -0,0 +1,133 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2010 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package tracing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SparseFillTest {
+
+	@Test
+	public void testRunsSplitAtRowBoundaries() {
+		final int width = 8;
+		final SparseFill.Builder builder = new SparseFill.Builder(width, 4, 2);
+		// The end of row 0 and the start of row 1 are consecutive in the slice:
+		builder.add(6, 0, 0, 1);
+		builder.add(7, 0, 0, 2);
+		builder.add(0, 1, 0, 3);
+		builder.add(1, 1, 0, 4);
+		// ... as are the end of the last row of slice 0 and the start of slice 1:
+		builder.add(7, 3, 0, 5);
+		builder.add(0, 0, 1, 6);
+		final SparseFill fill = builder.build();
+		assertEquals(4, fill.getRunCount());
+		assertEquals(6, fill.getVoxelCount());
+		assertEquals(5, fill.getSliceVoxelCount(0));
+		assertEquals(1, fill.getSliceVoxelCount(1));
+		assertEquals(2, fill.getDistance(7, 0, 0), 0);
+		assertEquals(3, fill.getDistance(0, 1, 0), 0);
+		assertEquals(5, fill.getDistance(7, 3, 0), 0);
+		assertEquals(6, fill.getDistance(0, 0, 1), 0);
+		assertArrayEquals(new int[] { 0, 0, 0, 7, 3, 1 }, fill.getBoundingBox());
+	}
+
+	@Test
+	public void testAddedInAnyOrder() {
+		final SparseFill.Builder builder = new SparseFill.Builder(10, 1, 1);
+		for (final int x : new int[] { 4, 2, 3, 9, 8 })
+			builder.add(x, 0, 0, x);
+		final SparseFill fill = builder.build();
+		assertEquals(2, fill.getRunCount());
+		for (int x = 0; x < 10; ++x)
+			assertEquals("At x = " + x, (x >= 2 && x <= 4) || x >= 8 ? x : -1, fill.getDistance(x, 0, 0), 0);
+	}
+
+	/* Checks findRun() against a dense mask with many runs in each slice: */
+	@Test
+	public void testFindRun() {
+		final int width = 37, height = 23, depth = 5;
+		final Random random = new Random(47);
+		final float[][] dense = new float[depth][width * height];
+		final SparseFill.Builder builder = new SparseFill.Builder(width, height, depth);
+		for (int z = 0; z < depth; ++z)
+			for (int i = 0; i < width * height; ++i) {
+				dense[z][i] = -1;
+				if (z != 2 && random.nextInt(3) > 0) {
+					dense[z][i] = random.nextFloat();
+					builder.add(i % width, i / width, z, dense[z][i]);
+				}
+			}
+		final SparseFill fill = builder.build();
+		assertTrue(fill.getRunCount() > depth * height);
+		for (int z = 0; z < depth; ++z)
+			for (int y = 0; y < height; ++y)
+				for (int x = 0; x < width; ++x) {
+					final float expected = dense[z][y * width + x];
+					assertEquals(expected >= 0, fill.contains(x, y, z));
+					assertEquals(expected, fill.getDistance(x, y, z), 0);
+				}
+		assertFalse(fill.contains(0, 0, -1));
+		assertFalse(fill.contains(0, 0, depth));
+		assertEquals(0, fill.getSliceVoxelCount(2));
+	}
+
+	@Test
+	public void testEmpty() {
+		final SparseFill fill = new SparseFill.Builder(4, 4, 4).build();
+		assertEquals(0, fill.getRunCount());
+		assertEquals(0, fill.getVolume(1, 2, 3), 0);
+		assertNull(fill.getBoundingBox());
+		assertFalse(fill.contains(1, 1, 1));
+	}
+
+	@Test
+	public void testFillVolumeAgreesWithSparseFill() {
+		final Random random = new Random(48);
+		final Fill fill = new Fill();
+		fill.setSpacing(0.5, 0.5, 2, "um");
+		for (int z = 0; z < 3; ++z)
+			for (int y = 0; y < 5; ++y)
+				for (int x = 0; x < 7; ++x)
+					fill.add(x, y, z, random.nextInt(20) / 4.0, -1, random.nextBoolean());
+		for (final double threshold : new double[] { -1, 0, 0.25, 2.5, 2.6, 4.75, 10 }) {
+			fill.setThreshold(threshold);
+			final SparseFill sparse = fill.getSparseFill();
+			assertEquals(sparse.getVoxelCount(), fill.getVoxelCount());
+			assertEquals(sparse.getVolume(0.5, 0.5, 2), fill.getVolume(), 1e-9);
+		}
+		assertEquals(105, fill.getVoxelCount());
+
+		/* Adding nodes must be reflected in the volume: */
+		fill.add(0, 0, 3, 0, -1, false);
+		assertEquals(106, fill.getVoxelCount());
+	}
+}